@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2019 Informatics Matters Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.squonk.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.squonk.stream.FixedBatchSpliteratorBase;
+import org.squonk.types.MoleculeObject;
+import org.squonk.util.IOUtils;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * The parallel processing of a Stream generated from an Iterator, as the readers do, using the batch sizes of
+ * {@link FixedBatchSpliteratorBase}. Small batches spread the work better but add overhead.
+ *
+ * @author timbo
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BatchSpliteratorBenchmark {
+
+    /**
+     * The batch size for the spliterator
+     */
+    @Param({"1", "8", "32", "128", "1024"})
+    public int batchSize;
+
+    /**
+     * The amount of work done for each item, in units of {@link Blackhole#consumeCPU(long)}
+     */
+    @Param({"100", "10000"})
+    public long work;
+
+    private List<MoleculeObject> molecules;
+
+    @Setup
+    public void setup() throws IOException {
+        molecules = BenchmarkData.readMolecules(BenchmarkData.DHFR_SDF);
+    }
+
+    @Benchmark
+    public long batchedParallelStream() {
+        try (Stream<MoleculeObject> stream = IOUtils.streamFromIterator(molecules.iterator(), MoleculeObject.class, batchSize)) {
+            return stream.peek(mo -> Blackhole.consumeCPU(work)).count();
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2019 Informatics Matters Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.squonk.benchmarks;
+
+import org.squonk.reader.SDFReader;
+import org.squonk.types.BasicObject;
+import org.squonk.types.MoleculeObject;
+import org.squonk.util.IOUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Access to the test data used by the benchmarks. The files are read from the data/testfiles directory of the
+ * project so the benchmarks run offline. The location can be changed with the SQUONK_BENCHMARK_DATA system
+ * property or environment variable.
+ *
+ * @author timbo
+ */
+public class BenchmarkData {
+
+    /**
+     * 756 molecules with their properties
+     */
+    public static final String DHFR_SDF = "dhfr_standardized.sdf.gz";
+    /**
+     * Tab delimited file with a header line
+     */
+    public static final String PUBCHEM_TAB = "Pubchem.tab.gz";
+
+    private static final String DATA_DIR = IOUtils.getConfiguration("SQUONK_BENCHMARK_DATA", "../../data/testfiles");
+
+    public static File getFile(String name) throws FileNotFoundException {
+        File f = new File(DATA_DIR, name);
+        if (!f.exists()) {
+            throw new FileNotFoundException("Test data not found: " + f.getAbsolutePath()
+                    + ". Set SQUONK_BENCHMARK_DATA to the data/testfiles directory.");
+        }
+        return f;
+    }
+
+    /**
+     * Read the raw bytes of the file so that benchmarks can exclude file IO
+     */
+    public static byte[] readBytes(String name) throws IOException {
+        return Files.readAllBytes(getFile(name).toPath());
+    }
+
+    /**
+     * Read the gunzipped bytes of the file
+     */
+    public static byte[] readUncompressedBytes(String name) throws IOException {
+        try (InputStream is = IOUtils.getGunzippedInputStream(new ByteArrayInputStream(readBytes(name)))) {
+            return IOUtils.convertStreamToBytes(is);
+        }
+    }
+
+    /**
+     * Read the molecules from a SD file
+     */
+    public static List<MoleculeObject> readMolecules(String name) throws IOException {
+        try (SDFReader reader = new SDFReader(new ByteArrayInputStream(readBytes(name)), name)) {
+            List<MoleculeObject> mols = new ArrayList<>();
+            reader.forEachRemaining(mols::add);
+            return mols;
+        }
+    }
+
+    /**
+     * Copies of the molecules without any of the cached molecule representations, as they would be when read
+     * from a file.
+     */
+    public static List<MoleculeObject> copyMolecules(List<MoleculeObject> mols) {
+        return mols.stream()
+                .map(mo -> new MoleculeObject(mo.getUUID(), mo.getSource(), mo.getFormat(), mo.getValues()))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * BasicObjects with the same properties as the molecules, but no structures
+     */
+    public static List<BasicObject> toBasicObjects(List<MoleculeObject> mols) {
+        return mols.stream()
+                .map(mo -> new BasicObject(mo.getUUID(), mo.getValues()))
+                .collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2019 Informatics Matters Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.squonk.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.squonk.cdk.molecule.DescriptorCalculator;
+import org.squonk.cdk.molecule.MolecularDescriptors;
+import org.squonk.types.MoleculeObject;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The CDK {@link MolecularDescriptors}.
+ * Each invocation calculates for every molecule in the dataset, including parsing the molecules, as happens when
+ * the calculators are used in a service. The molecules are copied before each invocation so that molecule
+ * representations cached by a previous invocation are not re-used.
+ *
+ * @author timbo
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CDKDescriptorsBenchmark {
+
+    @Param({"ALogP", "XLogP", "HBondDonorCount", "HBondAcceptorCount", "WienerNumbers"})
+    public String descriptor;
+
+    private List<MoleculeObject> source;
+    private List<MoleculeObject> molecules;
+    private DescriptorCalculator cdkCalculator;
+
+    @Setup
+    public void setup() throws Exception {
+        source = BenchmarkData.readMolecules(BenchmarkData.DHFR_SDF);
+        MolecularDescriptors.Descriptor d = MolecularDescriptors.Descriptor.valueOf(descriptor);
+        cdkCalculator = d.create(d.defaultPropNames);
+    }
+
+    @Setup(Level.Invocation)
+    public void copyMolecules() {
+        molecules = BenchmarkData.copyMolecules(source);
+    }
+
+    @Benchmark
+    public List<MoleculeObject> cdkDescriptor() throws Exception {
+        for (MoleculeObject mo : molecules) {
+            cdkCalculator.calculate(mo);
+        }
+        return molecules;
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2019 Informatics Matters Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.squonk.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.squonk.dataset.Dataset;
+import org.squonk.dataset.DatasetMetadata;
+import org.squonk.types.MoleculeObject;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * The generation of metadata as a Stream is consumed using {@link Dataset.DatasetMetadataGenerator}, which is done
+ * for most datasets that are written.
+ *
+ * @author timbo
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DatasetMetadataBenchmark {
+
+    @Param({"false", "true"})
+    public boolean parallel;
+
+    private List<MoleculeObject> molecules;
+
+    @Setup
+    public void setup() throws IOException {
+        molecules = BenchmarkData.readMolecules(BenchmarkData.DHFR_SDF);
+    }
+
+    @Benchmark
+    public DatasetMetadata<MoleculeObject> generateMetadata() {
+        Dataset<MoleculeObject> dataset = new Dataset<>(MoleculeObject.class, molecules);
+        Stream<MoleculeObject> source = parallel ? molecules.parallelStream() : molecules.stream();
+        Dataset<MoleculeObject>.DatasetMetadataGenerator<MoleculeObject> generator = dataset.createDatasetMetadataGenerator(source);
+        try (Stream<MoleculeObject> stream = generator.getAsStream()) {
+            stream.forEach(mo -> {});
+        }
+        return generator.getDatasetMetadata();
+    }
+}
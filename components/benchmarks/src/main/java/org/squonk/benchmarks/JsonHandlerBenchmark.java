@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2019 Informatics Matters Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.squonk.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.squonk.types.BasicObject;
+import org.squonk.types.MoleculeObject;
+import org.squonk.types.io.BinaryHandler;
+import org.squonk.types.io.JsonHandler;
+import org.squonk.util.IOUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Serialisation and deserialisation of MoleculeObjects and BasicObjects using {@link JsonHandler}, with the binary
+ * format of {@link BinaryHandler} for comparison.
+ * Each invocation handles the whole dataset so the score is the time per dataset.
+ *
+ * @author timbo
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class JsonHandlerBenchmark {
+
+    private final JsonHandler jsonHandler = JsonHandler.getInstance();
+    private final BinaryHandler binaryHandler = BinaryHandler.getInstance();
+
+    private List<MoleculeObject> molecules;
+    private List<BasicObject> basicObjects;
+    private byte[] moleculesJson;
+    private byte[] basicObjectsJson;
+    private byte[] moleculesBinary;
+
+    @Setup
+    public void setup() throws IOException {
+        molecules = BenchmarkData.readMolecules(BenchmarkData.DHFR_SDF);
+        basicObjects = BenchmarkData.toBasicObjects(molecules);
+        moleculesJson = toJson(molecules.stream());
+        basicObjectsJson = toJson(basicObjects.stream());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        binaryHandler.marshalStreamToBinary(molecules.stream(), null, out);
+        moleculesBinary = out.toByteArray();
+    }
+
+    private byte[] toJson(Stream<? extends BasicObject> stream) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        jsonHandler.marshalStreamToJsonArray(stream, out);
+        return out.toByteArray();
+    }
+
+    @Benchmark
+    public byte[] marshalMoleculeObjects() throws IOException {
+        return toJson(molecules.stream());
+    }
+
+    @Benchmark
+    public byte[] marshalBasicObjects() throws IOException {
+        return toJson(basicObjects.stream());
+    }
+
+    /**
+     * Marshal through the InputStream that is used when sending datasets, including the gzipping.
+     */
+    @Benchmark
+    public byte[] marshalMoleculeObjectsGzipped() throws IOException {
+        try (InputStream is = jsonHandler.marshalData(molecules.stream(), true).getInputStream()) {
+            return IOUtils.convertStreamToBytes(is);
+        }
+    }
+
+    @Benchmark
+    public long unmarshalMoleculeObjects() throws IOException {
+        try (Stream<MoleculeObject> stream = jsonHandler.streamFromJson(new ByteArrayInputStream(moleculesJson), MoleculeObject.class, true)) {
+            return stream.count();
+        }
+    }
+
+    @Benchmark
+    public long unmarshalBasicObjects() throws IOException {
+        try (Stream<BasicObject> stream = jsonHandler.streamFromJson(new ByteArrayInputStream(basicObjectsJson), BasicObject.class, true)) {
+            return stream.count();
+        }
+    }
+
+    @Benchmark
+    public byte[] marshalMoleculeObjectsBinary() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        binaryHandler.marshalStreamToBinary(molecules.stream(), null, out);
+        return out.toByteArray();
+    }
+
+    @Benchmark
+    public long unmarshalMoleculeObjectsBinary() throws IOException {
+        try (Stream<MoleculeObject> stream = binaryHandler.streamFromBinary(new ByteArrayInputStream(moleculesBinary), MoleculeObject.class, true)) {
+            return stream.count();
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2019 Informatics Matters Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.squonk.benchmarks;
+
+import org.apache.commons.csv.CSVFormat;
+import org.openjdk.jmh.annotations.*;
+import org.squonk.reader.CSVReader;
+import org.squonk.reader.ParallelSDFReader;
+import org.squonk.reader.SDFReader;
+import org.squonk.types.BasicObject;
+import org.squonk.types.MoleculeObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Parsing of SD files with {@link SDFReader} and {@link ParallelSDFReader} and of delimited text files with
+ * {@link CSVReader}. The files are read into memory (or for ParallelSDFReader written to a temp file) in the setup so
+ * that only the parsing is measured. Each invocation reads the whole file.
+ *
+ * @author timbo
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ReaderBenchmark {
+
+    private byte[] sdfGzipped;
+    private byte[] sdf;
+    private byte[] tab;
+    private File sdfFile;
+
+    @Setup
+    public void setup() throws IOException {
+        sdfGzipped = BenchmarkData.readBytes(BenchmarkData.DHFR_SDF);
+        sdf = BenchmarkData.readUncompressedBytes(BenchmarkData.DHFR_SDF);
+        tab = BenchmarkData.readUncompressedBytes(BenchmarkData.PUBCHEM_TAB);
+        sdfFile = File.createTempFile("benchmark", ".sdf");
+        Files.write(sdfFile.toPath(), sdf);
+    }
+
+    @TearDown
+    public void tearDown() {
+        sdfFile.delete();
+    }
+
+    @Benchmark
+    public long sdfReader() throws IOException {
+        try (SDFReader reader = new SDFReader(new ByteArrayInputStream(sdf), BenchmarkData.DHFR_SDF);
+             Stream<MoleculeObject> stream = reader.asStream()) {
+            return stream.count();
+        }
+    }
+
+    /**
+     * Includes the gunzipping that is needed for most files that are read
+     */
+    @Benchmark
+    public long sdfReaderGzipped() throws IOException {
+        try (SDFReader reader = new SDFReader(new ByteArrayInputStream(sdfGzipped), BenchmarkData.DHFR_SDF);
+             Stream<MoleculeObject> stream = reader.asStream()) {
+            return stream.count();
+        }
+    }
+
+    @Benchmark
+    public long parallelSdfReader() throws IOException {
+        try (ParallelSDFReader reader = new ParallelSDFReader(sdfFile)) {
+            // the test file is small so make sure it is split
+            reader.setMinSplitSize(16 * 1024);
+            return reader.asStream().count();
+        }
+    }
+
+    @Benchmark
+    public long csvReader() throws IOException {
+        try (CSVReader reader = new CSVReader(new ByteArrayInputStream(tab), CSVFormat.TDF.withHeader(), "TDF");
+             Stream<BasicObject> stream = reader.asStream()) {
+            return stream.count();
+        }
+    }
+}
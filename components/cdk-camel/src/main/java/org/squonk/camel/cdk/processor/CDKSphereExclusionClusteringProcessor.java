@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2019 Informatics Matters Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.squonk.camel.cdk.processor;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.openscience.cdk.CDK;
+import org.squonk.cdk.clustering.CDKSphereExclusionClusterer;
+import org.squonk.clustering.BitSetSphereExclusionClusterer;
+import org.squonk.dataset.Dataset;
+import org.squonk.dataset.DatasetMetadata;
+import org.squonk.dataset.MoleculeObjectDataset;
+import org.squonk.types.MoleculeObject;
+import org.squonk.util.ExecutionStats;
+import org.squonk.util.StatsRecorder;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * Sphere exclusion clustering using CDK ECFP4 fingerprints. The similarity threshold can be specified using the
+ * threshold header.
+ *
+ * @author timbo
+ */
+public class CDKSphereExclusionClusteringProcessor implements Processor {
+
+    public static final String HEADER_THRESHOLD = "threshold";
+
+    private String clusterPropertyName = "cluster";
+    private double threshold = BitSetSphereExclusionClusterer.DEFAULT_THRESHOLD;
+
+    public CDKSphereExclusionClusteringProcessor clusterPropertyName(String propName) {
+        this.clusterPropertyName = propName;
+        return this;
+    }
+
+    public CDKSphereExclusionClusteringProcessor threshold(double threshold) {
+        this.threshold = threshold;
+        return this;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void process(Exchange exch) throws Exception {
+        Dataset dataset = exch.getIn().getBody(Dataset.class);
+        if (dataset == null || dataset.getType() != MoleculeObject.class) {
+            throw new IllegalStateException("Input must be a Dataset of MoleculeObjects");
+        }
+        Double t = exch.getIn().getHeader(HEADER_THRESHOLD, Double.class);
+
+        CDKSphereExclusionClusterer clusterer = new CDKSphereExclusionClusterer();
+        clusterer.setClusterPropertyName(clusterPropertyName);
+        clusterer.setThreshold(t == null ? threshold : t);
+
+        AtomicInteger count = new AtomicInteger(0);
+        Stream<MoleculeObject> mols = clusterer.clusterMoleculeObjects(dataset.getStream())
+                .peek((mo) -> count.incrementAndGet());
+        StatsRecorder recorder = exch.getIn().getHeader(StatsRecorder.HEADER_STATS_RECORDER, StatsRecorder.class);
+        if (recorder != null) {
+            mols = mols.onClose(() -> {
+                Map<String, Integer> stats = new HashMap<>();
+                ExecutionStats.increment(stats, "Cluster_CDK", count.get());
+                recorder.recordStats(stats);
+            });
+        }
+
+        DatasetMetadata<MoleculeObject> meta = dataset.getMetadata();
+        if (meta == null) {
+            meta = new DatasetMetadata<>(MoleculeObject.class);
+        }
+        meta.getValueClassMappings().put(clusterPropertyName, Integer.class);
+        meta.createField(clusterPropertyName, "CDK " + CDK.getVersion(),
+                "Sphere exclusion cluster using ECFP4 fingerprints and threshold " + clusterer.getThreshold(), Integer.class);
+        exch.getIn().setBody(new MoleculeObjectDataset(mols, meta));
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2019 Informatics Matters Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.squonk.cdk.clustering;
+
+import org.openscience.cdk.exception.CDKException;
+import org.openscience.cdk.fingerprint.CircularFingerprinter;
+import org.openscience.cdk.fingerprint.IFingerprinter;
+import org.openscience.cdk.interfaces.IAtomContainer;
+import org.squonk.cdk.io.CDKMoleculeIOUtils;
+import org.squonk.clustering.BitSetSphereExclusionClusterer;
+import org.squonk.types.MoleculeObject;
+
+import java.util.BitSet;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Sphere exclusion clustering using CDK fingerprints. By default ECFP4 folded to 1024 bits is used.
+ * See {@link BitSetSphereExclusionClusterer} for details of the algorithm.
+ *
+ * @author timbo
+ */
+public class CDKSphereExclusionClusterer {
+
+    private static final Logger LOG = Logger.getLogger(CDKSphereExclusionClusterer.class.getName());
+
+    public static final int DEFAULT_FINGERPRINT_SIZE = 1024;
+
+    /**
+     * The name of the property that holds the cluster number. Default is "cluster"
+     */
+    private String clusterPropertyName = "cluster";
+
+    private double threshold = BitSetSphereExclusionClusterer.DEFAULT_THRESHOLD;
+
+    /**
+     * Creates the fingerprinters. A fingerprinter is created for each thread as they are not thread safe.
+     */
+    private final Supplier<IFingerprinter> fingerprinterFactory;
+
+    public CDKSphereExclusionClusterer() {
+        this(() -> new CircularFingerprinter(CircularFingerprinter.CLASS_ECFP4, DEFAULT_FINGERPRINT_SIZE));
+    }
+
+    public CDKSphereExclusionClusterer(Supplier<IFingerprinter> fingerprinterFactory) {
+        this.fingerprinterFactory = fingerprinterFactory;
+    }
+
+    public CDKSphereExclusionClusterer(Supplier<IFingerprinter> fingerprinterFactory, double threshold) {
+        this(fingerprinterFactory);
+        this.threshold = threshold;
+    }
+
+    public String getClusterPropertyName() {
+        return clusterPropertyName;
+    }
+
+    public void setClusterPropertyName(String propName) {
+        this.clusterPropertyName = propName;
+    }
+
+    public double getThreshold() {
+        return threshold;
+    }
+
+    public void setThreshold(double threshold) {
+        this.threshold = threshold;
+    }
+
+    public Stream<MoleculeObject> clusterMoleculeObjects(Iterable<MoleculeObject> mols) {
+        return clusterMoleculeObjects(StreamSupport.stream(mols.spliterator(), false));
+    }
+
+    public Stream<MoleculeObject> clusterMoleculeObjects(Stream<MoleculeObject> mols) {
+        LOG.log(Level.INFO, "Clustering with threshold={0}", threshold);
+        ThreadLocal<IFingerprinter> fingerprinters = ThreadLocal.withInitial(fingerprinterFactory);
+        BitSetSphereExclusionClusterer<MoleculeObject> clusterer = new BitSetSphereExclusionClusterer<>(
+                mo -> generateFingerprint(fingerprinters.get(), mo), threshold);
+        return clusterer.cluster(mols, (mo, cluster) -> mo.putValue(clusterPropertyName, cluster));
+    }
+
+    BitSet generateFingerprint(IFingerprinter fingerprinter, MoleculeObject mo) {
+        if (mo.getSource() == null) {
+            return null;
+        }
+        IAtomContainer mol = CDKMoleculeIOUtils.fetchMolecule(mo, false);
+        if (mol == null) {
+            return null;
+        }
+        try {
+            return fingerprinter.getBitFingerprint(mol).asBitSet();
+        } catch (CDKException e) {
+            LOG.log(Level.INFO, "CDK unable to generate fingerprint: " + e.getMessage());
+            return null;
+        }
+    }
+}
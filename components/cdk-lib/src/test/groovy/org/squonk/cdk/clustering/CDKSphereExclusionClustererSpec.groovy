@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2019 Informatics Matters Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.squonk.cdk.clustering
+
+import org.openscience.cdk.fingerprint.CircularFingerprinter
+import org.squonk.data.Molecules
+import org.squonk.dataset.Dataset
+import org.squonk.types.MoleculeObject
+import spock.lang.Specification
+
+/**
+ * Created by timbo on 17/10/2019.
+ */
+class CDKSphereExclusionClustererSpec extends Specification {
+
+    static double tanimoto(BitSet a, BitSet b) {
+        int countA = a.cardinality()
+        int countB = b.cardinality()
+        if (countA == 0 && countB == 0) {
+            return 1d
+        }
+        int c = (a & b).cardinality()
+        return (double) c / (double) (countA + countB - c)
+    }
+
+    /** The leaders found by comparing each molecule with every leader. The index of a leader is its cluster number. */
+    static List<Integer> findLeaders(List<BitSet> fps, double threshold) {
+        List<Integer> leaders = []
+        fps.eachWithIndex { fp, i ->
+            if (fp != null && !leaders.any { tanimoto(fp, fps[it]) >= threshold }) {
+                leaders << i
+            }
+        }
+        leaders
+    }
+
+    /** Assign each molecule to its most similar leader, the lowest cluster number winning ties */
+    static List<Integer> assign(List<BitSet> fps, List<Integer> leaders, double threshold) {
+        fps.collect { fp ->
+            if (fp == null) {
+                return null
+            }
+            int best = -1
+            double bestSim = threshold
+            leaders.eachWithIndex { leader, c ->
+                double sim = tanimoto(fp, fps[leader])
+                if (best < 0 ? sim >= bestSim : sim > bestSim) {
+                    best = c
+                    bestSim = sim
+                }
+            }
+            best
+        }
+    }
+
+    void "cluster dhfr"() {
+
+        Dataset<MoleculeObject> dataset = Molecules.datasetFromJSON(Molecules.DHFR_STANDARDIZED_JSON)
+        CDKSphereExclusionClusterer clusterer = new CDKSphereExclusionClusterer()
+        def fingerprinter = new CircularFingerprinter(CircularFingerprinter.CLASS_ECFP4, CDKSphereExclusionClusterer.DEFAULT_FINGERPRINT_SIZE)
+
+        when:
+        def mols = clusterer.clusterMoleculeObjects(dataset.getStream()).parallel().collect()
+        def fps = mols.collect { clusterer.generateFingerprint(fingerprinter, it) }
+        def clusters = mols.collect { it.getValue('cluster') }
+        def leaders = findLeaders(fps, clusterer.threshold)
+
+        then:
+        mols.size() == 756
+        leaders.size() > 1
+        clusters.every { it != null }
+        clusters == assign(fps, leaders, clusterer.threshold)
+        leaders.withIndex().every { leader, c -> clusters[leader] == c }
+        clusters.withIndex().every { c, i -> tanimoto(fps[i], fps[leaders[c]]) >= clusterer.threshold }
+    }
+}
@@ -190,6 +190,7 @@ public class CellExecutorRouteBuilder extends RouteBuilder {
             jobstatusClient.updateStatus(jobid, JobStatus.Status.ERROR, "Failed to execute job. " + e.getMessage());
         } finally {
             executor.cleanup();
+            varman.close();
         }
 
     }
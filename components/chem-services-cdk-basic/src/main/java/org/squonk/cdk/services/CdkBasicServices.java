@@ -16,6 +16,7 @@
 
 package org.squonk.cdk.services;
 
+import org.squonk.camel.cdk.processor.CDKSphereExclusionClusteringProcessor;
 import org.squonk.core.ServiceDescriptorSet;
 import org.squonk.dataset.ThinDescriptor;
 import org.squonk.io.IODescriptors;
@@ -59,11 +60,27 @@ public class CdkBasicServices {
             "/docs/cells/Wiener%20Numbers%20(CDK)/",
             "icons/properties_add.png", "wiener_numbers", null, null);
 
+    static final HttpServiceDescriptor SERVICE_DESCRIPTOR_CLUSTERING_SPHEREX = createServiceDescriptor(
+            "cdk.clustering.spherex", "SphereEx Clustering (CDK)",
+            "Sphere exclusion clustering using CDK ECFP4 fingerprints and Tanimoto similarity",
+            new String[]{"clustering", "ecfp", "ecfp4", "cdk"},
+            "/docs/cells/SphereEx%20Clustering%20(CDK)/",
+            "icons/clustering.png", "clustering/spherex/ecfp4",
+            new OptionDescriptor[]{
+                    new OptionDescriptor<>(Float.class, "header." + CDKSphereExclusionClusteringProcessor.HEADER_THRESHOLD,
+                            "Similarity threshold", "Tanimoto similarity at or above which molecules are in the same cluster",
+                            OptionDescriptor.Mode.User)
+                            .withDefaultValue(0.7f)
+                            .withMinMaxValues(1, 1)
+            },
+            null);
+
     static final HttpServiceDescriptor[] ALL = new HttpServiceDescriptor[] {
             SERVICE_DESCRIPTOR_VERIFY,
             SERVICE_DESCRIPTOR_LOGP,
             SERVICE_DESCRIPTOR_HBA_HBD,
-            SERVICE_DESCRIPTOR_WIENER_NUMBERS
+            SERVICE_DESCRIPTOR_WIENER_NUMBERS,
+            SERVICE_DESCRIPTOR_CLUSTERING_SPHEREX
     };
 
     public static ServiceDescriptorSet SD_SET = new ServiceDescriptorSet(
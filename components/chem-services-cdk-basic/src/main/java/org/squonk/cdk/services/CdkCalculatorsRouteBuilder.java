@@ -18,6 +18,7 @@ package org.squonk.cdk.services;
 
 import org.squonk.camel.CamelCommonConstants;
 import org.squonk.camel.cdk.processor.CDKMolecularDescriptorProcessor;
+import org.squonk.camel.cdk.processor.CDKSphereExclusionClusteringProcessor;
 import org.squonk.camel.cdk.processor.CDKVerifyStructureProcessor;
 import org.squonk.cdk.molecule.MolecularDescriptors;
 import org.apache.camel.builder.RouteBuilder;
@@ -34,6 +35,7 @@ public class CdkCalculatorsRouteBuilder extends RouteBuilder {
     static final String CDK_LOGP = "direct:logp";
     static final String CDK_DONORS_ACCEPTORS = "direct:donors_acceptors";
     static final String CDK_WIENER_NUMBERS = "direct:wiener_numbers";
+    static final String CDK_CLUSTERING_SPHEREX_ECFP4 = "direct:clustering_spherex_ecfp4";
 
     @Override
     public void configure() throws Exception {
@@ -62,5 +64,11 @@ public class CdkCalculatorsRouteBuilder extends RouteBuilder {
                 .process(new CDKMolecularDescriptorProcessor()
                         .calculate(MolecularDescriptors.Descriptor.WienerNumbers));
 
+        from(CDK_CLUSTERING_SPHEREX_ECFP4)
+                .log("CDK_CLUSTERING_SPHEREX_ECFP4 starting")
+                .threads().executorServiceRef(CamelCommonConstants.CUSTOM_THREAD_POOL_NAME)
+                .process(new CDKSphereExclusionClusteringProcessor())
+                .log("CDK_CLUSTERING_SPHEREX_ECFP4 finished");
+
     }
 }
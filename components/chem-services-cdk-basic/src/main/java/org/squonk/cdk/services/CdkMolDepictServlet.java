@@ -16,21 +16,30 @@
 
 package org.squonk.cdk.services;
 
+import com.fasterxml.jackson.core.type.TypeReference;
 import org.squonk.cdk.io.CDKMolDepict;
+import org.squonk.io.DepictionCache;
 import org.squonk.io.DepictionParameters;
+import org.squonk.types.io.JsonHandler;
 import org.squonk.util.CommonMimeTypes;
 import org.squonk.util.IOUtils;
-import org.squonk.util.Utils;
 
 import javax.servlet.ServletException;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import java.awt.Color;
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -53,21 +62,63 @@ import java.util.logging.Logger;
  * POST operations are also supported with the body containing the molecule to render and the depiction params
  * specified as query parameters as described above.
  * <p>
+ * Rendered depictions are cached by the {@link DepictionCache} and the cache key is returned as the ETag header so that
+ * clients can make conditional requests using If-None-Match, which are answered with 304 (not modified) if the
+ * depiction is unchanged. The key is computed from the request without rendering the molecule, so a matching
+ * If-None-Match is answered with 304 even if the molecule cannot be rendered (in which case the client could not
+ * have received that ETag from this servlet).
+ * <p>
+ * Many molecules can be rendered in one request by POSTing a JSON array of molecules to /moldepict/batch, with the
+ * depiction params specified as query parameters as described above. The molecules are rendered in parallel using
+ * SQUONK_DEPICT_BATCH_THREADS (default the number of processors) threads that are shared by all batch requests and the
+ * response is a JSON array with the depiction of each molecule in the same order: SVG as a string, PNG as a base64
+ * encoded string, or null if the molecule could not be rendered. At most SQUONK_DEPICT_BATCH_MAX_SIZE (default 1000)
+ * molecules can be rendered in one request.
+ * <p>
  * Created by timbo on 24/01/2016.
  */
 @WebServlet(
         name = "CDKMolDepictServlet",
         description = "Molecule depiction using CDK",
-        urlPatterns = {"/moldepict"}
+        urlPatterns = {"/moldepict", "/moldepict/batch"}
 )
 public class CdkMolDepictServlet extends HttpServlet {
 
     private static final Logger LOG = Logger.getLogger(CdkMolDepictServlet.class.getName());
+    private static final String BATCH_PATH = "/moldepict/batch";
+    private static final int MAX_BATCH_SIZE = Integer.parseInt(IOUtils.getConfiguration("SQUONK_DEPICT_BATCH_MAX_SIZE", "1000"));
+    private static final int BATCH_THREADS = Integer.parseInt(IOUtils.getConfiguration("SQUONK_DEPICT_BATCH_THREADS",
+            String.valueOf(Runtime.getRuntime().availableProcessors())));
+    private static final String CACHE_CONTROL = "public, max-age=86400";
     private final CDKMolDepict moldepict = new CDKMolDepict();  // with default params
+    private final DepictionCache cache = DepictionCache.getInstance();
+    private ExecutorService batchExecutor;
+
+    @Override
+    public void init() throws ServletException {
+        super.init();
+        final AtomicInteger count = new AtomicInteger();
+        batchExecutor = Executors.newFixedThreadPool(BATCH_THREADS, (r) -> {
+            Thread t = new Thread(r, "cdk-depict-batch-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    @Override
+    public void destroy() {
+        batchExecutor.shutdownNow();
+        super.destroy();
+    }
 
     @Override
     protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
 
+        if (BATCH_PATH.equals(req.getServletPath())) {
+            generateBatch(req, resp);
+            return;
+        }
+
         InputStream is = req.getInputStream();
         if (is == null) {
             return;
@@ -90,45 +141,55 @@ public class CdkMolDepictServlet extends HttpServlet {
         generateImage(req, resp, paramMol);
     }
 
-    private void generateImage(
-            HttpServletRequest req,
-            HttpServletResponse resp,
-            String mol) throws IOException {
-
+    private String readImageFormat(HttpServletRequest req) {
         String paramFormat = req.getParameter(DepictionParameters.PROP_IMG_FORMAT);
         if (paramFormat == null) {
             LOG.info("No format specified. Cannot render");
-            return;
+            return null;
         }
-
-        DepictionParameters params = DepictionParameters.fromHttpParams(req.getParameterMap());
-
         if (DepictionParameters.IMG_FORMAT_PNG.equalsIgnoreCase(paramFormat)) {
-            generatePng(req, resp, mol, params);
+            return DepictionParameters.IMG_FORMAT_PNG;
         } else if (DepictionParameters.IMG_FORMAT_SVG.equalsIgnoreCase(paramFormat)) {
-            generateSvg(req, resp, mol, params);
+            return DepictionParameters.IMG_FORMAT_SVG;
         }
+        LOG.info("Unsupported format " + paramFormat + ". Cannot render");
+        return null;
     }
 
-
-    private void generatePng(
+    private void generateImage(
             HttpServletRequest req,
             HttpServletResponse resp,
-            String mol,
-            DepictionParameters params) throws IOException {
+            String mol) throws IOException {
 
-        byte[] bytes = null;
-        try {
-            bytes = moldepict.stringToImage(mol, DepictionParameters.IMG_FORMAT_PNG.toUpperCase(), params);
+        String imgFormat = readImageFormat(req);
+        if (imgFormat == null) {
+            return;
+        }
+        String molFormat = req.getParameter(DepictionParameters.PROP_MOL_FORMAT);
+        DepictionParameters params = DepictionParameters.fromHttpParams(req.getParameterMap());
 
+        // the same key is used for the cache so that the ETag identifies the cached depiction
+        final String key = moldepict.cacheKey(mol, molFormat, imgFormat, params);
+        String etag = "\"" + key + "\"";
+        if (matchesETag(req.getHeader("If-None-Match"), etag)) {
+            resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            resp.setHeader("ETag", etag);
+            resp.setHeader("Cache-Control", CACHE_CONTROL);
+            return;
+        }
+
+        byte[] bytes;
+        try {
+            bytes = cache.get(key, () -> moldepict.render(mol, molFormat, imgFormat, params));
         } catch (Exception e) {
-            LOG.log(Level.WARNING, "Error in png depiction", e);
+            LOG.log(Level.WARNING, "Error in " + imgFormat + " depiction", e);
             return;
         }
         if (bytes != null) {
-
-            resp.setHeader("Content-Type",  CommonMimeTypes.MIME_TYPE_PNG);
+            resp.setHeader("Content-Type", DepictionParameters.IMG_FORMAT_PNG.equals(imgFormat) ? CommonMimeTypes.MIME_TYPE_PNG : CommonMimeTypes.MIME_TYPE_SVG);
             resp.setHeader("Content-Length", "" + bytes.length);
+            resp.setHeader("ETag", etag);
+            resp.setHeader("Cache-Control", CACHE_CONTROL);
 
             resp.getOutputStream().write(bytes);
             resp.getOutputStream().flush();
@@ -136,30 +197,89 @@ public class CdkMolDepictServlet extends HttpServlet {
         }
     }
 
-    private void generateSvg(
+    static boolean matchesETag(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals(etag) || tag.equals("*")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void generateBatch(
             HttpServletRequest req,
-            HttpServletResponse resp,
-            String mol,
-            DepictionParameters params) throws IOException {
+            HttpServletResponse resp) throws IOException {
 
-        String svg = null;
-        try {
-            svg = moldepict.stringToSVG(mol, params);
+        String imgFormat = readImageFormat(req);
+        if (imgFormat == null) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Image format must be png or svg");
+            return;
+        }
+        String molFormat = req.getParameter(DepictionParameters.PROP_MOL_FORMAT);
+        DepictionParameters params = DepictionParameters.fromHttpParams(req.getParameterMap());
 
-        } catch (Exception e) {
-            LOG.log(Level.WARNING, "Error in svg depiction", e);
+        List<String> mols;
+        try {
+            mols = JsonHandler.getInstance().objectFromJson(req.getInputStream(), new TypeReference<List<String>>() {});
+        } catch (IOException e) {
+            LOG.log(Level.INFO, "Invalid batch depiction request", e);
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Body must be a JSON array of molecules");
+            return;
+        }
+        if (mols == null || mols.size() > MAX_BATCH_SIZE) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Body must be a JSON array of at most " + MAX_BATCH_SIZE + " molecules");
             return;
         }
-        if (svg != null) {
-            resp.setHeader("Content-Type", CommonMimeTypes.MIME_TYPE_SVG);
-            resp.setHeader("Content-Length", "" + svg.getBytes().length);
 
-            resp.getWriter().print(svg);
-            resp.getWriter().flush();
-            resp.getWriter().close();
+        boolean png = DepictionParameters.IMG_FORMAT_PNG.equals(imgFormat);
+        List<Future<String>> futures = new ArrayList<>(mols.size());
+        for (String mol : mols) {
+            futures.add(batchExecutor.submit(() -> renderBatchItem(mol, molFormat, imgFormat, params, png)));
+        }
+        List<String> results = new ArrayList<>(mols.size());
+        try {
+            for (Future<String> future : futures) {
+                results.add(future.get());
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            futures.forEach((f) -> f.cancel(true));
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            LOG.log(Level.WARNING, "Batch depiction failed", e);
+            resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Batch depiction failed");
+            return;
         }
-    }
 
+        byte[] json = JsonHandler.getInstance().objectToBytes(results);
+        resp.setHeader("Content-Type", CommonMimeTypes.MIME_TYPE_JSON);
+        resp.setHeader("Content-Length", "" + json.length);
+        resp.getOutputStream().write(json);
+        resp.getOutputStream().flush();
+        resp.getOutputStream().close();
+    }
 
+    private String renderBatchItem(String mol, String molFormat, String imgFormat, DepictionParameters params, boolean png) {
+        if (mol == null || mol.isEmpty()) {
+            return null;
+        }
+        try {
+            byte[] bytes = moldepict.render(mol, molFormat, imgFormat, params, cache);
+            if (bytes == null) {
+                return null;
+            }
+            return png ? Base64.getEncoder().encodeToString(bytes) : new String(bytes, StandardCharsets.UTF_8);
+        } catch (Exception e) {
+            LOG.log(Level.INFO, "Error in " + imgFormat + " depiction", e);
+            return null;
+        }
+    }
 
 }
@@ -136,6 +136,12 @@ public class CdkRestRouteBuilder extends RouteBuilder {
                 .produces(join(MoleculeObjectRouteHttpProcessor.DEFAULT_OUTPUT_MIME_TYPES))
                 .route()
                 .process(new MoleculeObjectRouteHttpProcessor(CdkCalculatorsRouteBuilder.CDK_WIENER_NUMBERS, resolver, ROUTE_STATS, CDKSDFile.class))
+                .endRest()
+                //
+                .post(CdkBasicServices.SERVICE_DESCRIPTOR_CLUSTERING_SPHEREX.getExecutionEndpoint())
+                .description(CdkBasicServices.SERVICE_DESCRIPTOR_CLUSTERING_SPHEREX.getServiceConfig().getDescription())
+                .route()
+                .process(new MoleculeObjectRouteHttpProcessor(CdkCalculatorsRouteBuilder.CDK_CLUSTERING_SPHEREX_ECFP4, resolver, ROUTE_STATS))
                 .endRest();
 
 
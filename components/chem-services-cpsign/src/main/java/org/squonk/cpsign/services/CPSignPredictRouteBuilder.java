@@ -18,13 +18,29 @@ package org.squonk.cpsign.services;
 
 import org.apache.camel.builder.RouteBuilder;
 import org.squonk.camel.processor.CPSignTrainProcessor;
+import org.squonk.cpsign.AbstractCCPRunner;
+import org.squonk.cpsign.CCPClassifierRunner;
+import org.squonk.cpsign.CCPRegressionRunner;
+import org.squonk.types.CPSignTrainResult;
+import org.squonk.util.IOUtils;
+
+import java.io.File;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 
 /**
  * Created by timbo on 06/04/16.
+ * <p>
+ * Models listed in CPSIGN_PRELOAD_MODELS are loaded into the predictor cache in the background when the routes are
+ * configured. The value is a comma separated list of type:library:signatureStartHeight:signatureEndHeight:numModels:path
+ * e.g. Classification:LibSVM:1:3:5:0f3c1e9a-... The signature heights must be those the model was trained with as
+ * they are part of the key of the cached predictor. CPSIGN_LICENSE_URL and CPSIGN_MODEL_DIR must also be set.
  */
 public class CPSignPredictRouteBuilder extends RouteBuilder {
 
+    private static final Logger LOG = Logger.getLogger(CPSignPredictRouteBuilder.class.getName());
+
 
     static final String CPSign_train = "direct:cpsign_train";
     static final String CPSign_predict = "direct:cpsign_predict";
@@ -38,5 +54,40 @@ public class CPSignPredictRouteBuilder extends RouteBuilder {
                 //.threads().executorServiceRef(CamelCommonConstants.CUSTOM_THREAD_POOL_NAME)
                 .process(new CPSignTrainProcessor());
 
+        String preload = IOUtils.getConfiguration("CPSIGN_PRELOAD_MODELS", null);
+        if (preload != null && !preload.trim().isEmpty()) {
+            Thread t = new Thread(() -> preloadModels(preload), "cpsign-preload");
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    private void preloadModels(String preload) {
+        String licensePath = IOUtils.getConfiguration("CPSIGN_LICENSE_URL", null);
+        String modelDir = IOUtils.getConfiguration("CPSIGN_MODEL_DIR", null);
+        if (licensePath == null || modelDir == null) {
+            LOG.warning("CPSIGN_LICENSE_URL and CPSIGN_MODEL_DIR must be set to preload models. Models will not be preloaded.");
+            return;
+        }
+        File license = new File(licensePath);
+        File workDir = new File(modelDir);
+        for (String model : preload.split(",")) {
+            String[] parts = model.trim().split(":");
+            try {
+                if (parts.length != 6) {
+                    throw new IllegalArgumentException("Expected type:library:signatureStartHeight:signatureEndHeight:numModels:path");
+                }
+                CPSignTrainResult.Type type = CPSignTrainResult.Type.valueOf(parts[0]);
+                CPSignTrainResult.Library library = CPSignTrainResult.Library.valueOf(parts[1]);
+                int startHeight = Integer.parseInt(parts[2]);
+                int endHeight = Integer.parseInt(parts[3]);
+                AbstractCCPRunner runner = type == CPSignTrainResult.Type.Regression ?
+                        new CCPRegressionRunner(license, workDir, library, startHeight, endHeight) :
+                        new CCPClassifierRunner(license, workDir, library, startHeight, endHeight);
+                runner.warmUp(Integer.parseInt(parts[4]), parts[5]);
+            } catch (Exception e) {
+                LOG.log(Level.WARNING, "Failed to preload model " + model, e);
+            }
+        }
     }
 }
@@ -32,24 +32,33 @@ import org.squonk.types.MoleculeObject;
 import org.squonk.types.io.JsonHandler;
 import org.squonk.util.CommonMimeTypes;
 import org.squonk.util.ExecutionStats;
+import org.squonk.util.IOUtils;
 import org.squonk.util.Metrics;
 import org.squonk.util.StatsRecorder;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-import java.util.Set;
+import java.sql.SQLException;
+import java.util.*;
 import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
 import static org.squonk.util.Metrics.*;
 
 /**
  * Created by timbo on 24/04/16.
+ * <p>
+ * Multi-molecule similarity searches use an in memory {@link FingerprintIndex} of the table's fingerprints
+ * rather than a database query for each molecule. The indexes are held by a {@link FingerprintIndexCache} which loads
+ * an index the first time a table and fingerprint type is searched and reloads it when the table changes.
+ * The indexes can use up to CHEMCENTRAL_FP_INDEX_MAX_MB megabytes in total (default 1024, 0 to disable the indexes).
+ * Tables are checked for changes every CHEMCENTRAL_FP_INDEX_CHECK_SECS seconds (default 60) and indexes are reloaded
+ * after CHEMCENTRAL_FP_INDEX_MAX_AGE_MINS minutes (default 1440, 0 for no limit). When there is no index the database
+ * is searched instead.
  */
 public class ChemcentralSearcher {
 
@@ -59,10 +68,31 @@ public class ChemcentralSearcher {
     private static final String CODE_SSS = Metrics.generate(PROVIDER_RDKIT, METRICS_STRUCTURE_SEARCH_SSS);
     private static final String CODE_EXACT = Metrics.generate(PROVIDER_RDKIT, METRICS_STRUCTURE_SEARCH_EXACT);
 
+    /**
+     * The default similarity threshold of the RDKit cartridge
+     */
+    private static final double DEFAULT_SIMILARITY_THRESHOLD = 0.5d;
+    /**
+     * The maximum number of hits for a search. As the hits are streamed from the database this can be set higher
+     * using CHEMCENTRAL_MAX_HITS.
+     */
+    private static final int MAX_LIMIT = Integer.parseInt(IOUtils.getConfiguration("CHEMCENTRAL_MAX_HITS", "1000"));
+    private static final int FETCH_BATCH_SIZE = 1000;
+    private static final long INDEX_MIN_RETRY_MILLIS = 30 * 1000L;
+    private static final long INDEX_MAX_RETRY_MILLIS = 60 * 60 * 1000L;
+
     private final ChemcentralConfig configuration;
+    private final FingerprintIndexLoader indexLoader;
+    private final FingerprintIndexCache indexes;
 
     public ChemcentralSearcher(ChemcentralConfig configuration) {
         this.configuration = configuration;
+        this.indexLoader = new FingerprintIndexLoader(configuration);
+        this.indexes = new FingerprintIndexCache(indexLoader,
+                Long.parseLong(IOUtils.getConfiguration("CHEMCENTRAL_FP_INDEX_MAX_MB", "1024")) * 1024L * 1024L,
+                Long.parseLong(IOUtils.getConfiguration("CHEMCENTRAL_FP_INDEX_CHECK_SECS", "60")) * 1000L,
+                Long.parseLong(IOUtils.getConfiguration("CHEMCENTRAL_FP_INDEX_MAX_AGE_MINS", "1440")) * 60L * 1000L,
+                INDEX_MIN_RETRY_MILLIS, INDEX_MAX_RETRY_MILLIS);
     }
 
     public void executeSearch(Exchange exch) throws IOException {
@@ -105,15 +135,6 @@ public class ChemcentralSearcher {
         if (rdkitTable == null) {
             throw new IllegalArgumentException("Unknown table: " + table);
         }
-        List<MoleculeObject> mols = executeSearch(searcher, rdkitTable, table, query, molType, mode, limit, chiral, fp, metric, threshold);
-
-        if (requestInfo.isGzipAccept()) {
-            exch.getOut().setHeader("Content-Encoding", "gzip");
-        }
-        // setting the gzip header handles the compression
-        InputStream json = JsonHandler.getInstance().marshalStreamToJsonArray(mols.stream(), false);
-        exch.getOut().setBody(json);
-
         String code = null;
         switch (mode) {
             case "exact":
@@ -126,9 +147,25 @@ public class ChemcentralSearcher {
                 code = CODE_SIM;
                 break;
         }
-        if (code != null) {
-            sendStats(exch, code, mols.size(), table);
+        final String statsCode = code;
+
+        // the hits are read from the database cursor as the JSON is written and the connection is released when
+        // the stream is closed once all the hits are written
+        AtomicInteger count = new AtomicInteger(0);
+        Stream<MoleculeObject> mols = executeSearch(searcher, rdkitTable, table, query, molType, mode, limit, chiral, fp, metric, threshold)
+                .peek((hit) -> count.incrementAndGet())
+                .onClose(() -> {
+                    if (statsCode != null) {
+                        sendStats(exch, statsCode, count.get(), table);
+                    }
+                });
+
+        if (requestInfo.isGzipAccept()) {
+            exch.getOut().setHeader("Content-Encoding", "gzip");
         }
+        // setting the gzip header handles the compression
+        InputStream json = JsonHandler.getInstance().marshalStreamToJsonArray(mols, false);
+        exch.getOut().setBody(json);
     }
 
 
@@ -156,9 +193,70 @@ public class ChemcentralSearcher {
             throw new IllegalArgumentException("Unknown table: " + table);
         }
 
+        FingerprintType fpEnum = resolveFingerprintType(rdkitTable, fp);
+        Metric metricEnum = resolveMetric(metric);
+        FingerprintIndex index = indexes.get(rdkitTable, fpEnum);
+
+        Stream<MoleculeObject> results;
+        if (index == null) {
+            results = databaseMultiSearch(exch, dataset, searcher, rdkitTable, table, limit, chiral, fp, metric, threshold);
+        } else {
+            results = indexedMultiSearch(exch, dataset, index, rdkitTable, table, limit, fpEnum, metricEnum, threshold);
+        }
+        MoleculeObjectDataset modataset = new MoleculeObjectDataset(results);
+        dh.writeResponse(modataset.getDataset(), executor, true);
+    }
+
+    /**
+     * Search using the in memory fingerprint index. The query fingerprints are generated in one database query,
+     * all the queries are searched in a single pass of the index and then the hits are fetched from the database
+     * in batches as the Stream is consumed.
+     */
+    private Stream<MoleculeObject> indexedMultiSearch(
+            Exchange exch, Dataset<MoleculeObject> dataset, FingerprintIndex index, RDKitTable rdkitTable, String table,
+            Integer limit, FingerprintType fpEnum, Metric metricEnum, Double threshold) throws IOException {
+
+        List<MoleculeObject> queries = dataset.getItems();
+        List<long[]> fps;
+        try {
+            fps = indexLoader.generateFingerprints(queries, fpEnum);
+        } catch (SQLException e) {
+            throw new IOException("Failed to generate query fingerprints", e);
+        }
+        List<FingerprintIndex.Hit> hits = index.multiSearch(fps, metricEnum,
+                threshold == null ? DEFAULT_SIMILARITY_THRESHOLD : threshold, resolveLimit(limit));
+        LOG.info("Found " + hits.size() + " hits for " + queries.size() + " queries");
+
+        // group the hits by the query that found them, as for the database search
+        List<Integer> ids = hits.stream()
+                .sorted(Comparator.comparingInt(FingerprintIndex.Hit::getQuery)
+                        .thenComparing(Comparator.comparingDouble(FingerprintIndex.Hit::getSimilarity).reversed()))
+                .map(FingerprintIndex.Hit::getId)
+                .collect(Collectors.toList());
+
+        int batches = (ids.size() + FETCH_BATCH_SIZE - 1) / FETCH_BATCH_SIZE;
+        return IntStream.range(0, batches).boxed().flatMap((i) -> {
+            List<Integer> batch = ids.subList(i * FETCH_BATCH_SIZE, Math.min(ids.size(), (i + 1) * FETCH_BATCH_SIZE));
+            try {
+                return indexLoader.fetchMolecules(rdkitTable, batch).stream();
+            } catch (SQLException e) {
+                throw new RuntimeException("Failed to fetch structures", e);
+            }
+        }).onClose(() -> {
+            sendStats(exch, CODE_SIM, hits.size(), table);
+        });
+    }
+
+    /**
+     * Search the database once for each query molecule
+     */
+    private Stream<MoleculeObject> databaseMultiSearch(
+            Exchange exch, Dataset<MoleculeObject> dataset, RDKitTables searcher, RDKitTable rdkitTable, String table,
+            Integer limit, Boolean chiral, String fp, String metric, Double threshold) throws IOException {
+
         Set ids = new ConcurrentSkipListSet<>();
         AtomicInteger count = new AtomicInteger(0);
-        Stream<MoleculeObject> results = dataset.getStream().flatMap((mo) -> {
+        return dataset.getStream().flatMap((mo) -> {
             String query = mo.getSource();
             MolSourceType molType;
             try {
@@ -166,10 +264,9 @@ public class ChemcentralSearcher {
             } catch (IllegalArgumentException e) {
                 throw new IllegalArgumentException("Invalid value for MolSourceType enum: " + mo.getFormat(), e);
             }
-            List<MoleculeObject> mols = executeSearch(searcher, rdkitTable, table, query, molType, "sim", limit, chiral, fp, metric, threshold);
-            count.addAndGet(mols.size());
-            LOG.info("Found " + mols.size() + " hits");
-            return mols.stream();
+            // flatMap closes each of the streams once its hits are consumed
+            return executeSearch(searcher, rdkitTable, table, query, molType, "sim", limit, chiral, fp, metric, threshold)
+                    .peek((hit) -> count.incrementAndGet());
         }).filter((mo) -> {
             int id = mo.getValue("id", Integer.class);
             if (ids.contains(id)) {
@@ -185,8 +282,6 @@ public class ChemcentralSearcher {
         }).onClose(() -> {
             sendStats(exch, CODE_SIM, count.get(), table);
         });
-        MoleculeObjectDataset modataset = new MoleculeObjectDataset(results);
-        dh.writeResponse(modataset.getDataset(), executor, true);
     }
 
     private void sendStats(Exchange exch, String key, int count, String table) {
@@ -209,14 +304,14 @@ public class ChemcentralSearcher {
         }
     }
 
-    private  List<MoleculeObject> executeSearch(
+    private Stream<MoleculeObject> executeSearch(
             RDKitTables searcher, RDKitTable rdkitTable,
             String table, String query, MolSourceType molType, String mode, Integer limit,
             Boolean chiral, String fp, String metric, Double threshold) {
 
         Select select = searcher.createSelectAll(rdkitTable.getName())
                 .setChiral((chiral == null || "sim".equals(mode)) ? false : chiral)
-                .limit(limit == null ? 1000 : Math.min(1000, limit)).select();
+                .limit(resolveLimit(limit)).select();
 
         WhereClause where = select.where();
         switch (mode) {
@@ -230,19 +325,8 @@ public class ChemcentralSearcher {
                 break;
 
             case "sim":
-                FingerprintType fpEnum = null;
-                if (fp == null) {
-                    fpEnum = rdkitTable.getFingerprintTypes().get(0);
-                } else {
-                    fpEnum = FingerprintType.valueOf(fp.toUpperCase());
-                }
-
-                Metric metricEnum = null;
-                if (metric == null) {
-                    metricEnum = Metric.values()[0];
-                } else {
-                    metricEnum = Metric.valueOf(metric.toUpperCase());
-                }
+                FingerprintType fpEnum = resolveFingerprintType(rdkitTable, fp);
+                Metric metricEnum = resolveMetric(metric);
 
                 where.similarityStructureQuery(query, molType, fpEnum, metricEnum, "sim");
                 if (threshold != null) {
@@ -255,6 +339,26 @@ public class ChemcentralSearcher {
                 throw new IllegalStateException("Unsupported search mode: " + mode);
         }
 
-        return searcher.executeSelect(where.select());
+        return searcher.streamSelect(where.select());
+    }
+
+    private static int resolveLimit(Integer limit) {
+        return limit == null ? MAX_LIMIT : Math.min(MAX_LIMIT, limit);
+    }
+
+    private static FingerprintType resolveFingerprintType(RDKitTable rdkitTable, String fp) {
+        if (fp == null) {
+            return rdkitTable.getFingerprintTypes().get(0);
+        } else {
+            return FingerprintType.valueOf(fp.toUpperCase());
+        }
+    }
+
+    private static Metric resolveMetric(String metric) {
+        if (metric == null) {
+            return Metric.values()[0];
+        } else {
+            return Metric.valueOf(metric.toUpperCase());
+        }
     }
 }
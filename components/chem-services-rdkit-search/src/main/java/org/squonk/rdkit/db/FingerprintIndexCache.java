@@ -0,0 +1,255 @@
+/*
+ * Copyright (c) 2019 Informatics Matters Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.squonk.rdkit.db;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Holds the {@link FingerprintIndex}es of the ChemCentral tables, one for each table and fingerprint type.
+ * <p>
+ * An index is loaded the first time it is needed. Only one thread loads an index and other threads needing the same
+ * index wait for it, but no lock is held while it loads. Once loaded, the signature of the table (see
+ * {@link FingerprintIndexLoader#readSignature(RDKitTable)}) is checked at most once every check interval and the
+ * index is reloaded if the table has changed or the index is older than the maximum age.
+ * <p>
+ * The total size of the indexes is limited. The least recently used indexes are dropped to make room for a new one,
+ * and if there is still not enough room the index is not loaded and null is returned so that the database is
+ * searched instead. Searches that are using a dropped index continue to use it until they complete. An index that
+ * could never fit is not retried until its table changes. If an index fails to load it is retried after a delay
+ * that doubles with each consecutive failure.
+ *
+ * @author timbo
+ */
+public class FingerprintIndexCache {
+
+    private static final Logger LOG = Logger.getLogger(FingerprintIndexCache.class.getName());
+
+    private final FingerprintIndexLoader loader;
+    private final long maxBytes;
+    private final long checkIntervalMillis;
+    private final long maxAgeMillis;
+    private final long minRetryMillis;
+    private final long maxRetryMillis;
+
+    // all guarded by this
+    private final Map<String, Entry> entries = new HashMap<>();
+    private final Map<String, Failure> failures = new HashMap<>();
+    private long bytes = 0;
+
+    /**
+     * @param loader              Loads the indexes
+     * @param maxBytes            The maximum total size of the indexes. If zero no indexes are loaded.
+     * @param checkIntervalMillis How often to check whether a table has changed
+     * @param maxAgeMillis        The maximum time to keep an index before reloading it, or zero for no limit
+     * @param minRetryMillis      The delay before retrying an index that failed to load
+     * @param maxRetryMillis      The maximum delay before retrying an index that has failed to load several times
+     */
+    public FingerprintIndexCache(FingerprintIndexLoader loader, long maxBytes, long checkIntervalMillis,
+                                 long maxAgeMillis, long minRetryMillis, long maxRetryMillis) {
+        this.loader = loader;
+        this.maxBytes = maxBytes;
+        this.checkIntervalMillis = checkIntervalMillis;
+        this.maxAgeMillis = maxAgeMillis;
+        this.minRetryMillis = minRetryMillis;
+        this.maxRetryMillis = maxRetryMillis;
+    }
+
+    /**
+     * Get the index for this table and fingerprint type, loading it if necessary.
+     *
+     * @return The index, or null if it is too big or cannot be loaded, in which case the database should be searched
+     */
+    public FingerprintIndex get(RDKitTable table, FingerprintType type) {
+        if (maxBytes <= 0) {
+            return null;
+        }
+        String key = table.schemaPlusTable() + "." + type.colName;
+        Entry entry;
+        boolean load = false;
+        synchronized (this) {
+            long now = now();
+            Failure failure = failures.get(key);
+            if (failure != null && now < failure.retryAt) {
+                return null;
+            }
+            entry = entries.get(key);
+            if (entry == null) {
+                entry = new Entry();
+                entries.put(key, entry);
+                load = true;
+            }
+            entry.lastUsed = now;
+        }
+
+        if (load) {
+            load(key, entry, table, type);
+        } else if (isStale(key, entry, table)) {
+            remove(key, entry);
+            return get(table, type);
+        }
+        return entry.future.join();
+    }
+
+    private void load(String key, Entry entry, RDKitTable table, FingerprintType type) {
+        FingerprintIndex index = null;
+        try {
+            // read the signature first so that changes made while loading cause a reload
+            entry.signature = loader.readSignature(table);
+            long size = loader.estimateIndexSize(table, type);
+            if (size > maxBytes) {
+                LOG.info("Fingerprint index for " + key + " would need " + (size / (1024 * 1024)) +
+                        "MB. Searching the database instead.");
+            } else if (!reserve(key, entry, size)) {
+                LOG.info("Not enough memory for the fingerprint index for " + key + ". Searching the database instead.");
+                remove(key, entry);
+            } else {
+                index = loader.loadIndex(table, type);
+                synchronized (this) {
+                    long actual = index.getMemorySize();
+                    if (entries.get(key) == entry) {
+                        bytes += actual - entry.bytes;
+                    }
+                    entry.bytes = actual;
+                }
+            }
+            synchronized (this) {
+                entry.loaded = entry.checked = now();
+                failures.remove(key);
+            }
+        } catch (Exception e) {
+            long delay;
+            synchronized (this) {
+                Failure failure = failures.computeIfAbsent(key, (k) -> new Failure());
+                failure.count++;
+                delay = Math.min(maxRetryMillis, minRetryMillis << Math.min(failure.count - 1, 30));
+                failure.retryAt = now() + delay;
+            }
+            remove(key, entry);
+            LOG.log(Level.WARNING, "Failed to load fingerprint index for " + key + ". Searching the database instead" +
+                    " and retrying in " + (delay / 1000) + "s.", e);
+        } finally {
+            entry.future.complete(index);
+        }
+    }
+
+    /**
+     * Check whether the index needs reloading. Only one thread checks an index at a time, other threads continue to
+     * use the current index while it is being checked.
+     */
+    private boolean isStale(String key, Entry entry, RDKitTable table) {
+        if (!entry.future.isDone()) {
+            return false;
+        }
+        long now = now();
+        if (maxAgeMillis > 0 && now - entry.loaded >= maxAgeMillis) {
+            LOG.info("Fingerprint index for " + key + " has expired");
+            return true;
+        }
+        if (now - entry.checked < checkIntervalMillis || !entry.checking.compareAndSet(false, true)) {
+            return false;
+        }
+        try {
+            String signature = loader.readSignature(table);
+            entry.checked = now();
+            if (!Objects.equals(signature, entry.signature)) {
+                LOG.info("Table for fingerprint index " + key + " has changed");
+                return true;
+            }
+        } catch (Exception e) {
+            LOG.log(Level.WARNING, "Failed to check fingerprint index for " + key + ". Continuing to use it.", e);
+        } finally {
+            entry.checking.set(false);
+        }
+        return false;
+    }
+
+    /**
+     * Reserve space for an index, dropping the least recently used indexes if needed.
+     *
+     * @return false if there is not enough space
+     */
+    private synchronized boolean reserve(String key, Entry entry, long size) {
+        while (bytes + size > maxBytes) {
+            String lruKey = null;
+            Entry lru = null;
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                Entry candidate = e.getValue();
+                if (candidate != entry && candidate.bytes > 0 && candidate.future.isDone() &&
+                        (lru == null || candidate.lastUsed < lru.lastUsed)) {
+                    lruKey = e.getKey();
+                    lru = candidate;
+                }
+            }
+            if (lru == null) {
+                return false;
+            }
+            LOG.info("Dropping fingerprint index for " + lruKey + " to make room for " + key);
+            remove(lruKey, lru);
+        }
+        if (entries.get(key) != entry) {
+            return false;
+        }
+        entry.bytes = size;
+        bytes += size;
+        return true;
+    }
+
+    private synchronized void remove(String key, Entry entry) {
+        if (entries.get(key) == entry) {
+            entries.remove(key);
+            bytes -= entry.bytes;
+        }
+    }
+
+    /**
+     * The total size of the indexes that are loaded or being loaded
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    protected long now() {
+        return System.currentTimeMillis();
+    }
+
+    private static class Entry {
+
+        final CompletableFuture<FingerprintIndex> future = new CompletableFuture<>();
+        final AtomicBoolean checking = new AtomicBoolean(false);
+        volatile String signature;
+        volatile long loaded;
+        volatile long checked;
+        volatile long lastUsed;
+        long bytes;
+    }
+
+    private static class Failure {
+
+        int count;
+        long retryAt;
+    }
+}
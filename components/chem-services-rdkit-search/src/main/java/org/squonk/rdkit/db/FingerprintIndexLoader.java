@@ -0,0 +1,213 @@
+/*
+ * Copyright (c) 2019 Informatics Matters Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.squonk.rdkit.db;
+
+import org.squonk.types.MoleculeObject;
+
+import java.sql.*;
+import java.util.*;
+import java.util.logging.Logger;
+
+/**
+ * Loads {@link FingerprintIndex}es from the fingerprint columns of the ChemCentral tables and fetches the
+ * fingerprints for query molecules and the structures of the hits. The fingerprints are generated by the RDKit
+ * cartridge so that they are exactly the same as the ones used for similarity searches in the database.
+ *
+ * @author timbo
+ */
+public class FingerprintIndexLoader {
+
+    private static final Logger LOG = Logger.getLogger(FingerprintIndexLoader.class.getName());
+
+    private static final int FETCH_SIZE = 10000;
+    private static final String STRUCTURE_COL = "structure";
+
+    private final ChemcentralConfig config;
+
+    public FingerprintIndexLoader(ChemcentralConfig config) {
+        this.config = config;
+    }
+
+    /**
+     * Estimate the memory in bytes needed for the index of this fingerprint type.
+     *
+     * @return The size, or 0 if the table has no fingerprints
+     */
+    public long estimateIndexSize(RDKitTable table, FingerprintType type) throws SQLException {
+        String molfps = table.getMolFpTable().schemaPlusTable();
+        try (Connection con = config.getConnection();
+             Statement stmt = con.createStatement()) {
+            long rows;
+            try (ResultSet rs = stmt.executeQuery("SELECT count(*) FROM " + molfps)) {
+                rs.next();
+                rows = rs.getLong(1);
+            }
+            try (ResultSet rs = stmt.executeQuery("SELECT bfp_to_binary_text(" + type.colName + ") FROM " + molfps +
+                    " WHERE " + type.colName + " IS NOT NULL LIMIT 1")) {
+                if (!rs.next()) {
+                    return 0;
+                }
+                // fingerprint, id and offset
+                return rows * (((rs.getBytes(1).length + 7) / 8) * 8 + 4);
+            }
+        }
+    }
+
+    /**
+     * Read a value that changes whenever rows of the fingerprint table are inserted, updated or deleted, so that an
+     * index can be reloaded when the table changes. This uses the PostgreSQL statistics collector so it is cheap to
+     * read, but it may lag the changes by a short time.
+     *
+     * @return The signature, or null if the statistics are not available
+     */
+    public String readSignature(RDKitTable table) throws SQLException {
+        try (Connection con = config.getConnection();
+             PreparedStatement stmt = con.prepareStatement(
+                     "SELECT n_tup_ins, n_tup_upd, n_tup_del FROM pg_stat_user_tables WHERE relid = ?::regclass")) {
+            stmt.setString(1, table.getMolFpTable().schemaPlusTable());
+            try (ResultSet rs = stmt.executeQuery()) {
+                if (!rs.next()) {
+                    return null;
+                }
+                return rs.getLong(1) + ":" + rs.getLong(2) + ":" + rs.getLong(3);
+            }
+        }
+    }
+
+    /**
+     * Build an index of all the fingerprints of this type in the table. The IDs in the index are the IDs of the
+     * table rows.
+     */
+    public FingerprintIndex loadIndex(RDKitTable table, FingerprintType type) throws SQLException {
+        String sql = "SELECT id, bfp_to_binary_text(" + type.colName + ") FROM " + table.getMolFpTable().schemaPlusTable() +
+                " WHERE " + type.colName + " IS NOT NULL";
+        LOG.info("SQL: " + sql);
+        long t0 = System.currentTimeMillis();
+        try (Connection con = config.getConnection()) {
+            // the fetch size is only used by postgres when not in auto-commit mode
+            con.setAutoCommit(false);
+            try (PreparedStatement stmt = con.prepareStatement(sql)) {
+                stmt.setFetchSize(FETCH_SIZE);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    FingerprintIndex.Builder builder = null;
+                    while (rs.next()) {
+                        byte[] bytes = rs.getBytes(2);
+                        if (builder == null) {
+                            builder = new FingerprintIndex.Builder(bytes.length * 8);
+                        }
+                        builder.add(rs.getInt(1), bytes);
+                    }
+                    FingerprintIndex index = builder == null ? new FingerprintIndex.Builder(0).build() : builder.build();
+                    long t1 = System.currentTimeMillis();
+                    LOG.info("Loaded " + index.size() + " " + type + " fingerprints from " + table.schemaPlusTable() +
+                            " in " + (t1 - t0) + "ms");
+                    return index;
+                }
+            } finally {
+                con.rollback();
+            }
+        }
+    }
+
+    /**
+     * Generate the fingerprints for the molecules using a single query for each type of molecule source.
+     *
+     * @param mols The molecules
+     * @param type The fingerprint type
+     * @return The fingerprints in the same order as the molecules. The fingerprint is null if the molecule could
+     * not be handled.
+     */
+    public List<long[]> generateFingerprints(List<MoleculeObject> mols, FingerprintType type) throws SQLException {
+
+        Map<MolSourceType, List<Integer>> positions = new LinkedHashMap<>();
+        for (int i = 0; i < mols.size(); i++) {
+            MoleculeObject mo = mols.get(i);
+            MolSourceType molType;
+            try {
+                molType = MolSourceType.valueOf(mo.getFormat() == null ? "SMILES" : mo.getFormat().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Invalid value for MolSourceType enum: " + mo.getFormat(), e);
+            }
+            positions.computeIfAbsent(molType, k -> new ArrayList<>()).add(i);
+        }
+
+        List<long[]> results = new ArrayList<>(Collections.nCopies(mols.size(), null));
+        try (Connection con = config.getConnection()) {
+            for (Map.Entry<MolSourceType, List<Integer>> e : positions.entrySet()) {
+                List<Integer> indexes = e.getValue();
+                String[] sources = new String[indexes.size()];
+                for (int i = 0; i < sources.length; i++) {
+                    sources[i] = mols.get(indexes.get(i)).getSource();
+                }
+                String fpFunc = String.format(type.function, String.format(e.getKey().molFunction, "q.s::cstring"));
+                String sql = "SELECT q.i, bfp_to_binary_text(" + fpFunc + ") FROM unnest(?::text[]) WITH ORDINALITY AS q(s, i)";
+                LOG.fine("SQL: " + sql);
+                try (PreparedStatement stmt = con.prepareStatement(sql)) {
+                    stmt.setArray(1, con.createArrayOf("text", sources));
+                    try (ResultSet rs = stmt.executeQuery()) {
+                        while (rs.next()) {
+                            byte[] bytes = rs.getBytes(2);
+                            if (bytes != null) {
+                                // ordinality is 1 based
+                                results.set(indexes.get(rs.getInt(1) - 1), FingerprintIndex.fromBytes(bytes));
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Fetch the rows with these IDs from the table.
+     *
+     * @return The molecules in the same order as the IDs
+     */
+    public List<MoleculeObject> fetchMolecules(RDKitTable table, List<Integer> ids) throws SQLException {
+        String format = table.getMolSourceType() == MolSourceType.MOL ? "mol" : "smiles";
+        String sql = "SELECT * FROM " + table.schemaPlusTable() + " WHERE id = ANY(?)";
+        LOG.fine("SQL: " + sql);
+        Map<Integer, MoleculeObject> mols = new HashMap<>(ids.size());
+        try (Connection con = config.getConnection();
+             PreparedStatement stmt = con.prepareStatement(sql)) {
+            stmt.setArray(1, con.createArrayOf("int4", ids.toArray()));
+            try (ResultSet rs = stmt.executeQuery()) {
+                ResultSetMetaData meta = rs.getMetaData();
+                while (rs.next()) {
+                    MoleculeObject mo = new MoleculeObject(rs.getString(STRUCTURE_COL), format);
+                    for (int c = 1; c <= meta.getColumnCount(); c++) {
+                        String name = meta.getColumnLabel(c);
+                        Object value = rs.getObject(c);
+                        if (!STRUCTURE_COL.equals(name) && value != null) {
+                            mo.putValue(name, value);
+                        }
+                    }
+                    mols.put(rs.getInt("id"), mo);
+                }
+            }
+        }
+        List<MoleculeObject> results = new ArrayList<>(ids.size());
+        for (Integer id : ids) {
+            MoleculeObject mo = mols.get(id);
+            if (mo != null) {
+                results.add(mo);
+            }
+        }
+        return results;
+    }
+}
@@ -23,6 +23,7 @@ import org.squonk.types.MoleculeObject;
 import java.util.Collection;
 import java.util.List;
 import java.util.logging.Logger;
+import java.util.stream.Stream;
 
 /**
  * Created by timbo on 25/04/16.
@@ -53,4 +54,13 @@ public class RDKitTables {
         select.setconfiguration(config);
         return select.getExecutor().execute();
     }
+
+    /**
+     * Execute the select, reading the results from a database cursor as the Stream is consumed. The Stream MUST be
+     * closed to release the database connection.
+     */
+    public Stream<MoleculeObject> streamSelect(Select select) {
+        select.setconfiguration(config);
+        return select.getExecutor().stream();
+    }
 }
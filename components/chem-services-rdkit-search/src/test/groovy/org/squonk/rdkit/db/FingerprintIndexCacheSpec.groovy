@@ -0,0 +1,209 @@
+/*
+ * Copyright (c) 2019 Informatics Matters Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.squonk.rdkit.db
+
+import spock.lang.Specification
+
+import java.sql.SQLException
+import java.util.concurrent.Callable
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+/**
+ * Created by timbo on 17/10/2019.
+ */
+class FingerprintIndexCacheSpec extends Specification {
+
+    static final FingerprintType FP = FingerprintType.MORGAN_CONNECTIVITY_2
+
+    static RDKitTable table(String name) {
+        new RDKitTable(name, MolSourceType.SMILES, [FP])
+    }
+
+    static FingerprintIndex createIndex() {
+        def builder = new FingerprintIndex.Builder(64)
+        (0..<10).each { builder.add(it, FingerprintIndex.fromOnBits(64, it)) }
+        builder.build()
+    }
+
+    static final long INDEX_SIZE = createIndex().memorySize
+
+    static class TestLoader extends FingerprintIndexLoader {
+
+        Map<String, String> signatures = [:]
+        Map<String, Long> sizes = [:]
+        int loads = 0
+        int failuresToThrow = 0
+        CountDownLatch gate
+
+        TestLoader() {
+            super(null)
+        }
+
+        @Override
+        String readSignature(RDKitTable table) throws SQLException {
+            signatures[table.name]
+        }
+
+        @Override
+        long estimateIndexSize(RDKitTable table, FingerprintType type) throws SQLException {
+            sizes[table.name] ?: INDEX_SIZE
+        }
+
+        @Override
+        FingerprintIndex loadIndex(RDKitTable table, FingerprintType type) throws SQLException {
+            synchronized (this) {
+                loads++
+            }
+            gate?.await(5, TimeUnit.SECONDS)
+            if (failuresToThrow > 0) {
+                failuresToThrow--
+                throw new SQLException("failed")
+            }
+            createIndex()
+        }
+    }
+
+    static class TestCache extends FingerprintIndexCache {
+
+        long time = 0
+
+        TestCache(FingerprintIndexLoader loader, long maxBytes, long check, long maxAge) {
+            super(loader, maxBytes, check, maxAge, 1000, 4000)
+        }
+
+        @Override
+        protected long now() {
+            time
+        }
+    }
+
+    void "index is loaded once and reloaded when the table changes"() {
+
+        def loader = new TestLoader(signatures: [t1: "1"])
+        def cache = new TestCache(loader, 1000, 100, 0)
+
+        when:
+        def i1 = cache.get(table("t1"), FP)
+        def i2 = cache.get(table("t1"), FP)
+        loader.signatures.t1 = "2"
+        def i3 = cache.get(table("t1"), FP) // not yet checked
+        cache.time = 100
+        def i4 = cache.get(table("t1"), FP)
+
+        then:
+        i1 != null
+        i1.is(i2)
+        i1.is(i3)
+        !i1.is(i4)
+        loader.loads == 2
+        cache.bytes == i4.memorySize
+    }
+
+    void "index is reloaded after the maximum age"() {
+
+        def loader = new TestLoader()
+        def cache = new TestCache(loader, 1000, 100, 500)
+
+        when:
+        def i1 = cache.get(table("t1"), FP)
+        cache.time = 499
+        def i2 = cache.get(table("t1"), FP)
+        cache.time = 500
+        def i3 = cache.get(table("t1"), FP)
+
+        then:
+        i1.is(i2)
+        !i1.is(i3)
+        loader.loads == 2
+    }
+
+    void "failed load is retried with backoff"() {
+
+        def loader = new TestLoader(failuresToThrow: 2)
+        def cache = new TestCache(loader, 1000, 100, 0)
+
+        when:
+        def results = []
+        results << cache.get(table("t1"), FP) // fails, retry after 1000
+        cache.time = 999
+        results << cache.get(table("t1"), FP) // waiting
+        cache.time = 1000
+        results << cache.get(table("t1"), FP) // fails, retry after 2000
+        cache.time = 2999
+        results << cache.get(table("t1"), FP) // waiting
+        cache.time = 3000
+        results << cache.get(table("t1"), FP) // loads
+
+        then:
+        results[0..3].every { it == null }
+        results[4] != null
+        loader.loads == 3
+        cache.size() == 1
+    }
+
+    void "total size is limited"() {
+
+        def loader = new TestLoader(sizes: [big: INDEX_SIZE * 3])
+        // room for 2 indexes
+        def cache = new TestCache(loader, INDEX_SIZE * 2 + 1, 100, 0)
+
+        when:
+        cache.time = 1
+        def i1 = cache.get(table("t1"), FP)
+        cache.time = 2
+        def i2 = cache.get(table("t2"), FP)
+        cache.time = 3
+        cache.get(table("t1"), FP)
+        cache.time = 4
+        def i3 = cache.get(table("t3"), FP) // t2 is least recently used
+        def big = cache.get(table("big"), FP)
+        def i1again = cache.get(table("t1"), FP)
+        def i2again = cache.get(table("t2"), FP)
+
+        then:
+        i1 != null
+        i2 != null
+        i3 != null
+        big == null
+        i1again.is(i1)
+        !i2again.is(i2)
+        cache.bytes == INDEX_SIZE * 2
+        loader.loads == 4
+    }
+
+    void "concurrent requests wait for a single load"() {
+
+        def loader = new TestLoader(gate: new CountDownLatch(1))
+        def cache = new TestCache(loader, 1000, 100, 0)
+        def executor = Executors.newFixedThreadPool(4)
+
+        when:
+        def futures = (0..<4).collect { executor.submit({ cache.get(table("t1"), FP) } as Callable) }
+        sleep(200)
+        loader.gate.countDown()
+        def results = futures.collect { it.get(5, TimeUnit.SECONDS) }
+
+        then:
+        results.every { it != null && it.is(results[0]) }
+        loader.loads == 1
+
+        cleanup:
+        executor?.shutdown()
+    }
+}
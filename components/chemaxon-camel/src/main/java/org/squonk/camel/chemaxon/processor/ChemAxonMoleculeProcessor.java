@@ -24,19 +24,20 @@ import org.apache.http.NameValuePair;
 import org.apache.http.client.utils.URLEncodedUtils;
 import org.squonk.chemaxon.molecule.ChemTermsEvaluator;
 import org.squonk.chemaxon.molecule.MoleculeEvaluator;
+import org.squonk.chemaxon.molecule.MoleculeEvaluatorChain;
 import org.squonk.chemaxon.molecule.StandardizerEvaluator;
 import org.squonk.dataset.Dataset;
 import org.squonk.dataset.DatasetMetadata;
 import org.squonk.dataset.MoleculeObjectDataset;
 import org.squonk.types.MoleculeObject;
 import org.squonk.types.io.JsonHandler;
+import org.squonk.util.ConcurrentStats;
 import org.squonk.util.Metrics;
 import org.squonk.util.StatsRecorder;
 
 import java.io.IOException;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -242,14 +243,13 @@ public class ChemAxonMoleculeProcessor implements Processor {
             mols.parallel();
         }
 
-        Map<String,Integer> stats = new HashMap<>();
-        for (MoleculeEvaluator eval : evals) {
-            mols = calculateMultiple(mols, eval, stats);
-        }
+        // each thread has its own stats which are combined when the stream is closed
+        ConcurrentStats stats = new ConcurrentStats();
+        mols = calculateMultiple(mols, new MoleculeEvaluatorChain(evals), stats);
         StatsRecorder recorder = exch.getIn().getHeader(StatsRecorder.HEADER_STATS_RECORDER, StatsRecorder.class);
         if (recorder != null) {
             mols = mols.onClose(() -> {
-                recorder.recordStats(stats);
+                recorder.recordStats(stats.getAll());
             });
         }
         DatasetMetadata meta = handleMetadata(exch, dataset.getMetadata(), evals);
@@ -275,44 +275,23 @@ public class ChemAxonMoleculeProcessor implements Processor {
     }
 
 
-    private Stream<MoleculeObject> calculateMultiple(Stream<MoleculeObject> input, MoleculeEvaluator evaluator, Map<String,Integer> stats) throws Exception {
-        //LOG.info("Calculating for stream " + input);
-
-        Stream<MoleculeObject> result = input;
-        //LOG.log(Level.INFO, "Handling evaluator {0}", evaluator);
+    /**
+     * Apply all the evaluators in a single stage of the stream so that each molecule is only read once.
+     */
+    private Stream<MoleculeObject> calculateMultiple(Stream<MoleculeObject> input, MoleculeEvaluatorChain chain, ConcurrentStats stats) {
         AtomicInteger count = new AtomicInteger(0);
-        switch (evaluator.getMode()) {
-            case Filter:
-                result = result.filter((mo) -> {
-                    int i = count.incrementAndGet();
-                    if (i % 5000 == 0) {
-                        LOG.info("Processed molecule " + i + " " + Thread.currentThread());
-                    }
-                    try {
-                        boolean b = evaluator.processMoleculeObject(mo, stats) != null;
-                        return b;
-                    } catch (IOException ex) {
-                        LOG.log(Level.SEVERE, "Failed to evaluate molecule", ex);
-                    }
-                    return false;
-                });
-                break;
-            default:
-                result = result.map((mo) -> {
-                    int i = count.incrementAndGet();
-                    if (i % 5000 == 0) {
-                        LOG.info("Processed molecule " + i + " " + Thread.currentThread());
-                    }
-                    try {
-                        MoleculeObject r = evaluator.processMoleculeObject(mo, stats);
-                        return r;
-                    } catch (IOException ex) {
-                        LOG.log(Level.SEVERE, "Failed to evaluate molecule", ex);
-                    }
-                    return mo;
-                });
-        }
-        return result;
+        return input.map((mo) -> {
+            int i = count.incrementAndGet();
+            if (i % 5000 == 0) {
+                LOG.info("Processed molecule " + i + " " + Thread.currentThread());
+            }
+            try {
+                return chain.process(mo, stats.get());
+            } catch (IOException ex) {
+                LOG.log(Level.SEVERE, "Failed to evaluate molecule", ex);
+            }
+            return mo;
+        }).filter((mo) -> mo != null);
     }
 
 
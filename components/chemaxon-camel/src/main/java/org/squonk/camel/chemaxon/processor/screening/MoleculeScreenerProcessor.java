@@ -123,25 +123,14 @@ public class MoleculeScreenerProcessor<T extends Descriptor> implements Processo
         Stream<MoleculeObject> mols = dataset.getStream();
 
         AtomicInteger count = new AtomicInteger(0);
-        Stream<MoleculeObject> results = mols.filter((mo) -> {
-            if (mo.getSource() == null) {
-                return false;
-            }
-            boolean b = false;
-            try {
-                double sim = compareMolecule(mo, targetFp);
-                b = (sim > thresh);
-                count.incrementAndGet();
-                LOG.log(Level.FINER, "Similarity score = {0}", sim);
-            } catch (MolFormatException ex) {
-                LOG.log(Level.SEVERE, "Bad molecule format", ex);
-            }
-            return b;
-        });
+        Stream<MoleculeObject> results = compareMultiple(
+                mols.filter((mo) -> mo.getSource() != null).peek((mo) -> count.incrementAndGet()),
+                targetFp == null ? screener.getTargetDescriptor() : targetFp,
+                thresh);
 
         StatsRecorder recorder = exch.getIn().getHeader(StatsRecorder.HEADER_STATS_RECORDER, StatsRecorder.class);
         if (recorder != null) {
-            mols = mols.onClose(() -> {
+            results = results.onClose(() -> {
                 Map<String,Integer> stats = new HashMap<>();
                 ExecutionStats.increment(stats, "Screen_CXN", count.get());
                 recorder.recordStats(stats);
@@ -156,38 +145,22 @@ public class MoleculeScreenerProcessor<T extends Descriptor> implements Processo
             return 0d;
         }
 
-        Molecule mol = MoleculeUtils.fetchMolecule(query, true);
-        double sim = doCompare(mol, targetFp);
+        double sim = screener.compare(query, targetFp == null ? screener.getTargetDescriptor() : targetFp);
+        if (Double.isNaN(sim)) {
+            throw new MolFormatException("Unable to read molecule " + query.getUUID());
+        }
         if (similarityPropName != null) {
             query.putValue(similarityPropName, sim);
         }
         return sim;
     }
 
+    /**
+     * Screens the molecules, in parallel if the input stream is parallel. Descriptors are cached on the MoleculeObjects
+     * so screening the same molecules again does not need them to be regenerated.
+     */
     Stream<MoleculeObject> compareMultiple(final Stream<MoleculeObject> mols, final T targetFp, final double thresh) {
-
-        return mols.filter((mo) -> {
-            if (mo.getSource() == null) {
-                return false;
-            }
-            boolean b = false;
-            try {
-                double sim = compareMolecule(mo, targetFp);
-                b = (sim > thresh);
-                LOG.log(Level.FINER, "Similarity score = {0}", sim);
-            } catch (MolFormatException ex) {
-                LOG.log(Level.SEVERE, "Bad molecule format", ex);
-            }
-            return b;
-        });
-    }
-
-    private double doCompare(Molecule query, T targetFp) {
-        if (targetFp == null) {
-            return screener.compare(query);
-        } else {
-            return screener.compare(query, targetFp);
-        }
+        return screener.screen(targetFp, mols, thresh, similarityPropName);
     }
 
     private T findTargetFromHeader(Exchange exchange) {
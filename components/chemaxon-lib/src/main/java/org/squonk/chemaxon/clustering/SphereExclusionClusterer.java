@@ -28,6 +28,10 @@ import com.chemaxon.descriptors.common.DescriptorComparator;
 import com.chemaxon.descriptors.common.DescriptorGenerator;
 import org.squonk.chemaxon.molecule.MoleculeUtils;
 import org.squonk.types.MoleculeObject;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Spliterator;
 import java.util.Spliterators.AbstractSpliterator;
 import java.util.function.Consumer;
@@ -156,7 +160,7 @@ public class SphereExclusionClusterer<T extends Descriptor> {
             Molecule generate(int idx) {
                 Molecule clone = input.getMolecule(idx);
                 Molecule orig = (Molecule) clone.getPropertyObject(PROP_NAME_ORIGINAL_MOLECULE);
-                orig.setPropertyObject(clusterPropertyName, clus.clusters().indexOf(clus.clusterOf(idx).get()));
+                orig.setPropertyObject(clusterPropertyName, clusterIndex(idx));
                 clone.clearProperties();
                 return orig;
             }
@@ -184,7 +188,7 @@ public class SphereExclusionClusterer<T extends Descriptor> {
             MoleculeObject generate(int idx) {
                 Molecule clone = input.getMolecule(idx);
                 MoleculeObject orig = (MoleculeObject) clone.getPropertyObject(PROP_NAME_ORIGINAL_MOLECULE);
-                int cl = clus.clusters().indexOf(clus.clusterOf(idx).get());
+                int cl = clusterIndex(idx);
                 orig.putValue(clusterPropertyName, cl);
                 //LOG.info(idx + " Cluster: " + cl + " -> " + orig);
                 clone.clearProperties();
@@ -264,12 +268,23 @@ public class SphereExclusionClusterer<T extends Descriptor> {
 
         final MolInput input;
         final IDBasedSingleLevelClustering clus;
+        /** The position of each cluster in the list of clusters, so that it doesn't need to be searched for each molecule */
+        final Map<Object, Integer> clusterIndexes = new HashMap<>();
         int index = 0;
 
         ClusterSpliterator(MolInput input, IDBasedSingleLevelClustering clus) {
             super(Long.MAX_VALUE, Spliterator.NONNULL | Spliterator.SIZED | Spliterator.ORDERED);
             this.input = input;
             this.clus = clus;
+            List<?> clusters = clus.clusters();
+            for (int i = clusters.size() - 1; i >= 0; i--) {
+                // iterate backwards so that the first of any equal clusters wins, as with indexOf()
+                clusterIndexes.put(clusters.get(i), i);
+            }
+        }
+
+        int clusterIndex(int idx) {
+            return clusterIndexes.get(clus.clusterOf(idx).get());
         }
 
         @Override
@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2019 Informatics Matters Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.squonk.chemaxon.molecule;
+
+import chemaxon.struc.Molecule;
+import org.squonk.types.MoleculeObject;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Applies a sequence of {@link MoleculeEvaluator}s to a MoleculeObject in one go. The Molecule is parsed once and
+ * then passed through all the evaluators, so that each evaluator works with the result of the previous one (e.g. a
+ * standardized molecule) without the structure being exported and parsed again between the evaluators.
+ * The structure is only exported at the end if one of the evaluators transformed the molecule.
+ * <p>
+ * An instance can be used from multiple threads as long as each thread provides its own stats Map.
+ *
+ * @author timbo
+ */
+public class MoleculeEvaluatorChain {
+
+    private final List<MoleculeEvaluator> evaluators;
+    private final boolean transforms;
+    private final boolean filters;
+
+    public MoleculeEvaluatorChain(List<MoleculeEvaluator> evaluators) {
+        this.evaluators = new ArrayList<>(evaluators);
+        this.transforms = evaluators.stream().anyMatch((e) -> e.getMode() == MoleculeEvaluator.Mode.Transform);
+        this.filters = evaluators.stream().anyMatch((e) -> e.getMode() == MoleculeEvaluator.Mode.Filter);
+    }
+
+    public List<MoleculeEvaluator> getEvaluators() {
+        return evaluators;
+    }
+
+    /**
+     * Apply all the evaluators to the molecule.
+     *
+     * @param mo    The molecule
+     * @param stats The stats for the current thread
+     * @return The molecule with the calculated values added, a new MoleculeObject if the structure was transformed,
+     * or null if the molecule was filtered out. If the structure can't be read the molecule is returned unchanged,
+     * or null if there are filters.
+     * @throws IOException If the transformed structure can't be exported
+     */
+    public MoleculeObject process(MoleculeObject mo, Map<String, Integer> stats) throws IOException {
+        if (mo == null || mo.getSource() == null) {
+            return mo;
+        }
+
+        // use the molecule if a previous step (e.g. a transform) has left it
+        Molecule mol = mo.getRepresentation(Molecule.class.getName(), Molecule.class);
+        if (mol != null) {
+            if (transforms) {
+                // transforms may modify the molecule in place so don't change the one held by the MoleculeObject
+                mol = mol.cloneMolecule();
+            }
+        } else {
+            mol = MoleculeUtils.fetchMolecule(mo, false);
+            if (mol == null) {
+                return filters ? null : mo;
+            }
+        }
+
+        Map<String, Object> results = new LinkedHashMap<>();
+        boolean transformed = false;
+        for (MoleculeEvaluator evaluator : evaluators) {
+            Molecule result = evaluator.processMolecule(mol, stats);
+            if (result == null) {
+                // failed the filter or the transform failed
+                return null;
+            }
+            if (evaluator.getMode() == MoleculeEvaluator.Mode.Transform) {
+                transformed = true;
+            }
+            mol = result;
+            results.putAll(evaluator.getResults(mol));
+        }
+
+        MoleculeObject neu = transformed ? MoleculeUtils.deriveMoleculeObject(mo, mol, mo.getFormat("mol")) : mo;
+        neu.putValues(results);
+        return neu;
+    }
+}
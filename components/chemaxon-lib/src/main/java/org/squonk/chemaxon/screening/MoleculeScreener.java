@@ -20,10 +20,14 @@ import chemaxon.struc.Molecule;
 import com.chemaxon.descriptors.common.Descriptor;
 import com.chemaxon.descriptors.common.DescriptorComparator;
 import com.chemaxon.descriptors.common.DescriptorGenerator;
+import org.squonk.chemaxon.molecule.MoleculeUtils;
 import org.squonk.chemaxon.molecule.StandardizerEvaluator;
+import org.squonk.types.MoleculeObject;
 
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
 
 /**
  * Allows molecules to be screened based on similarity using a variety of
@@ -55,6 +59,14 @@ import java.util.HashMap;
  * screening). Note: standardization is performed on a clone of the molecule,
  * leaving the original un-modified.
  * <br>
+ * When screening MoleculeObjects the descriptor of each molecule is generated
+ * once and stored as a representation of the MoleculeObject (see
+ * {@link #getDescriptor(MoleculeObject)}) so that screening the same molecules
+ * against several queries does not regenerate their descriptors. Use
+ * {@link #screen(Descriptor, Stream, double, String)} to screen a stream of
+ * molecules against a query, which is done in parallel if the stream is
+ * parallel.
+ * <br>
  * Note: the ChemAxon API that is used for this class is not yet stable, so this
  * class may change in the future.
  *
@@ -63,16 +75,29 @@ import java.util.HashMap;
  */
 public class MoleculeScreener<T extends Descriptor> {
 
+    private static final AtomicInteger INSTANCE_COUNT = new AtomicInteger();
+
     private final DescriptorGenerator<T> generator;
     private final DescriptorComparator<T> comparator;
+    private final int instance = INSTANCE_COUNT.incrementAndGet();
     private T targetFp;
     public static final String DEFAULT_STANDARDIZER = "removefragment:method=keeplargest..aromatize";
     private StandardizerEvaluator szr;
+    /**
+     * The key under which descriptors are stored as representations of MoleculeObjects. This is specific to this
+     * instance and its standardizer as the descriptor depends on both.
+     */
+    private String descriptorKey;
 
     public MoleculeScreener(DescriptorGenerator<T> generator, DescriptorComparator<T> comparator) {
         this.generator = generator;
         this.comparator = comparator;
         this.szr = new StandardizerEvaluator(DEFAULT_STANDARDIZER, 25);
+        this.descriptorKey = createDescriptorKey(DEFAULT_STANDARDIZER);
+    }
+
+    private String createDescriptorKey(String standardizer) {
+        return MoleculeScreener.class.getName() + "#" + instance + ":" + standardizer;
     }
 
     /**
@@ -95,12 +120,41 @@ public class MoleculeScreener<T extends Descriptor> {
         } else {
             this.szr = new StandardizerEvaluator(standardizer, 25);
         }
+        this.descriptorKey = createDescriptorKey(szr == null ? null : standardizer);
+    }
+
+    public String getDescriptorKey() {
+        return descriptorKey;
     }
 
     public T generateDescriptor(Molecule mol) {
         return generator.generateDescriptor(standardizeMolecule(mol));
     }
 
+    /**
+     * Get the descriptor for the MoleculeObject, generating it if it has not already been generated. The descriptor is
+     * stored as a representation of the MoleculeObject using the key from {@link #getDescriptorKey()}.
+     *
+     * @param mo
+     * @return The descriptor, or null if the molecule cannot be read
+     */
+    public T getDescriptor(MoleculeObject mo) {
+        String key = descriptorKey;
+        T fp = (T) mo.getRepresentation(key);
+        if (fp == null) {
+            if (mo.getSource() == null) {
+                return null;
+            }
+            Molecule mol = MoleculeUtils.fetchMolecule(mo, false);
+            if (mol == null) {
+                return null;
+            }
+            fp = generateDescriptor(mol);
+            mo.putRepresentation(key, fp);
+        }
+        return fp;
+    }
+
     /**
      * Compare these two molecules using the descriptor and return the
      * similarity score
@@ -134,6 +188,43 @@ public class MoleculeScreener<T extends Descriptor> {
         return comparator.calculateSimilarity(generateDescriptor(query), target);
     }
 
+    /**
+     * Compare the MoleculeObject to the target descriptor using the cached descriptor of the MoleculeObject
+     *
+     * @param query
+     * @param target
+     * @return The similarity score, or NaN if the molecule cannot be read
+     */
+    public double compare(MoleculeObject query, T target) {
+        T fp = getDescriptor(query);
+        return fp == null ? Double.NaN : comparator.calculateSimilarity(fp, target);
+    }
+
+    /**
+     * Compare each of the targets to the query and return those whose similarity is greater than the threshold.
+     * Molecules that cannot be read are excluded. The order of the targets is retained. The targets are screened in
+     * parallel only if the stream is parallel, so the caller decides.
+     *
+     * @param query              The descriptor of the query
+     * @param targets            The molecules to screen
+     * @param threshold          The similarity threshold
+     * @param similarityPropName The name of the value in which to store the similarity score. If null the score is
+     *                           not stored.
+     * @return The molecules that pass
+     */
+    public Stream<MoleculeObject> screen(T query, Stream<MoleculeObject> targets, double threshold, String similarityPropName) {
+        return targets.filter((mo) -> {
+            double sim = compare(mo, query);
+            if (Double.isNaN(sim)) {
+                return false;
+            }
+            if (similarityPropName != null) {
+                mo.putValue(similarityPropName, sim);
+            }
+            return sim > threshold;
+        });
+    }
+
     /**
      * Prepares the molecule for descriptor generation. The standardizer that is
      * used can be specified. If standardizer is null then the molecule is used
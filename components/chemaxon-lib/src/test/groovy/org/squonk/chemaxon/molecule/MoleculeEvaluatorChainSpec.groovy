@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2019 Informatics Matters Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.squonk.chemaxon.molecule
+
+import org.squonk.types.MoleculeObject
+import spock.lang.Specification
+
+/**
+ * Created by timbo on 17/10/2019.
+ */
+class MoleculeEvaluatorChainSpec extends Specification {
+
+    void "calculations keep the source"() {
+
+        def chain = new MoleculeEvaluatorChain([
+                new ChemTermsEvaluator('atom_count', 'atomCount()', "ac"),
+                new ChemTermsEvaluator('bond_count', 'bondCount()', "bc")
+        ])
+        def mo = new MoleculeObject('CC', 'smiles')
+        def stats = [:]
+
+        when:
+        def result = chain.process(mo, stats)
+
+        then:
+        result.is(mo)
+        result.source == 'CC'
+        result.getValue('atom_count') == 8
+        result.getValue('bond_count') == 7
+        stats.ac == 1
+        stats.bc == 1
+    }
+
+    void "filter stops the chain"() {
+
+        def chain = new MoleculeEvaluatorChain([
+                new ChemTermsEvaluator('atomCount()<6', MoleculeEvaluator.Mode.Filter, "filter"),
+                new ChemTermsEvaluator('atom_count', 'atomCount()', "ac")
+        ])
+        def stats = [:]
+
+        when:
+        def results = ['C', 'CC', 'CCC'].collect { chain.process(new MoleculeObject(it, 'smiles'), stats) }
+
+        then:
+        results[0].getValue('atom_count') == 5
+        results[1] == null
+        results[2] == null
+        stats.filter == 3
+        stats.ac == 1
+    }
+
+    void "standardize then calculate"() {
+
+        def chain = new MoleculeEvaluatorChain([
+                new StandardizerEvaluator('removeexplicith', 1),
+                new ChemTermsEvaluator('atom_count', 'atomCount()', "ac")
+        ])
+        def mo = new MoleculeObject('[H]C([H])([H])[H]', 'smiles')
+
+        when:
+        def result = chain.process(mo, [:])
+
+        then:
+        !result.is(mo)
+        result.uuid == mo.uuid
+        result.source == 'C'
+        result.getValue('atom_count') == 5
+    }
+}
@@ -23,6 +23,7 @@ import chemaxon.struc.MoleculeGraph
 import chemaxon.util.standardizer.StandardizerUtil
 import com.chemaxon.descriptors.fingerprints.ecfp.EcfpGenerator
 import com.chemaxon.descriptors.fingerprints.ecfp.EcfpParameters
+import org.squonk.types.MoleculeObject
 import spock.lang.Shared
 import spock.lang.Specification
 
@@ -120,5 +121,27 @@ class MoleculeScreenerSpec extends Specification {
         d1 == 1d
     }
     
+    @IgnoreIf({ System.getenv('CHEMAXON_LICENCE_ABSENT') != null })
+    void "test screen caches descriptors"() {
+        setup:
+        EcfpParameters params = EcfpParameters.createNewBuilder().build();
+        EcfpGenerator generator = params.getDescriptorGenerator();
+        MoleculeScreener screener = new MoleculeScreener(generator, generator.getDefaultComparator());
+        def query = screener.generateDescriptor(MolImporter.importMol(mols[1]))
+        def targets = mols.collect { new MoleculeObject(it, 'smiles') } << new MoleculeObject('not a smiles', 'smiles')
+
+        when:
+        def results = screener.screen(query, targets.stream(), 0.5d, 'similarity').collect()
+        def fps = targets[0..2].collect { it.getRepresentation(screener.getDescriptorKey()) }
+        screener.screen(query, targets.stream(), 0.5d, null).count()
+
+        then:
+        results.containsAll(targets[1..2])
+        !results.contains(targets[3])
+        results.every { it.getValue('similarity') > 0.5d }
+        fps.every { it != null }
+        targets[0..2].collect { it.getRepresentation(screener.getDescriptorKey()) }.withIndex().every { fp, i -> fp.is(fps[i]) }
+    }
+    
 }
 
@@ -16,7 +16,6 @@
 
 package org.squonk.camel.processor;
 
-import groovy.lang.GroovyClassLoader;
 import org.apache.camel.Exchange;
 import org.apache.camel.Processor;
 import org.apache.camel.TypeConverter;
@@ -25,6 +24,7 @@ import org.squonk.dataset.DatasetMetadata;
 import org.squonk.dataset.transform.*;
 import org.squonk.types.BasicObject;
 import org.squonk.types.MoleculeObject;
+import org.squonk.util.GroovyClassCache;
 
 import java.io.IOException;
 import java.lang.reflect.Constructor;
@@ -49,21 +49,11 @@ public class ValueTransformerProcessor<T extends BasicObject> implements Process
 
     private static final String SOURCE = "Squonk assignment potion";
 
-    private int classCount = 0;
-
     private final List<Conversion> conversions = new ArrayList<>();
-    private GroovyClassLoader groovyClassLoader;
 
     private String errorFieldName = PotionParser.ERORRS_FIELD_NAME;
     private boolean hasErrorField = false;
 
-    private GroovyClassLoader getGroovyClassLoader() {
-        if (groovyClassLoader == null) {
-            groovyClassLoader = new GroovyClassLoader();
-        }
-        return groovyClassLoader;
-    }
-
     @Override
     public void process(Exchange exch) throws Exception {
         TypeConverter typeConverter = exch.getContext().getTypeConverter();
@@ -471,7 +461,7 @@ public class ValueTransformerProcessor<T extends BasicObject> implements Process
 
             String clsDef = createConsumerClassDefinition();
             LOG.info("Built Consumer class:\n" + clsDef);
-            Class<Consumer> cls = getGroovyClassLoader().parseClass(clsDef);
+            Class<Consumer> cls = GroovyClassCache.getInstance().parseClass(clsDef);
             Consumer consumer = cls.newInstance();
             return consumer;
         }
@@ -480,7 +470,7 @@ public class ValueTransformerProcessor<T extends BasicObject> implements Process
         private String createConsumerClassDefinition() {
             StringBuilder b1 = new StringBuilder();
             b1.append("import static java.lang.Math.*\n")
-                    .append("class MyConsumer").append(++classCount).append(" implements java.util.function.Consumer {\n")
+                    .append("class MyConsumer implements java.util.function.Consumer {\n")
                     .append("  void accept(def o) {\n")
                     .append("    o.values.with { ");
 
@@ -605,7 +595,7 @@ public class ValueTransformerProcessor<T extends BasicObject> implements Process
             throws IllegalAccessException, InstantiationException {
         String clsdef = createPredicateClassDefinition(condition);
         LOG.info("Predicate class: \n" + clsdef);
-        Class<Predicate> cls = getGroovyClassLoader().parseClass(clsdef);
+        Class<Predicate> cls = GroovyClassCache.getInstance().parseClass(clsdef);
         Predicate predicate = cls.newInstance();
         return predicate;
     }
@@ -613,7 +603,7 @@ public class ValueTransformerProcessor<T extends BasicObject> implements Process
     private String createPredicateClassDefinition(String condition) {
         StringBuilder b = new StringBuilder()
                 .append("import static java.lang.Math.*\n")
-                .append("class MyPredicate").append(++classCount).append(" implements java.util.function.Predicate {\n")
+                .append("class MyPredicate implements java.util.function.Predicate {\n")
                 .append("  boolean test(def o) {\n")
                 .append("    o.values.with { ")
                 .append(condition)
@@ -0,0 +1,368 @@
+/*
+ * Copyright (c) 2019 Informatics Matters Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.squonk.reader;
+
+import org.squonk.dataset.DatasetMetadata;
+import org.squonk.types.MoleculeObject;
+import org.squonk.types.MoleculeObjectIterable;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * SDF reader that reads a (non-gzipped) file in parallel. The file is split into ranges of bytes whose boundaries are
+ * always at the end of a record (the $$$$ line) so that the ranges can be read and parsed on different threads using
+ * positional reads of the file. The Stream that is generated is ORDERED so the molecules are encountered in the same
+ * order as in the file (e.g. when using forEachOrdered() or collecting to a List).
+ * <p>
+ * Parsing is the same as for {@link SDFReader}. Gzipped files cannot be split so must be read with {@link SDFReader}.
+ * Use the {@link #canRead(File)} method to check.
+ *
+ * @author timbo
+ */
+public class ParallelSDFReader implements MoleculeObjectIterable, AutoCloseable {
+
+    private static final Logger LOG = Logger.getLogger(ParallelSDFReader.class.getName());
+
+    /**
+     * Ranges smaller than this are not split further
+     */
+    public static final int DEFAULT_MIN_SPLIT_SIZE = 256 * 1024;
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final byte[] TERMINATOR = "$$$$".getBytes();
+
+    private final FileChannel channel;
+    private final SDFRecordParser parser;
+    private final Charset charset = Charset.defaultCharset();
+    private int minSplitSize = DEFAULT_MIN_SPLIT_SIZE;
+
+    public ParallelSDFReader(File file) throws IOException {
+        this(file.toPath());
+    }
+
+    public ParallelSDFReader(Path path) throws IOException {
+        if (isGzipped(path.toFile())) {
+            throw new IOException("Gzipped files cannot be read in parallel: " + path);
+        }
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        this.parser = new SDFRecordParser(path.getFileName().toString());
+    }
+
+    /**
+     * Can this file be read by this reader. Gzipped files cannot.
+     *
+     * @param file
+     * @return
+     */
+    public static boolean canRead(File file) {
+        try {
+            return file.isFile() && !isGzipped(file);
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    private static boolean isGzipped(File file) throws IOException {
+        try (InputStream is = new FileInputStream(file)) {
+            return is.read() == 0x1f && is.read() == 0x8b;
+        }
+    }
+
+    /**
+     * See {@link SDFReader#setNameFieldName(String)}
+     */
+    public String getNameFieldName() {
+        return parser.getNameFieldName();
+    }
+
+    /**
+     * See {@link SDFReader#setNameFieldName(String)}
+     */
+    public void setNameFieldName(String nameFieldName) {
+        parser.setNameFieldName(nameFieldName);
+    }
+
+    public int getMinSplitSize() {
+        return minSplitSize;
+    }
+
+    /**
+     * Set the size in bytes below which ranges of the file are not split any further. Default is 256K.
+     *
+     * @param minSplitSize
+     */
+    public void setMinSplitSize(int minSplitSize) {
+        this.minSplitSize = minSplitSize;
+    }
+
+    /**
+     * Get the metadata associated with parsing the data.
+     * Can be obtained once parsing is complete.
+     *
+     * @return
+     */
+    public DatasetMetadata getDatasetMetadata() {
+        return parser.getDatasetMetadata();
+    }
+
+    /**
+     * Get the contents as a parallel Stream
+     *
+     * @return
+     * @throws IOException
+     */
+    public Stream<MoleculeObject> asStream() throws IOException {
+        return StreamSupport.stream(new RecordSpliterator(0, channel.size()), true);
+    }
+
+    @Override
+    public Iterator<MoleculeObject> iterator() {
+        try {
+            return asStream().iterator();
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Spliterator over a range of the file. The range always starts at the beginning of a record.
+     */
+    class RecordSpliterator implements Spliterator<MoleculeObject> {
+
+        private long pos;
+        private final long end;
+
+        private byte[] buf = new byte[CHUNK_SIZE];
+        /**
+         * position in the file of the start of buf
+         */
+        private long bufStart;
+        private int bufLen = 0;
+
+        RecordSpliterator(long start, long end) {
+            this.pos = start;
+            this.end = end;
+            this.bufStart = start;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super MoleculeObject> action) {
+            try {
+                while (pos < end) {
+                    long recordStart = pos;
+                    int len = readRecord();
+                    String record = new String(buf, (int) (recordStart - bufStart), len, charset);
+                    try {
+                        MoleculeObject mo = parser.readRecord(new LineNumberReader(new StringReader(record)));
+                        action.accept(mo);
+                        return true;
+                    } catch (EOFException eof) {
+                        // incomplete record, normally just whitespace at the end of the file
+                        if (!record.trim().isEmpty()) {
+                            LOG.warning("Incomplete record ignored at byte " + recordStart);
+                        }
+                    } catch (IOException ioe) {
+                        throw new IOException("Failed to parse record starting at byte " + recordStart, ioe);
+                    }
+                }
+                return false;
+            } catch (IOException ioe) {
+                throw new UncheckedIOException(ioe);
+            }
+        }
+
+        /**
+         * Read the record starting at pos into the buffer and move pos to the start of the next record.
+         *
+         * @return The length of the record in bytes
+         */
+        private int readRecord() throws IOException {
+            int offset = buffer(pos);
+            int lineStart = offset;
+            int i = offset;
+            while (true) {
+                if (i == bufLen) {
+                    if (bufStart + bufLen >= end) {
+                        // end of range without a terminator
+                        int len = bufLen - offset;
+                        pos += len;
+                        return len;
+                    }
+                    // need more data so move the record to the start of the buffer and read more
+                    int read = i - offset;
+                    int line = lineStart - offset;
+                    compact(offset);
+                    offset = 0;
+                    i = read;
+                    lineStart = line;
+                    continue;
+                }
+                if (buf[i] == '\n') {
+                    if (isTerminator(lineStart, i)) {
+                        int len = i + 1 - offset;
+                        pos += len;
+                        return len;
+                    }
+                    lineStart = i + 1;
+                }
+                i++;
+            }
+        }
+
+        private boolean isTerminator(int lineStart, int lineEnd) {
+            int len = lineEnd - lineStart;
+            if (len > 0 && buf[lineEnd - 1] == '\r') {
+                len--;
+            }
+            if (len != TERMINATOR.length) {
+                return false;
+            }
+            for (int j = 0; j < len; j++) {
+                if (buf[lineStart + j] != TERMINATOR[j]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Make sure the data at this position is in the buffer.
+         *
+         * @return the offset in the buffer of the position
+         */
+        private int buffer(long position) throws IOException {
+            if (position >= bufStart && position < bufStart + bufLen) {
+                return (int) (position - bufStart);
+            }
+            bufStart = position;
+            bufLen = 0;
+            readMore();
+            return 0;
+        }
+
+        /**
+         * Discard the data before offset and fill the rest of the buffer, growing the buffer if it is already full.
+         */
+        private void compact(int offset) throws IOException {
+            int keep = bufLen - offset;
+            if (offset == 0) {
+                buf = Arrays.copyOf(buf, buf.length * 2);
+            } else {
+                System.arraycopy(buf, offset, buf, 0, keep);
+            }
+            bufStart += offset;
+            bufLen = keep;
+            readMore();
+        }
+
+        private void readMore() throws IOException {
+            while (bufLen < buf.length && bufStart + bufLen < end) {
+                int toRead = (int) Math.min(buf.length - bufLen, end - bufStart - bufLen);
+                int read = channel.read(ByteBuffer.wrap(buf, bufLen, toRead), bufStart + bufLen);
+                if (read <= 0) {
+                    break;
+                }
+                bufLen += read;
+            }
+        }
+
+        @Override
+        public Spliterator<MoleculeObject> trySplit() {
+            long size = end - pos;
+            if (size < minSplitSize * 2L) {
+                return null;
+            }
+            try {
+                long boundary = findRecordBoundary(pos + size / 2);
+                if (boundary <= pos || boundary >= end) {
+                    return null;
+                }
+                RecordSpliterator prefix = new RecordSpliterator(pos, boundary);
+                // this one now handles the suffix
+                pos = boundary;
+                bufStart = boundary;
+                bufLen = 0;
+                return prefix;
+            } catch (IOException ioe) {
+                throw new UncheckedIOException(ioe);
+            }
+        }
+
+        /**
+         * Find the start of the first record that begins at or after this position
+         *
+         * @return The position, or the end of the range if there is none
+         */
+        private long findRecordBoundary(long from) throws IOException {
+            // back up one byte so that we know if we start at the beginning of a line
+            long chunkStart = from - 1;
+            ByteBuffer bb = ByteBuffer.allocate(CHUNK_SIZE);
+            // the previous bytes of the current line, if it could be a terminator
+            int matched = -1;
+            while (chunkStart < end) {
+                bb.clear();
+                int read = channel.read(bb, chunkStart);
+                if (read <= 0) {
+                    break;
+                }
+                for (int i = 0; i < read; i++) {
+                    byte b = bb.get(i);
+                    if (b == '\n') {
+                        if (matched == TERMINATOR.length) {
+                            return chunkStart + i + 1;
+                        }
+                        matched = 0;
+                    } else if (matched >= 0 && matched < TERMINATOR.length && b == TERMINATOR[matched]) {
+                        matched++;
+                    } else if (!(b == '\r' && matched == TERMINATOR.length)) {
+                        matched = -1;
+                    }
+                }
+                chunkStart += read;
+            }
+            return end;
+        }
+
+        @Override
+        public long estimateSize() {
+            // we don't know the number of records so use the number of bytes
+            return end - pos;
+        }
+
+        @Override
+        public int characteristics() {
+            return ORDERED | NONNULL | IMMUTABLE;
+        }
+    }
+}
@@ -30,6 +30,7 @@ import java.util.stream.Stream;
  * Iterator/Iterable of MoleculeObjects. Does NOT attempt to check that the the
  * generated molfiles are valid, so errors should be expected downstream when
  * parsing the individual molecules. This class is not thread safe.
+ * To read a (non-gzipped) file in parallel use {@link ParallelSDFReader}.
  *
  * The low level file parsing logic is borrowed from here:
  * https://github.com/qsardb/qsardb-common/blob/master/conversion/sdfile/src/main/java/org/qsardb/conversion/sdfile/CompoundIterator.java
@@ -41,21 +42,11 @@ public class SDFReader implements MoleculeObjectIterable, Iterator<MoleculeObjec
     private LineNumberReader reader;
     private MoleculeObject molobj;
     private boolean started = false;
-    private String nameFieldName = "name";
-    private final DatasetMetadata meta;
-    private final Set<String> fields;
-    private String source = "SD file (source unknown)";
+    private final SDFRecordParser parser;
 
     public SDFReader(InputStream is, String filename) throws IOException {
         this.reader = new LineNumberReader(new InputStreamReader(IOUtils.getGunzippedInputStream(is)));
-        this.meta = new DatasetMetadata(MoleculeObject.class);
-        this.fields = new HashSet<>();
-        if (filename != null) {
-            this.source = "SD file: " + filename;
-        }
-        meta.getProperties().put(DatasetMetadata.PROP_CREATED, DatasetMetadata.now());
-        meta.getProperties().put(DatasetMetadata.PROP_SOURCE, source);
-        meta.getProperties().put(DatasetMetadata.PROP_DESCRIPTION, "Read from " + source);
+        this.parser = new SDFRecordParser(filename);
     }
 
     public SDFReader(InputStream is) throws IOException {
@@ -72,7 +63,7 @@ public class SDFReader implements MoleculeObjectIterable, Iterator<MoleculeObjec
      * @return the value of nameFieldName
      */
     public String getNameFieldName() {
-        return nameFieldName;
+        return parser.getNameFieldName();
     }
 
     /**
@@ -84,7 +75,7 @@ public class SDFReader implements MoleculeObjectIterable, Iterator<MoleculeObjec
      * @param nameFieldName new value of nameFieldName
      */
     public void setNameFieldName(String nameFieldName) {
-        this.nameFieldName = nameFieldName;
+        parser.setNameFieldName(nameFieldName);
     }
 
     /** Get the metadata associated with parsing the data.
@@ -93,7 +84,7 @@ public class SDFReader implements MoleculeObjectIterable, Iterator<MoleculeObjec
      * @return
      */
     public DatasetMetadata getDatasetMetadata() {
-        return meta;
+        return parser.getDatasetMetadata();
     }
 
     @Override
@@ -151,9 +142,7 @@ public class SDFReader implements MoleculeObjectIterable, Iterator<MoleculeObjec
 
     private MoleculeObject readRow() {
         try {
-            MoleculeObject mo = readMolfile();
-            readData(mo);
-            return mo;
+            return parser.readRecord(ensureOpen());
         } catch (EOFException eofe) {
             return null;
         } catch (IOException ioe) {
@@ -161,104 +150,6 @@ public class SDFReader implements MoleculeObjectIterable, Iterator<MoleculeObjec
         }
     }
 
-    private MoleculeObject readMolfile() throws IOException {
-
-        LineNumberReader rdr = ensureOpen();
-        StringBuilder sb = new StringBuilder();
-        // Header block
-        String first = rdr.readLine();
-        String second = rdr.readLine();
-        String third = rdr.readLine();
-
-        if (first == null || second == null || third == null) {
-            throw new EOFException();
-        }
-
-        sb.append(first).append(NEWLINE);
-        sb.append(second).append(NEWLINE);
-        sb.append(third).append(NEWLINE);
-
-        String sep = "";
-
-        // Ctab block
-        while (true) {
-            String line = rdr.readLine();
-            if (line == null) {
-                throw new EOFException();
-            }
-            sb.append(sep);
-            sep = NEWLINE;
-            sb.append(line);
-            if (line.startsWith("M  END")) {
-                break;
-            }
-        }
-
-        String molfile = sb.toString();
-        MoleculeObject mo = new MoleculeObject(molfile, "mol");
-        if (nameFieldName != null && !first.trim().isEmpty()) {
-            mo.putValue(nameFieldName, first);
-            if (!fields.contains(nameFieldName)) {
-                fields.add(nameFieldName);
-                meta.createField(nameFieldName, source, "Name field from SDF", String.class);
-                meta.appendFieldHistory(nameFieldName, "Value read from SF file name property");
-            }
-        }
-        return mo;
-    }
-
-    private void readData(MoleculeObject mo) throws IOException {
-        LineNumberReader rdr = ensureOpen();
-
-        fields:
-        for (int i = 0; true; i++) {
-            String line = rdr.readLine();
-            if (line == null) {
-                throw new EOFException();
-            }
-
-            if (line.equals("") && i == 0) {
-                // Extra blank line between the end of the molfile and the beginning of the first data item
-            } else if (line.startsWith(">")) {
-                int nameBegin = line.indexOf('<');
-                int nameEnd = line.indexOf('>', nameBegin);
-
-                String name = line.substring(nameBegin + 1, nameEnd);
-                StringBuilder sb = new StringBuilder();
-                String sep = "";
-
-                while (true) {
-                    line = rdr.readLine();
-                    if (line == null) {
-                        throw new EOFException();
-                    }
-
-                    if (line.equals("")) {
-                        break;
-                    } else if (line.equals("$$$$")) {
-                        break fields;
-                    }
-
-                    sb.append(sep);
-                    sep = NEWLINE;
-                    sb.append(line);
-                }
-                mo.putValue(name, sb.toString());
-                if (!fields.contains(name)) {
-                    fields.add(name);
-                    meta.createField(name, source, "Data field from SDF", String.class);
-                    meta.appendFieldHistory(name, "Value read from SD file property");
-                }
-            } else if (line.equals("$$$$")) {
-                break fields;
-            } else if (line.equals("")) {
-                // ignore - buggy SDF with multiple empty lines
-            } else {
-                throw new IOException("Error parsing at line " + String.valueOf(rdr.getLineNumber() + 1));
-            }
-        }
-    }
-
     private LineNumberReader ensureOpen() throws IOException {
 
         if (this.reader == null) {
@@ -277,6 +168,4 @@ public class SDFReader implements MoleculeObjectIterable, Iterator<MoleculeObjec
             this.reader = null;
         }
     }
-
-    private static final String NEWLINE = "\n";
 }
@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2019 Informatics Matters Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.squonk.reader;
+
+import org.squonk.dataset.DatasetMetadata;
+import org.squonk.types.MoleculeObject;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.LineNumberReader;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Parses the records of a SD file into MoleculeObjects, recording the fields that are found in the DatasetMetadata.
+ * Used by {@link SDFReader} and {@link ParallelSDFReader}. Records can be parsed concurrently from different threads.
+ *
+ * @author timbo
+ */
+class SDFRecordParser {
+
+    private static final String NEWLINE = "\n";
+
+    private final DatasetMetadata meta;
+    private final Set<String> fields = ConcurrentHashMap.newKeySet();
+    private final String source;
+    private volatile String nameFieldName = "name";
+
+    SDFRecordParser(String filename) {
+        this.meta = new DatasetMetadata(MoleculeObject.class);
+        this.source = filename == null ? "SD file (source unknown)" : "SD file: " + filename;
+        meta.getProperties().put(DatasetMetadata.PROP_CREATED, DatasetMetadata.now());
+        meta.getProperties().put(DatasetMetadata.PROP_SOURCE, source);
+        meta.getProperties().put(DatasetMetadata.PROP_DESCRIPTION, "Read from " + source);
+    }
+
+    DatasetMetadata getDatasetMetadata() {
+        return meta;
+    }
+
+    String getNameFieldName() {
+        return nameFieldName;
+    }
+
+    void setNameFieldName(String nameFieldName) {
+        this.nameFieldName = nameFieldName;
+    }
+
+    /**
+     * Read the next record
+     *
+     * @param rdr
+     * @return The molecule
+     * @throws EOFException If there is no complete record
+     * @throws IOException If the record cannot be parsed
+     */
+    MoleculeObject readRecord(LineNumberReader rdr) throws IOException {
+        MoleculeObject mo = readMolfile(rdr);
+        readData(rdr, mo);
+        return mo;
+    }
+
+    private MoleculeObject readMolfile(LineNumberReader rdr) throws IOException {
+
+        StringBuilder sb = new StringBuilder();
+        // Header block
+        String first = rdr.readLine();
+        String second = rdr.readLine();
+        String third = rdr.readLine();
+
+        if (first == null || second == null || third == null) {
+            throw new EOFException();
+        }
+
+        sb.append(first).append(NEWLINE);
+        sb.append(second).append(NEWLINE);
+        sb.append(third).append(NEWLINE);
+
+        String sep = "";
+
+        // Ctab block
+        while (true) {
+            String line = rdr.readLine();
+            if (line == null) {
+                throw new EOFException();
+            }
+            sb.append(sep);
+            sep = NEWLINE;
+            sb.append(line);
+            if (line.startsWith("M  END")) {
+                break;
+            }
+        }
+
+        String molfile = sb.toString();
+        MoleculeObject mo = new MoleculeObject(molfile, "mol");
+        String nameField = nameFieldName;
+        if (nameField != null && !first.trim().isEmpty()) {
+            mo.putValue(nameField, first);
+            registerField(nameField, "Name field from SDF", "Value read from SF file name property");
+        }
+        return mo;
+    }
+
+    private void readData(LineNumberReader rdr, MoleculeObject mo) throws IOException {
+
+        fields:
+        for (int i = 0; true; i++) {
+            String line = rdr.readLine();
+            if (line == null) {
+                throw new EOFException();
+            }
+
+            if (line.equals("") && i == 0) {
+                // Extra blank line between the end of the molfile and the beginning of the first data item
+            } else if (line.startsWith(">")) {
+                int nameBegin = line.indexOf('<');
+                int nameEnd = line.indexOf('>', nameBegin);
+
+                String name = line.substring(nameBegin + 1, nameEnd);
+                StringBuilder sb = new StringBuilder();
+                String sep = "";
+
+                while (true) {
+                    line = rdr.readLine();
+                    if (line == null) {
+                        throw new EOFException();
+                    }
+
+                    if (line.equals("")) {
+                        break;
+                    } else if (line.equals("$$$$")) {
+                        break fields;
+                    }
+
+                    sb.append(sep);
+                    sep = NEWLINE;
+                    sb.append(line);
+                }
+                mo.putValue(name, sb.toString());
+                registerField(name, "Data field from SDF", "Value read from SD file property");
+            } else if (line.equals("$$$$")) {
+                break fields;
+            } else if (line.equals("")) {
+                // ignore - buggy SDF with multiple empty lines
+            } else {
+                throw new IOException("Error parsing at line " + String.valueOf(rdr.getLineNumber() + 1));
+            }
+        }
+    }
+
+    private void registerField(String name, String description, String history) {
+        if (!fields.contains(name)) {
+            synchronized (meta) {
+                if (fields.add(name)) {
+                    meta.createField(name, source, description, String.class);
+                    meta.appendFieldHistory(name, history);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2019 Informatics Matters Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.squonk.util;
+
+import groovy.lang.GroovyClassLoader;
+import groovy.lang.GroovySystem;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Thread safe cache of classes compiled from Groovy source so that the same script is only compiled once.
+ * The cache is keyed by the source with line endings and trailing whitespace normalised, but the source itself is
+ * compiled unchanged.
+ * <p>
+ * Each class is compiled with its own GroovyClassLoader so that when the least recently used class is evicted its
+ * ClassLoader can be closed and the class unloaded once any instances that are still in use are no longer referenced.
+ * The size of the shared instance can be set using SQUONK_GROOVY_CLASS_CACHE_SIZE (default 200).
+ *
+ * @author timbo
+ */
+public class GroovyClassCache {
+
+    private static final Logger LOG = Logger.getLogger(GroovyClassCache.class.getName());
+
+    public static final int DEFAULT_SIZE = Integer.parseInt(IOUtils.getConfiguration("SQUONK_GROOVY_CLASS_CACHE_SIZE", "200"));
+
+    private static final GroovyClassCache INSTANCE = new GroovyClassCache(DEFAULT_SIZE);
+
+    private final int maxSize;
+    private final Map<String, Class> classes;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public static GroovyClassCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @param maxSize The maximum number of classes to cache
+     */
+    public GroovyClassCache(int maxSize) {
+        this.maxSize = maxSize;
+        this.classes = new LinkedHashMap<String, Class>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Class> eldest) {
+                if (size() > GroovyClassCache.this.maxSize) {
+                    release(eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Get the class defined by the source, compiling it if it is not already cached.
+     *
+     * @param source The Groovy source that defines the class
+     * @return The class
+     */
+    public <T> Class<T> parseClass(String source) {
+        String key = normalise(source);
+        synchronized (classes) {
+            Class cls = classes.get(key);
+            if (cls != null) {
+                hits.incrementAndGet();
+                return cls;
+            }
+        }
+        misses.incrementAndGet();
+        // compile the original source without holding the lock so that other scripts are not blocked
+        Class cls = new GroovyClassLoader().parseClass(source);
+        synchronized (classes) {
+            Class existing = classes.get(key);
+            if (existing != null) {
+                // another thread got there first
+                release(cls);
+                return existing;
+            }
+            classes.put(key, cls);
+        }
+        return cls;
+    }
+
+    /**
+     * Create a new instance of the class defined by the source using its no-argument constructor.
+     *
+     * @param source The Groovy source that defines the class
+     * @return The new instance
+     * @throws ReflectiveOperationException If the instance cannot be created
+     */
+    public <T> T newInstance(String source) throws ReflectiveOperationException {
+        Class<T> cls = parseClass(source);
+        return cls.newInstance();
+    }
+
+    public int size() {
+        synchronized (classes) {
+            return classes.size();
+        }
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public void clear() {
+        synchronized (classes) {
+            classes.values().forEach(GroovyClassCache::release);
+            classes.clear();
+        }
+    }
+
+    static String normalise(String source) {
+        String[] lines = source.replace("\r\n", "\n").replace('\r', '\n').split("\n");
+        StringBuilder b = new StringBuilder(source.length());
+        for (String line : lines) {
+            int end = line.length();
+            while (end > 0 && Character.isWhitespace(line.charAt(end - 1))) {
+                end--;
+            }
+            b.append(line, 0, end).append('\n');
+        }
+        return b.toString().trim();
+    }
+
+    private static void release(Class cls) {
+        GroovySystem.getMetaClassRegistry().removeMetaClass(cls);
+        ClassLoader loader = cls.getClassLoader();
+        // the class is defined by an inner loader whose parent is the GroovyClassLoader that was created for it
+        while (loader != null && !(loader instanceof GroovyClassLoader && loader.getClass() == GroovyClassLoader.class)) {
+            loader = loader.getParent();
+        }
+        if (loader != null) {
+            GroovyClassLoader gcl = (GroovyClassLoader) loader;
+            gcl.clearCache();
+            try {
+                gcl.close();
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "Failed to close class loader", e);
+            }
+        }
+    }
+}
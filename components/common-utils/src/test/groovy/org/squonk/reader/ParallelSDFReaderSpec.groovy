@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2019 Informatics Matters Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.squonk.reader
+
+import org.squonk.types.MoleculeObject
+import org.squonk.util.IOUtils
+import spock.lang.Specification
+
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption
+import java.util.stream.Collectors
+
+/**
+ *
+ * @author timbo
+ */
+class ParallelSDFReaderSpec extends Specification {
+
+    static File gunzipToTempFile(String path) {
+        File f = File.createTempFile("ParallelSDFReaderSpec", ".sdf")
+        f.deleteOnExit()
+        new FileInputStream(path).withStream { is ->
+            Files.copy(IOUtils.getGunzippedInputStream(is), f.toPath(), StandardCopyOption.REPLACE_EXISTING)
+        }
+        return f
+    }
+
+    static List<MoleculeObject> readSequential(String path) {
+        SDFReader reader = new SDFReader(IOUtils.getGunzippedInputStream(new FileInputStream(path)))
+        try {
+            return reader.asStream().collect(Collectors.toList())
+        } finally {
+            reader.close()
+        }
+    }
+
+    void "same as sequential #path"() {
+        File file = gunzipToTempFile(path)
+        ParallelSDFReader reader = new ParallelSDFReader(file)
+        reader.minSplitSize = 1000
+        List<MoleculeObject> expected = readSequential(path)
+
+        when:
+        List<MoleculeObject> mols = reader.asStream().collect(Collectors.toList())
+
+        then:
+        mols.size() == count
+        mols.size() == expected.size()
+        mols.eachWithIndex { mo, i ->
+            assert mo.source == expected[i].source
+            assert mo.values == expected[i].values
+        }
+        reader.datasetMetadata.valueClassMappings.keySet() == expected[0].values.keySet()
+
+        cleanup:
+        reader?.close()
+
+        where:
+        path                                                          | count
+        "../../data/testfiles/dhfr_standardized.sdf.gz"               | 756
+        "../../data/testfiles/Kinase_inhibs.sdf.gz"                   | 36
+        "../../data/testfiles/buggy_with_multiple_blank_lines.sdf.gz" | 11
+    }
+
+    void "windows line endings"() {
+        File file = gunzipToTempFile("../../data/testfiles/dhfr_standardized.sdf.gz")
+        file.text = file.text.replace("\n", "\r\n")
+        ParallelSDFReader reader = new ParallelSDFReader(file)
+        reader.minSplitSize = 1000
+
+        when:
+        long count = reader.asStream().count()
+
+        then:
+        count == 756
+
+        cleanup:
+        reader?.close()
+    }
+
+    void "read empty"() {
+        File file = File.createTempFile("ParallelSDFReaderSpec", ".sdf")
+        file.deleteOnExit()
+        ParallelSDFReader reader = new ParallelSDFReader(file)
+
+        when:
+        long count = reader.asStream().count()
+
+        then:
+        count == 0
+
+        cleanup:
+        reader?.close()
+    }
+
+    void "gzipped can't be read"() {
+
+        expect:
+        !ParallelSDFReader.canRead(new File("../../data/testfiles/Kinase_inhibs.sdf.gz"))
+        ParallelSDFReader.canRead(gunzipToTempFile("../../data/testfiles/Kinase_inhibs.sdf.gz"))
+    }
+}
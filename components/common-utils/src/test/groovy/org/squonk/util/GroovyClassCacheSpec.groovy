@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2019 Informatics Matters Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.squonk.util
+
+import spock.lang.Specification
+
+import java.util.function.Predicate
+
+/**
+ * Created by timbo on 17/10/2019.
+ */
+class GroovyClassCacheSpec extends Specification {
+
+    static String predicate(String condition) {
+        return "class MyPredicate implements java.util.function.Predicate {\n  boolean test(def o) { $condition }\n}"
+    }
+
+    void "same source is compiled once"() {
+
+        def cache = new GroovyClassCache(10)
+
+        when:
+        Class c1 = cache.parseClass(predicate('o > 1'))
+        Class c2 = cache.parseClass(predicate('o > 1') + '  \r\n')
+        Class c3 = cache.parseClass(predicate('o > 2'))
+        Predicate p1 = cache.newInstance(predicate('o > 1'))
+        Predicate p3 = c3.newInstance()
+
+        then:
+        c1.is(c2)
+        !c1.is(c3)
+        p1.test(2)
+        !p3.test(2)
+        cache.size() == 2
+        cache.getMissCount() == 2
+        cache.getHitCount() == 2
+    }
+
+    void "evicted classes are recompiled"() {
+
+        def cache = new GroovyClassCache(2)
+
+        when:
+        Class c1 = cache.parseClass(predicate('o > 1'))
+        cache.parseClass(predicate('o > 2'))
+        cache.parseClass(predicate('o > 3'))
+        Class c4 = cache.parseClass(predicate('o > 1'))
+
+        then:
+        cache.size() == 2
+        cache.getMissCount() == 4
+        !c1.is(c4)
+        // instances of evicted classes can still be used
+        c1.newInstance().test(2)
+    }
+
+    void "source is compiled unchanged"() {
+
+        def cache = new GroovyClassCache(10)
+        String source = "class MyText {\n  String text = \"\"\"a  \nb\"\"\"\n}"
+
+        when:
+        def o = cache.newInstance(source)
+
+        then:
+        o.text == 'a  \nb'
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright (c) 2019 Informatics Matters Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.squonk.clustering;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * Sphere exclusion clustering of items described by binary fingerprints using Tanimoto similarity.
+ * <p>
+ * This works in three passes:
+ * <ol>
+ * <li>The fingerprints are generated in parallel.</li>
+ * <li>The items are visited in order and an item becomes the leader of a new cluster if it is not within the
+ * similarity threshold of any existing leader.</li>
+ * <li>Each item is assigned to the cluster of its most similar leader. This is done lazily as the results are
+ * streamed and can be done in parallel.</li>
+ * </ol>
+ * The leaders are indexed by the number of bits that are set. As the Tanimoto similarity of two fingerprints cannot
+ * be greater than the ratio of their bit counts only leaders with a similar bit count need to be compared, which
+ * avoids comparing each item with every leader.
+ * <p>
+ * Items for which no fingerprint can be generated are included in the results but are not assigned to a cluster.
+ * Cluster numbers start from zero in the order the leaders were found.
+ *
+ * @param <T> The type of item being clustered
+ * @author timbo
+ */
+public class BitSetSphereExclusionClusterer<T> {
+
+    private static final Logger LOG = Logger.getLogger(BitSetSphereExclusionClusterer.class.getName());
+
+    public static final double DEFAULT_THRESHOLD = 0.7d;
+
+    private final Function<T, BitSet> fingerprinter;
+    private final double threshold;
+
+    /**
+     * @param fingerprinter Generates the fingerprint for an item. Must be thread safe. Can return null if no
+     *                      fingerprint can be generated.
+     * @param threshold     The Tanimoto similarity at or above which an item is excluded by a leader.
+     */
+    public BitSetSphereExclusionClusterer(Function<T, BitSet> fingerprinter, double threshold) {
+        if (threshold <= 0d || threshold > 1d) {
+            throw new IllegalArgumentException("Threshold must be greater than 0 and no greater than 1");
+        }
+        this.fingerprinter = fingerprinter;
+        this.threshold = threshold;
+    }
+
+    public BitSetSphereExclusionClusterer(Function<T, BitSet> fingerprinter) {
+        this(fingerprinter, DEFAULT_THRESHOLD);
+    }
+
+    public double getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * Cluster the items.
+     *
+     * @param items         The items to cluster. These are all read before this method returns.
+     * @param clusterSetter Sets the cluster number on an item.
+     * @return The items in their original order with their cluster numbers set as they are read.
+     */
+    public Stream<T> cluster(Stream<T> items, BiConsumer<T, Integer> clusterSetter) {
+
+        List<T> list = items.sequential().collect(Collectors.toList());
+        int n = list.size();
+        long[][] fingerprints = list.parallelStream()
+                .map(item -> {
+                    BitSet fp = item == null ? null : fingerprinter.apply(item);
+                    return fp == null ? null : fp.toLongArray();
+                })
+                .toArray(long[][]::new);
+        int[] counts = new int[n];
+        for (int i = 0; i < n; i++) {
+            counts[i] = fingerprints[i] == null ? -1 : bitCount(fingerprints[i]);
+        }
+
+        LeaderIndex index = new LeaderIndex(fingerprints, counts);
+        for (int i = 0; i < n; i++) {
+            if (counts[i] >= 0 && index.findNearest(i, true) < 0) {
+                index.add(i);
+            }
+        }
+        LOG.log(Level.INFO, "Found {0} clusters for {1} items", new Object[]{index.size(), n});
+
+        return IntStream.range(0, n).mapToObj(i -> {
+            T item = list.get(i);
+            if (counts[i] >= 0) {
+                clusterSetter.accept(item, index.clusterOf(i));
+            }
+            return item;
+        });
+    }
+
+    static int bitCount(long[] words) {
+        int count = 0;
+        for (long word : words) {
+            count += Long.bitCount(word);
+        }
+        return count;
+    }
+
+    static double tanimoto(long[] a, int countA, long[] b, int countB) {
+        if (countA == 0 && countB == 0) {
+            return 1d;
+        }
+        int common = 0;
+        int len = Math.min(a.length, b.length);
+        for (int i = 0; i < len; i++) {
+            common += Long.bitCount(a[i] & b[i]);
+        }
+        return (double) common / (double) (countA + countB - common);
+    }
+
+    /**
+     * The leaders grouped by their bit count. Not modified once the leaders have been selected, so it can then be
+     * searched from multiple threads.
+     */
+    private class LeaderIndex {
+
+        final long[][] fingerprints;
+        final int[] counts;
+        /** Leaders by bit count. Each element holds the item indexes of those leaders. */
+        final List<List<Integer>> buckets = new ArrayList<>();
+        /** The cluster number of each leader, keyed by item index. -1 for items that are not leaders. */
+        final int[] clusters;
+        int size = 0;
+
+        LeaderIndex(long[][] fingerprints, int[] counts) {
+            this.fingerprints = fingerprints;
+            this.counts = counts;
+            this.clusters = new int[counts.length];
+            Arrays.fill(clusters, -1);
+        }
+
+        int size() {
+            return size;
+        }
+
+        void add(int item) {
+            int count = counts[item];
+            while (buckets.size() <= count) {
+                buckets.add(new ArrayList<>());
+            }
+            buckets.get(count).add(item);
+            clusters[item] = size++;
+        }
+
+        int clusterOf(int item) {
+            if (clusters[item] >= 0) {
+                return clusters[item];
+            }
+            return clusters[findNearest(item, false)];
+        }
+
+        /**
+         * Find the leader that is most similar to the item and within the threshold.
+         * Buckets are searched outwards from the item's bit count and the search stops once the best possible
+         * similarity for a bucket is below the threshold or the best found so far.
+         *
+         * @param item     The index of the item
+         * @param firstHit Return the first leader within the threshold rather than the most similar
+         * @return The item index of the leader or -1 if there is no leader within the threshold
+         */
+        int findNearest(int item, boolean firstHit) {
+            int count = counts[item];
+            long[] fp = fingerprints[item];
+            int best = -1;
+            double bestSim = threshold;
+            for (int offset = 0; ; offset++) {
+                int lower = count - offset;
+                int upper = count + offset;
+                boolean lowerDone = lower < 0 || bound(count, lower) < bestSim;
+                boolean upperDone = upper >= buckets.size() || bound(count, upper) < bestSim;
+                if (lowerDone && upperDone) {
+                    return best;
+                }
+                for (int bucket : offset == 0 ? new int[]{count} : new int[]{lower, upper}) {
+                    if ((bucket == lower && lowerDone) || (bucket == upper && upperDone) || bucket >= buckets.size()) {
+                        continue;
+                    }
+                    for (Integer leader : buckets.get(bucket)) {
+                        double sim = tanimoto(fp, count, fingerprints[leader], counts[leader]);
+                        if (best < 0 ? sim >= bestSim : sim > bestSim || (sim == bestSim && clusters[leader] < clusters[best])) {
+                            best = leader;
+                            bestSim = sim;
+                            if (firstHit) {
+                                return best;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        /** The greatest possible similarity between fingerprints with these bit counts */
+        double bound(int countA, int countB) {
+            if (countA == 0 && countB == 0) {
+                return 1d;
+            }
+            return (double) Math.min(countA, countB) / (double) Math.max(countA, countB);
+        }
+    }
+}
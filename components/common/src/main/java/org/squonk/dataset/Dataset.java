@@ -23,6 +23,7 @@ import org.squonk.types.StreamType;
 import org.squonk.types.TypeDescriptor;
 import org.squonk.util.CommonMimeTypes;
 import org.squonk.util.StreamProvider;
+import org.squonk.types.io.BinaryHandler;
 import org.squonk.types.io.JsonHandler;
 import org.squonk.util.IOUtils;
 
@@ -99,6 +100,11 @@ import java.util.stream.StreamSupport;
  * you might only have the metadata once you have written the contents (as the
  * stream can only be read once).
  * <p>
+ * As an alternative to JSON the items of Datasets of {@link BasicObject}s and {@link MoleculeObject}s can be
+ * serialized in a more compact binary format using {@link BinaryHandler}. Use
+ * {@link #getInputStream(String, boolean)} with the binary content type to obtain this, and create the Dataset
+ * from a {@link SquonkDataSource} with that content type to read it.
+ * <p>
  * Note: the individual data items (must be subclasses of {@link BasicObject})
  * must also be serializable/deserializable to/from JSON. If you use your own
  * custom types here you are responsible for ensuring that Jackson can handle
@@ -450,6 +456,9 @@ public class Dataset<T extends BasicObject> implements DatasetProvider, StreamPr
 
     private Stream<T> createStreamFromDataSource() throws IOException {
         InputStream gunzipped = IOUtils.getGunzippedInputStream(dataSource.getInputStream());
+        if (BinaryHandler.isBinaryMediaType(dataSource.getContentType())) {
+            return BinaryHandler.getInstance().streamFromBinary(gunzipped, metadata.getType(), true);
+        }
         return JsonHandler.getInstance().streamFromJson(gunzipped, metadata.getType(), metadata.getValueClassMappings(), true);
     }
 
@@ -469,6 +478,34 @@ public class Dataset<T extends BasicObject> implements DatasetProvider, StreamPr
         }
     }
 
+    /**
+     * Returns the data as an InputStream in the format of the specified media type, which must be the JSON or binary
+     * content type for the type of object in this Dataset (see {@link #resolveContentMimeType(Class)} and
+     * {@link BinaryHandler#resolveContentMimeType(Class)}). If the underlying source is an InputStream of that format
+     * it is returned, otherwise the items are obtained as a Stream (see notes for {@link #getStream()}) and
+     * serialised to that format. You are responsible for closing the InputStream when finished.
+     *
+     * @param mediaType The content media type
+     * @param gzip      Whether to gzip the input.
+     * @return
+     * @throws IOException
+     */
+    public InputStream getInputStream(String mediaType, boolean gzip) throws IOException {
+        synchronized (lock) {
+            if (dataSource != null && isSameFormat(mediaType, dataSource.getContentType())) {
+                return doGetAsInputStream(gzip);
+            } else if (BinaryHandler.isBinaryMediaType(mediaType)) {
+                return BinaryHandler.getInstance().marshalData(getStream(), metadata, gzip).getInputStream();
+            } else {
+                return JsonHandler.getInstance().marshalData(getStream(), gzip).getInputStream();
+            }
+        }
+    }
+
+    private static boolean isSameFormat(String mediaType1, String mediaType2) {
+        return BinaryHandler.isBinaryMediaType(mediaType1) == BinaryHandler.isBinaryMediaType(mediaType2);
+    }
+
     InputStream doGetAsInputStream(boolean gzip) throws IOException {
         if (dataSource != null) {
             InputStream is = dataSource.getInputStream();
@@ -608,6 +645,24 @@ public class Dataset<T extends BasicObject> implements DatasetProvider, StreamPr
         }
     }
 
+    /** Get the DataSource for the data of this Dataset in the format of the specified media type.
+     * See {@link #getInputStream(String, boolean)} for the media types that can be used.
+     *
+     * @param mediaType The content media type
+     * @param gzip
+     * @return
+     */
+    public SquonkDataSource getAsDataSource(String mediaType, boolean gzip) throws IOException {
+        if (dataSource != null && isSameFormat(mediaType, dataSource.getContentType())) {
+            return dataSource;
+        } else {
+            InputStream is = getInputStream(mediaType, gzip);
+            SquonkDataSource ds = new InputStreamDataSource(ROLE_DATASET, null, mediaType, is, gzip);
+            ds.setGzipContent(gzip);
+            return ds;
+        }
+    }
+
     @Override
     public String[] getStreamNames() {
         return new String[]{ROLE_DATASET, ROLE_METADATA};
@@ -81,10 +81,12 @@ public class DatasetUtils {
     public static ThinDatasetWrapper createThinDatasetWrapper(ThinDescriptor td, Class type, Map<String,Object> options) {
         Boolean isFiltering = td.isFiltering();
         Boolean isPreserve = td.isPreserve();
+        Boolean isOrdered = td.isOrdered();
 
         return new ThinDatasetWrapper(type,
                 isFiltering == null ? false: isFiltering, // null means false - the service does not filter
                 isPreserve == null ? true : isPreserve,   // null means true - the service does not modify the core details and might return BasicObjects
+                isOrdered == null ? true : isOrdered,     // null means true - the service returns its results in input order
                 td.getFieldDescriptors(), options);
     }
 
@@ -0,0 +1,259 @@
+/*
+ * Copyright (c) 2019 Informatics Matters Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.squonk.dataset;
+
+import org.squonk.types.BasicObject;
+import org.squonk.types.io.BinaryHandler;
+import org.squonk.util.IOUtils;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Sorts a Stream of BasicObjects (or MoleculeObjects) that may be too big to fit in memory.
+ * <p>
+ * The items are read in runs of runSize items. If the whole input fits in one run it is sorted in memory. Otherwise
+ * each run is sorted (using a parallel sort, in a background thread while the next run is being read) and written to
+ * a temporary file in the compact format of the {@link BinaryHandler}. The sorted Stream is then generated by lazily
+ * merging the runs, so at most two runs are held in memory while sorting and only one item from each run while
+ * merging. The temporary files are deleted when the sorted Stream is closed, so make sure it is closed.
+ * <p>
+ * The sort is stable. The default run size can be set using SQUONK_SORT_RUN_SIZE (default 100000).
+ * <p>
+ * Note that values are written to the temporary files as described by the {@link BinaryHandler} so representations
+ * (e.g. parsed molecules) held by the objects are lost when the data does not fit in one run.
+ *
+ * @author timbo
+ */
+public class ExternalMergeSorter<T extends BasicObject> {
+
+    private static final Logger LOG = Logger.getLogger(ExternalMergeSorter.class.getName());
+
+    public static final int DEFAULT_RUN_SIZE = Integer.parseInt(IOUtils.getConfiguration("SQUONK_SORT_RUN_SIZE", "100000"));
+
+    private final Class<T> type;
+    private final Comparator<? super T> comparator;
+    private final DatasetMetadata<T> metadata;
+    private final int runSize;
+    private final File tmpDir;
+
+    /**
+     * @param type       The type of the items
+     * @param comparator Defines the order
+     * @param metadata   Optional metadata that describes the types of the values
+     */
+    public ExternalMergeSorter(Class<T> type, Comparator<? super T> comparator, DatasetMetadata<T> metadata) {
+        this(type, comparator, metadata, DEFAULT_RUN_SIZE, null);
+    }
+
+    /**
+     * @param type       The type of the items
+     * @param comparator Defines the order
+     * @param metadata   Optional metadata that describes the types of the values
+     * @param runSize    The maximum number of items to sort in memory
+     * @param tmpDir     Where to write the runs. If null the default temporary directory is used.
+     */
+    public ExternalMergeSorter(Class<T> type, Comparator<? super T> comparator, DatasetMetadata<T> metadata, int runSize, File tmpDir) {
+        if (runSize < 1) {
+            throw new IllegalArgumentException("Run size must be at least 1");
+        }
+        this.type = type;
+        this.comparator = comparator;
+        this.metadata = metadata;
+        this.runSize = runSize;
+        this.tmpDir = tmpDir;
+    }
+
+    /**
+     * Sort the items. The input is read and the runs written before this method returns. The input Stream is closed.
+     *
+     * @param input The items to sort
+     * @return The sorted items. Close this Stream to delete the temporary files.
+     * @throws IOException
+     */
+    @SuppressWarnings("unchecked")
+    public Stream<T> sort(Stream<T> input) throws IOException {
+
+        List<File> runs = new ArrayList<>();
+        ExecutorService executor = null;
+        Future<File> pending = null;
+        boolean ok = false;
+        try {
+            Iterator<T> it = input.iterator();
+            Object[] buffer = new Object[Math.min(runSize, 1024)];
+            int size = 0;
+            while (it.hasNext()) {
+                if (size == buffer.length) {
+                    if (size < runSize) {
+                        buffer = Arrays.copyOf(buffer, (int) Math.min((long) runSize, size * 2L));
+                    } else {
+                        // the run is full so sort and write it in the background
+                        if (executor == null) {
+                            executor = Executors.newSingleThreadExecutor();
+                        } else {
+                            runs.add(waitFor(pending));
+                        }
+                        final Object[] run = buffer;
+                        pending = executor.submit(() -> writeRun(run, run.length));
+                        buffer = new Object[runSize];
+                        size = 0;
+                    }
+                }
+                buffer[size++] = it.next();
+            }
+
+            if (pending == null) {
+                // everything fits in memory
+                Arrays.parallelSort(buffer, 0, size, objectComparator());
+                ok = true;
+                return (Stream<T>) (Stream) Arrays.stream(buffer, 0, size);
+            }
+
+            runs.add(waitFor(pending));
+            if (size > 0) {
+                runs.add(writeRun(buffer, size));
+            }
+            LOG.info("Sorted " + runs.size() + " runs of up to " + runSize + " items");
+            Stream<T> result = merge(runs);
+            ok = true;
+            return result;
+        } finally {
+            input.close();
+            if (executor != null) {
+                executor.shutdown();
+            }
+            if (!ok) {
+                if (pending != null && !pending.isDone()) {
+                    pending.cancel(true);
+                }
+                runs.forEach(File::delete);
+            }
+        }
+    }
+
+    private File waitFor(Future<File> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing sort run", e);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException("Failed to write sort run", e.getCause());
+        }
+    }
+
+    /**
+     * The buffers are Object arrays as the actual type of T is not known
+     */
+    @SuppressWarnings("unchecked")
+    private Comparator<Object> objectComparator() {
+        return (Comparator<Object>) comparator;
+    }
+
+    @SuppressWarnings("unchecked")
+    private File writeRun(Object[] items, int size) throws IOException {
+        Arrays.parallelSort(items, 0, size, objectComparator());
+        File file = File.createTempFile("squonk-sort-", ".bin", tmpDir);
+        try {
+            OutputStream out = new FileOutputStream(file);
+            BinaryHandler.getInstance().marshalStreamToBinary((Stream<T>) (Stream) Arrays.stream(items, 0, size), metadata, out);
+        } catch (IOException | RuntimeException e) {
+            file.delete();
+            throw e;
+        }
+        return file;
+    }
+
+    private Stream<T> merge(List<File> runs) throws IOException {
+        List<Stream<T>> streams = new ArrayList<>(runs.size());
+        PriorityQueue<Head> heads = new PriorityQueue<>(runs.size());
+        Runnable cleanup = () -> {
+            streams.forEach(Stream::close);
+            runs.forEach(File::delete);
+        };
+        try {
+            for (int i = 0; i < runs.size(); i++) {
+                InputStream is = new BufferedInputStream(new FileInputStream(runs.get(i)), 65536);
+                Stream<T> stream = BinaryHandler.getInstance().streamFromBinary(is, type, true);
+                streams.add(stream);
+                Head head = new Head(i, stream.iterator());
+                if (head.advance()) {
+                    heads.add(head);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            cleanup.run();
+            throw e;
+        }
+
+        Spliterator<T> spliterator = new Spliterators.AbstractSpliterator<T>(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL) {
+            @Override
+            public boolean tryAdvance(Consumer<? super T> action) {
+                Head head = heads.poll();
+                if (head == null) {
+                    return false;
+                }
+                T item = head.current;
+                if (head.advance()) {
+                    heads.add(head);
+                }
+                action.accept(item);
+                return true;
+            }
+        };
+        return StreamSupport.stream(spliterator, false).onClose(cleanup);
+    }
+
+    /**
+     * The next item from a run. Ties are resolved using the run index so that the sort is stable.
+     */
+    private class Head implements Comparable<Head> {
+
+        final int index;
+        final Iterator<T> iterator;
+        T current;
+
+        Head(int index, Iterator<T> iterator) {
+            this.index = index;
+            this.iterator = iterator;
+        }
+
+        boolean advance() {
+            if (iterator.hasNext()) {
+                current = iterator.next();
+                return true;
+            } else {
+                current = null;
+                return false;
+            }
+        }
+
+        @Override
+        public int compareTo(Head o) {
+            int c = comparator.compare(current, o.current);
+            return c != 0 ? c : Integer.compare(index, o.index);
+        }
+    }
+}
@@ -0,0 +1,516 @@
+/*
+ * Copyright (c) 2019 Informatics Matters Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.squonk.dataset;
+
+import org.squonk.types.BasicObject;
+import org.squonk.types.io.BinaryHandler;
+import org.squonk.types.io.MarshalingInputStream;
+import org.squonk.util.IOUtils;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Joins and merges Streams of BasicObjects (or MoleculeObjects) using a key generated from each item (e.g. the value
+ * of a field, or the UUID).
+ * <p>
+ * If the data that needs to be held in a hash table fits within the memory budget (maxInMemory items) the join is done
+ * in memory. If not, the items are hash partitioned by their key into temporary files in the compact format of the
+ * {@link BinaryHandler}, the partitions are joined in parallel, each one in memory, and the results are then read back
+ * in their original order. In both cases the order of the results is the same.
+ * The temporary files are deleted when the resulting Stream is closed, so make sure it is closed.
+ * <p>
+ * The defaults can be set using SQUONK_JOIN_MAX_IN_MEMORY (default 100000 items), SQUONK_JOIN_PARTITIONS (default 64,
+ * maximum 256) and SQUONK_JOIN_THREADS (the number of partitions joined at the same time, default the number of
+ * processors up to 4).
+ * <p>
+ * Note that items are written to the temporary files as described by the {@link BinaryHandler} so null values and
+ * representations (e.g. parsed molecules) held by the objects are lost when the data is partitioned.
+ *
+ * @author timbo
+ */
+public class HashJoiner {
+
+    private static final Logger LOG = Logger.getLogger(HashJoiner.class.getName());
+
+    public static final int DEFAULT_MAX_IN_MEMORY = Integer.parseInt(IOUtils.getConfiguration("SQUONK_JOIN_MAX_IN_MEMORY", "100000"));
+    public static final int DEFAULT_PARTITIONS = Integer.parseInt(IOUtils.getConfiguration("SQUONK_JOIN_PARTITIONS", "64"));
+    public static final int DEFAULT_THREADS = Integer.parseInt(IOUtils.getConfiguration("SQUONK_JOIN_THREADS",
+            String.valueOf(Math.min(4, Runtime.getRuntime().availableProcessors()))));
+
+    /**
+     * The partition of each item is recorded as a single byte
+     */
+    private static final int MAX_PARTITIONS = 256;
+
+    /**
+     * Smaller blocks than the default as there is a writer for every partition
+     */
+    private static final BinaryHandler BINARY = new BinaryHandler(256);
+
+    private final int maxInMemory;
+    private final int partitions;
+    private final int threads;
+    private final File tmpDir;
+
+    public HashJoiner() {
+        this(DEFAULT_MAX_IN_MEMORY, DEFAULT_PARTITIONS, DEFAULT_THREADS, null);
+    }
+
+    /**
+     * @param maxInMemory The maximum number of items to hold in a hash table before partitioning the data
+     * @param partitions  The number of partitions to use (1 - 256)
+     * @param threads     The number of partitions to join at the same time
+     * @param tmpDir      Where to write the partitions. If null the default temporary directory is used.
+     */
+    public HashJoiner(int maxInMemory, int partitions, int threads, File tmpDir) {
+        if (partitions < 1 || partitions > MAX_PARTITIONS) {
+            throw new IllegalArgumentException("Partitions must be between 1 and " + MAX_PARTITIONS);
+        }
+        this.maxInMemory = Math.max(1, maxInMemory);
+        this.partitions = partitions;
+        this.threads = Math.max(1, threads);
+        this.tmpDir = tmpDir;
+    }
+
+    /**
+     * Enrich the items of the main Stream with the items of the extra Stream that have the same key. The keys of the
+     * extra items must be unique. Items without a key are ignored. All the main items are returned, in their original
+     * order, whether or not they were enriched.
+     * <p>
+     * The extra items are read before this method returns. If they do not fit in memory the main items are also read.
+     *
+     * @param main      The items to enrich
+     * @param mainType  The type of the main items
+     * @param mainKey   Generates the key of a main item
+     * @param extra     The items with the data to add to the main items
+     * @param extraType The type of the extra items
+     * @param extraKey  Generates the key of an extra item
+     * @param enricher  Enriches a main item with the matching extra item. Must not modify the extra item.
+     * @return The main items. Close this Stream to delete the temporary files.
+     * @throws IOException
+     * @throws IllegalStateException If the extra items contain duplicate keys
+     */
+    public <M extends BasicObject, E extends BasicObject> Stream<M> enrich(
+            Stream<M> main, Class<M> mainType, Function<? super M, ?> mainKey,
+            Stream<E> extra, Class<E> extraType, Function<? super E, ?> extraKey,
+            BiConsumer<? super M, ? super E> enricher) throws IOException {
+
+        Map<Object, E> table = new HashMap<>();
+        Spill spill = null;
+        boolean ok = false;
+        try {
+            try (Stream<E> st = extra) {
+                Iterator<E> it = st.iterator();
+                while (it.hasNext() && table.size() < maxInMemory) {
+                    putUnique(table, it.next(), extraKey);
+                }
+                if (!it.hasNext()) {
+                    ok = true;
+                    return main.peek((m) -> {
+                        Object key = mainKey.apply(m);
+                        if (key != null) {
+                            E e = table.get(key);
+                            if (e != null) {
+                                enricher.accept(m, e);
+                            }
+                        }
+                    });
+                }
+
+                LOG.info("Data to enrich with exceeds " + maxInMemory + " items. Partitioning into " + partitions + " partitions");
+                spill = new Spill();
+                try (PartitionWriter<E> writer = new PartitionWriter<>(spill, "extra")) {
+                    for (Map.Entry<Object, E> e : table.entrySet()) {
+                        writer.write(partition(e.getKey()), e.getValue());
+                    }
+                    table.clear();
+                    while (it.hasNext()) {
+                        E e = it.next();
+                        Object key = extraKey.apply(e);
+                        if (key != null) {
+                            writer.write(partition(key), e);
+                        }
+                    }
+                }
+            }
+
+            try (Stream<M> st = main;
+                 PartitionWriter<M> writer = new PartitionWriter<>(spill, "main");
+                 DataOutputStream sequence = spill.createSequence()) {
+                Iterator<M> it = st.iterator();
+                while (it.hasNext()) {
+                    M m = it.next();
+                    int p = partition(mainKey.apply(m));
+                    writer.write(p, m);
+                    sequence.writeByte(p);
+                }
+            }
+
+            final Spill s = spill;
+            spill.joinPartitions((p) -> {
+                Map<Object, E> partTable = new HashMap<>();
+                try (Stream<E> st = s.read("extra", p, extraType)) {
+                    st.iterator().forEachRemaining((e) -> putUnique(partTable, e, extraKey));
+                }
+                try (Stream<M> st = s.read("main", p, mainType);
+                     PartitionWriter<M> writer = new PartitionWriter<>(s, "output", p)) {
+                    Iterator<M> it = st.iterator();
+                    while (it.hasNext()) {
+                        M m = it.next();
+                        Object key = mainKey.apply(m);
+                        if (key != null) {
+                            E e = partTable.get(key);
+                            if (e != null) {
+                                enricher.accept(m, e);
+                            }
+                        }
+                        writer.write(p, m);
+                    }
+                }
+            });
+
+            Stream<M> result = spill.readResults(mainType, null);
+            ok = true;
+            return result;
+        } finally {
+            if (!ok && spill != null) {
+                spill.close();
+            }
+        }
+    }
+
+    /**
+     * Merge the items of several Streams. Items with the same key are merged into the first one that was encountered.
+     * The results are in the order that their keys were first encountered.
+     * <p>
+     * All the inputs are read before this method returns.
+     *
+     * @param inputs   The Streams to merge, in order
+     * @param type     The type of the items
+     * @param key      Generates the key of an item. Items with null keys are merged together.
+     * @param combiner Merges the data from an item (the second argument) into the existing item with the same key
+     *                 (the first argument)
+     * @return The merged items. Close this Stream to delete the temporary files.
+     * @throws IOException
+     */
+    public <T extends BasicObject> Stream<T> merge(
+            List<? extends Stream<? extends T>> inputs, Class<T> type, Function<? super T, ?> key,
+            BiConsumer<? super T, ? super T> combiner) throws IOException {
+
+        Map<Object, T> table = new LinkedHashMap<>();
+        Spill spill = null;
+        PartitionWriter<T> writer = null;
+        DataOutputStream sequence = null;
+        boolean ok = false;
+        try {
+            for (Stream<? extends T> input : inputs) {
+                try (Stream<? extends T> st = input) {
+                    Iterator<? extends T> it = st.iterator();
+                    while (it.hasNext()) {
+                        T item = it.next();
+                        Object k = key.apply(item);
+                        if (spill == null) {
+                            T existing = table.get(k);
+                            if (existing != null) {
+                                combiner.accept(existing, item);
+                            } else {
+                                table.put(k, item);
+                            }
+                            if (table.size() > maxInMemory) {
+                                LOG.info("Data to merge exceeds " + maxInMemory + " items. Partitioning into " + partitions + " partitions");
+                                spill = new Spill();
+                                writer = new PartitionWriter<>(spill, "input");
+                                sequence = spill.createSequence();
+                                for (Map.Entry<Object, T> e : table.entrySet()) {
+                                    int p = partition(e.getKey());
+                                    writer.write(p, e.getValue());
+                                    sequence.writeByte(p);
+                                }
+                                table.clear();
+                            }
+                        } else {
+                            int p = partition(k);
+                            writer.write(p, item);
+                            sequence.writeByte(p);
+                        }
+                    }
+                }
+            }
+
+            if (spill == null) {
+                ok = true;
+                return table.values().stream();
+            }
+            writer.close();
+            writer = null;
+            sequence.close();
+            sequence = null;
+
+            // which of the items in each partition are the first with their key, and so generate a result
+            final BitSet[] firsts = new BitSet[partitions];
+            final Spill s = spill;
+            spill.joinPartitions((p) -> {
+                Map<Object, T> partTable = new LinkedHashMap<>();
+                BitSet partFirsts = new BitSet();
+                try (Stream<T> st = s.read("input", p, type)) {
+                    Iterator<T> it = st.iterator();
+                    for (int i = 0; it.hasNext(); i++) {
+                        T item = it.next();
+                        Object k = key.apply(item);
+                        T existing = partTable.get(k);
+                        if (existing != null) {
+                            combiner.accept(existing, item);
+                        } else {
+                            partTable.put(k, item);
+                            partFirsts.set(i);
+                        }
+                    }
+                }
+                try (PartitionWriter<T> out = new PartitionWriter<>(s, "output", p)) {
+                    for (T item : partTable.values()) {
+                        out.write(p, item);
+                    }
+                }
+                firsts[p] = partFirsts;
+            });
+
+            Stream<T> result = spill.readResults(type, firsts);
+            ok = true;
+            return result;
+        } finally {
+            if (!ok) {
+                IOUtils.closeIfCloseable(writer);
+                IOUtils.closeIfCloseable(sequence);
+                if (spill != null) {
+                    spill.close();
+                }
+            }
+        }
+    }
+
+    private <E> void putUnique(Map<Object, E> table, E item, Function<? super E, ?> key) {
+        Object k = key.apply(item);
+        if (k != null) {
+            if (table.containsKey(k)) {
+                throw new IllegalStateException("Values to merge contain duplicate keys: " + k);
+            }
+            table.put(k, item);
+        }
+    }
+
+    private int partition(Object key) {
+        int h = Objects.hashCode(key);
+        h ^= (h >>> 16);
+        return Math.floorMod(h, partitions);
+    }
+
+    private interface PartitionTask {
+        void run(int partition) throws IOException;
+    }
+
+    /**
+     * The temporary files for one join
+     */
+    private class Spill implements Closeable {
+
+        private final File dir;
+
+        Spill() throws IOException {
+            dir = (tmpDir == null ? Files.createTempDirectory("squonk-join-") : Files.createTempDirectory(tmpDir.toPath(), "squonk-join-")).toFile();
+        }
+
+        File file(String name, int partition) {
+            return new File(dir, name + "-" + partition + ".bin");
+        }
+
+        /**
+         * The partition of every item in the original order
+         */
+        DataOutputStream createSequence() throws IOException {
+            return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(new File(dir, "sequence")), 65536));
+        }
+
+        <T extends BasicObject> Stream<T> read(String name, int partition, Class<T> type) throws IOException {
+            InputStream is = new FileInputStream(file(name, partition));
+            return BINARY.streamFromBinary(is, type, true).sequential();
+        }
+
+        /**
+         * Run the task for each partition using up to the specified number of threads
+         */
+        void joinPartitions(PartitionTask task) throws IOException {
+            long t0 = System.currentTimeMillis();
+            ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, partitions));
+            try {
+                List<Future<?>> futures = new ArrayList<>(partitions);
+                for (int p = 0; p < partitions; p++) {
+                    final int partition = p;
+                    futures.add(executor.submit(() -> {
+                        task.run(partition);
+                        return null;
+                    }));
+                }
+                for (Future<?> future : futures) {
+                    future.get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while joining partitions", e);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                } else if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                } else {
+                    throw new IOException("Failed to join partitions", cause);
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+            LOG.info("Joined " + partitions + " partitions in " + (System.currentTimeMillis() - t0) + "ms");
+        }
+
+        /**
+         * Read the results from the output partitions in the order given by the sequence.
+         *
+         * @param firsts If not null, whether each item in a partition generated a result
+         */
+        <T extends BasicObject> Stream<T> readResults(Class<T> type, BitSet[] firsts) throws IOException {
+            List<Stream<T>> streams = new ArrayList<>(partitions);
+            List<Iterator<T>> iterators = new ArrayList<>(partitions);
+            DataInputStream sequence = null;
+            try {
+                for (int p = 0; p < partitions; p++) {
+                    Stream<T> st = read("output", p, type);
+                    streams.add(st);
+                    iterators.add(st.iterator());
+                }
+                sequence = new DataInputStream(new BufferedInputStream(new FileInputStream(new File(dir, "sequence")), 65536));
+            } catch (IOException | RuntimeException e) {
+                streams.forEach(Stream::close);
+                throw e;
+            }
+
+            final DataInputStream seq = sequence;
+            final int[] counts = new int[partitions];
+            Spliterator<T> spliterator = new Spliterators.AbstractSpliterator<T>(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL) {
+                @Override
+                public boolean tryAdvance(Consumer<? super T> action) {
+                    try {
+                        int p;
+                        while ((p = seq.read()) >= 0) {
+                            if (firsts == null || firsts[p].get(counts[p]++)) {
+                                action.accept(iterators.get(p).next());
+                                return true;
+                            }
+                        }
+                        return false;
+                    } catch (IOException e) {
+                        throw new RuntimeException("Failed to read results", e);
+                    }
+                }
+            };
+            return StreamSupport.stream(spliterator, false).onClose(() -> {
+                streams.forEach(Stream::close);
+                IOUtils.close(seq);
+                close();
+            });
+        }
+
+        @Override
+        public void close() {
+            File[] files = dir.listFiles();
+            if (files != null) {
+                for (File f : files) {
+                    f.delete();
+                }
+            }
+            dir.delete();
+        }
+    }
+
+    /**
+     * Writes items to the files for the partitions
+     */
+    private class PartitionWriter<T extends BasicObject> implements Closeable {
+
+        private final OutputStream[] outs = new OutputStream[partitions];
+        private final List<MarshalingInputStream.ItemWriter<T>> writers = new ArrayList<>(partitions);
+
+        /**
+         * Writer for all the partitions
+         */
+        PartitionWriter(Spill spill, String name) throws IOException {
+            this(spill, name, -1);
+        }
+
+        /**
+         * Writer for a single partition, or all partitions if partition is negative
+         */
+        PartitionWriter(Spill spill, String name, int partition) throws IOException {
+            try {
+                for (int p = 0; p < partitions; p++) {
+                    if (partition < 0 || p == partition) {
+                        outs[p] = new FileOutputStream(spill.file(name, p));
+                        writers.add(BINARY.createWriter(outs[p], null));
+                    } else {
+                        writers.add(null);
+                    }
+                }
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+
+        void write(int partition, T item) throws IOException {
+            writers.get(partition).write(item);
+        }
+
+        @Override
+        public void close() throws IOException {
+            IOException error = null;
+            for (int p = 0; p < partitions; p++) {
+                try {
+                    if (p < writers.size() && writers.get(p) != null) {
+                        writers.get(p).close();
+                    }
+                } catch (IOException e) {
+                    error = e;
+                } finally {
+                    IOUtils.closeIfCloseable(outs[p]);
+                }
+            }
+            if (error != null) {
+                throw error;
+            }
+        }
+    }
+}
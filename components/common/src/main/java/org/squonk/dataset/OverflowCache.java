@@ -0,0 +1,204 @@
+/*
+ * Copyright (c) 2019 Informatics Matters Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.squonk.dataset;
+
+import org.squonk.types.BasicObject;
+import org.squonk.types.io.BinaryHandler;
+import org.squonk.types.io.MarshalingInputStream;
+import org.squonk.util.IOUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Thread safe cache of BasicObjects (or MoleculeObjects) keyed by their UUID that holds up to maxInMemory objects in
+ * memory and writes any more to a local file. Each object that overflows is written in the compact format of the
+ * {@link BinaryHandler} and only its position in the file is kept in memory. Objects are read back from the file
+ * when they are removed from the cache.
+ * <p>
+ * The file is only created if needed and is deleted when the cache is closed. Space in the file is not reused.
+ * The default number of objects held in memory can be set using SQUONK_OVERFLOW_CACHE_MAX_IN_MEMORY (default 10000).
+ * <p>
+ * Note that objects that overflow to the file are handled as described by the {@link BinaryHandler} so null values
+ * and representations (e.g. parsed molecules) held by the objects are lost.
+ *
+ * @author timbo
+ */
+public class OverflowCache<T extends BasicObject> implements Closeable {
+
+    private static final Logger LOG = Logger.getLogger(OverflowCache.class.getName());
+
+    public static final int DEFAULT_MAX_IN_MEMORY = Integer.parseInt(IOUtils.getConfiguration("SQUONK_OVERFLOW_CACHE_MAX_IN_MEMORY", "10000"));
+
+    /**
+     * The position of an object in the file is encoded as a long with the length in the lower bits
+     */
+    private static final int LENGTH_BITS = 24;
+    private static final long MAX_LENGTH = (1L << LENGTH_BITS) - 1;
+
+    private final Class<T> type;
+    private final int maxInMemory;
+    private final File tmpDir;
+    private final Map<UUID, T> memory = new ConcurrentHashMap<>();
+    private final Map<UUID, Long> positions = new ConcurrentHashMap<>();
+
+    private File file;
+    private FileChannel channel;
+    private long end = 0;
+    private long overflowed = 0;
+
+    public OverflowCache(Class<T> type) {
+        this(type, DEFAULT_MAX_IN_MEMORY, null);
+    }
+
+    /**
+     * @param type        The type of the objects
+     * @param maxInMemory The maximum number of objects to hold in memory
+     * @param tmpDir      Where to create the file. If null the default temporary directory is used.
+     */
+    public OverflowCache(Class<T> type, int maxInMemory, File tmpDir) {
+        this.type = type;
+        this.maxInMemory = maxInMemory;
+        this.tmpDir = tmpDir;
+    }
+
+    /**
+     * Add the object, writing it to the file if the maximum number of objects are already held in memory.
+     *
+     * @param bo The object
+     * @throws IOException If the object cannot be written
+     */
+    public void put(T bo) throws IOException {
+        if (memory.size() < maxInMemory) {
+            memory.put(bo.getUUID(), bo);
+        } else {
+            positions.put(bo.getUUID(), write(bo));
+        }
+    }
+
+    /**
+     * Remove the object from the cache.
+     *
+     * @param uuid The UUID of the object
+     * @return The object, or null if not present
+     * @throws IOException If the object cannot be read from the file
+     */
+    public T remove(UUID uuid) throws IOException {
+        T bo = memory.remove(uuid);
+        if (bo == null) {
+            Long position = positions.remove(uuid);
+            if (position != null) {
+                bo = read(position);
+            }
+        }
+        return bo;
+    }
+
+    /**
+     * Remove the object from the cache without reading it if it is in the file.
+     *
+     * @param uuid The UUID of the object
+     */
+    public void discard(UUID uuid) {
+        if (memory.remove(uuid) == null) {
+            positions.remove(uuid);
+        }
+    }
+
+    public int size() {
+        return memory.size() + positions.size();
+    }
+
+    /**
+     * The total number of objects that have been written to the file
+     */
+    public synchronized long getOverflowCount() {
+        return overflowed;
+    }
+
+    private long write(T bo) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (MarshalingInputStream.ItemWriter<T> writer = BinaryHandler.getInstance().createWriter(out, null)) {
+            writer.write(bo);
+        }
+        if (out.size() > MAX_LENGTH) {
+            throw new IOException("Object too big to cache: " + bo.getUUID());
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(out.toByteArray());
+        synchronized (this) {
+            if (channel == null) {
+                file = File.createTempFile("squonk-cache-", ".bin", tmpDir);
+                channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+                LOG.info("Caching more than " + maxInMemory + " objects. Overflowing to " + file.getPath());
+            }
+            long position = end;
+            while (buffer.hasRemaining()) {
+                channel.write(buffer, end + buffer.position());
+            }
+            end += buffer.limit();
+            overflowed++;
+            return (position << LENGTH_BITS) | buffer.limit();
+        }
+    }
+
+    private T read(long encoded) throws IOException {
+        long position = encoded >>> LENGTH_BITS;
+        ByteBuffer buffer = ByteBuffer.allocate((int) (encoded & MAX_LENGTH));
+        FileChannel ch;
+        synchronized (this) {
+            ch = channel;
+        }
+        // positional reads are safe to use from multiple threads
+        while (buffer.hasRemaining()) {
+            if (ch.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of cache file");
+            }
+        }
+        try (Stream<T> stream = BinaryHandler.getInstance().streamFromBinary(new ByteArrayInputStream(buffer.array()), type, false)) {
+            Iterator<T> it = stream.iterator();
+            return it.next();
+        }
+    }
+
+    /**
+     * Clear the cache and delete the file
+     */
+    @Override
+    public synchronized void close() {
+        memory.clear();
+        positions.clear();
+        if (channel != null) {
+            IOUtils.close(channel);
+            channel = null;
+            file.delete();
+            file = null;
+            end = 0;
+        }
+    }
+}
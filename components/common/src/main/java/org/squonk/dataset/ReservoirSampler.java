@@ -0,0 +1,314 @@
+/*
+ * Copyright (c) 2019 Informatics Matters Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.squonk.dataset;
+
+import java.util.*;
+import java.util.function.Function;
+import java.util.function.ToDoubleFunction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Selects a random sample of items from a Stream in a single pass, holding no more than the requested number of items
+ * (per stratum when stratifying) in memory.
+ * <p>
+ * Each item is given a random key and the items with the largest keys are kept in a bounded reservoir. When a weight
+ * function is set the key is ln(u)/w, where u is uniform on (0,1] and w is the weight, so that items are selected with
+ * probability proportional to their weight (the A-Res algorithm of Efraimidis and Spirakis). Items whose weight is not
+ * a positive number are never selected. Without a weight function every item has the same weight, giving a uniform
+ * sample.
+ * <p>
+ * When a stratum function is set a reservoir is kept for each stratum (e.g. each distinct value of a field) and the
+ * sample is taken from the strata according to the {@link Allocation}. Memory use is then proportional to the number
+ * of strata, so the stratum function should only generate a modest number of distinct values.
+ * <p>
+ * As the reservoirs for parts of the Stream can be merged the sampling can be done in parallel. The random number for
+ * an item is generated from the seed and the position of the item in the Stream, so the same seed gives the same sample
+ * from the same data whether or not it is done in parallel. The sampled items are returned in their original order.
+ *
+ * @param <T> The type of item being sampled
+ * @author timbo
+ */
+public class ReservoirSampler<T> {
+
+    private static final Logger LOG = Logger.getLogger(ReservoirSampler.class.getName());
+
+    /**
+     * How the size of the sample is divided between the strata.
+     */
+    public enum Allocation {
+        /**
+         * Each stratum contributes in proportion to its number of items. The total is count, or the fraction of all
+         * items if that is fewer.
+         */
+        PROPORTIONAL,
+        /**
+         * Each stratum contributes up to count items, or the fraction of its items if that is fewer.
+         */
+        EQUAL
+    }
+
+    private final int count;
+    private final Long seed;
+    private Float fraction;
+    private ToDoubleFunction<T> weightFunction;
+    private Function<T, ?> stratumFunction;
+    private Allocation allocation = Allocation.PROPORTIONAL;
+
+    /**
+     * @param count The maximum number of items to select
+     * @param seed  The seed for the random numbers. If null a different sample is generated each time.
+     */
+    public ReservoirSampler(int count, Long seed) {
+        if (count < 0) {
+            throw new IllegalArgumentException("Count must not be negative");
+        }
+        this.count = count;
+        this.seed = seed;
+    }
+
+    public ReservoirSampler(int count) {
+        this(count, null);
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public Long getSeed() {
+        return seed;
+    }
+
+    public Float getFraction() {
+        return fraction;
+    }
+
+    /**
+     * @param fraction If not null the sample is limited to this fraction (0-1) of the items.
+     */
+    public void setFraction(Float fraction) {
+        if (fraction != null && (fraction < 0f || fraction > 1f)) {
+            throw new IllegalArgumentException("Fraction must be between 0 and 1");
+        }
+        this.fraction = fraction;
+    }
+
+    public ToDoubleFunction<T> getWeightFunction() {
+        return weightFunction;
+    }
+
+    /**
+     * @param weightFunction Generates the weight of an item. Must be thread safe if sampling in parallel. If null
+     *                       all items have equal weight.
+     */
+    public void setWeightFunction(ToDoubleFunction<T> weightFunction) {
+        this.weightFunction = weightFunction;
+    }
+
+    public Function<T, ?> getStratumFunction() {
+        return stratumFunction;
+    }
+
+    /**
+     * @param stratumFunction Generates the stratum of an item. The result must be usable as a HashMap key (null is
+     *                        allowed). Must be thread safe if sampling in parallel. If null the items are not
+     *                        stratified.
+     */
+    public void setStratumFunction(Function<T, ?> stratumFunction) {
+        this.stratumFunction = stratumFunction;
+    }
+
+    public Allocation getAllocation() {
+        return allocation;
+    }
+
+    public void setAllocation(Allocation allocation) {
+        this.allocation = allocation == null ? Allocation.PROPORTIONAL : allocation;
+    }
+
+    /**
+     * Take the sample. The Stream is consumed but not closed.
+     *
+     * @param items    The items to sample
+     * @param parallel Whether to generate the keys and fill the reservoirs in parallel
+     * @return The sampled items in the order they were in the Stream
+     */
+    public List<T> sample(Stream<T> items, boolean parallel) {
+
+        final long s = seed == null ? new Random().nextLong() : seed;
+        Iterator<T> source = items.sequential().iterator();
+        // positions are assigned as the source is read, which is always done by one thread at a time
+        Iterator<Entry<T>> positioned = new Iterator<Entry<T>>() {
+            long position = 0;
+
+            @Override
+            public boolean hasNext() {
+                return source.hasNext();
+            }
+
+            @Override
+            public Entry<T> next() {
+                return new Entry<>(position++, source.next());
+            }
+        };
+
+        Reservoirs reservoirs = StreamSupport.stream(
+                Spliterators.spliteratorUnknownSize(positioned, Spliterator.ORDERED | Spliterator.NONNULL), parallel)
+                .collect(Reservoirs::new, (r, e) -> r.add(e, s), Reservoirs::merge);
+
+        List<T> results = reservoirs.select().stream()
+                .sorted(Comparator.comparingLong(e -> e.position))
+                .map(e -> e.item)
+                .collect(Collectors.toList());
+        LOG.log(Level.FINE, "Sampled {0} items from {1}", new Object[]{results.size(), reservoirs.total()});
+        return results;
+    }
+
+    /**
+     * A uniform random number in (0,1] generated from the seed and position using the SplitMix64 mixing function.
+     */
+    static double uniform(long seed, long position) {
+        long z = seed + (position + 1) * 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        z = z ^ (z >>> 31);
+        return ((z >>> 11) + 1) * 0x1.0p-53;
+    }
+
+    private static class Entry<T> {
+        final long position;
+        final T item;
+        double key;
+
+        Entry(long position, T item) {
+            this.position = position;
+            this.item = item;
+        }
+    }
+
+    /**
+     * Orders entries from the least to the most preferred. Ties are broken in favour of the earlier item.
+     */
+    private static final Comparator<Entry<?>> WORST_FIRST = Comparator.<Entry<?>>comparingDouble(e -> e.key)
+            .thenComparing(Comparator.<Entry<?>>comparingLong(e -> e.position).reversed());
+
+    private static class Reservoir<T> {
+
+        final PriorityQueue<Entry<T>> heap = new PriorityQueue<>(WORST_FIRST);
+        /** The number of items in this stratum that could be selected */
+        long size = 0;
+        /** The position of the first item in this stratum, used to make tie breaks repeatable */
+        long first = Long.MAX_VALUE;
+
+        void add(Entry<T> entry, int capacity) {
+            size++;
+            first = Math.min(first, entry.position);
+            offer(entry, capacity);
+        }
+
+        void offer(Entry<T> entry, int capacity) {
+            if (heap.size() < capacity) {
+                heap.add(entry);
+            } else if (capacity > 0 && WORST_FIRST.compare(entry, heap.peek()) > 0) {
+                heap.poll();
+                heap.add(entry);
+            }
+        }
+
+        void merge(Reservoir<T> other, int capacity) {
+            size += other.size;
+            first = Math.min(first, other.first);
+            for (Entry<T> entry : other.heap) {
+                offer(entry, capacity);
+            }
+        }
+
+        List<Entry<T>> best(int n) {
+            List<Entry<T>> entries = new ArrayList<>(heap);
+            entries.sort(WORST_FIRST.reversed());
+            return entries.subList(0, Math.min(n, entries.size()));
+        }
+    }
+
+    private class Reservoirs {
+
+        final Map<Object, Reservoir<T>> strata = new HashMap<>();
+
+        void add(Entry<T> entry, long seed) {
+            double weight = weightFunction == null ? 1d : weightFunction.applyAsDouble(entry.item);
+            if (!(weight > 0d) || Double.isInfinite(weight)) {
+                return;
+            }
+            entry.key = Math.log(uniform(seed, entry.position)) / weight;
+            Object stratum = stratumFunction == null ? null : stratumFunction.apply(entry.item);
+            strata.computeIfAbsent(stratum, k -> new Reservoir<>()).add(entry, count);
+        }
+
+        void merge(Reservoirs other) {
+            for (Map.Entry<Object, Reservoir<T>> e : other.strata.entrySet()) {
+                Reservoir<T> reservoir = strata.get(e.getKey());
+                if (reservoir == null) {
+                    strata.put(e.getKey(), e.getValue());
+                } else {
+                    reservoir.merge(e.getValue(), count);
+                }
+            }
+        }
+
+        long total() {
+            return strata.values().stream().mapToLong(r -> r.size).sum();
+        }
+
+        int limit(long size) {
+            return fraction == null ? count : (int) Math.min(count, Math.round(fraction * (double) size));
+        }
+
+        List<Entry<T>> select() {
+            List<Entry<T>> selected = new ArrayList<>();
+            if (allocation == Allocation.EQUAL) {
+                for (Reservoir<T> reservoir : strata.values()) {
+                    selected.addAll(reservoir.best(limit(reservoir.size)));
+                }
+                return selected;
+            }
+
+            // largest remainder allocation in proportion to the size of each stratum
+            long total = total();
+            long target = Math.min(limit(total), total);
+            List<Reservoir<T>> reservoirs = new ArrayList<>(strata.values());
+            Map<Reservoir<T>, Long> quotas = new HashMap<>();
+            long allocated = 0;
+            for (Reservoir<T> reservoir : reservoirs) {
+                long quota = target * reservoir.size / total;
+                quotas.put(reservoir, quota);
+                allocated += quota;
+            }
+            reservoirs.sort(Comparator.<Reservoir<T>>comparingLong(r -> (target * r.size) % total).reversed()
+                    .thenComparingLong(r -> r.first));
+            for (int i = 0; allocated < target; i++, allocated++) {
+                quotas.merge(reservoirs.get(i), 1L, Long::sum);
+            }
+            for (Reservoir<T> reservoir : reservoirs) {
+                selected.addAll(reservoir.best(quotas.get(reservoir).intValue()));
+            }
+            return selected;
+        }
+    }
+}
@@ -20,9 +20,9 @@ package org.squonk.dataset;
 import org.squonk.types.BasicObject;
 import org.squonk.types.MoleculeObject;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.logging.Logger;
 import java.util.stream.Stream;
@@ -37,6 +37,7 @@ public class ThinDatasetWrapper<T extends BasicObject> {
 
     private final boolean filtering;
     private final boolean preserve;
+    private final boolean ordered;
     private final Class<T> type;
     private final ThinFieldDescriptor[] thinFieldDescriptors;
     private final Map<String, Object> options;
@@ -49,9 +50,25 @@ public class ThinDatasetWrapper<T extends BasicObject> {
     }
 
     public ThinDatasetWrapper(Class<T> type, boolean filtering, boolean preserve, ThinFieldDescriptor[] thinFieldDescriptors, Map<String, Object> options) {
+        this(type, filtering, preserve, true, thinFieldDescriptors, options);
+    }
+
+    /**
+     * @param type
+     * @param filtering
+     * @param preserve
+     * @param ordered              Whether the results of a filtering service are in the same order as the input. If so the
+     *                             original objects that were filtered out are discarded as soon as possible, but the results
+     *                             must be merged sequentially. If not the results are merged concurrently and the original
+     *                             objects are kept until the merge completes.
+     * @param thinFieldDescriptors
+     * @param options
+     */
+    public ThinDatasetWrapper(Class<T> type, boolean filtering, boolean preserve, boolean ordered, ThinFieldDescriptor[] thinFieldDescriptors, Map<String, Object> options) {
         this.type = type;
         this.filtering = filtering;
         this.preserve = preserve;
+        this.ordered = ordered;
         this.thinFieldDescriptors = thinFieldDescriptors;
         this.options = options;
     }
@@ -76,6 +93,15 @@ public class ThinDatasetWrapper<T extends BasicObject> {
         return preserve;
     }
 
+    /**
+     * Are the results of a filtering service in the same order as the input.
+     *
+     * @return
+     */
+    public boolean isOrdered() {
+        return ordered;
+    }
+
     /**
      * Get the field mappings that define what will be sent to the service.
      *
@@ -101,10 +127,15 @@ public class ThinDatasetWrapper<T extends BasicObject> {
 
         requestMetadata = inputDataset.getMetadata();
 
-        cache = filtering ? new QueueCache<>() : new MapCache<>();
+        OverflowCache<T> store = new OverflowCache<>(type);
+        cache = filtering && ordered ? new QueueCache<>(store) : new MapCache<>(store);
         Stream<T> stream = inputDataset.getStream().sequential()
                 .map(fat -> {
-                    cache.put(fat);
+                    try {
+                        cache.put(fat);
+                    } catch (IOException e) {
+                        throw new RuntimeException("Failed to cache object " + fat.getUUID(), e);
+                    }
                     //LOG.info("Fat object:  " + fat);
                     T thin = (T) fat.clone();
                     thin.clearValues();
@@ -162,7 +193,9 @@ public class ThinDatasetWrapper<T extends BasicObject> {
     }
 
     /**
-     * Recombine the results with the original data as needed.
+     * Recombine the results with the original data as needed. The results are merged as they are read and, unless the
+     * results of a filtering service are ordered, this is done concurrently if the results Stream is parallel.
+     * Close the resulting Stream to free the cached objects.
      *
      * @param results
      * @return
@@ -177,10 +210,20 @@ public class ThinDatasetWrapper<T extends BasicObject> {
         DatasetMetadata mergedMetadata = DatasetUtils.mergeDatasetMetadata(requestMetadata, results.getMetadata());
 
         // merge the results back into the original data
-        Stream<T> resultObjs = results.getStream().sequential().map(result -> {
+        final Cache<T> resultsCache = cache;
+        Stream<? extends BasicObject> resultStream = results.getStream();
+        if (resultsCache instanceof QueueCache) {
+            resultStream = resultStream.sequential();
+        }
+        Stream<T> resultObjs = resultStream.map(result -> {
             //LOG.info("Handling: " + m);
             UUID uuid = result.getUUID();
-            T o = cache.get(uuid);
+            T o;
+            try {
+                o = resultsCache.get(uuid);
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to read cached object " + uuid, e);
+            }
             if (o == null) {
                 LOG.warning("Object UUID " + uuid + " not found in cache. Strange!");
                 return null;
@@ -202,7 +245,7 @@ public class ThinDatasetWrapper<T extends BasicObject> {
                 }
                 return neu;
             }
-        }).filter(m -> m != null);
+        }).filter(m -> m != null).onClose(resultsCache::close);
 
         Dataset<T> resultDataset = new Dataset<>(resultObjs, mergedMetadata);
 
@@ -210,45 +253,73 @@ public class ThinDatasetWrapper<T extends BasicObject> {
     }
 
 
-    interface Cache<T extends BasicObject> {
-        T get(UUID uuid);
+    interface Cache<T extends BasicObject> extends Closeable {
+        T get(UUID uuid) throws IOException;
+
+        void put(T bo) throws IOException;
 
-        void put(T bo);
+        void close();
     }
 
+    /**
+     * Cache for when the results are in the same order as the input. Objects skipped over by the results are discarded.
+     */
     class QueueCache<T extends BasicObject> implements Cache<T> {
 
-        private final Queue<T> queue = new ConcurrentLinkedQueue<>();
+        private final Queue<UUID> queue = new ConcurrentLinkedQueue<>();
+        private final OverflowCache<T> store;
+
+        QueueCache(OverflowCache<T> store) {
+            this.store = store;
+        }
 
         @Override
-        public T get(UUID uuid) {
-            T mo;
-            while ((mo = queue.poll()) != null) {
-                if (uuid.equals(mo.getUUID())) {
-                    return mo;
+        public T get(UUID uuid) throws IOException {
+            UUID next;
+            while ((next = queue.poll()) != null) {
+                if (uuid.equals(next)) {
+                    return store.remove(next);
+                } else {
+                    store.discard(next);
                 }
             }
             return null;
         }
 
         @Override
-        public void put(T bo) {
-            queue.offer(bo);
+        public void put(T bo) throws IOException {
+            store.put(bo);
+            queue.offer(bo.getUUID());
+        }
+
+        @Override
+        public void close() {
+            queue.clear();
+            store.close();
         }
     }
 
     class MapCache<T extends BasicObject> implements Cache<T> {
 
-        private final Map<UUID, T> map = new ConcurrentHashMap<>();
+        private final OverflowCache<T> store;
+
+        MapCache(OverflowCache<T> store) {
+            this.store = store;
+        }
+
+        @Override
+        public T get(UUID uuid) throws IOException {
+            return store.remove(uuid);
+        }
 
         @Override
-        public T get(UUID uuid) {
-            return map.remove(uuid);
+        public void put(T bo) throws IOException {
+            store.put(bo);
         }
 
         @Override
-        public void put(T bo) {
-            map.put(bo.getUUID(), bo);
+        public void close() {
+            store.close();
         }
     }
 
@@ -16,6 +16,7 @@
 
 package org.squonk.dataset;
 
+import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import org.squonk.util.IOUtils;
@@ -51,6 +52,13 @@ public class ThinDescriptor implements Serializable {
      */
     private final Boolean preserve;
 
+    /** Are the results of a filtering service returned in the same order as the input.
+     * If so the results are merged with the original entries sequentially, discarding the entries that were filtered out
+     * as they are passed. If not the results are merged concurrently.
+     * If null then the value is presumed to be true.
+     */
+    private final Boolean ordered;
+
     /** Optional set of descriptions of which fields are required by the service for execution.
      * If null then it is assumed that no field values are needed e.g. only the structure and its UUID needs to be sent to
      * the service.
@@ -58,19 +66,26 @@ public class ThinDescriptor implements Serializable {
      */
     private final ThinFieldDescriptor[] fieldDescriptors;
 
+    @JsonCreator
     public ThinDescriptor(
             @JsonProperty("input") String input,
             @JsonProperty("output") String output,
             @JsonProperty("filtering") Boolean filtering,
             @JsonProperty("preserve") Boolean preserve,
+            @JsonProperty("ordered") Boolean ordered,
             @JsonProperty("fieldDescriptors") ThinFieldDescriptor[] fieldDescriptors) {
         this.input = input;
         this.output = output;
         this.filtering = filtering;
         this.preserve = preserve;
+        this.ordered = ordered;
         this.fieldDescriptors = fieldDescriptors;
     }
 
+    public ThinDescriptor(String input, String output, Boolean filtering, Boolean preserve, ThinFieldDescriptor[] fieldDescriptors) {
+        this(input, output, filtering, preserve, null, fieldDescriptors);
+    }
+
     public ThinDescriptor(String input, String output) {
         this(input, output, null, null, null);
     }
@@ -91,6 +106,10 @@ public class ThinDescriptor implements Serializable {
         return preserve;
     }
 
+    public Boolean isOrdered() {
+        return ordered;
+    }
+
     public ThinFieldDescriptor[] getFieldDescriptors() {
         return fieldDescriptors;
     }
@@ -102,6 +121,7 @@ public class ThinDescriptor implements Serializable {
                 .append(" output:").append(output)
                 .append(" filtering:").append(filtering)
                 .append(" preserve:").append(preserve)
+                .append(" ordered:").append(ordered)
                 .append(" thinFieldDescriptors:[").append(IOUtils.joinArray(fieldDescriptors,",")).append("]");
         b.append("]");
         return b.toString();
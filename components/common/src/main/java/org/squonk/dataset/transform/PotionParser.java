@@ -80,6 +80,9 @@ public class PotionParser {
             currentLineNumber++;
             parseLine(line);
         }
+        // parsers are shared through the cache in TransformDefinitions so the results must not be modified
+        messages = Collections.unmodifiableList(messages);
+        transforms = Collections.unmodifiableList(transforms);
 
         return errorCount == 0;
     }
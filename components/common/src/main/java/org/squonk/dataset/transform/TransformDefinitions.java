@@ -18,8 +18,10 @@ package org.squonk.dataset.transform;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import org.squonk.util.IOUtils;
 
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -28,6 +30,16 @@ import java.util.Map;
  */
 public class TransformDefinitions {
 
+    private static final int PARSE_CACHE_SIZE = Integer.parseInt(IOUtils.getConfiguration("SQUONK_POTION_CACHE_SIZE", "100"));
+
+    /** Recently parsed potions, keyed by the potion and the field definitions it was parsed against */
+    private static final Map<String, PotionParser> PARSE_CACHE = new LinkedHashMap<String, PotionParser>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, PotionParser> eldest) {
+            return size() > PARSE_CACHE_SIZE;
+        }
+    };
+
     private final List<AbstractTransform> transforms = new ArrayList<>();
     private final List<Message> messages = new ArrayList();
 
@@ -87,6 +99,9 @@ public class TransformDefinitions {
      * </pre>
      *
      * Before executing you must check for errors.
+     * <p>
+     * The results are cached so the same potion with the same field definitions is only parsed once. The returned
+     * PotionParser may be shared so its transforms and messages cannot be modified.
      *
      * @param potion    The potion to parse
      * @param fieldDefs Field definitions that allow the potion to better validated.
@@ -94,9 +109,20 @@ public class TransformDefinitions {
      */
     public static PotionParser parse(String potion, Map<String, Class> fieldDefs) {
 
+        String key = potion + "\u0000" + (fieldDefs == null ? "" : fieldDefs.toString());
+        synchronized (PARSE_CACHE) {
+            PotionParser p = PARSE_CACHE.get(key);
+            if (p != null) {
+                return p;
+            }
+        }
+
         PotionParser p = new PotionParser(potion, fieldDefs);
         p.parse();
 
+        synchronized (PARSE_CACHE) {
+            PARSE_CACHE.put(key, p);
+        }
         return p;
     }
 
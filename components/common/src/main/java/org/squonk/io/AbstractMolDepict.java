@@ -21,6 +21,7 @@ import java.awt.*;
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 
 /**
  * Created by timbo on 23/01/2016.
@@ -160,6 +161,44 @@ public abstract class AbstractMolDepict<T extends Object> {
         return writeImage(moleculeToImage(v3000ToMolecule(mol), params), imgFormat);
     }
 
+    /** Render the molecule in the specified image format. SVG is returned as UTF-8 encoded bytes.
+     *
+     * @param mol The molecule
+     * @param molFormat The molecule format, or null to guess the format
+     * @param imgFormat The image format e.g. svg or png
+     * @param params The depiction parameters, or null to use the defaults
+     * @return The rendered image, or null if the molecule could not be read
+     * @throws Exception
+     */
+    public byte[] render(String mol, String molFormat, String imgFormat, DepictionParameters params) throws Exception {
+        T molecule = stringToMolecule(mol, molFormat);
+        if (molecule == null) {
+            return null;
+        }
+        if (DepictionParameters.IMG_FORMAT_SVG.equalsIgnoreCase(imgFormat)) {
+            String svg = moleculeToSVG(molecule, depictionParameters(params));
+            return svg == null ? null : svg.getBytes(StandardCharsets.UTF_8);
+        } else {
+            BufferedImage img = moleculeToImage(molecule, depictionParameters(params));
+            return img == null ? null : writeImage(img, imgFormat);
+        }
+    }
+
+    /** Render the molecule using the cache, so that the same depiction is only rendered once.
+     *
+     * @see #render(String, String, String, DepictionParameters)
+     */
+    public byte[] render(String mol, String molFormat, String imgFormat, DepictionParameters params, DepictionCache cache) throws Exception {
+        return cache.get(cacheKey(mol, molFormat, imgFormat, params), () -> render(mol, molFormat, imgFormat, params));
+    }
+
+    /** The key under which the depiction is cached by {@link #render(String, String, String, DepictionParameters, DepictionCache)}.
+     * This uses the default parameters if params is null so it can also be used as an ETag for the depiction.
+     */
+    public String cacheKey(String mol, String molFormat, String imgFormat, DepictionParameters params) {
+        return DepictionCache.createKey(mol, molFormat, imgFormat, depictionParameters(params));
+    }
+
     protected DepictionParameters depictionParameters(DepictionParameters maybeNull) {
         return maybeNull == null ? this.params : maybeNull;
 
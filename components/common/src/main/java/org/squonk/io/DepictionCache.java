@@ -0,0 +1,200 @@
+/*
+ * Copyright (c) 2019 Informatics Matters Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.squonk.io;
+
+import org.squonk.util.IOUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Thread safe cache of rendered depictions. The key is a SHA-256 digest of the molecule (with line endings and
+ * surrounding whitespace normalised), its format, the image format and the {@link DepictionParameters#getCacheKey()},
+ * so it identifies the content of the depiction and can also be used as an HTTP ETag.
+ * <p>
+ * The least recently used depictions are evicted once the total size exceeds the maximum. Only one render runs for a
+ * key at any time and concurrent requests for the same key wait for its result. Failed renders are not cached.
+ * The size of the shared instance can be set using SQUONK_DEPICT_CACHE_MAX_BYTES (default 64MB).
+ *
+ * @author timbo
+ */
+public class DepictionCache {
+
+    private static final Logger LOG = Logger.getLogger(DepictionCache.class.getName());
+
+    public static final long DEFAULT_MAX_BYTES = Long.parseLong(IOUtils.getConfiguration("SQUONK_DEPICT_CACHE_MAX_BYTES", "" + 64 * 1024 * 1024));
+
+    private static final DepictionCache INSTANCE = new DepictionCache(DEFAULT_MAX_BYTES);
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final long maxBytes;
+    private long bytes = 0;
+    private final Map<String, byte[]> depictions = new LinkedHashMap<>(256, 0.75f, true);
+    private final Map<String, CompletableFuture<byte[]>> rendering = new ConcurrentHashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public static DepictionCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @param maxBytes The maximum total size of the cached depictions
+     */
+    public DepictionCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Generate the key for a depiction.
+     *
+     * @param mol       The molecule
+     * @param molFormat The format of the molecule. Can be null.
+     * @param imgFormat The format of the image (e.g. svg or png)
+     * @param params    The depiction parameters. Can be null.
+     * @return A hex encoded digest
+     */
+    public static String createKey(String mol, String molFormat, String imgFormat, DepictionParameters params) {
+        String normalised = mol == null ? "" : mol.replace("\r\n", "\n").replace('\r', '\n').trim();
+        String key = normalised + "\u0000" + molFormat + "\u0000" +
+                (imgFormat == null ? null : imgFormat.toLowerCase()) + "\u0000" +
+                (params == null ? null : params.getCacheKey());
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+            char[] chars = new char[digest.length * 2];
+            for (int i = 0; i < digest.length; i++) {
+                chars[i * 2] = HEX[(digest[i] >> 4) & 0xF];
+                chars[i * 2 + 1] = HEX[digest[i] & 0xF];
+            }
+            return new String(chars);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    /**
+     * Get the cached depiction, or null if it is not cached.
+     */
+    public synchronized byte[] get(String key) {
+        return depictions.get(key);
+    }
+
+    /**
+     * Get the depiction, rendering it if it is not already cached.
+     *
+     * @param key      The key generated by {@link #createKey(String, String, String, DepictionParameters)}
+     * @param renderer Renders the depiction. Can return null if the molecule cannot be rendered.
+     * @return The depiction, or null if it could not be rendered
+     * @throws Exception Any exception thrown by the renderer
+     */
+    public byte[] get(String key, Callable<byte[]> renderer) throws Exception {
+        byte[] cached = get(key);
+        if (cached != null) {
+            hits.incrementAndGet();
+            return cached;
+        }
+
+        CompletableFuture<byte[]> future = new CompletableFuture<>();
+        CompletableFuture<byte[]> existing = rendering.putIfAbsent(key, future);
+        if (existing != null) {
+            hits.incrementAndGet();
+            return await(existing);
+        }
+        try {
+            // another thread may have finished rendering it since we looked
+            cached = get(key);
+            if (cached != null) {
+                hits.incrementAndGet();
+                future.complete(cached);
+                return cached;
+            }
+            misses.incrementAndGet();
+            byte[] result = renderer.call();
+            if (result != null) {
+                put(key, result);
+            }
+            future.complete(result);
+            return result;
+        } catch (Exception e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            rendering.remove(key);
+        }
+    }
+
+    private byte[] await(CompletableFuture<byte[]> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw e;
+        }
+    }
+
+    private synchronized void put(String key, byte[] depiction) {
+        if (depiction.length > maxBytes) {
+            LOG.log(Level.FINE, "Depiction of {0} bytes is too large to cache", depiction.length);
+            return;
+        }
+        byte[] old = depictions.put(key, depiction);
+        if (old != null) {
+            bytes -= old.length;
+        }
+        bytes += depiction.length;
+        while (bytes > maxBytes) {
+            Map.Entry<String, byte[]> eldest = depictions.entrySet().iterator().next();
+            bytes -= eldest.getValue().length;
+            depictions.remove(eldest.getKey());
+        }
+    }
+
+    public synchronized int size() {
+        return depictions.size();
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public synchronized void clear() {
+        depictions.clear();
+        bytes = 0;
+    }
+}
@@ -186,6 +186,23 @@ public class DepictionParameters implements Serializable {
         return params;
     }
 
+    /** A string that is the same for any parameters that give the same depiction. Used as part of the key when
+     * caching depictions so it must include every parameter that affects the rendering.
+     *
+     * @return
+     */
+    public String getCacheKey() {
+        StringBuilder b = new StringBuilder()
+                .append(PROP_WIDTH).append('=').append(width)
+                .append('&').append(PROP_HEIGHT).append('=').append(height)
+                .append('&').append(PROP_BG_COL).append('=').append(backgroundColor == null ? null : Colors.rgbaColorToHex(backgroundColor))
+                .append('&').append(PROP_EXPAND_TO_FIT).append('=').append(expandToFit)
+                .append('&').append(PROP_MARGIN).append('=').append(margin)
+                .append("&colorScheme=").append(colorScheme);
+        highlights.stream().forEachOrdered((h) -> b.append('&').append(h));
+        return b.toString();
+    }
+
     private static String getHttpParameter(String name, Map<String, String[]> params) {
         String[] values = params.get(name);
         if (values == null) {
@@ -68,6 +68,10 @@ public class FileDataSource extends SquonkDataSource {
         return true;
     }
 
+    public File getFile() {
+        return file;
+    }
+
     /** Get the name of the original file as it might be different to the datasource name
      *
      * @return
@@ -0,0 +1,192 @@
+/*
+ * Copyright (c) 2019 Informatics Matters Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.squonk.stream;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Connects a Stream to its consumer through a bounded queue. The source Stream is read on its own thread, so the
+ * operations of the source Stream (e.g. the processing done by one step of a workflow) run concurrently with those
+ * of the consumer (e.g. the next step). Reading starts when the first item is requested and stops once the queue is
+ * full until the consumer catches up, so only a limited number of items are held in memory.
+ * <p>
+ * The items are delivered in the same order as the source. Exceptions thrown by the source are rethrown to the
+ * consumer. The Stream that is returned must be closed, which stops the reading thread if the source has not been
+ * fully read. The source is only closed once the reading thread has finished with it, so a source such as a file
+ * or database cursor is never closed while it is being read.
+ * <p>
+ * The source is read using {@link Stream#forEachOrdered(Consumer)} so the operations of a parallel source still run
+ * in parallel and only the hand over of the items to the queue is sequential. Note that the queue only bounds the
+ * read ahead of a sequential source, as a parallel source holds the items that are ready before their turn. The
+ * returned Stream is parallel if the source is parallel, and splits into batches of items taken from the queue (see
+ * {@link FixedBatchSpliteratorBase}) so that a parallel consumer still runs on multiple threads.
+ *
+ * @param <T> The type of item
+ * @author timbo
+ */
+public class StreamPipe<T> extends FixedBatchSpliteratorBase<T> {
+
+    private static final Logger LOG = Logger.getLogger(StreamPipe.class.getName());
+
+    private static final Object END = new Object();
+    private static final Object NULL = new Object();
+    private static final int MAX_BATCH_SIZE = 128;
+
+    /**
+     * Unbounded as each pipe needs its own thread while its source is being read
+     */
+    private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "squonk-stream-pipe-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    private final Stream<T> source;
+    private final BlockingQueue<Object> queue;
+    private final AtomicBoolean sourceClosed = new AtomicBoolean(false);
+    private volatile boolean closed = false;
+    private volatile boolean finished = false;
+    private volatile Throwable error;
+    private volatile Future<?> producer;
+    private volatile boolean done = false;
+
+    private StreamPipe(Stream<T> source, int capacity) {
+        super(ORDERED, Math.min(capacity, MAX_BATCH_SIZE));
+        this.source = source;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+    }
+
+    /**
+     * Create a Stream that reads the source on another thread.
+     *
+     * @param source   The Stream to read
+     * @param capacity The maximum number of items to read ahead of the consumer
+     * @return A Stream of the items in the source that is parallel if the source is parallel
+     */
+    public static <T> Stream<T> pipe(Stream<T> source, int capacity) {
+        StreamPipe<T> pipe = new StreamPipe<>(source, capacity);
+        return StreamSupport.stream(pipe, source.isParallel()).onClose(pipe::close);
+    }
+
+    private synchronized void start() {
+        if (closed || producer != null) {
+            return;
+        }
+        producer = EXECUTOR.submit(() -> {
+            try {
+                // forEachOrdered rather than an iterator so that the stages of a parallel source still run in parallel
+                source.forEachOrdered((item) -> {
+                    if (closed) {
+                        throw new CancellationException("Pipe closed");
+                    }
+                    put(item == null ? NULL : item);
+                });
+            } catch (Throwable t) {
+                if (!closed) {
+                    error = t;
+                }
+            } finally {
+                put(END);
+                finished = true;
+                if (closed) {
+                    closeSource();
+                }
+            }
+        });
+    }
+
+    private void put(Object o) {
+        try {
+            while (!closed) {
+                if (queue.offer(o, 100, TimeUnit.MILLISECONDS)) {
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            // only happens when closed
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super T> action) {
+        if (done || closed) {
+            return false;
+        }
+        if (producer == null) {
+            start();
+        }
+        Object o;
+        try {
+            o = queue.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted waiting for items", e);
+        }
+        if (o == END) {
+            done = true;
+            Throwable t = error;
+            if (t instanceof RuntimeException) {
+                throw (RuntimeException) t;
+            } else if (t instanceof Error) {
+                throw (Error) t;
+            } else if (t != null) {
+                throw new RuntimeException("Failed to read items", t);
+            }
+            return false;
+        }
+        action.accept(o == NULL ? null : (T) o);
+        return true;
+    }
+
+    /**
+     * Stop reading. If the reading thread is still running it closes the source once its current read completes,
+     * otherwise the source is closed here. The reading thread is not interrupted as that does not stop a blocking read
+     * and can break the source (e.g. an interruptible channel is closed when its thread is interrupted).
+     */
+    private void close() {
+        Future<?> f;
+        synchronized (this) {
+            closed = true;
+            f = producer;
+        }
+        queue.clear();
+        if (f == null || finished) {
+            closeSource();
+        } else {
+            LOG.log(Level.FINE, "Stopping reading of the source stream");
+        }
+    }
+
+    private void closeSource() {
+        if (sourceClosed.compareAndSet(false, true)) {
+            source.close();
+        }
+    }
+}
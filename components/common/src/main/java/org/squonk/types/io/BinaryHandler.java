@@ -0,0 +1,662 @@
+/*
+ * Copyright (c) 2019 Informatics Matters Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.squonk.types.io;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.squonk.dataset.Dataset;
+import org.squonk.dataset.DatasetMetadata;
+import org.squonk.types.BasicObject;
+import org.squonk.types.MoleculeObject;
+import org.squonk.util.CommonMimeTypes;
+import org.squonk.util.IOUtils;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Compact binary encoding for Datasets of {@link BasicObject}s and {@link MoleculeObject}s that can be used as an
+ * alternative to the JSON encoding provided by {@link JsonHandler}.
+ * <p>
+ * The items are written in blocks of rows, and within a block the data is laid out by column. Each block carries its
+ * own column definitions (field name and value type) so that the format is self describing and can be read without
+ * the {@link DatasetMetadata}. When the metadata is available its valueClassMappings are used to type the columns.
+ * Within a column numbers are written as primitives (variable length for integers), repetitive strings (e.g. the
+ * molecule format) are dictionary encoded and the UUIDs are written as two longs, so nothing is repeated for every
+ * row in the way that field names are in JSON.
+ * <p>
+ * Values whose type is not one of the simple types are written as JSON using the {@link JsonHandler} ObjectMapper
+ * so any type that can be handled in JSON can also be handled here. Null values are not written, so a field with
+ * a null value will be absent when read back.
+ * <p>
+ * The structure is:
+ * <pre>
+ * header:  'S' 'Q' 'B' version objectType
+ * block:   rowCount uuids [sources formats] columnCount columns...
+ * end:     a rowCount of 0
+ * column:  name typeCode [className] presenceBitmap values...
+ * </pre>
+ *
+ * @author timbo
+ */
+public class BinaryHandler {
+
+    private static final Logger LOG = Logger.getLogger(BinaryHandler.class.getName());
+
+    public static final int DEFAULT_BLOCK_SIZE = 1000;
+
+    private static final byte[] MAGIC = new byte[]{'S', 'Q', 'B'};
+    private static final byte VERSION = 1;
+
+    private static final byte OBJECT_BASIC = 0;
+    private static final byte OBJECT_MOLECULE = 1;
+
+    private static final byte TYPE_STRING = 1;
+    private static final byte TYPE_STRING_DICT = 2;
+    private static final byte TYPE_INTEGER = 3;
+    private static final byte TYPE_LONG = 4;
+    private static final byte TYPE_FLOAT = 5;
+    private static final byte TYPE_DOUBLE = 6;
+    private static final byte TYPE_BOOLEAN = 7;
+    private static final byte TYPE_OBJECT = 8;
+    private static final byte TYPE_MIXED = 9;
+
+    /**
+     * Strings columns with fewer distinct values than this are dictionary encoded
+     */
+    private static final int MAX_DICTIONARY_SIZE = 256;
+
+    private static final BinaryHandler instance = new BinaryHandler();
+
+    private final ObjectMapper mapper;
+    private final int blockSize;
+
+    public BinaryHandler() {
+        this(DEFAULT_BLOCK_SIZE);
+    }
+
+    public BinaryHandler(int blockSize) {
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("Block size must be greater than zero");
+        }
+        this.blockSize = blockSize;
+        this.mapper = JsonHandler.getInstance().getObjectMapper();
+    }
+
+    public static BinaryHandler getInstance() {
+        return instance;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * Is the media type one of the binary dataset content types.
+     *
+     * @param mediaType
+     * @return
+     */
+    public static boolean isBinaryMediaType(String mediaType) {
+        return CommonMimeTypes.MIME_TYPE_BASIC_OBJECT_BINARY.equals(mediaType)
+                || CommonMimeTypes.MIME_TYPE_MOLECULE_OBJECT_BINARY.equals(mediaType);
+    }
+
+    /**
+     * Get the binary content media type for this type of object.
+     *
+     * @param type BasicObject or MoleculeObject
+     * @return
+     */
+    public static String resolveContentMimeType(Class type) {
+        if (type == MoleculeObject.class) {
+            return CommonMimeTypes.MIME_TYPE_MOLECULE_OBJECT_BINARY;
+        } else if (type == BasicObject.class) {
+            return CommonMimeTypes.MIME_TYPE_BASIC_OBJECT_BINARY;
+        }
+        throw new IllegalArgumentException("Binary format not supported for " + (type == null ? null : type.getName()));
+    }
+
+    /**
+     * Write the items of the Stream to the OutputStream in binary format.
+     * Both the Stream and the OutputStream are closed once complete.
+     *
+     * @param stream   The items. Must all be of the same type, either BasicObject or MoleculeObject.
+     * @param metadata Optional metadata whose valueClassMappings are used to type the columns.
+     * @param out      Where to write
+     * @throws IOException
+     */
+    public <T extends BasicObject> void marshalStreamToBinary(Stream<T> stream, DatasetMetadata<T> metadata, OutputStream out) throws IOException {
+
+        final Map<String, Class> mappings = metadata == null ? Collections.emptyMap() : metadata.getValueClassMappings();
+        try (BlockWriter<T> writer = new BlockWriter<>(out, mappings)) {
+            stream.forEachOrdered((i) -> {
+                try {
+                    writer.write(i);
+                } catch (IOException ex) {
+                    throw new RuntimeException("Failed to write object: " + i, ex);
+                }
+            });
+        } finally {
+            out.close();
+            stream.close();
+        }
+    }
+
+    /**
+     * Create a writer that writes items to the OutputStream one at a time in binary format. This is for when the items
+     * are not available as a single Stream. Closing the writer completes the content but does not close the
+     * OutputStream.
+     *
+     * @param out      Where to write
+     * @param metadata Optional metadata whose valueClassMappings are used to type the columns.
+     * @return The writer
+     */
+    public <T extends BasicObject> MarshalingInputStream.ItemWriter<T> createWriter(OutputStream out, DatasetMetadata<T> metadata) {
+        final Map<String, Class> mappings = metadata == null ? Collections.emptyMap() : metadata.getValueClassMappings();
+        return new BlockWriter<>(out, mappings);
+    }
+
+    /**
+     * Generate an InputStream with the items of the Stream in binary format.
+     * See {@link JsonHandler#marshalData(Stream, boolean)} for details of handling errors.
+     *
+     * @param stream
+     * @param metadata Optional metadata whose valueClassMappings are used to type the columns.
+     * @param gzip
+     * @return
+     * @throws IOException
+     */
+    public <T extends BasicObject> JsonHandler.MarshalData marshalData(Stream<T> stream, DatasetMetadata<T> metadata, boolean gzip) throws IOException {
+        final Map<String, Class> mappings = metadata == null ? Collections.emptyMap() : metadata.getValueClassMappings();
+        MarshalingInputStream<T> is = new MarshalingInputStream<>(stream, (out) -> new BlockWriter<>(out, mappings), gzip);
+        return JsonHandler.getInstance().new MarshalData(is, is.getFuture());
+    }
+
+    /**
+     * Generate a Stream of objects from binary content
+     *
+     * @param is        The binary data. Must not be gzipped.
+     * @param type      The expected type of the objects (BasicObject or MoleculeObject)
+     * @param autoClose Whether to close the InputStream when the Stream is closed
+     * @return
+     * @throws IOException
+     */
+    public <T extends BasicObject> Stream<T> streamFromBinary(InputStream is, Class<T> type, boolean autoClose) throws IOException {
+        BlockReader<T> reader = new BlockReader<>(is, type);
+        Spliterator<T> spliterator = Spliterators.spliteratorUnknownSize(reader, Spliterator.NONNULL | Spliterator.ORDERED);
+        Stream<T> stream = StreamSupport.stream(spliterator, true);
+        if (autoClose) {
+            return stream.onClose(() -> IOUtils.close(is));
+        } else {
+            return stream;
+        }
+    }
+
+    /**
+     * Read the binary data into a Dataset using the metadata to describe the Dataset.
+     *
+     * @param metadata
+     * @param is       The binary data, which can be gzipped
+     * @return
+     * @throws IOException
+     */
+    public <T extends BasicObject> Dataset<T> unmarshalDataset(DatasetMetadata<T> metadata, InputStream is) throws IOException {
+        InputStream gunzipped = IOUtils.getGunzippedInputStream(is);
+        return new Dataset<>(streamFromBinary(gunzipped, metadata.getType(), true), metadata);
+    }
+
+
+    private class BlockWriter<T extends BasicObject> implements MarshalingInputStream.ItemWriter<T> {
+
+        private final DataOutputStream out;
+        private final Map<String, Class> mappings;
+        private final List<BasicObject> buffer = new ArrayList<>(blockSize);
+        private Class type;
+
+        BlockWriter(OutputStream out, Map<String, Class> mappings) {
+            this.out = new DataOutputStream(new BufferedOutputStream(out, 8192));
+            this.mappings = mappings;
+        }
+
+        @Override
+        public void write(T o) throws IOException {
+            if (type == null) {
+                type = o.getClass();
+                writeHeader();
+            } else if (type != o.getClass()) {
+                throw new IllegalStateException("Inconsistent type. Previously found " + type.getName() + " but now encountered " + o.getClass().getName());
+            }
+            buffer.add(o);
+            if (buffer.size() >= blockSize) {
+                writeBlock();
+            }
+        }
+
+        private void writeHeader() throws IOException {
+            out.write(MAGIC);
+            out.writeByte(VERSION);
+            if (type == MoleculeObject.class) {
+                out.writeByte(OBJECT_MOLECULE);
+            } else if (type == BasicObject.class) {
+                out.writeByte(OBJECT_BASIC);
+            } else {
+                throw new IllegalStateException("Binary format not supported for " + type.getName());
+            }
+        }
+
+        private void writeBlock() throws IOException {
+            int rows = buffer.size();
+            writeVarInt(out, rows);
+            for (BasicObject o : buffer) {
+                out.writeLong(o.getUUID().getMostSignificantBits());
+                out.writeLong(o.getUUID().getLeastSignificantBits());
+            }
+            if (type == MoleculeObject.class) {
+                List<Object> sources = new ArrayList<>(rows);
+                List<Object> formats = new ArrayList<>(rows);
+                for (BasicObject o : buffer) {
+                    sources.add(((MoleculeObject) o).getSource());
+                    formats.add(((MoleculeObject) o).getFormat());
+                }
+                writeColumnValues(String.class, sources);
+                writeColumnValues(String.class, formats);
+            }
+
+            // collect the columns in the order they are first encountered
+            Map<String, List<Object>> columns = new LinkedHashMap<>();
+            for (int r = 0; r < rows; r++) {
+                for (Map.Entry<String, Object> e : buffer.get(r).getValues().entrySet()) {
+                    if (e.getValue() != null) {
+                        List<Object> column = columns.get(e.getKey());
+                        if (column == null) {
+                            column = new ArrayList<>(Collections.nCopies(rows, null));
+                            columns.put(e.getKey(), column);
+                        }
+                        column.set(r, e.getValue());
+                    }
+                }
+            }
+            writeVarInt(out, columns.size());
+            for (Map.Entry<String, List<Object>> e : columns.entrySet()) {
+                writeString(out, e.getKey());
+                writeColumnValues(mappings.get(e.getKey()), e.getValue());
+            }
+            buffer.clear();
+        }
+
+        /**
+         * Write the type, presence bitmap and non-null values of a column.
+         *
+         * @param declared The class from the metadata, or null if not known
+         * @param values   The values, with nulls for absent values
+         * @throws IOException
+         */
+        private void writeColumnValues(Class declared, List<Object> values) throws IOException {
+            Class cls = resolveColumnClass(declared, values);
+            byte typeCode = resolveTypeCode(cls, values);
+            out.writeByte(typeCode);
+            if (typeCode == TYPE_OBJECT) {
+                writeString(out, cls.getName());
+            }
+
+            byte[] bitmap = new byte[(values.size() + 7) / 8];
+            for (int i = 0; i < values.size(); i++) {
+                if (values.get(i) != null) {
+                    bitmap[i / 8] |= (1 << (i % 8));
+                }
+            }
+            out.write(bitmap);
+
+            if (typeCode == TYPE_STRING_DICT) {
+                Map<String, Integer> dictionary = new LinkedHashMap<>();
+                for (Object v : values) {
+                    if (v != null && !dictionary.containsKey(v)) {
+                        dictionary.put((String) v, dictionary.size());
+                    }
+                }
+                writeVarInt(out, dictionary.size());
+                for (String s : dictionary.keySet()) {
+                    writeString(out, s);
+                }
+                for (Object v : values) {
+                    if (v != null) {
+                        writeVarInt(out, dictionary.get(v));
+                    }
+                }
+                return;
+            }
+
+            for (Object v : values) {
+                if (v != null) {
+                    switch (typeCode) {
+                        case TYPE_STRING:
+                            writeString(out, (String) v);
+                            break;
+                        case TYPE_INTEGER:
+                            writeVarLong(out, zigZag((Integer) v));
+                            break;
+                        case TYPE_LONG:
+                            writeVarLong(out, zigZag((Long) v));
+                            break;
+                        case TYPE_FLOAT:
+                            out.writeFloat((Float) v);
+                            break;
+                        case TYPE_DOUBLE:
+                            out.writeDouble((Double) v);
+                            break;
+                        case TYPE_BOOLEAN:
+                            out.writeBoolean((Boolean) v);
+                            break;
+                        case TYPE_OBJECT:
+                            writeBytes(out, mapper.writeValueAsBytes(v));
+                            break;
+                        case TYPE_MIXED:
+                            writeString(out, v.getClass().getName());
+                            writeBytes(out, mapper.writeValueAsBytes(v));
+                            break;
+                    }
+                }
+            }
+        }
+
+        /**
+         * The class of the column. This is the declared class if all values are of that class, otherwise the class of
+         * the values if they are all the same, otherwise null, indicating mixed types.
+         */
+        private Class resolveColumnClass(Class declared, List<Object> values) {
+            Class found = null;
+            for (Object v : values) {
+                if (v != null) {
+                    if (found == null) {
+                        found = v.getClass();
+                    } else if (found != v.getClass()) {
+                        return null;
+                    }
+                }
+            }
+            if (found == null) {
+                return declared == null ? String.class : declared;
+            }
+            return found;
+        }
+
+        private byte resolveTypeCode(Class cls, List<Object> values) {
+            if (cls == null) {
+                return TYPE_MIXED;
+            } else if (cls == String.class) {
+                Set<Object> distinct = new HashSet<>();
+                int count = 0;
+                for (Object v : values) {
+                    if (v != null) {
+                        count++;
+                        if (distinct.add(v) && distinct.size() > MAX_DICTIONARY_SIZE) {
+                            return TYPE_STRING;
+                        }
+                    }
+                }
+                return distinct.size() * 2 <= count ? TYPE_STRING_DICT : TYPE_STRING;
+            } else if (cls == Integer.class) {
+                return TYPE_INTEGER;
+            } else if (cls == Long.class) {
+                return TYPE_LONG;
+            } else if (cls == Float.class) {
+                return TYPE_FLOAT;
+            } else if (cls == Double.class) {
+                return TYPE_DOUBLE;
+            } else if (cls == Boolean.class) {
+                return TYPE_BOOLEAN;
+            } else {
+                return TYPE_OBJECT;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (type == null) {
+                // empty stream - we still need a header
+                type = BasicObject.class;
+                writeHeader();
+            }
+            if (!buffer.isEmpty()) {
+                writeBlock();
+            }
+            writeVarInt(out, 0);
+            out.flush();
+        }
+    }
+
+    private class BlockReader<T extends BasicObject> implements Iterator<T> {
+
+        private final DataInputStream in;
+        private final boolean molecules;
+        private final Map<String, Class> classes = new HashMap<>();
+        private final LinkedList<T> block = new LinkedList<>();
+        private boolean finished = false;
+
+        BlockReader(InputStream is, Class<T> type) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(is, 8192));
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException("Content is not in Squonk binary format");
+            }
+            byte version = in.readByte();
+            if (version != VERSION) {
+                throw new IOException("Unsupported binary format version: " + version);
+            }
+            this.molecules = in.readByte() == OBJECT_MOLECULE;
+            if (molecules && type == BasicObject.class) {
+                LOG.fine("Reading MoleculeObjects as BasicObjects");
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (block.isEmpty() && !finished) {
+                try {
+                    readBlock();
+                } catch (IOException ex) {
+                    throw new RuntimeException("Failed to read binary data", ex);
+                }
+            }
+            return !block.isEmpty();
+        }
+
+        @Override
+        public T next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException("No more data");
+            }
+            return block.removeFirst();
+        }
+
+        private void readBlock() throws IOException {
+            int rows = readVarInt(in);
+            if (rows == 0) {
+                finished = true;
+                return;
+            }
+            UUID[] uuids = new UUID[rows];
+            for (int r = 0; r < rows; r++) {
+                uuids[r] = new UUID(in.readLong(), in.readLong());
+            }
+            Object[] sources = null;
+            Object[] formats = null;
+            if (molecules) {
+                sources = readColumnValues(rows);
+                formats = readColumnValues(rows);
+            }
+            int cols = readVarInt(in);
+            String[] names = new String[cols];
+            Object[][] columns = new Object[cols][];
+            for (int c = 0; c < cols; c++) {
+                names[c] = readString(in);
+                columns[c] = readColumnValues(rows);
+            }
+
+            for (int r = 0; r < rows; r++) {
+                Map<String, Object> values = new LinkedHashMap<>();
+                for (int c = 0; c < cols; c++) {
+                    if (columns[c][r] != null) {
+                        values.put(names[c], columns[c][r]);
+                    }
+                }
+                BasicObject o;
+                if (molecules) {
+                    o = new MoleculeObject(uuids[r], (String) sources[r], (String) formats[r], values);
+                } else {
+                    o = new BasicObject(uuids[r], values);
+                }
+                block.add((T) o);
+            }
+        }
+
+        private Object[] readColumnValues(int rows) throws IOException {
+            byte typeCode = in.readByte();
+            Class cls = null;
+            if (typeCode == TYPE_OBJECT) {
+                cls = resolveClass(readString(in));
+            }
+            byte[] bitmap = new byte[(rows + 7) / 8];
+            in.readFully(bitmap);
+
+            String[] dictionary = null;
+            if (typeCode == TYPE_STRING_DICT) {
+                dictionary = new String[readVarInt(in)];
+                for (int i = 0; i < dictionary.length; i++) {
+                    dictionary[i] = readString(in);
+                }
+            }
+
+            Object[] values = new Object[rows];
+            for (int r = 0; r < rows; r++) {
+                if ((bitmap[r / 8] & (1 << (r % 8))) == 0) {
+                    continue;
+                }
+                switch (typeCode) {
+                    case TYPE_STRING:
+                        values[r] = readString(in);
+                        break;
+                    case TYPE_STRING_DICT:
+                        values[r] = dictionary[readVarInt(in)];
+                        break;
+                    case TYPE_INTEGER:
+                        values[r] = (int) unZigZag(readVarLong(in));
+                        break;
+                    case TYPE_LONG:
+                        values[r] = unZigZag(readVarLong(in));
+                        break;
+                    case TYPE_FLOAT:
+                        values[r] = in.readFloat();
+                        break;
+                    case TYPE_DOUBLE:
+                        values[r] = in.readDouble();
+                        break;
+                    case TYPE_BOOLEAN:
+                        values[r] = in.readBoolean();
+                        break;
+                    case TYPE_OBJECT:
+                        values[r] = mapper.readValue(readBytes(in), cls);
+                        break;
+                    case TYPE_MIXED:
+                        Class c = resolveClass(readString(in));
+                        values[r] = mapper.readValue(readBytes(in), c);
+                        break;
+                    default:
+                        throw new IOException("Unexpected type code: " + typeCode);
+                }
+            }
+            return values;
+        }
+
+        private Class resolveClass(String name) throws IOException {
+            Class cls = classes.get(name);
+            if (cls == null) {
+                try {
+                    cls = Class.forName(name);
+                } catch (ClassNotFoundException ex) {
+                    throw new IOException("Class not found: " + name, ex);
+                }
+                classes.put(name, cls);
+            }
+            return cls;
+        }
+    }
+
+    private static long zigZag(long l) {
+        return (l << 1) ^ (l >> 63);
+    }
+
+    private static long unZigZag(long l) {
+        return (l >>> 1) ^ -(l & 1);
+    }
+
+    private static void writeVarInt(DataOutputStream out, int i) throws IOException {
+        writeVarLong(out, i & 0xFFFFFFFFL);
+    }
+
+    private static void writeVarLong(DataOutputStream out, long l) throws IOException {
+        while ((l & ~0x7FL) != 0) {
+            out.writeByte((int) ((l & 0x7F) | 0x80));
+            l >>>= 7;
+        }
+        out.writeByte((int) l);
+    }
+
+    private static int readVarInt(DataInputStream in) throws IOException {
+        return (int) readVarLong(in);
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.readByte();
+            result |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new IOException("Malformed variable length number");
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        writeVarInt(out, bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[readVarInt(in)];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    /**
+     * Strings are written as length prefixed UTF-8 as DataOutputStream.writeUTF() is limited to 64K,
+     * which can be exceeded by molfiles.
+     */
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        writeBytes(out, s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return new String(readBytes(in), StandardCharsets.UTF_8);
+    }
+}
@@ -32,14 +32,10 @@ import org.squonk.util.IOUtils;
 import java.awt.*;
 import java.io.*;
 import java.util.*;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.logging.Logger;
 import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
-import java.util.zip.GZIPOutputStream;
 
 /**
  * @author timbo
@@ -189,19 +185,7 @@ public class JsonHandler {
     }
 
     public <T> InputStream marshalStreamToJsonArray(Stream<T> stream, boolean gzip) throws IOException {
-        final PipedInputStream pis = new PipedInputStream();
-        final OutputStream pout = new PipedOutputStream(pis);
-        final OutputStream out = (gzip ? new GZIPOutputStream(pout, true) : pout);
-        final ExecutorService executor = Executors.newSingleThreadExecutor();
-        Callable<Boolean> c = new Callable() {
-            public Boolean call() throws Exception {
-                marshalStreamToJsonArray(stream, out);
-                return true;
-            }
-        };
-        Future<Boolean> future = executor.submit(c);
-        executor.shutdown();
-        return pis;
+        return marshalData(stream, gzip).getInputStream();
     }
 
     /** Holder class that allows InputStream and Future to be returned. In the case of an error writing to the InputStream
@@ -227,33 +211,27 @@ public class JsonHandler {
         }
     }
 
+    /** Generate an InputStream of a JSON array of the objects in the Stream. The JSON is written as the InputStream
+     * is read (see {@link MarshalingInputStream}) so no additional thread is used.
+     *
+     * @param stream
+     * @param gzip
+     * @return
+     * @throws IOException
+     */
     public <T> MarshalData marshalData(Stream<T> stream, boolean gzip) throws IOException {
-        final PipedInputStream pis = new PipedInputStream();
-        final OutputStream pout = new PipedOutputStream(pis);
-        final OutputStream out = (gzip ? new GZIPOutputStream(pout, true) : pout);
-        final ExecutorService executor = Executors.newSingleThreadExecutor();
-        Callable<Boolean> c = new Callable() {
-            public Boolean call() throws Exception {
-                marshalStreamToJsonArray(stream, out);
-                return true;
-            }
-        };
-        Future<Boolean> future = executor.submit(c);
-        executor.shutdown();
-
-        return new MarshalData(pis, future);
+        MarshalingInputStream<T> is = new MarshalingInputStream<>(stream, (out) -> new JsonArrayWriter<>(out), gzip);
+        return new MarshalData(is, is.getFuture());
     }
 
     public <T> void marshalStreamToJsonArray(Stream<T> stream, OutputStream out) throws IOException {
 
-        ObjectWriter ow = mapper.writer();
-        try (SequenceWriter sw = ow.writeValuesAsArray(out)) {
+        try (JsonArrayWriter<T> writer = new JsonArrayWriter<>(out)) {
 
             stream.forEachOrdered((i) -> {
                 //LOG.info("Writing to json: "  + i);
                 try {
-                    sw.write(i);
-                    sw.flush();
+                    writer.write(i);
                 } catch (IOException ex) {
                     throw new RuntimeException("Failed to write object: " + i, ex);
                 }
@@ -265,6 +243,27 @@ public class JsonHandler {
         }
     }
 
+    /** Writes the items as a JSON array. The output is only flushed when the writer is closed.
+     */
+    private class JsonArrayWriter<T> implements MarshalingInputStream.ItemWriter<T> {
+
+        private final SequenceWriter sw;
+
+        JsonArrayWriter(OutputStream out) throws IOException {
+            sw = mapper.writer().without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE).writeValuesAsArray(out);
+        }
+
+        @Override
+        public void write(T item) throws IOException {
+            sw.write(item);
+        }
+
+        @Override
+        public void close() throws IOException {
+            sw.close();
+        }
+    }
+
     /**
      * Use the metadata to deserialize the JSON in the InputStream to a Dataset
      * of the right type.
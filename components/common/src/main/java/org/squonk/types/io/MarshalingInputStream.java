@@ -0,0 +1,238 @@
+/*
+ * Copyright (c) 2019 Informatics Matters Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.squonk.types.io;
+
+import org.squonk.stream.StreamPipe;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * InputStream that serializes the items of a Stream as the InputStream is read. Items are pulled from the Stream and
+ * encoded into a reusable buffer only when the buffer has been consumed, so no thread or pipe is needed and the
+ * encoder is only flushed once per buffer rather than once per item.
+ * <p>
+ * A parallel Stream is first read on another thread using a {@link StreamPipe} so that its operations still run in
+ * parallel, as iterating a parallel Stream would run them all on the thread that reads this InputStream. The items
+ * are still encoded on the reading thread.
+ * <p>
+ * Errors are handled in the same way as when writing to a pipe from a separate thread: if the encoding fails the
+ * InputStream ends and the error is reported through the Future returned by {@link #getFuture()}. The Future
+ * completes with a value of true once all the items have been written. The Stream is closed once all items are written,
+ * if there is an error or if this InputStream is closed.
+ *
+ * @author timbo
+ */
+public class MarshalingInputStream<T> extends InputStream {
+
+    private static final Logger LOG = Logger.getLogger(MarshalingInputStream.class.getName());
+
+    public static final int DEFAULT_BUFFER_SIZE = 8192;
+    /**
+     * The number of items of a parallel Stream that are read ahead of the encoding
+     */
+    public static final int PARALLEL_QUEUE_SIZE = 1000;
+
+    /**
+     * Writes items to an OutputStream
+     *
+     * @param <T>
+     */
+    public interface ItemWriter<T> extends Closeable {
+
+        /**
+         * Write the item. Implementations should not flush the OutputStream.
+         */
+        void write(T item) throws IOException;
+
+        /**
+         * Write anything needed to complete the content and flush.
+         */
+        void close() throws IOException;
+    }
+
+    /**
+     * Creates the ItemWriter that writes to the OutputStream
+     *
+     * @param <T>
+     */
+    public interface ItemWriterFactory<T> {
+        ItemWriter<T> create(OutputStream out) throws IOException;
+    }
+
+    private final Stream<T> stream;
+    private final Iterator<T> iterator;
+    private final Buffer buffer;
+    private final OutputStream out;
+    private final ItemWriter<T> writer;
+    private final int bufferSize;
+    private final CompletableFuture<Boolean> future = new CompletableFuture<>();
+
+    private int pos = 0;
+    private boolean finished = false;
+
+    public MarshalingInputStream(Stream<T> stream, ItemWriterFactory<T> factory, boolean gzip) throws IOException {
+        this(stream, factory, gzip, DEFAULT_BUFFER_SIZE);
+    }
+
+    public MarshalingInputStream(Stream<T> stream, ItemWriterFactory<T> factory, boolean gzip, int bufferSize) throws IOException {
+        this.stream = stream.isParallel() ? StreamPipe.pipe(stream, PARALLEL_QUEUE_SIZE) : stream;
+        this.iterator = this.stream.iterator();
+        this.bufferSize = bufferSize;
+        this.buffer = new Buffer(bufferSize * 2);
+        this.out = gzip ? new GZIPOutputStream(buffer, bufferSize) : buffer;
+        this.writer = factory.create(out);
+    }
+
+    /**
+     * Future that completes when all items have been written, or completes exceptionally if writing fails.
+     *
+     * @return
+     */
+    public CompletableFuture<Boolean> getFuture() {
+        return future;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!fill()) {
+            return -1;
+        }
+        return buffer.bytes()[pos++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!fill()) {
+            return -1;
+        }
+        int count = Math.min(len, buffer.size() - pos);
+        System.arraycopy(buffer.bytes(), pos, b, off, count);
+        pos += count;
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return buffer.size() - pos;
+    }
+
+    /**
+     * Make sure there are bytes to read, encoding more items if needed.
+     *
+     * @return false if there is nothing more to read
+     */
+    private boolean fill() {
+        while (pos >= buffer.size()) {
+            if (finished) {
+                return false;
+            }
+            buffer.reset();
+            pos = 0;
+            try {
+                while (buffer.size() < bufferSize && iterator.hasNext()) {
+                    writer.write(iterator.next());
+                }
+                if (!iterator.hasNext()) {
+                    writer.close();
+                    out.close();
+                    finish(null);
+                }
+            } catch (Throwable t) {
+                LOG.log(Level.SEVERE, "Failed to write items", t);
+                // keep the content incomplete so that the consumer sees the error
+                release(true);
+                finish(t);
+            }
+        }
+        return true;
+    }
+
+    private void finish(Throwable t) {
+        finished = true;
+        stream.close();
+        if (t == null) {
+            future.complete(true);
+        } else {
+            future.completeExceptionally(t);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!finished) {
+            finished = true;
+            release(false);
+            buffer.reset();
+            pos = 0;
+            stream.close();
+            future.completeExceptionally(new IOException("InputStream closed before all items were written"));
+        }
+    }
+
+    /**
+     * Close the writer and the OutputStream, which for gzip releases the native resources of the compressor.
+     *
+     * @param discard Whether to discard what is written when closing them
+     */
+    private void release(boolean discard) {
+        int size = buffer.size();
+        try {
+            writer.close();
+        } catch (Throwable t) {
+            LOG.log(Level.FINE, "Failed to close writer", t);
+        }
+        try {
+            out.close();
+        } catch (IOException e) {
+            LOG.log(Level.FINE, "Failed to close output", e);
+        }
+        if (discard) {
+            buffer.truncate(size);
+        }
+    }
+
+    /**
+     * ByteArrayOutputStream that allows the bytes to be read without copying
+     */
+    private static class Buffer extends ByteArrayOutputStream {
+
+        Buffer(int size) {
+            super(size);
+        }
+
+        byte[] bytes() {
+            return buf;
+        }
+
+        void truncate(int size) {
+            count = Math.min(count, size);
+        }
+    }
+}
@@ -38,6 +38,8 @@ public interface CommonMimeTypes {
     String MIME_TYPE_DATASET_MOLECULE_JSON = MIME_TYPE_DATASET_BASE + "molecule+json";
     String MIME_TYPE_BASIC_OBJECT_JSON = "application/x-squonk-basic-object+json";
     String MIME_TYPE_MOLECULE_OBJECT_JSON = "application/x-squonk-molecule-object+json";
+    String MIME_TYPE_BASIC_OBJECT_BINARY = "application/x-squonk-basic-object+binary";
+    String MIME_TYPE_MOLECULE_OBJECT_BINARY = "application/x-squonk-molecule-object+binary";
 
     // when using these make sure you add +json or +yaml to the end
     String SERVICE_DESCRIPTOR_BASE = "application/x-squonk-service-descriptor";
@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2019 Informatics Matters Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.squonk.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Execution stats that can be collected from multiple threads, such as from a parallel Stream, without locking.
+ * Each thread updates its own Map, obtained with {@link #get()}, using the normal {@link ExecutionStats#increment(Map, String, int)}
+ * method and the Maps of all the threads are merged once the work is finished.
+ * Usage:
+ * 1. Create an instance for the job.
+ * 2. In the worker threads use the Map from get() whenever stats need to be updated.
+ * 3. Once all the work is complete (e.g. the Stream is closed) use getAll() or merge() to obtain the stats.
+ *
+ * @author timbo
+ */
+public class ConcurrentStats {
+
+    private final Queue<Map<String, Integer>> all = new ConcurrentLinkedQueue<>();
+
+    private final ThreadLocal<Map<String, Integer>> local = ThreadLocal.withInitial(() -> {
+        Map<String, Integer> stats = new HashMap<>();
+        all.add(stats);
+        return stats;
+    });
+
+    /**
+     * Get the stats for the current thread. The Map must only be used by this thread.
+     *
+     * @return
+     */
+    public Map<String, Integer> get() {
+        return local.get();
+    }
+
+    /**
+     * The stats of each of the threads, as needed by {@link StatsRecorder#recordStats(List)}.
+     * Only call this once the work is complete.
+     *
+     * @return
+     */
+    public List<Map<String, Integer>> getAll() {
+        return new ArrayList<>(all);
+    }
+
+    /**
+     * The combined stats of all the threads. Only call this once the work is complete.
+     *
+     * @return
+     */
+    public Map<String, Integer> merge() {
+        Map<String, Integer> result = new HashMap<>();
+        for (Map<String, Integer> stats : all) {
+            for (Map.Entry<String, Integer> e : stats.entrySet()) {
+                ExecutionStats.increment(result, e.getKey(), e.getValue());
+            }
+        }
+        return result;
+    }
+}
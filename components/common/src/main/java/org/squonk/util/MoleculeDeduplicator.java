@@ -0,0 +1,387 @@
+/*
+ * Copyright (c) 2019 Informatics Matters Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.squonk.util;
+
+import org.squonk.dataset.HashJoiner;
+import org.squonk.types.MoleculeObject;
+import org.squonk.types.io.BinaryHandler;
+import org.squonk.types.io.MarshalingInputStream;
+
+import java.io.*;
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Deduplicates molecules based on the value of a field containing the canonical smiles. The result is one
+ * MoleculeObject for each distinct canonical smiles, in the order they were first encountered, with the canonical
+ * smiles as its structure and with the values of the specified fields merged from all the duplicates (keep the first
+ * value, keep the last value or append all the values to a List). Molecules without a canonical smiles are ignored.
+ * <p>
+ * Small datasets (up to maxInMemory molecules) are deduplicated in memory. For larger datasets the molecules are
+ * written to a temporary file and only a 64 bit hash of each canonical smiles is held in memory. Molecules whose hash
+ * is only seen once are unique and are written straight to the results when the file is read back. Only the molecules
+ * whose hash is seen more than once (the true duplicates plus any hash collisions) need to be merged, which is done
+ * using a {@link HashJoiner} that partitions them to disk if there are too many. The temporary files are deleted
+ * when the resulting Stream is closed.
+ * <p>
+ * The default memory limit can be set using SQUONK_DEDUP_MAX_IN_MEMORY (default 100000 molecules).
+ *
+ * @author timbo
+ */
+public class MoleculeDeduplicator {
+
+    private static final Logger LOG = Logger.getLogger(MoleculeDeduplicator.class.getName());
+
+    public static final int DEFAULT_MAX_IN_MEMORY = Integer.parseInt(IOUtils.getConfiguration("SQUONK_DEDUP_MAX_IN_MEMORY", "100000"));
+
+    private static final int BATCH_SIZE = 10000;
+
+    private final String canonicalSmilesField;
+    private final Set<String> keepFirstFields;
+    private final Set<String> keepLastFields;
+    private final Set<String> appendFields;
+    private final int maxInMemory;
+    private final HashJoiner joiner;
+    private final File tmpDir;
+
+    public MoleculeDeduplicator(String canonicalSmilesField, List<String> keepFirstFields, List<String> keepLastFields,
+                                List<String> appendFields) {
+        this(canonicalSmilesField, keepFirstFields, keepLastFields, appendFields, DEFAULT_MAX_IN_MEMORY, new HashJoiner(), null);
+    }
+
+    /**
+     * @param canonicalSmilesField The field with the canonical smiles
+     * @param keepFirstFields      Fields for which the first value is kept
+     * @param keepLastFields       Fields for which the last value is kept
+     * @param appendFields         Fields for which all the values are kept in a List
+     * @param maxInMemory          The maximum number of molecules to deduplicate in memory
+     * @param joiner               Used to merge the duplicates of large datasets
+     * @param tmpDir               Where to write the temporary file. If null the default temporary directory is used.
+     */
+    public MoleculeDeduplicator(String canonicalSmilesField, List<String> keepFirstFields, List<String> keepLastFields,
+                                List<String> appendFields, int maxInMemory, HashJoiner joiner, File tmpDir) {
+        if (canonicalSmilesField == null) {
+            throw new NullPointerException("Must specify canonicalValueName");
+        }
+        this.canonicalSmilesField = canonicalSmilesField;
+        this.keepFirstFields = new HashSet<>(keepFirstFields);
+        this.keepLastFields = new HashSet<>(keepLastFields);
+        this.appendFields = new HashSet<>(appendFields);
+        this.maxInMemory = Math.max(1, maxInMemory);
+        this.joiner = joiner;
+        this.tmpDir = tmpDir;
+    }
+
+    /**
+     * Deduplicate the molecules. The input is read before this method returns. The molecules are read in batches and
+     * each batch is prepared using multiple threads.
+     *
+     * @param mols The molecules
+     * @return The deduplicated molecules. Close this Stream to delete the temporary files.
+     * @throws IOException
+     */
+    public Stream<MoleculeObject> deduplicate(Stream<MoleculeObject> mols) throws IOException {
+
+        List<MoleculeObject> buffer = new ArrayList<>();
+        File file = null;
+        OutputStream out = null;
+        MarshalingInputStream.ItemWriter<MoleculeObject> writer = null;
+        LongSet seen = null;
+        LongSet duplicates = null;
+        boolean ok = false;
+        try {
+            try (Stream<MoleculeObject> st = mols) {
+                Iterator<MoleculeObject> it = st.iterator();
+                for (List<MoleculeObject> batch = nextBatch(it); batch != null; batch = nextBatch(it)) {
+                    for (MoleculeObject mo : batch) {
+                        if (writer == null) {
+                            buffer.add(mo);
+                            if (buffer.size() > maxInMemory) {
+                                LOG.info("Data to deduplicate exceeds " + maxInMemory + " molecules. Writing to temporary file");
+                                file = File.createTempFile("squonk-dedup-", ".bin", tmpDir);
+                                out = new FileOutputStream(file);
+                                writer = BinaryHandler.getInstance().createWriter(out, null);
+                                seen = new LongSet();
+                                duplicates = new LongSet();
+                                for (MoleculeObject m : buffer) {
+                                    write(m, writer, seen, duplicates);
+                                }
+                                buffer = null;
+                            }
+                        } else {
+                            write(mo, writer, seen, duplicates);
+                        }
+                    }
+                }
+            }
+
+            if (writer == null) {
+                Map<String, MoleculeObject> results = new LinkedHashMap<>();
+                for (MoleculeObject mo : buffer) {
+                    MoleculeObject existing = results.putIfAbsent(mo.getSource(), mo);
+                    if (existing != null) {
+                        combine(existing, mo);
+                    }
+                }
+                ok = true;
+                return results.values().stream();
+            }
+
+            writer.close();
+            writer = null;
+            out.close();
+            out = null;
+            LOG.info(seen.size() + " distinct hashes of which " + duplicates.size() + " are duplicated");
+
+            Stream<MoleculeObject> result = readResults(file, duplicates);
+            ok = true;
+            return result;
+        } finally {
+            if (!ok) {
+                IOUtils.closeIfCloseable(writer);
+                IOUtils.closeIfCloseable(out);
+                if (file != null) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * Read the next batch of molecules and prepare them in parallel.
+     *
+     * @return The prepared molecules in their original order, or null if there are no more molecules
+     */
+    private List<MoleculeObject> nextBatch(Iterator<MoleculeObject> it) {
+        if (!it.hasNext()) {
+            return null;
+        }
+        List<MoleculeObject> batch = new ArrayList<>(BATCH_SIZE);
+        while (it.hasNext() && batch.size() < BATCH_SIZE) {
+            batch.add(it.next());
+        }
+        return batch.parallelStream()
+                .filter((mo) -> mo.getValue(canonicalSmilesField) != null)
+                .map(this::prepare)
+                .collect(Collectors.toList());
+    }
+
+    private void write(MoleculeObject mo, MarshalingInputStream.ItemWriter<MoleculeObject> writer, LongSet seen, LongSet duplicates) throws IOException {
+        long hash = hash(mo.getSource());
+        if (!seen.add(hash)) {
+            duplicates.add(hash);
+        }
+        writer.write(mo);
+    }
+
+    /**
+     * Merge the molecules whose hashes are duplicated and then read the file again, writing the unique molecules
+     * straight to the results and the merged molecules at the position of their first occurrence.
+     */
+    private Stream<MoleculeObject> readResults(File file, LongSet duplicates) throws IOException {
+
+        Stream<MoleculeObject> merged = null;
+        Stream<MoleculeObject> all = null;
+        try {
+            Stream<MoleculeObject> dups = read(file).filter((mo) -> duplicates.contains(hash(mo.getSource())));
+            merged = joiner.merge(Collections.singletonList(dups), MoleculeObject.class, MoleculeObject::getSource, this::combine);
+            all = read(file);
+        } catch (IOException | RuntimeException e) {
+            if (merged != null) {
+                merged.close();
+            }
+            file.delete();
+            throw e;
+        }
+
+        final Stream<MoleculeObject> mergedStream = merged;
+        final Stream<MoleculeObject> allStream = all;
+        final Iterator<MoleculeObject> mergedIterator = merged.iterator();
+        final Iterator<MoleculeObject> allIterator = all.iterator();
+        Spliterator<MoleculeObject> spliterator = new Spliterators.AbstractSpliterator<MoleculeObject>(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL) {
+
+            MoleculeObject pending;
+
+            @Override
+            public boolean tryAdvance(Consumer<? super MoleculeObject> action) {
+                while (allIterator.hasNext()) {
+                    MoleculeObject mo = allIterator.next();
+                    if (!duplicates.contains(hash(mo.getSource()))) {
+                        action.accept(mo);
+                        return true;
+                    }
+                    // the merged molecules are in the order of their first occurrence so the next one is due
+                    // when its first occurrence is reached
+                    if (pending == null && mergedIterator.hasNext()) {
+                        pending = mergedIterator.next();
+                    }
+                    if (pending != null && pending.getSource().equals(mo.getSource())) {
+                        action.accept(pending);
+                        pending = null;
+                        return true;
+                    }
+                }
+                return false;
+            }
+        };
+        return StreamSupport.stream(spliterator, false).onClose(() -> {
+            mergedStream.close();
+            allStream.close();
+            file.delete();
+        });
+    }
+
+    private Stream<MoleculeObject> read(File file) throws IOException {
+        InputStream is = new BufferedInputStream(new FileInputStream(file), 65536);
+        return BinaryHandler.getInstance().streamFromBinary(is, MoleculeObject.class, true).sequential();
+    }
+
+    /**
+     * Create the molecule for the results, with the canonical smiles as the structure and only the values that are
+     * to be kept. Values to be appended are put in a List.
+     */
+    private MoleculeObject prepare(MoleculeObject mo) {
+        String smiles = mo.getValue(canonicalSmilesField, String.class);
+        MoleculeObject result = new MoleculeObject(smiles, "smiles");
+        for (Map.Entry<String, Object> e : mo.getValues().entrySet()) {
+            String k = e.getKey();
+            if (k.equals(canonicalSmilesField)) {
+                continue;
+            } else if (appendFields.contains(k)) {
+                List l = new ArrayList();
+                l.add(e.getValue());
+                result.putValue(k, l);
+            } else if (keepFirstFields.contains(k) || keepLastFields.contains(k)) {
+                result.putValue(k, e.getValue());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Merge the values of a duplicate (as generated by {@link #prepare(MoleculeObject)}) into the existing molecule.
+     */
+    private void combine(MoleculeObject existing, MoleculeObject mo) {
+        for (Map.Entry<String, Object> e : mo.getValues().entrySet()) {
+            String k = e.getKey();
+            Object v = e.getValue();
+            if (appendFields.contains(k)) {
+                List l = (List) existing.getValue(k);
+                if (l == null) {
+                    l = new ArrayList();
+                    existing.putValue(k, l);
+                }
+                l.addAll((List) v);
+            } else if (keepLastFields.contains(k)) {
+                existing.putValue(k, v);
+            } else if (keepFirstFields.contains(k)) {
+                existing.getValues().putIfAbsent(k, v);
+            }
+        }
+    }
+
+    /**
+     * 64 bit hash of the smiles. Collisions are possible but very unlikely and only mean that the molecules need to be
+     * checked more carefully.
+     */
+    static long hash(String s) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        // final mix so that all the bits are used
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * Open addressing hash set of longs, using much less memory than a HashSet of Longs
+     */
+    static class LongSet {
+
+        private long[] table = new long[1024];
+        private int size = 0;
+        private boolean hasZero = false;
+
+        boolean add(long value) {
+            if (value == 0) {
+                boolean added = !hasZero;
+                hasZero = true;
+                return added;
+            }
+            if ((size + 1) * 4L > table.length * 3L) {
+                resize();
+            }
+            if (insert(table, value)) {
+                size++;
+                return true;
+            }
+            return false;
+        }
+
+        boolean contains(long value) {
+            if (value == 0) {
+                return hasZero;
+            }
+            int mask = table.length - 1;
+            int i = (int) value & mask;
+            while (table[i] != 0) {
+                if (table[i] == value) {
+                    return true;
+                }
+                i = (i + 1) & mask;
+            }
+            return false;
+        }
+
+        int size() {
+            return size + (hasZero ? 1 : 0);
+        }
+
+        private static boolean insert(long[] table, long value) {
+            int mask = table.length - 1;
+            int i = (int) value & mask;
+            while (table[i] != 0) {
+                if (table[i] == value) {
+                    return false;
+                }
+                i = (i + 1) & mask;
+            }
+            table[i] = value;
+            return true;
+        }
+
+        private void resize() {
+            long[] bigger = new long[table.length * 2];
+            for (long v : table) {
+                if (v != 0) {
+                    insert(bigger, v);
+                }
+            }
+            table = bigger;
+        }
+    }
+}
@@ -22,10 +22,7 @@ import org.squonk.dataset.DatasetMetadata;
 import org.squonk.types.io.JsonHandler;
 
 import java.io.*;
-import java.util.ArrayList;
-import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.stream.Stream;
@@ -37,6 +34,10 @@ import java.util.zip.GZIPOutputStream;
  */
 public class MoleculeObjectUtils {
 
+    /** Deduplicate the molecules using the canonical smiles in the specified field.
+     * See {@link MoleculeDeduplicator} for details. Close the resulting Stream to delete any temporary files.
+     *
+     */
     public static Stream<MoleculeObject> deduplicate(
             Stream<MoleculeObject> mols,
             String canonicalSmilesField,
@@ -44,58 +45,11 @@ public class MoleculeObjectUtils {
             List<String> keepLastFields,
             List<String> appendFields) {
 
-        if (canonicalSmilesField == null) {
-            throw new NullPointerException("Must specify canonicalValueName");
+        try {
+            return new MoleculeDeduplicator(canonicalSmilesField, keepFirstFields, keepLastFields, appendFields).deduplicate(mols);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to deduplicate molecules", e);
         }
-
-
-        Map<Object, MoleculeObject> results = new LinkedHashMap<>();
-
-        mols.forEachOrdered((mo) -> {
-            String smiles = mo.getValue(canonicalSmilesField, String.class);
-            if (smiles != null) {
-                MoleculeObject existing = results.get(smiles);
-                if (existing != null) {
-                    for (Map.Entry<String,Object> e :  mo.getValues().entrySet()) {
-                        String k = e.getKey();
-                        Object v = e.getValue();
-                        if (k.equals(canonicalSmilesField)) {
-                            continue;
-                        } else if (appendFields.contains(k)) {
-                            List l = (List)existing.getValue(k);
-                            if (l == null) {
-                                l = new ArrayList();
-                                existing.putValue(k, l);
-                            }
-                            l.add(v);
-                        }
-                        if (keepLastFields.contains(k)) {
-                            existing.putValue(k, v);
-                        }
-                        if (keepFirstFields.contains(k)) {
-                            existing.getValues().putIfAbsent(k, v);
-                        }
-                    }
-                } else {
-                    MoleculeObject first = new MoleculeObject(smiles, "smiles");
-                    for (Map.Entry<String,Object> e :  mo.getValues().entrySet()) {
-                        String k = e.getKey();
-                        if (k.equals(canonicalSmilesField)) {
-                            continue;
-                        } else if (appendFields.contains(k)) {
-                            List l = new ArrayList();
-                            l.add(e.getValue());
-                            first.putValue(k, l);
-                        } else if (keepFirstFields.contains(k) || keepLastFields.contains(k)) {
-                            first.putValue(k, e.getValue());
-                        }
-                    }
-                    results.put(smiles, first);
-                }
-            }
-        });
-
-        return results.values().stream();
     }
 
     /** Read teh dataset from these sources
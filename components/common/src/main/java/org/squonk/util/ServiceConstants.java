@@ -30,6 +30,7 @@ public interface ServiceConstants {
     String HEADER_JOB_PROCESSED_COUNT = "ProcessedCount";
     String HEADER_JOB_ERROR_COUNT = "ErrorCount";
     String HEADER_JOB_STATUS = "Status";
+    String HEADER_JOB_PRIORITY = "SquonkJobPriority";
     String HEADER_AUTH = "Authorization";
 
     String KEY_SERVICE_REGISTRY = "KEY_SERVICE_REGISTRY";
@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2019 Informatics Matters Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.squonk.clustering
+
+import spock.lang.Specification
+
+/**
+ * Created by timbo on 17/10/2019.
+ */
+class BitSetSphereExclusionClustererSpec extends Specification {
+
+    static BitSet randomFingerprint(Random random, BitSet base) {
+        BitSet fp = (BitSet) base.clone()
+        (0..<random.nextInt(20)).each { fp.flip(random.nextInt(256)) }
+        return fp
+    }
+
+    static double tanimoto(BitSet a, BitSet b) {
+        int union = (a | b).cardinality()
+        return union == 0 ? 1d : (double) (a & b).cardinality() / union
+    }
+
+    /** the simple O(n.k) implementation that compares every item with every leader */
+    static List<Integer> bruteForce(List<BitSet> fps, double threshold) {
+        List<Integer> leaders = []
+        fps.eachWithIndex { fp, i ->
+            if (!leaders.any { tanimoto(fps[it], fp) >= threshold }) {
+                leaders << i
+            }
+        }
+        return fps.collect { fp ->
+            double best = -1
+            int cluster = -1
+            leaders.eachWithIndex { l, c ->
+                double sim = tanimoto(fps[l], fp)
+                if (sim > best) {
+                    best = sim
+                    cluster = c
+                }
+            }
+            cluster
+        }
+    }
+
+    void "matches brute force"() {
+
+        Random random = new Random(42)
+        List<BitSet> bases = (0..<10).collect { BitSet b = new BitSet(); (0..<random.nextInt(60) + 10).each { b.set(random.nextInt(256)) }; b }
+        List<BitSet> fps = (0..<500).collect { randomFingerprint(random, bases[random.nextInt(bases.size())]) }
+        def items = fps.collect { [fp: it] }
+        def clusterer = new BitSetSphereExclusionClusterer<Map>({ it.fp }, 0.6d)
+
+        when:
+        def results = clusterer.cluster(items.stream(), { item, c -> item.cluster = c }).parallel().collect { it.cluster }
+
+        then:
+        results == bruteForce(fps, 0.6d)
+        results.max() > 5
+    }
+
+    void "items without fingerprints"() {
+
+        def items = [[fp: BitSet.valueOf([7L] as long[])], [fp: null], [fp: BitSet.valueOf([7L] as long[])], [fp: new BitSet()]]
+        def clusterer = new BitSetSphereExclusionClusterer<Map>({ it.fp })
+
+        when:
+        def results = clusterer.cluster(items.stream(), { item, c -> item.cluster = c }).collect()
+
+        then:
+        results.size() == 4
+        results.collect { it.cluster } == [0, null, 0, 1]
+    }
+}
@@ -17,6 +17,8 @@
 package org.squonk.dataset
 
 import org.squonk.types.BasicObject
+import org.squonk.types.MoleculeObject
+import org.squonk.types.io.JsonHandler
 import spock.lang.Specification
 
 /**
@@ -94,4 +96,21 @@ class DatasetUtilsSpec extends Specification {
         r == 5
     }
 
+    void "thin wrapper from descriptor"() {
+
+        when:
+        def td = JsonHandler.instance.objectFromJson(json, ThinDescriptor.class)
+        def wrapper = DatasetUtils.createThinDatasetWrapper(td, MoleculeObject.class, [:])
+
+        then:
+        wrapper.filtering == filtering
+        wrapper.ordered == ordered
+
+        where:
+        json                                                                    | filtering | ordered
+        '{"input":"input","output":"output"}'                                   | false     | true
+        '{"input":"input","output":"output","filtering":true}'                  | true      | true
+        '{"input":"input","output":"output","filtering":true,"ordered":false}'  | true      | false
+    }
+
 }
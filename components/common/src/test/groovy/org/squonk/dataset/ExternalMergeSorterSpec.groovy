@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2019 Informatics Matters Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.squonk.dataset
+
+import org.squonk.types.BasicObject
+import org.squonk.types.MoleculeObject
+import spock.lang.Specification
+
+import java.nio.file.Files
+
+/**
+ * Created by timbo on 17/10/2019.
+ */
+class ExternalMergeSorterSpec extends Specification {
+
+    static Comparator<BasicObject> byKeyThenName = { BasicObject a, BasicObject b ->
+        Integer k1 = a.getValue('key'), k2 = b.getValue('key')
+        if (k1 == null || k2 == null) {
+            return k1 == k2 ? 0 : (k1 == null ? 1 : -1)
+        }
+        int c = k1 <=> k2
+        return c != 0 ? c : b.getValue('name') <=> a.getValue('name')
+    } as Comparator
+
+    static List<BasicObject> createObjects(int count) {
+        Random random = new Random(42)
+        (0..<count).collect { i ->
+            def values = [name: 'n' + random.nextInt(10), idx: i]
+            if (i % 7 != 0) {
+                values.key = random.nextInt(20)
+            }
+            new BasicObject(values)
+        }
+    }
+
+    static DatasetMetadata<BasicObject> createMetadata() {
+        new DatasetMetadata<>(BasicObject.class, [name: String.class, idx: Integer.class, key: Integer.class])
+    }
+
+    void "sort in memory"() {
+
+        def objects = createObjects(100)
+        def sorter = new ExternalMergeSorter<>(BasicObject.class, byKeyThenName, createMetadata(), 1000, null)
+
+        when:
+        def results = sorter.sort(objects.stream()).collect()
+
+        then:
+        results.size() == 100
+        results.is(objects) == false
+        results*.uuid == objects.sort(false, byKeyThenName)*.uuid
+    }
+
+    void "sort with spill to disk"() {
+
+        File dir = Files.createTempDirectory('sortspec').toFile()
+        def objects = createObjects(1003)
+        def sorter = new ExternalMergeSorter<>(BasicObject.class, byKeyThenName, createMetadata(), 100, dir)
+
+        when:
+        def stream = sorter.sort(objects.stream())
+        int runs = dir.listFiles().length
+        def results = stream.collect()
+        stream.close()
+
+        then:
+        runs == 11
+        results.size() == 1003
+        // Groovy's sort is stable so this also checks that the merge is stable
+        results*.uuid == objects.sort(false, byKeyThenName)*.uuid
+        results[0].getValue('idx') instanceof Integer
+        results[-1].getValue('key') == null
+        dir.listFiles().length == 0
+
+        cleanup:
+        dir.deleteDir()
+    }
+
+    void "sort molecules with spill to disk"() {
+
+        File dir = Files.createTempDirectory('sortspec').toFile()
+        def mols = (0..<250).collect { new MoleculeObject('C' * (1 + it % 10), 'smiles', [idx: it]) }
+        def meta = new DatasetMetadata<>(MoleculeObject.class, [idx: Integer.class])
+        def bySource = { a, b -> a.source <=> b.source } as Comparator
+        def sorter = new ExternalMergeSorter<>(MoleculeObject.class, bySource, meta, 64, dir)
+
+        when:
+        def stream = sorter.sort(mols.stream())
+        def results = stream.collect()
+        stream.close()
+
+        then:
+        results.size() == 250
+        results*.source == mols.sort(false, bySource)*.source
+        results*.getValue('idx') == mols.sort(false, bySource)*.getValue('idx')
+        results[0].format == 'smiles'
+
+        cleanup:
+        dir.deleteDir()
+    }
+
+    void "empty input"() {
+
+        def sorter = new ExternalMergeSorter<>(BasicObject.class, byKeyThenName, null, 10, null)
+
+        expect:
+        sorter.sort([].stream()).count() == 0
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2019 Informatics Matters Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.squonk.dataset
+
+import org.squonk.types.BasicObject
+import org.squonk.types.MoleculeObject
+import spock.lang.Specification
+
+import java.nio.file.Files
+import java.util.stream.Stream
+
+/**
+ * Created by timbo on 17/10/2019.
+ */
+class HashJoinerSpec extends Specification {
+
+    File dir = Files.createTempDirectory('joinspec').toFile()
+
+    void cleanup() {
+        dir.deleteDir()
+    }
+
+    static List<MoleculeObject> createMain(int count) {
+        (0..<count).collect { new MoleculeObject('C' * (1 + it % 5), 'smiles', it % 3 == 0 ? [idx: it] : [id: it, idx: it]) }
+    }
+
+    static List<BasicObject> createExtra(int count) {
+        (0..<count).reverse().collect { new BasicObject([id: it * 2, extra: 'e' + it]) }
+    }
+
+    static List<Map> enrich(HashJoiner joiner, int mainCount, int extraCount) {
+        def key = { it.getValue('id') }
+        Stream stream = joiner.enrich(createMain(mainCount).stream(), MoleculeObject.class, key,
+                createExtra(extraCount).stream(), BasicObject.class, key,
+                { mo, bo -> mo.putValue('extra', bo.getValue('extra')) })
+        def results = stream.collect { [source: it.source, values: new HashMap(it.values)] }
+        stream.close()
+        return results
+    }
+
+    void "enrich in memory"() {
+
+        when:
+        def results = enrich(new HashJoiner(1000, 4, 2, dir), 100, 100)
+
+        then:
+        results.size() == 100
+        results*.values*.idx == (0..<100)
+        results[2].values.extra == 'e1'
+        results[1].values.extra == null
+        results[3].values.extra == null
+        dir.listFiles().length == 0
+    }
+
+    void "enrich partitioned gives same results"() {
+
+        when:
+        def expected = enrich(new HashJoiner(10000, 4, 2, dir), 1000, 700)
+        def results = enrich(new HashJoiner(50, 7, 3, dir), 1000, 700)
+
+        then:
+        results.size() == 1000
+        results == expected
+        results.count { it.values.extra != null } == 333
+        dir.listFiles().length == 0
+    }
+
+    void "enrich duplicate keys"() {
+
+        def extra = createExtra(200) + [new BasicObject([id: 10])]
+        def joiner = new HashJoiner(50, 4, 2, dir)
+
+        when:
+        joiner.enrich(createMain(10).stream(), MoleculeObject.class, { it.getValue('id') },
+                extra.stream(), BasicObject.class, { it.getValue('id') }, { mo, bo -> })
+
+        then:
+        thrown(IllegalStateException)
+        dir.listFiles().length == 0
+    }
+
+    static List<Map> merge(HashJoiner joiner) {
+        def inputs = (1..3).collect { i ->
+            (0..<300).collect { new BasicObject([id: it * i % 500, ('v' + i): it]) }.stream()
+        }
+        Stream stream = joiner.merge(inputs, BasicObject.class, { it.getValue('id') }, { existing, bo ->
+            bo.values.each { k, v -> existing.values.putIfAbsent(k, v) }
+        })
+        def results = stream.collect { new HashMap(it.values) }
+        stream.close()
+        return results
+    }
+
+    void "merge partitioned gives same results"() {
+
+        when:
+        def expected = merge(new HashJoiner(10000, 4, 2, dir))
+        def results = merge(new HashJoiner(100, 16, 4, dir))
+
+        then:
+        expected.size() == 450
+        expected*.id.unique().size() == 450
+        expected[0] == [id: 0, v1: 0, v2: 0, v3: 0]
+        results == expected
+        dir.listFiles().length == 0
+    }
+}
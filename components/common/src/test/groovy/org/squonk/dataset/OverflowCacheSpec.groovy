@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2019 Informatics Matters Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.squonk.dataset
+
+import org.squonk.types.MoleculeObject
+import spock.lang.Specification
+
+import java.nio.file.Files
+
+/**
+ * Created by timbo on 17/10/2019.
+ */
+class OverflowCacheSpec extends Specification {
+
+    File dir = Files.createTempDirectory('cachespec').toFile()
+
+    void cleanup() {
+        dir.deleteDir()
+    }
+
+    void "objects overflow to file"() {
+
+        def mols = (0..<100).collect { new MoleculeObject('C' * (it + 1), 'smiles', [idx: it, name: 'mol' + it]) }
+        def cache = new OverflowCache(MoleculeObject.class, 10, dir)
+
+        when:
+        mols.each { cache.put(it) }
+        def size = cache.size()
+        def files = dir.listFiles().length
+        def results = mols.reverse().collect { cache.remove(it.UUID) }
+
+        then:
+        size == 100
+        files == 1
+        cache.overflowCount == 90
+        results*.UUID == mols.reverse()*.UUID
+        results*.source == mols.reverse()*.source
+        results*.values == mols.reverse()*.values
+        cache.size() == 0
+        cache.remove(mols[0].UUID) == null
+
+        cleanup:
+        cache.close()
+        assert dir.listFiles().length == 0
+    }
+
+    void "concurrent access"() {
+
+        def mols = (0..<2000).collect { new MoleculeObject('C' * (it % 10 + 1), 'smiles', [idx: it]) }
+        def cache = new OverflowCache(MoleculeObject.class, 100, dir)
+
+        when:
+        mols.parallelStream().forEach { cache.put(it) }
+        mols.take(10).each { cache.discard(it.UUID) }
+        def results = mols.parallelStream().map { cache.remove(it.UUID) }.collect()
+
+        then:
+        results.take(10).every { it == null }
+        results.drop(10)*.getValue('idx') == (10..<2000)
+        cache.size() == 0
+
+        cleanup:
+        cache.close()
+    }
+}
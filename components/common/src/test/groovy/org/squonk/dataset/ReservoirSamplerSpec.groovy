@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2019 Informatics Matters Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.squonk.dataset
+
+import spock.lang.Specification
+
+/**
+ * Created by timbo on 17/10/2019.
+ */
+class ReservoirSamplerSpec extends Specification {
+
+    void "uniform sample is repeatable and unbiased"() {
+
+        def sampler = new ReservoirSampler<Integer>(100, 42L)
+
+        when:
+        def s1 = sampler.sample((0..<10000).stream(), false)
+        def s2 = sampler.sample((0..<10000).stream(), true)
+        def s3 = new ReservoirSampler<Integer>(100, 43L).sample((0..<10000).stream(), true)
+
+        then:
+        s1.size() == 100
+        s1 == s1.sort(false)
+        s1 == s2
+        s1 != s3
+        // a sample biased towards the start would have a low mean
+        s1.sum() / 100 > 3500
+        s1.sum() / 100 < 6500
+    }
+
+    void "fraction limits sample"() {
+
+        def sampler = new ReservoirSampler<Integer>(100, 1L)
+        sampler.fraction = 0.05f
+
+        when:
+        def s1 = sampler.sample((0..<1000).stream(), true)
+        def s2 = sampler.sample((0..<10).stream(), true)
+
+        then:
+        s1.size() == 50
+        s2.size() == 1
+    }
+
+    void "weighted sample"() {
+
+        def sampler = new ReservoirSampler<Integer>(50, 7L)
+        // only the even numbers have a weight, and larger numbers are more likely
+        sampler.weightFunction = { it % 2 == 0 ? (double) it : 0d }
+
+        when:
+        def s = sampler.sample((0..<1000).stream(), true)
+
+        then:
+        s.size() == 50
+        s.every { it % 2 == 0 && it > 0 }
+        s.count { it >= 500 } > 30
+    }
+
+    void "stratified sample"() {
+
+        def sampler = new ReservoirSampler<Integer>(20, 3L)
+        // strata of 600, 300 and 100 items
+        sampler.stratumFunction = { it < 600 ? 'a' : it < 900 ? 'b' : 'c' }
+
+        when:
+        def proportional = sampler.sample((0..<1000).stream(), true)
+        sampler.allocation = ReservoirSampler.Allocation.EQUAL
+        def equal = sampler.sample((0..<1000).stream(), true)
+        sampler.fraction = 0.05f
+        def equalFraction = sampler.sample((0..<1000).stream(), true)
+
+        then:
+        proportional.size() == 20
+        proportional.count { it < 600 } == 12
+        proportional.count { it >= 900 } == 2
+        equal.size() == 60
+        equal.count { it >= 900 } == 20
+        equalFraction.size() == 20 + 15 + 5
+    }
+}
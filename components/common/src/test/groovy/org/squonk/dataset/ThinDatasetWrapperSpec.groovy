@@ -120,5 +120,20 @@ class ThinDatasetWrapperSpec extends Specification {
         }
     }
 
+    void "test respond filtered unordered"() {
+        def mols = (0..<10).collect { new MoleculeObject('C' * (it + 1), 'smiles', [a: it]) }
+        ThinDatasetWrapper wrapper = new ThinDatasetWrapper(MoleculeObject.class, true, true, false, null, [:])
+
+        when:
+        Dataset thin = wrapper.prepareInput(new Dataset(MoleculeObject.class, mols))
+        def thinItems = thin.items
+        def resp = [thinItems[7], thinItems[2], thinItems[5]].collect { new BasicObject(it.UUID, [c: it.source]) }
+        Dataset result = wrapper.generateOutput(new Dataset(BasicObject.class, resp))
+        def items = result.items
+
+        then:
+        items*.getValue('a') == [7, 2, 5]
+        items*.getValue('c') == items*.source
+    }
 
 }
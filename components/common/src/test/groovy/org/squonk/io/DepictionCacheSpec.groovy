@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2019 Informatics Matters Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.squonk.io
+
+import spock.lang.Specification
+
+import java.awt.Color
+import java.util.concurrent.Callable
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Created by timbo on 17/10/2019.
+ */
+class DepictionCacheSpec extends Specification {
+
+    void "keys"() {
+
+        def p1 = new DepictionParameters(100, 100)
+        def p2 = new DepictionParameters(100, 100)
+        def p3 = new DepictionParameters(100, 100, true, Color.RED)
+
+        expect:
+        DepictionCache.createKey('CCO', null, 'svg', p1) == DepictionCache.createKey(' CCO\r\n', null, 'SVG', p2)
+        DepictionCache.createKey('CCO', null, 'svg', p1) != DepictionCache.createKey('CCO', null, 'png', p1)
+        DepictionCache.createKey('CCO', null, 'svg', p1) != DepictionCache.createKey('CCO', null, 'svg', p3)
+        DepictionCache.createKey('CCO', null, 'svg', p1) != DepictionCache.createKey('CCN', null, 'svg', p1)
+        DepictionCache.createKey('CCO', null, 'svg', p1) != DepictionCache.createKey('CCO', 'smiles', 'svg', p1)
+        DepictionCache.createKey('CCO', null, 'svg', p1) != DepictionCache.createKey('CCO', null, 'svg',
+                new DepictionParameters(100, 100).addAtomHighlight([1, 2] as int[], Color.RED, DepictionParameters.HighlightMode.region, true))
+    }
+
+    void "renders once"() {
+
+        def cache = new DepictionCache(1000)
+        def renders = new AtomicInteger()
+        def start = new CountDownLatch(1)
+        def executor = Executors.newFixedThreadPool(50)
+
+        when:
+        def futures = (1..50).collect { i ->
+            executor.submit({
+                start.await()
+                cache.get('key' + (i % 5), { renders.incrementAndGet(); Thread.sleep(10); new byte[10] })
+            } as Callable)
+        }
+        start.countDown()
+        def results = futures.collect { it.get(5, TimeUnit.SECONDS) }
+        int rendered = renders.get()
+        def failed = cache.get('failed', { renders.incrementAndGet(); null })
+
+        then:
+        results.size() == 50
+        results.every { it.length == 10 }
+        rendered == 5
+        failed == null
+        cache.size() == 5
+        cache.getBytes() == 50
+        cache.getMissCount() == renders.get()
+
+        cleanup:
+        executor?.shutdown()
+    }
+
+    void "evicts least recently used"() {
+
+        def cache = new DepictionCache(250)
+
+        when:
+        cache.get('a', { new byte[100] })
+        cache.get('b', { new byte[100] })
+        cache.get('a', { new byte[100] })
+        cache.get('c', { new byte[100] })
+        cache.get('d', { new byte[1000] })
+
+        then:
+        cache.size() == 2
+        cache.getBytes() == 200
+        cache.get('a') != null
+        cache.get('b') == null
+        cache.get('c') != null
+        cache.get('d') == null
+    }
+}
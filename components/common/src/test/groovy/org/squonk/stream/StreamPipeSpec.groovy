@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2019 Informatics Matters Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.squonk.stream
+
+import spock.lang.Specification
+
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.stream.Collectors
+
+/**
+ * Created by timbo on 17/10/2019.
+ */
+class StreamPipeSpec extends Specification {
+
+    void "items are read on another thread in order"() {
+
+        def threads = Collections.synchronizedSet(new HashSet())
+        def source = (0..<1000).stream().peek { threads << Thread.currentThread() }
+
+        when:
+        def stream = StreamPipe.pipe(StreamPipe.pipe(source, 10), 10)
+        def results = stream.collect(Collectors.toList())
+        stream.close()
+
+        then:
+        results == (0..<1000).toList()
+        threads.size() == 1
+        !threads.contains(Thread.currentThread())
+    }
+
+    void "read ahead is bounded"() {
+
+        def read = new AtomicInteger()
+        def source = (0..<1000).stream().peek { read.incrementAndGet() }
+
+        when:
+        def stream = StreamPipe.pipe(source, 10)
+        def first = stream.iterator().next()
+        sleep(200)
+
+        then:
+        first == 0
+        read.get() <= 12
+
+        cleanup:
+        stream?.close()
+    }
+
+    void "parallel source is split into batches"() {
+
+        def source = (0..<10000).stream().parallel()
+
+        when:
+        def stream = StreamPipe.pipe(source, 100)
+        def spliterator = stream.spliterator()
+        def batch = spliterator.trySplit()
+        def results = StreamPipe.pipe((0..<10000).stream().parallel(), 100).collect(Collectors.toList())
+
+        then:
+        stream.isParallel()
+        batch != null
+        batch.estimateSize() == 100
+        results == (0..<10000).toList()
+
+        cleanup:
+        stream?.close()
+    }
+
+    void "parallel source is read in parallel"() {
+
+        def threads = Collections.synchronizedSet(new HashSet())
+        def source = (0..<1000).stream().parallel().map { threads << Thread.currentThread(); sleep(1); it }
+
+        when:
+        def stream = StreamPipe.pipe(source, 10)
+        def results = stream.collect(Collectors.toList())
+        stream.close()
+
+        then:
+        results == (0..<1000).toList()
+        threads.size() > 1
+    }
+
+    void "source is closed by the reading thread"() {
+
+        def readers = Collections.synchronizedSet(new HashSet())
+        def closers = Collections.synchronizedSet(new HashSet())
+        def source = (0..<1000000).stream()
+                .peek { readers << Thread.currentThread(); sleep(1) }
+                .onClose { closers << Thread.currentThread() }
+
+        when:
+        def stream = StreamPipe.pipe(source, 10)
+        stream.iterator().next()
+        stream.close()
+        sleep(300)
+
+        then:
+        closers.size() == 1
+        closers == readers
+    }
+
+    void "errors are passed to the consumer"() {
+
+        def source = (0..<100).stream().map { if (it == 50) throw new IllegalStateException("bad"); it }
+
+        when:
+        StreamPipe.pipe(source, 10).collect(Collectors.toList())
+
+        then:
+        thrown(IllegalStateException)
+    }
+
+    void "close stops reading"() {
+
+        def read = new AtomicInteger()
+        def closed = new AtomicBoolean()
+        def source = (0..<1000000).stream().peek { read.incrementAndGet() }.onClose { closed.set(true) }
+
+        when:
+        def stream = StreamPipe.pipe(source, 10)
+        stream.limit(5).collect(Collectors.toList())
+        stream.close()
+        int count = read.get()
+        sleep(300)
+
+        then:
+        closed.get()
+        read.get() <= count + 1
+        count < 100
+    }
+}
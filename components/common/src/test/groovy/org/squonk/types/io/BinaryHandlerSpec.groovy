@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2019 Informatics Matters Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.squonk.types.io
+
+import org.squonk.dataset.Dataset
+import org.squonk.dataset.DatasetMetadata
+import org.squonk.io.InputStreamDataSource
+import org.squonk.types.BasicObject
+import org.squonk.types.MoleculeObject
+import org.squonk.types.QualifiedValue
+import org.squonk.util.CommonMimeTypes
+import spock.lang.Specification
+
+import java.util.stream.Collectors
+
+/**
+ *
+ * @author timbo
+ */
+class BinaryHandlerSpec extends Specification {
+
+    static List<MoleculeObject> createMols(int count) {
+        (0..<count).collect { i ->
+            def mo = new MoleculeObject("C" * (i % 10 + 1), "smiles")
+            mo.putValue("index", i)
+            mo.putValue("big", 10000000000L + i)
+            mo.putValue("score", i / 3d)
+            mo.putValue("flag", i % 2 == 0)
+            mo.putValue("name", "mol" + i)
+            if (i % 3 == 0) {
+                mo.putValue("sometimes", 1.5f)
+            }
+            mo
+        }
+    }
+
+    void "molecules round trip"() {
+
+        def mols = createMols(2500)
+        def out = new ByteArrayOutputStream()
+
+        when:
+        new BinaryHandler(1000).marshalStreamToBinary(mols.stream(), null, out)
+        def results = BinaryHandler.instance.streamFromBinary(new ByteArrayInputStream(out.toByteArray()), MoleculeObject.class, true)
+                .collect(Collectors.toList())
+
+        then:
+        results.size() == 2500
+        results.eachWithIndex { mo, i ->
+            assert mo.UUID == mols[i].UUID
+            assert mo.source == mols[i].source
+            assert mo.format == 'smiles'
+            assert mo.values == mols[i].values
+            assert mo.values.keySet() as List == mols[i].values.keySet() as List
+        }
+    }
+
+    void "smaller than json"() {
+
+        def mols = createMols(1000)
+        def bin = new ByteArrayOutputStream()
+        def json = new ByteArrayOutputStream()
+
+        when:
+        BinaryHandler.instance.marshalStreamToBinary(mols.stream(), null, bin)
+        JsonHandler.instance.marshalStreamToJsonArray(mols.stream(), json)
+
+        then:
+        bin.size() < json.size() / 2
+    }
+
+    void "complex and mixed types"() {
+
+        def objs = [
+                new BasicObject([qv: new QualifiedValue(1.5d, QualifiedValue.Qualifier.GREATER_THAN), mixed: 1]),
+                new BasicObject([qv: new QualifiedValue(2.5d), mixed: "two"]),
+                new BasicObject([mixed: 3.5d, empty: null])
+        ]
+        def meta = new DatasetMetadata(BasicObject.class, [qv: QualifiedValue.class], 3)
+        def out = new ByteArrayOutputStream()
+
+        when:
+        BinaryHandler.instance.marshalStreamToBinary(objs.stream(), meta, out)
+        def results = BinaryHandler.instance.streamFromBinary(new ByteArrayInputStream(out.toByteArray()), BasicObject.class, true)
+                .collect(Collectors.toList())
+
+        then:
+        results.size() == 3
+        results[0].getValue("qv") instanceof QualifiedValue
+        results[0].getValue("qv").qualifier == QualifiedValue.Qualifier.GREATER_THAN
+        results[0].getValue("mixed") == 1
+        results[1].getValue("mixed") == "two"
+        results[2].getValue("mixed") == 3.5d
+        !results[2].hasValue("empty")
+    }
+
+    void "empty stream"() {
+
+        def out = new ByteArrayOutputStream()
+
+        when:
+        BinaryHandler.instance.marshalStreamToBinary([].stream(), null, out)
+        def results = BinaryHandler.instance.streamFromBinary(new ByteArrayInputStream(out.toByteArray()), BasicObject.class, true)
+                .collect(Collectors.toList())
+
+        then:
+        results.size() == 0
+    }
+
+    void "dataset to and from binary"() {
+
+        def mols = createMols(100)
+        Dataset ds1 = new Dataset(MoleculeObject.class, mols)
+
+        when:
+        InputStream is = ds1.getInputStream(CommonMimeTypes.MIME_TYPE_MOLECULE_OBJECT_BINARY, true)
+        def source = new InputStreamDataSource(Dataset.ROLE_DATASET, null, CommonMimeTypes.MIME_TYPE_MOLECULE_OBJECT_BINARY, is, true)
+        Dataset ds2 = new Dataset(source, new DatasetMetadata(MoleculeObject.class))
+        def results = ds2.items
+
+        then:
+        results.size() == 100
+        results[99].getValue("name") == "mol99"
+    }
+
+    void "binary dataset to json"() {
+
+        def mols = createMols(10)
+        Dataset ds1 = new Dataset(MoleculeObject.class, mols)
+
+        when:
+        InputStream is = ds1.getInputStream(CommonMimeTypes.MIME_TYPE_MOLECULE_OBJECT_BINARY, false)
+        def source = new InputStreamDataSource(Dataset.ROLE_DATASET, null, CommonMimeTypes.MIME_TYPE_MOLECULE_OBJECT_BINARY, is, false)
+        Dataset ds2 = new Dataset(source, new DatasetMetadata(MoleculeObject.class))
+        String json = ds2.getInputStream(CommonMimeTypes.MIME_TYPE_MOLECULE_OBJECT_JSON, false).text
+
+        then:
+        json.startsWith("[")
+        json.contains("mol9")
+    }
+}
@@ -112,6 +112,82 @@ class JsonHandlerSpec extends Specification {
         results.items.size() == count
     }
 
+    void "marshal data uses no threads"() {
+        int count = 10000
+        def mols = (1..count).collect { new MoleculeObject("C" * (it % 20 + 1), "smiles", [idx: it]) }
+        Set<Thread> producers = Collections.synchronizedSet(new HashSet<Thread>())
+        boolean closed = false
+
+        when:
+        JsonHandler.MarshalData data = JsonHandler.getInstance().marshalData(
+                mols.stream().peek { producers.add(Thread.currentThread()) }.onClose { closed = true }, true)
+        // the items are written by the thread that reads the InputStream
+        byte[] bytes = data.inputStream.bytes
+        Dataset<MoleculeObject> results = JsonHandler.getInstance().unmarshalDataset(
+                new DatasetMetadata(MoleculeObject.class, [idx: Integer.class]),
+                new java.util.zip.GZIPInputStream(new ByteArrayInputStream(bytes)))
+        List items = results.items
+
+        then:
+        data.inputStream instanceof MarshalingInputStream
+        producers == [Thread.currentThread()] as Set
+        items.size() == count
+        items[count - 1].getValue("idx") == count
+        data.future.get()
+        closed
+    }
+
+    void "marshal data keeps a parallel stream parallel"() {
+        int count = 1000
+        Set<Thread> producers = Collections.synchronizedSet(new HashSet<Thread>())
+
+        when:
+        JsonHandler.MarshalData data = JsonHandler.getInstance().marshalData((1..count).stream().parallel().map {
+            producers.add(Thread.currentThread())
+            sleep(1)
+            new MoleculeObject("C", "smiles", [idx: it])
+        }, false)
+        Dataset<MoleculeObject> results = JsonHandler.getInstance().unmarshalDataset(
+                new DatasetMetadata(MoleculeObject.class, [idx: Integer.class]), data.inputStream)
+        List items = results.items
+
+        then:
+        producers.size() > 1
+        items.collect { it.getValue("idx") } == (1..count).toList()
+        data.future.get()
+    }
+
+    void "marshal data closes the writer on error"() {
+        boolean writerClosed = false
+        def factory = { OutputStream out ->
+            [write: { item -> out.write(item.bytes) }, close: { writerClosed = true }] as MarshalingInputStream.ItemWriter
+        } as MarshalingInputStream.ItemWriterFactory
+
+        when:
+        MarshalingInputStream is = new MarshalingInputStream(Stream.iterate(0) { it + 1 }.map {
+            if (it == 10) throw new IllegalStateException("Failed")
+            "item" + it
+        }, factory, true)
+        is.bytes
+
+        then:
+        writerClosed
+        is.future.isCompletedExceptionally()
+    }
+
+    void "marshal data reports errors through future"() {
+
+        when:
+        JsonHandler.MarshalData data = JsonHandler.getInstance().marshalData(Stream.generate() {
+            throw new IllegalStateException("Failed")
+        }, false)
+        data.inputStream.text
+        data.future.get()
+
+        then:
+        thrown(java.util.concurrent.ExecutionException)
+    }
+
     void "to/from color"() {
 
         when:
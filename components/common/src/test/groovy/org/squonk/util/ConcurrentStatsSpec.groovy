@@ -0,0 +1,50 @@
+/*
+ * Copyright (c) 2019 Informatics Matters Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.squonk.util
+
+import spock.lang.Specification
+
+/**
+ * Created by timbo on 17/10/2019.
+ */
+class ConcurrentStatsSpec extends Specification {
+
+    void "parallel updates are not lost"() {
+
+        ConcurrentStats stats = new ConcurrentStats()
+
+        when:
+        (0..<100000).parallelStream().forEach {
+            ExecutionStats.increment(stats.get(), "a", 1)
+            if (it % 2 == 0) {
+                ExecutionStats.increment(stats.get(), "b", 2)
+            }
+        }
+        def merged = stats.merge()
+
+        then:
+        merged.a == 100000
+        merged.b == 100000
+        stats.getAll().size() >= 1
+    }
+
+    void "no updates"() {
+
+        expect:
+        new ConcurrentStats().merge().isEmpty()
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2019 Informatics Matters Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.squonk.util
+
+import org.squonk.dataset.HashJoiner
+import org.squonk.types.MoleculeObject
+import spock.lang.Specification
+
+import java.nio.file.Files
+import java.util.stream.Stream
+
+/**
+ * Created by timbo on 17/10/2019.
+ */
+class MoleculeDeduplicatorSpec extends Specification {
+
+    File dir = Files.createTempDirectory('dedupspec').toFile()
+
+    void cleanup() {
+        dir.deleteDir()
+    }
+
+    static List<MoleculeObject> createMols(int count) {
+        Random random = new Random(42)
+        (0..<count).collect {
+            int n = random.nextInt(count / 3 as int)
+            new MoleculeObject('X', 'smiles', [canon: 'C' * (n % 20 + 1) + 'N' * (n / 20 as int), first: it, last: it, all: it, lose: it])
+        }
+    }
+
+    static List<Map> dedup(MoleculeDeduplicator deduplicator, List<MoleculeObject> mols) {
+        Stream<MoleculeObject> stream = deduplicator.deduplicate(mols.stream())
+        def results = stream.collect { [source: it.source, values: new HashMap(it.values)] }
+        stream.close()
+        return results
+    }
+
+    void "dedup with spill gives same results as in memory"() {
+
+        def mols = createMols(3000)
+        def inMemory = new MoleculeDeduplicator('canon', ['first'], ['last'], ['all'], 10000, new HashJoiner(), dir)
+        def spilled = new MoleculeDeduplicator('canon', ['first'], ['last'], ['all'], 100, new HashJoiner(50, 8, 2, dir), dir)
+
+        when:
+        def expected = dedup(inMemory, mols)
+        def results = dedup(spilled, createMols(3000))
+
+        then:
+        expected.size() == mols*.getValue('canon').unique().size()
+        expected*.source == mols*.getValue('canon').unique()
+        expected.every { it.values.keySet() == ['first', 'last', 'all'] as Set }
+        results == expected
+        dir.listFiles().length == 0
+    }
+
+    void "molecules without canonical smiles are ignored"() {
+
+        def mols = [
+                new MoleculeObject('CC', 'smiles', [canon: 'CC', a: 1]),
+                new MoleculeObject('CC', 'smiles', [a: 2]),
+                new MoleculeObject('CC', 'smiles', [canon: 'CC', a: 3])
+        ]
+        def deduplicator = new MoleculeDeduplicator('canon', [], [], ['a'], 1, new HashJoiner(1, 2, 1, dir), dir)
+
+        when:
+        def results = dedup(deduplicator, mols)
+
+        then:
+        results.size() == 1
+        results[0].values.a == [1, 3]
+    }
+
+    void "long set"() {
+
+        def set = new MoleculeDeduplicator.LongSet()
+
+        when:
+        def added = (0..<5000).collect { set.add(MoleculeDeduplicator.hash('C' + it)) }
+        def again = set.add(MoleculeDeduplicator.hash('C1'))
+        set.add(0L)
+
+        then:
+        added.every { it }
+        !again
+        set.size() == 5001
+        set.contains(0L)
+        set.contains(MoleculeDeduplicator.hash('C4999'))
+        !set.contains(MoleculeDeduplicator.hash('N1'))
+    }
+}
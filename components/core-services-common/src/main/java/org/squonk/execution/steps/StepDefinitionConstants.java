@@ -225,6 +225,10 @@ public interface StepDefinitionConstants {
          String CLASSNAME = "org.squonk.execution.steps.impl.DatasetSelectRandomStep";
          String OPTION_RANDOM = "random";
          String OPTION_COUNT = "count";
+         String OPTION_SEED = "seed";
+         String OPTION_WEIGHT_FIELD = "weightField";
+         String OPTION_STRATIFY_FIELD = "stratifyField";
+         String OPTION_ALLOCATION = "allocation";
     }
 
     interface FragnetExpansion {
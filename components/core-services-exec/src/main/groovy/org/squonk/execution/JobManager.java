@@ -36,6 +36,8 @@ import javax.inject.Inject;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.*;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
@@ -48,6 +50,9 @@ import java.util.stream.Collectors;
  * This manager holds the state of executing jobs. A client will submit a job and then poll the manager until results are
  * ready, then fetch the results and finally call a cleanup method to remove the results and any execution artifacts.
  *
+ * Asynchronous jobs are run by a {@link JobScheduler} that limits the number of jobs running at the same time and
+ * queues the rest according to their priority and the user that submitted them.
+ *
  */
 public class JobManager implements ExecutorCallback {
 
@@ -68,18 +73,39 @@ public class JobManager implements ExecutorCallback {
             IOUtils.getConfiguration("SQUONK_JOBEXECUTOR_LOAD_TEST_SERVICE_DESCRIPTORS", "false"));
 
 
-    private final Map<String, ExecutionData> executionDataMap = new LinkedHashMap<>();
+    public static final int DEFAULT_PRIORITY = 0;
+    /** Priorities are limited to the range MIN_PRIORITY to MAX_PRIORITY. Only internal callers should be allowed a
+     * priority above DEFAULT_PRIORITY, otherwise any user could jump the queue.
+     */
+    public static final int MIN_PRIORITY = -5;
+    public static final int MAX_PRIORITY = 5;
+
+    private final Map<String, ExecutionData> executionDataMap = Collections.synchronizedMap(new LinkedHashMap<>());
+
+    /** Jobs ordered by the time they were started and by the time their results became ready so that the jobs to purge
+     * can be found without looking at every job.
+     */
+    private final NavigableSet<TimeIndexEntry> startedIndex = new ConcurrentSkipListSet<>();
+    private final NavigableSet<TimeIndexEntry> resultsReadyIndex = new ConcurrentSkipListSet<>();
+
+    private final JobScheduler scheduler;
 
     private final Map<String,ServiceDescriptor> serviceDescriptors = new HashMap<>();
 
 
     public JobManager() {
+        this.scheduler = new JobScheduler();
         initServiceDescriptors();
     }
 
     public JobManager(boolean loadInitialServiceDescriptors, boolean loadTestServiceDescriptors) {
+        this(loadInitialServiceDescriptors, loadTestServiceDescriptors, new JobScheduler());
+    }
+
+    public JobManager(boolean loadInitialServiceDescriptors, boolean loadTestServiceDescriptors, JobScheduler scheduler) {
         this.loadInitialServiceDescriptors = loadInitialServiceDescriptors;
         this.loadTestServiceDescriptors = loadTestServiceDescriptors;
+        this.scheduler = scheduler;
         initServiceDescriptors();
     }
 
@@ -194,7 +220,35 @@ public class JobManager implements ExecutorCallback {
             Map<String, DataSource> inputs,
             String auth) throws Exception {
 
-        return execute(username, serviceId, options, inputs, true, auth);
+        return execute(username, serviceId, options, inputs, true, auth, DEFAULT_PRIORITY);
+    }
+
+    /** Submit a new job with the specified priority. Jobs with a higher priority are started before those with a lower
+     * priority when there are more jobs than can be run at the same time. The priority is limited to the range
+     * {@link #MIN_PRIORITY} to {@link #MAX_PRIORITY}.
+     *
+     * @param serviceId
+     * @param options
+     * @param inputs
+     * @param username
+     * @param priority
+     * @return
+     * @throws RejectedExecutionException If too many jobs are already waiting to run
+     * @throws Exception
+     */
+    public JobStatus executeAsync(
+            String username,
+            String serviceId,
+            Map<String,Object> options,
+            Map<String, DataSource> inputs,
+            String auth,
+            int priority) throws Exception {
+
+        return execute(username, serviceId, options, inputs, true, auth, clampPriority(priority));
+    }
+
+    public static int clampPriority(int priority) {
+        return Math.max(MIN_PRIORITY, Math.min(MAX_PRIORITY, priority));
     }
 
     private JobStatus execute(
@@ -203,7 +257,8 @@ public class JobManager implements ExecutorCallback {
             Map<String, Object> options,
             Map<String, DataSource> inputs,
             boolean async,
-            String auth) throws Exception {
+            String auth,
+            int priority) throws Exception {
 
         if (inputs == null) {
             LOG.info("Executing with no inputs");
@@ -231,23 +286,27 @@ public class JobManager implements ExecutorCallback {
         ExecutionData executionData = new ExecutionData();
         executionData.executor = executor;
         executionData.jobStatus = jobStatus;
+        executionData.started = jobStatus.getStarted() == null ? System.currentTimeMillis() : jobStatus.getStarted().getTime();
         executionDataMap.put(executor.getJobId(), executionData);
+        startedIndex.add(new TimeIndexEntry(executionData.started, executor.getJobId()));
 
         if (async) {
             LOG.info("Async execution of job " + executor.getJobId());
-            // TODO - handle with a thread pool or work queue?
-            Thread t = new Thread() {
-                @Override
-                public void run() {
+            try {
+                scheduler.submit(executor.getJobId(), username, priority, () -> {
                     try {
+                        updateStatus(executor.getJobId(), Status.RUNNING);
                         executor.execute();
                     } catch (Exception e) {
-                        throw new RuntimeException("Failed to submit job", e);
+                        LOG.log(Level.SEVERE, "Failed to execute job " + executor.getJobId(), e);
                     }
-                }
-            };
-            t.start();
-            jobStatus = updateStatus(executor.getJobId(), Status.RUNNING);
+                });
+            } catch (RejectedExecutionException e) {
+                LOG.warning("Job " + executor.getJobId() + " rejected: " + e.getMessage());
+                updateStatus(executor.getJobId(), Status.ERROR, e.getMessage(), null, null);
+                removeExecutionData(executor.getJobId());
+                throw e;
+            }
         } else {
             LOG.info("Sync execution of job " + executor.getJobId());
             executor.execute();
@@ -397,12 +456,14 @@ public class JobManager implements ExecutorCallback {
             return Collections.emptyList();
         }
         List<JobStatus> jobs = new ArrayList<>();
-        executionDataMap.entrySet().forEach((e) -> {
-            JobStatus jobStatus = e.getValue().jobStatus;
-            if (username.equalsIgnoreCase(jobStatus.getUsername())) {
-                jobs.add(jobStatus);
-            }
-        });
+        synchronized (executionDataMap) {
+            executionDataMap.entrySet().forEach((e) -> {
+                JobStatus jobStatus = e.getValue().jobStatus;
+                if (username.equalsIgnoreCase(jobStatus.getUsername())) {
+                    jobs.add(jobStatus);
+                }
+            });
+        }
         LOG.fine("Found " + jobs.size() + " jobs");
         return jobs;
     }
@@ -474,7 +535,7 @@ public class JobManager implements ExecutorCallback {
             } finally {
                 // job complete and state persisted so we can remove it
                 LOG.log(Level.INFO, "removing jobId " + jobId);
-                executionDataMap.remove(jobId);
+                removeExecutionData(jobId);
             }
         } else {
             LOG.log(Level.SEVERE,
@@ -495,6 +556,9 @@ public class JobManager implements ExecutorCallback {
         JobStatus jobStatus = null;
         if (executor != null) {
             try {
+                if (scheduler.cancel(jobId)) {
+                    LOG.log(Level.INFO, "Removed jobId " + jobId + " before it started");
+                }
                 LOG.log(Level.INFO, "Invoking executor.cancel() for jobId " + jobId);
                 executor.cancel();
                 // set the persisted status to cancelled
@@ -504,66 +568,101 @@ public class JobManager implements ExecutorCallback {
                 // should we retry later?
             } finally {
                 // job cancelled and state persisted so we can remove it
-                executionDataMap.remove(jobId);
+                removeExecutionData(jobId);
             }
         }
         return jobStatus;
     }
 
     /** Expected to be called by a daemon process that cleans up jobs that a client seems to have forgotten about.
+     * Only the jobs that have expired are looked at.
      *
      * @param timeSinceStarted
      * @param timeSinceResultsReady
      */
     public void purgeJobs(long timeSinceStarted, long timeSinceResultsReady) {
-        long now = new Date().getTime();
-        for (ExecutionData executionData: executionDataMap.values()) {
-            JobStatus jobStatus = executionData.jobStatus;
-            ExternalExecutor executor = executionData.executor;
+        long now = System.currentTimeMillis();
 
-            if (jobStatus.getStatus() == Status.RESULTS_READY &&
-                    now - jobStatus.getCompleted().getTime() > timeSinceResultsReady) {
+        for (TimeIndexEntry entry : expired(resultsReadyIndex, now - timeSinceResultsReady)) {
+            ExecutionData executionData = executionDataMap.get(entry.jobId);
+            if (executionData == null) {
+                resultsReadyIndex.remove(entry);
+            } else if (executionData.jobStatus.getStatus() == Status.RESULTS_READY) {
                 // job completed but the results were never fetched
+                purgeResultsNotFetched(executionData);
+            }
+        }
 
-                // try to cleanup the runner
-                try {
-                    LOG.log(Level.INFO, "Trying to cleanup job " + jobStatus.getJobId());
-                    executor.cleanup();
-                } catch (Exception e) {
-                    LOG.log(Level.SEVERE, "Failed to cleanup job " + jobStatus.getJobId());
-                }
+        for (TimeIndexEntry entry : expired(startedIndex, now - timeSinceStarted)) {
+            ExecutionData executionData = executionDataMap.get(entry.jobId);
+            if (executionData == null) {
+                startedIndex.remove(entry);
+            } else if (executionData.jobStatus.getStatus() != Status.RESULTS_READY) {
+                // job has been running for too long so we kill it
+                purgeTookTooLong(executionData);
+            }
+        }
+    }
 
-                // set status to error
-                try {
-                    updateStatus(jobStatus.getJobId(), Status.ERROR, ExecutableJob.MSG_RESULTS_NOT_FETCHED, null, null);
-                } catch (IOException e) {
-                    LOG.log(Level.SEVERE, "Failed to set job status to ERROR for job " + jobStatus.getJobId());
-                }
+    /** Copy the entries from before the specified time as the index is modified as the jobs are purged.
+     */
+    private List<TimeIndexEntry> expired(NavigableSet<TimeIndexEntry> index, long before) {
+        return new ArrayList<>(index.headSet(new TimeIndexEntry(before, ""), false));
+    }
 
-                // purge - results can no longer be fetched
-                executionDataMap.remove(jobStatus.getJobId());
+    private void purgeResultsNotFetched(ExecutionData executionData) {
+        JobStatus jobStatus = executionData.jobStatus;
+        ExternalExecutor executor = executionData.executor;
 
-            } else if (now - jobStatus.getStarted().getTime() > timeSinceStarted) {
-                // job has been running for too long so we kill it
+        // try to cleanup the runner
+        try {
+            LOG.log(Level.INFO, "Trying to cleanup job " + jobStatus.getJobId());
+            executor.cleanup();
+        } catch (Exception e) {
+            LOG.log(Level.SEVERE, "Failed to cleanup job " + jobStatus.getJobId());
+        }
 
-                // try to cancel the execution
-                try {
-                    LOG.log(Level.INFO, "Trying to cancel job " + jobStatus.getJobId());
-                    executor.cancel();
-                } catch (Exception e) {
-                    LOG.log(Level.SEVERE, "Failed to terminate job " + jobStatus.getJobId());
-                }
+        // set status to error
+        try {
+            updateStatus(jobStatus.getJobId(), Status.ERROR, ExecutableJob.MSG_RESULTS_NOT_FETCHED, null, null);
+        } catch (IOException e) {
+            LOG.log(Level.SEVERE, "Failed to set job status to ERROR for job " + jobStatus.getJobId());
+        }
 
-                // set the status to error
-                try {
-                    updateStatus(jobStatus.getJobId(), Status.ERROR, ExecutableJob.MSG_JOB_TOOK_TOO_LONG, null, null);
-                } catch (IOException e) {
-                    LOG.log(Level.SEVERE, "Failed to set job status to ERROR for job " + jobStatus.getJobId());
-                }
+        // purge - results can no longer be fetched
+        removeExecutionData(jobStatus.getJobId());
+    }
 
-                // purge
-                executionDataMap.remove(jobStatus.getJobId());
+    private void purgeTookTooLong(ExecutionData executionData) {
+        JobStatus jobStatus = executionData.jobStatus;
+        ExternalExecutor executor = executionData.executor;
 
+        // try to cancel the execution
+        try {
+            LOG.log(Level.INFO, "Trying to cancel job " + jobStatus.getJobId());
+            scheduler.cancel(jobStatus.getJobId());
+            executor.cancel();
+        } catch (Exception e) {
+            LOG.log(Level.SEVERE, "Failed to terminate job " + jobStatus.getJobId());
+        }
+
+        // set the status to error
+        try {
+            updateStatus(jobStatus.getJobId(), Status.ERROR, ExecutableJob.MSG_JOB_TOOK_TOO_LONG, null, null);
+        } catch (IOException e) {
+            LOG.log(Level.SEVERE, "Failed to set job status to ERROR for job " + jobStatus.getJobId());
+        }
+
+        // purge
+        removeExecutionData(jobStatus.getJobId());
+    }
+
+    private void removeExecutionData(String jobId) {
+        ExecutionData executionData = executionDataMap.remove(jobId);
+        if (executionData != null) {
+            startedIndex.remove(new TimeIndexEntry(executionData.started, jobId));
+            if (executionData.resultsReady >= 0) {
+                resultsReadyIndex.remove(new TimeIndexEntry(executionData.resultsReady, jobId));
             }
         }
     }
@@ -626,6 +725,14 @@ public class JobManager implements ExecutorCallback {
         if (jobStatus != null) {
             executionData.jobStatus = jobStatus;
         }
+        if (status == Status.RESULTS_READY) {
+            synchronized (executionData) {
+                if (executionData.resultsReady < 0) {
+                    executionData.resultsReady = System.currentTimeMillis();
+                    resultsReadyIndex.add(new TimeIndexEntry(executionData.resultsReady, jobId));
+                }
+            }
+        }
         return jobStatus;
     }
 
@@ -635,7 +742,37 @@ public class JobManager implements ExecutorCallback {
 
     class ExecutionData {
         ExternalExecutor executor;
-        JobStatus jobStatus;
+        volatile JobStatus jobStatus;
+        long started;
+        long resultsReady = -1;
+    }
+
+    /** A job in one of the time indexes, ordered by time and then by job ID.
+     */
+    static class TimeIndexEntry implements Comparable<TimeIndexEntry> {
+        final long time;
+        final String jobId;
+
+        TimeIndexEntry(long time, String jobId) {
+            this.time = time;
+            this.jobId = jobId;
+        }
+
+        @Override
+        public int compareTo(TimeIndexEntry o) {
+            int c = Long.compare(time, o.time);
+            return c != 0 ? c : jobId.compareTo(o.jobId);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof TimeIndexEntry && compareTo((TimeIndexEntry) o) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(time) * 31 + jobId.hashCode();
+        }
     }
 
 }
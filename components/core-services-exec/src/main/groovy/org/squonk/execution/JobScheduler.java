@@ -0,0 +1,249 @@
+/*
+ * Copyright (c) 2019 Informatics Matters Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.squonk.execution;
+
+import org.squonk.util.IOUtils;
+
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs jobs using a bounded number of worker threads.
+ * <p>
+ * Jobs that cannot be started immediately are queued. Jobs with a higher priority are always started first, and jobs
+ * with the same priority are taken from each user's queue in turn so that one user submitting many jobs does not block
+ * jobs from other users. When the total number of queued jobs, or the number queued for one user, reaches its limit
+ * further submissions are rejected with a {@link RejectedExecutionException} so that the caller can retry later.
+ * <p>
+ * The limits can be set using SQUONK_JOBEXECUTOR_MAX_THREADS (default 32), SQUONK_JOBEXECUTOR_MAX_QUEUED
+ * (default 200) and SQUONK_JOBEXECUTOR_MAX_QUEUED_PER_USER (default 50). The jobs run in external containers or
+ * services and their threads spend most of their time waiting for those to complete, so the number of threads is not
+ * related to the number of processors of the job executor. It limits how many external executions can be in progress
+ * at once and should be set according to the capacity of the services that run them.
+ *
+ * @author timbo
+ */
+public class JobScheduler {
+
+    private static final Logger LOG = Logger.getLogger(JobScheduler.class.getName());
+
+    public static final int DEFAULT_MAX_THREADS = Integer.parseInt(IOUtils.getConfiguration(
+            "SQUONK_JOBEXECUTOR_MAX_THREADS", "32"));
+    public static final int DEFAULT_MAX_QUEUED = Integer.parseInt(IOUtils.getConfiguration(
+            "SQUONK_JOBEXECUTOR_MAX_QUEUED", "200"));
+    public static final int DEFAULT_MAX_QUEUED_PER_USER = Integer.parseInt(IOUtils.getConfiguration(
+            "SQUONK_JOBEXECUTOR_MAX_QUEUED_PER_USER", "50"));
+
+    private final int maxThreads;
+    private final int maxQueued;
+    private final int maxQueuedPerUser;
+    private final ExecutorService executor;
+
+    /**
+     * Queued jobs keyed by priority (highest first) and then by username in the order the users are to be served
+     */
+    private final TreeMap<Integer, LinkedHashMap<String, Deque<Job>>> queues = new TreeMap<>(Comparator.reverseOrder());
+    private final Map<String, Job> queuedJobs = new HashMap<>();
+    private final Map<String, Integer> queuedPerUser = new HashMap<>();
+    private int running = 0;
+    private boolean shutdown = false;
+
+    public JobScheduler() {
+        this(DEFAULT_MAX_THREADS, DEFAULT_MAX_QUEUED, DEFAULT_MAX_QUEUED_PER_USER);
+    }
+
+    /**
+     * @param maxThreads       The maximum number of jobs to run at the same time
+     * @param maxQueued        The maximum number of jobs waiting to run
+     * @param maxQueuedPerUser The maximum number of jobs waiting to run for any one user
+     */
+    public JobScheduler(int maxThreads, int maxQueued, int maxQueuedPerUser) {
+        if (maxThreads < 1) {
+            throw new IllegalArgumentException("Must allow at least one thread");
+        }
+        this.maxThreads = maxThreads;
+        this.maxQueued = maxQueued;
+        this.maxQueuedPerUser = maxQueuedPerUser;
+        this.executor = Executors.newFixedThreadPool(maxThreads, new WorkerThreadFactory());
+        LOG.info(String.format("Running jobs with %s threads. Max queued is %s, max queued per user is %s",
+                maxThreads, maxQueued, maxQueuedPerUser));
+    }
+
+    /**
+     * Submit a job to be run when a thread is available.
+     *
+     * @param jobId    The ID of the job, used to cancel it if it has not yet started
+     * @param username The user the job is for
+     * @param priority The priority. Jobs with a higher value are started first.
+     * @param task     The job to run
+     * @throws RejectedExecutionException If too many jobs are already queued
+     */
+    public synchronized void submit(String jobId, String username, int priority, Runnable task) {
+        if (shutdown) {
+            throw new RejectedExecutionException("Scheduler has been shut down");
+        }
+        if (running >= maxThreads) {
+            if (queuedJobs.size() >= maxQueued) {
+                throw new RejectedExecutionException("Too many jobs are waiting to run. Please try again later.");
+            }
+            if (queuedPerUser.getOrDefault(username, 0) >= maxQueuedPerUser) {
+                throw new RejectedExecutionException("Too many jobs are waiting to run for user " + username + ". Please try again later.");
+            }
+        }
+        Job job = new Job(jobId, username, priority, task);
+        queues.computeIfAbsent(priority, p -> new LinkedHashMap<>())
+                .computeIfAbsent(username, u -> new ArrayDeque<>())
+                .add(job);
+        queuedJobs.put(jobId, job);
+        queuedPerUser.merge(username, 1, Integer::sum);
+        dispatch();
+    }
+
+    /**
+     * Remove a job that has not yet started.
+     *
+     * @param jobId The ID of the job
+     * @return true if the job was waiting and has been removed, false if it is running, has finished or is not known
+     */
+    public synchronized boolean cancel(String jobId) {
+        Job job = queuedJobs.get(jobId);
+        if (job == null) {
+            return false;
+        }
+        LinkedHashMap<String, Deque<Job>> users = queues.get(job.priority);
+        Deque<Job> jobs = users.get(job.username);
+        jobs.remove(job);
+        if (jobs.isEmpty()) {
+            users.remove(job.username);
+            if (users.isEmpty()) {
+                queues.remove(job.priority);
+            }
+        }
+        dequeued(job);
+        return true;
+    }
+
+    public synchronized int getRunningCount() {
+        return running;
+    }
+
+    public synchronized int getQueuedCount() {
+        return queuedJobs.size();
+    }
+
+    /**
+     * Stop accepting jobs. Jobs that are still queued are discarded, running jobs are allowed to complete.
+     */
+    public void shutdown() {
+        synchronized (this) {
+            shutdown = true;
+            queues.clear();
+            queuedJobs.clear();
+            queuedPerUser.clear();
+        }
+        executor.shutdown();
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return executor.awaitTermination(timeout, unit);
+    }
+
+    /**
+     * Start queued jobs while there are free threads. Must be called while holding the lock.
+     */
+    private void dispatch() {
+        while (running < maxThreads && !queues.isEmpty()) {
+            Job job = next();
+            running++;
+            executor.execute(() -> run(job));
+        }
+    }
+
+    /**
+     * Take the next job from the highest priority queue, serving that priority's users in turn
+     */
+    private Job next() {
+        Map.Entry<Integer, LinkedHashMap<String, Deque<Job>>> entry = queues.firstEntry();
+        LinkedHashMap<String, Deque<Job>> users = entry.getValue();
+        String username = users.keySet().iterator().next();
+        Deque<Job> jobs = users.remove(username);
+        Job job = jobs.poll();
+        if (!jobs.isEmpty()) {
+            // move the user to the back of the line
+            users.put(username, jobs);
+        } else if (users.isEmpty()) {
+            queues.remove(entry.getKey());
+        }
+        dequeued(job);
+        return job;
+    }
+
+    private void dequeued(Job job) {
+        queuedJobs.remove(job.jobId);
+        queuedPerUser.computeIfPresent(job.username, (u, c) -> c > 1 ? c - 1 : null);
+    }
+
+    private void run(Job job) {
+        try {
+            LOG.fine("Starting job " + job.jobId);
+            job.task.run();
+        } catch (Throwable t) {
+            LOG.log(Level.SEVERE, "Job " + job.jobId + " failed", t);
+        } finally {
+            synchronized (this) {
+                running--;
+                if (!shutdown) {
+                    dispatch();
+                }
+            }
+        }
+    }
+
+    private static class Job {
+
+        final String jobId;
+        final String username;
+        final int priority;
+        final Runnable task;
+
+        Job(String jobId, String username, int priority, Runnable task) {
+            this.jobId = jobId;
+            this.username = username;
+            this.priority = priority;
+            this.task = task;
+        }
+    }
+
+    private static class WorkerThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "squonk-job-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
@@ -19,17 +19,22 @@ package org.squonk.execution.steps;
 import org.apache.camel.CamelContext;
 import org.apache.camel.ProducerTemplate;
 import org.squonk.core.ServiceDescriptor;
+import org.squonk.dataset.Dataset;
 import org.squonk.execution.variable.VariableManager;
 import org.squonk.io.IODescriptor;
 import org.squonk.jobdef.StepsCellExecutorJobDefinition;
 import org.squonk.notebook.api.VariableKey;
+import org.squonk.stream.StreamPipe;
 import org.squonk.util.CamelRouteStatsRecorder;
 import org.squonk.util.IOUtils;
 import org.squonk.util.StatsRecorder;
 
+import java.io.IOException;
 import java.util.*;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /** Notebook executor for steps.
  *
@@ -69,6 +74,12 @@ import java.util.stream.Collectors;
  * If the job definition does not provide a definition for the cell's outputs the outputs of the last step are used.
  * This could be the case where e.g. there is only a single step and no conversions are needed.
  *
+ * Datasets that are output by a step as a Stream are connected to whatever consumes them (the next step, or writing
+ * the cell's outputs) through a bounded queue (see {@link StreamPipe}) so that the records flow through the steps
+ * concurrently, with each step processing its records on its own thread. Only steps that need all the records (e.g.
+ * sorting) hold them all. The size of the queue can be set using SQUONK_STEP_PIPELINE_QUEUE_SIZE (default 1000
+ * records). Set it to 0 to disable this so that all the processing is done by the thread that consumes the output.
+ *
  *
  * @author timbo
  */
@@ -76,6 +87,8 @@ public class StepExecutor {
 
     private static final Logger LOG = Logger.getLogger(StepExecutor.class.getName());
 
+    public static final int DEFAULT_PIPELINE_QUEUE_SIZE = Integer.parseInt(IOUtils.getConfiguration("SQUONK_STEP_PIPELINE_QUEUE_SIZE", "1000"));
+
     private final VariableManager varman;
     private final Long cellId;
     private final StepsCellExecutorJobDefinition jobdef;
@@ -84,6 +97,8 @@ public class StepExecutor {
     private volatile List<Step> steps = new ArrayList<>();
     private volatile Step currentStep;
     private final List<Map<String, Integer>> statsList = new ArrayList<>();
+    private final List<Stream> pipes = new ArrayList<>();
+    private int pipelineQueueSize = DEFAULT_PIPELINE_QUEUE_SIZE;
 
     public StepExecutor(Long cellId, String jobid, StepsCellExecutorJobDefinition jobdef, VariableManager varman) {
         this(cellId, jobid, jobdef, varman, null);
@@ -103,6 +118,18 @@ public class StepExecutor {
         return statsList;
     }
 
+    public int getPipelineQueueSize() {
+        return pipelineQueueSize;
+    }
+
+    /** Set the number of records that are queued between steps. If zero the steps are not pipelined.
+     *
+     * @param pipelineQueueSize
+     */
+    public void setPipelineQueueSize(int pipelineQueueSize) {
+        this.pipelineQueueSize = pipelineQueueSize;
+    }
+
     private <K,V> Map<K,V> fetchMapNotNull(Map<K,V> valuesOrNull) {
         return valuesOrNull == null ? Collections.emptyMap() : valuesOrNull;
     }
@@ -113,6 +140,18 @@ public class StepExecutor {
 
 
     public void execute(CamelContext camelContext, String auth) throws Exception {
+        try {
+            doExecute(camelContext, auth);
+        } finally {
+            // stop any pipes whose output was not consumed
+            for (Stream pipe : pipes) {
+                pipe.close();
+            }
+            pipes.clear();
+        }
+    }
+
+    private void doExecute(CamelContext camelContext, String auth) throws Exception {
 
         StepDefinition[] stepDefs = jobdef.getSteps();
 
@@ -217,13 +256,17 @@ public class StepExecutor {
             Map<String, Object> outputs = step.execute(stepInputs);
 
             // map the outputs to be the next inputs
-            outputs.forEach((k, v) -> {
-                String name = stepOutputVariableMappings.get(k);
+            for (Map.Entry<String, Object> e : outputs.entrySet()) {
+                String name = stepOutputVariableMappings.get(e.getKey());
                 if (name == null) {
-                    name = k;
+                    name = e.getKey();
+                }
+                Object v = e.getValue();
+                if (v instanceof Dataset) {
+                    pipe((Dataset) v);
                 }
                 inputs.setInput(cellId, name, v);
-            });
+            }
             Map<String, Integer> stats = step.getUsageStats();
             statsList.add(stats);
         }
@@ -260,6 +303,20 @@ public class StepExecutor {
         }
     }
 
+    /** If the Dataset is a Stream then read it on another thread so that the processing is done concurrently with
+     * that of its consumer.
+     */
+    private void pipe(Dataset dataset) throws IOException {
+        Class sourceType = dataset.getSourceType();
+        if (pipelineQueueSize > 0 && sourceType != null &&
+                (Stream.class.isAssignableFrom(sourceType) || Iterator.class.isAssignableFrom(sourceType))) {
+            Stream piped = StreamPipe.pipe(dataset.getStream(), pipelineQueueSize);
+            dataset.replaceStream(piped);
+            pipes.add(piped);
+            LOG.log(Level.FINE, "Pipelining dataset of type {0}", dataset.getType());
+        }
+    }
+
     private IODescriptor findIODescriptor(IODescriptor[] iods, String name) {
         if (iods == null) {
             return null;
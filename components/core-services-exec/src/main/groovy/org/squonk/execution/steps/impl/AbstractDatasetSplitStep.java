@@ -1,17 +1,42 @@
 package org.squonk.execution.steps.impl;
 
 import org.squonk.dataset.Dataset;
+import org.squonk.dataset.DatasetMetadata;
 import org.squonk.execution.steps.AbstractStep;
 import org.squonk.io.IODescriptor;
 import org.squonk.types.BasicObject;
+import org.squonk.types.io.BinaryHandler;
+import org.squonk.types.io.MarshalingInputStream;
+import org.squonk.util.IOUtils;
 
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.function.ToIntFunction;
+import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.stream.Stream;
 
+/**
+ * Base class for steps that split a dataset into several outputs.
+ * <p>
+ * Use {@link #split(Dataset, String[], ToIntFunction)} to route each record to one of the outputs in a single pass
+ * over the input. Each output holds its records in memory until there are more than
+ * SQUONK_SPLIT_MAX_IN_MEMORY (default 10000) of them, after which they are written to a temporary file that is read
+ * back when the output is consumed and then deleted. The size and value classes of each output are collected as the
+ * records are routed.
+ */
 public abstract class AbstractDatasetSplitStep<P extends BasicObject> extends AbstractStep  {
 
     private static final Logger LOG = Logger.getLogger(AbstractDatasetSplitStep.class.getName());
 
+    protected static final int DEFAULT_MAX_IN_MEMORY = Integer.parseInt(IOUtils.getConfiguration("SQUONK_SPLIT_MAX_IN_MEMORY", "10000"));
+
+    protected int maxInMemory = DEFAULT_MAX_IN_MEMORY;
+
     protected Map<String, Object> doExecute(Map<String, Object> inputs) throws Exception {
         if (inputs.size() == 0) {
             throw new IllegalArgumentException("Single dataset expected - found none");
@@ -32,4 +57,130 @@ public abstract class AbstractDatasetSplitStep<P extends BasicObject> extends Ab
     }
 
     protected abstract Map<String,Object> doExecuteWithDataset(Dataset<P> input) throws Exception;
+
+    /**
+     * Split the input in a single pass.
+     *
+     * @param input       The dataset to split
+     * @param outputNames The names of the outputs
+     * @param router      Gives the index in outputNames of the output for a record, or -1 to discard the record
+     * @return The output Datasets keyed by name, in the order of outputNames
+     * @throws IOException
+     */
+    protected Map<String, Object> split(Dataset<P> input, String[] outputNames, ToIntFunction<P> router) throws IOException {
+
+        DatasetMetadata<P> inputMeta = input.getMetadata() == null ? new DatasetMetadata<>(input.getType()) : input.getMetadata();
+        List<DatasetSink<P>> sinks = new ArrayList<>(outputNames.length);
+        for (int i = 0; i < outputNames.length; i++) {
+            sinks.add(new DatasetSink<>(inputMeta.clone(), maxInMemory));
+        }
+        try (Stream<P> stream = input.getStream()) {
+            Iterator<P> it = stream.sequential().iterator();
+            while (it.hasNext()) {
+                P item = it.next();
+                int idx = router.applyAsInt(item);
+                if (idx >= 0) {
+                    sinks.get(idx).add(item);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            sinks.forEach(DatasetSink::discard);
+            throw e;
+        }
+
+        Map<String, Object> results = new LinkedHashMap<>(outputNames.length);
+        for (int i = 0; i < outputNames.length; i++) {
+            Dataset<P> dataset = sinks.get(i).toDataset();
+            LOG.info("Number " + outputNames[i] + "=" + dataset.getSize());
+            results.put(outputNames[i], dataset);
+        }
+        return results;
+    }
+
+    protected static int getSize(Map<String, Object> results, String name) {
+        return ((Dataset) results.get(name)).getSize();
+    }
+
+    /**
+     * Collects the records for one output, spilling them to a temporary file if there are too many to hold in memory.
+     */
+    static class DatasetSink<P extends BasicObject> {
+
+        private static final BinaryHandler BINARY = BinaryHandler.getInstance();
+
+        private final DatasetMetadata<P> metadata;
+        private final int maxInMemory;
+        private List<P> items = new ArrayList<>();
+        private File file;
+        private OutputStream out;
+        private MarshalingInputStream.ItemWriter<P> writer;
+        private int count = 0;
+
+        DatasetSink(DatasetMetadata<P> metadata, int maxInMemory) {
+            this.metadata = metadata;
+            this.maxInMemory = maxInMemory;
+        }
+
+        void add(P item) throws IOException {
+            count++;
+            Map<String, Class> mappings = metadata.getValueClassMappings();
+            for (Map.Entry<String, Object> e : item.getValues().entrySet()) {
+                if (e.getValue() != null) {
+                    mappings.putIfAbsent(e.getKey(), e.getValue().getClass());
+                }
+            }
+            if (writer == null && items.size() >= maxInMemory) {
+                spill();
+            }
+            if (writer == null) {
+                items.add(item);
+            } else {
+                writer.write(item);
+            }
+        }
+
+        private void spill() throws IOException {
+            file = File.createTempFile("squonk-split-", ".bin");
+            LOG.fine("Writing split output to " + file.getPath());
+            out = new FileOutputStream(file);
+            // the writer uses the live mappings so that value classes that are found later are handled
+            writer = BINARY.createWriter(out, metadata);
+            for (P item : items) {
+                writer.write(item);
+            }
+            items = null;
+        }
+
+        Dataset<P> toDataset() throws IOException {
+            metadata.setSize(count);
+            if (writer == null) {
+                return new Dataset<>(items, metadata);
+            }
+            try {
+                writer.close();
+            } finally {
+                out.close();
+            }
+            final File f = file;
+            InputStream is = new BufferedInputStream(new FileInputStream(f), 65536);
+            Stream<P> stream = BINARY.streamFromBinary(is, metadata.getType(), true)
+                    .sequential()
+                    .onClose(() -> f.delete());
+            return new Dataset<>(stream, metadata);
+        }
+
+        void discard() {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    LOG.log(Level.WARNING, "Failed to close writer", e);
+                }
+                IOUtils.close(out);
+            }
+            if (file != null) {
+                file.delete();
+            }
+        }
+    }
 }
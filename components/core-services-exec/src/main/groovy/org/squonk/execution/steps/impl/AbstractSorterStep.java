@@ -20,7 +20,9 @@ import org.squonk.execution.steps.StepDefinitionConstants;
 import org.squonk.types.BasicObject;
 import org.squonk.dataset.Dataset;
 import org.squonk.dataset.DatasetMetadata;
+import org.squonk.dataset.ExternalMergeSorter;
 
+import java.io.IOException;
 import java.util.Comparator;
 import java.util.List;
 import java.util.stream.Stream;
@@ -39,6 +41,22 @@ public abstract class AbstractSorterStep<P extends BasicObject> extends Abstract
         return sorted;
     }
 
+    /** Sort using an {@link ExternalMergeSorter} so that datasets that are too big to sort in memory are spilled to
+     * temporary files. The metadata is needed to describe the type of the items and their values.
+     * If there is no metadata the sort is done in memory.
+     */
+    protected Stream<P> doSort(Stream<P> input, List<SortDirective> sortDirectives, DatasetMetadata<P> meta) throws IOException {
+
+        if (meta == null || meta.getType() == null) {
+            return doSort(input, sortDirectives);
+        }
+        ExternalMergeSorter<P> sorter = new ExternalMergeSorter<>(meta.getType(), new SortComparator<P>(sortDirectives), meta);
+        Stream<P> sorted = sorter.sort(input);
+        sorted = addStreamCounter(sorted, MSG_PROCESSED);
+
+        return sorted;
+    }
+
     class SortDirective {
 
         String field;
@@ -21,6 +21,7 @@ import org.squonk.core.DefaultServiceDescriptor;
 import org.squonk.core.ServiceConfig;
 import org.squonk.dataset.Dataset;
 import org.squonk.dataset.DatasetMetadata;
+import org.squonk.dataset.HashJoiner;
 import org.squonk.execution.steps.AbstractThinStep;
 import org.squonk.execution.steps.StepDefinitionConstants;
 import org.squonk.io.IODescriptor;
@@ -51,8 +52,8 @@ import java.util.stream.Stream;
  * is ignored) whilst OPT_MERGE_VALUES specified to merge the values. Both are boolean values and one or both must
  * be specified.
  *
- * The second dataset is collected in memory, so very large datasets should be avoided. There should be no reasonable
- * limit for the first dataset.
+ * The second dataset is collected in memory if it is small enough. If not both datasets are partitioned to temporary
+ * files and joined partition by partition. See {@link HashJoiner}.
  *
  * This step is somewhat similar to the {@link DatasetMergerStep}
  *
@@ -141,39 +142,33 @@ public class DatasetEnricherStep extends AbstractThinStep {
 
         statusMessage = "Merging data";
 
-        Map<Object, BasicObject> newData = new HashMap<>();
         Set<String> updatedFields = Collections.synchronizedSet(new HashSet<>());
-        try (Stream<? extends BasicObject> st = extraDataset.getStream()) {
-            st.forEachOrdered((BasicObject bo) -> {
-                Object comparator = fetchValueToCompare(bo, extraField);
-                if (comparator != null) {
-                    BasicObject existing = newData.get(comparator);
-                    if (existing != null) {
-                        throw new IllegalStateException("Values to merge contain duplicate keys: " + comparator);
-                    } else {
-                        bo.clearValue(extraField);
-                        newData.put(comparator, bo);
-                        if (mode != Mode.main) {
-                            updatedFields.addAll(bo.getValues().keySet());
-                        }
+        Stream<? extends BasicObject> extraStream = extraDataset.getStream().peek((BasicObject bo) -> {
+            if (mode != Mode.main && fetchValueToCompare(bo, extraField) != null) {
+                for (String key : bo.getValues().keySet()) {
+                    if (!key.equals(extraField)) {
+                        updatedFields.add(key);
                     }
                 }
-            });
-        }
+            }
+        });
 
-        Stream<? extends BasicObject> enrichedStream = mainDataset.getStream().peek((BasicObject bo) -> {
-            Object comparator = fetchValueToCompare(bo, mainField);
-            if (comparator != null) {
-                BasicObject updates = newData.get(comparator);
-                if (updates != null) {
+        Stream<? extends BasicObject> enrichedStream = new HashJoiner().enrich(
+                (Stream<BasicObject>) mainDataset.getStream(), mainType, (bo) -> fetchValueToCompare(bo, mainField),
+                (Stream<BasicObject>) extraStream, extraType, (bo) -> fetchValueToCompare(bo, extraField),
+                (bo, updates) -> {
                     if (mode != Mode.values) {
-                        bo.merge(updates, mode == Mode.main);
-                    } else {
-                        bo.getValues().putAll(updates.getValues());
+                        bo.merge(updates, true);
                     }
-                }
-            }
-        });
+                    if (mode != Mode.main) {
+                        // the field used to match the records is not merged
+                        for (Map.Entry<String, Object> e : updates.getValues().entrySet()) {
+                            if (!e.getKey().equals(extraField)) {
+                                bo.putValue(e.getKey(), e.getValue());
+                            }
+                        }
+                    }
+                });
 
         enrichedStream = addStreamCounter(enrichedStream, MSG_PROCESSED);
 
@@ -16,7 +16,6 @@
 
 package org.squonk.execution.steps.impl;
 
-import groovy.lang.GroovyClassLoader;
 import org.apache.camel.CamelContext;
 import org.apache.camel.TypeConverter;
 import org.squonk.core.DefaultServiceDescriptor;
@@ -28,6 +27,7 @@ import org.squonk.io.IODescriptors;
 import org.squonk.options.MultiLineTextTypeDescriptor;
 import org.squonk.options.OptionDescriptor;
 import org.squonk.types.BasicObject;
+import org.squonk.util.GroovyClassCache;
 
 import java.util.Date;
 import java.util.function.Predicate;
@@ -75,10 +75,9 @@ public class DatasetFilterGroovyStep<P extends BasicObject> extends AbstractData
         }
         LOG.info("Script: " + script);
 
-        GroovyClassLoader gcl = new GroovyClassLoader();
         String clsDef = buildClassDefinition(script);
         LOG.info("Built predicate class:\n" + clsDef);
-        Class<Predicate> cls = gcl.parseClass(clsDef);
+        Class<Predicate> cls = GroovyClassCache.getInstance().parseClass(clsDef);
         Predicate predicate = cls.newInstance();
         statusMessage = "Filtering ...";
         Stream output = input.getStream().filter(predicate);
@@ -19,6 +19,7 @@ package org.squonk.execution.steps.impl;
 import org.squonk.core.DefaultServiceDescriptor;
 import org.squonk.core.ServiceConfig;
 import org.squonk.dataset.DatasetMetadata;
+import org.squonk.dataset.HashJoiner;
 import org.squonk.execution.steps.AbstractThinStep;
 import org.squonk.execution.steps.StepDefinitionConstants;
 import org.squonk.io.IODescriptor;
@@ -42,6 +43,8 @@ import org.squonk.types.io.JsonHandler;
  * dataset. New records are appended to the resulting dataset. Existing records have their data merged. How it is merged
  * is specified by the options.
  * Up to 5 datasets can be merged (we hope to make this more flexible in future).
+ * The merging is done in memory unless the data is too big, in which case it is partitioned to temporary files.
+ * See {@link HashJoiner}.
  * <p>
  * This step is somewhat similar to the {@link DatasetEnricherStep}
  *
@@ -111,7 +114,7 @@ public class DatasetMergerStep extends AbstractThinStep {
         LOG.log(Level.INFO, "Merging using field {0}, keep first value={1}", new Object[]{mergeField, keepFirst});
         statusMessage = "Merging using field " + mergeField;
 
-        Map<Object, BasicObject> results = new LinkedHashMap<>();
+        List<Stream<? extends BasicObject>> streams = new ArrayList<>();
         DatasetMetadata<? extends BasicObject> meta = null;
 
         Class type = null;
@@ -155,34 +158,28 @@ public class DatasetMergerStep extends AbstractThinStep {
                     }
                 }
 
-                statusMessage = "Handling dataset " + i;
-                LOG.log(Level.INFO, "Handling dataset {0}", i);
-                Stream<? extends BasicObject> st = nextDataset.getStream();
-                st.forEachOrdered((BasicObject bo) -> {
-                    Object comparator = fetchValueToCompare(bo, mergeField);
-                    BasicObject existing = results.get(comparator);
-                    if (existing != null) {
-                        if (keepFirst) {
-                            for (Map.Entry<String, Object> e : bo.getValues().entrySet()) {
-                                existing.getValues().putIfAbsent(e.getKey(), e.getValue());
-                            }
-                        } else {
-                            existing.getValues().putAll(bo.getValues());
+                streams.add(nextDataset.getStream());
+            }
+        }
+
+        statusMessage = "Merging " + count + " datasets";
+        Stream<BasicObject> results = new HashJoiner().merge(streams, (Class<BasicObject>) type,
+                (bo) -> fetchValueToCompare(bo, mergeField),
+                (existing, bo) -> {
+                    if (keepFirst) {
+                        for (Map.Entry<String, Object> e : bo.getValues().entrySet()) {
+                            existing.getValues().putIfAbsent(e.getKey(), e.getValue());
                         }
                     } else {
-                        results.put(comparator, bo);
+                        existing.getValues().putAll(bo.getValues());
                     }
                 });
-                st.close();
-
-            }
-        }
 
         meta.getProperties().put(DatasetMetadata.PROP_DESCRIPTION, "Merged from " + count
                 + " datasets using field " + mergeField
                 + ". Sources were: " + sources.stream().collect(Collectors.joining(", ")));
 
-        Dataset output = new Dataset(results.values(), meta);
+        Dataset output = new Dataset(results, meta);
         statusMessage = generateStatusMessage(totalRecordCount, output.getSize(), -1);
         LOG.info("Results: " + JsonHandler.getInstance().objectToJson(output.getMetadata()));
         return Collections.singletonMap(VAR_OUTPUT, output);
@@ -21,18 +21,20 @@ import org.squonk.core.DefaultServiceDescriptor;
 import org.squonk.core.ServiceConfig;
 import org.squonk.dataset.Dataset;
 import org.squonk.dataset.DatasetMetadata;
+import org.squonk.dataset.ReservoirSampler;
 import org.squonk.execution.steps.StepDefinitionConstants;
 import org.squonk.io.IODescriptors;
+import org.squonk.options.DatasetFieldTypeDescriptor;
 import org.squonk.options.OptionDescriptor;
 import org.squonk.types.BasicObject;
 
 import java.util.Date;
-import java.util.Map;
-import java.util.Random;
+import java.util.List;
 import java.util.logging.Logger;
 import java.util.stream.Stream;
 
-/**
+/** Selects a random sample of the records of a dataset.
+ * See {@link ReservoirSampler} for details of the sampling.
  *
  * @author timbo
  */
@@ -44,6 +46,10 @@ public class DatasetSelectRandomStep<P extends BasicObject> extends AbstractData
     public static final String VAR_OUTPUT_DATASET = StepDefinitionConstants.VARIABLE_OUTPUT_DATASET;
     public static final String OPTION_RANDOM = StepDefinitionConstants.DatasetSelectRandom.OPTION_RANDOM;
     public static final String OPTION_COUNT = StepDefinitionConstants.DatasetSelectRandom.OPTION_COUNT;
+    public static final String OPTION_SEED = StepDefinitionConstants.DatasetSelectRandom.OPTION_SEED;
+    public static final String OPTION_WEIGHT_FIELD = StepDefinitionConstants.DatasetSelectRandom.OPTION_WEIGHT_FIELD;
+    public static final String OPTION_STRATIFY_FIELD = StepDefinitionConstants.DatasetSelectRandom.OPTION_STRATIFY_FIELD;
+    public static final String OPTION_ALLOCATION = StepDefinitionConstants.DatasetSelectRandom.OPTION_ALLOCATION;
 
 
     public static final DefaultServiceDescriptor SERVICE_DESCRIPTOR = new DefaultServiceDescriptor("core.dataset.filter.random.v1", "Dataset random selector", "Generate a random slice of the dataset",
@@ -54,15 +60,32 @@ public class DatasetSelectRandomStep<P extends BasicObject> extends AbstractData
             IODescriptors.createBasicObjectDatasetArray(StepDefinitionConstants.VARIABLE_INPUT_DATASET),
             IODescriptors.createBasicObjectDatasetArray(StepDefinitionConstants.VARIABLE_OUTPUT_DATASET),
             new OptionDescriptor[]{
-                    new OptionDescriptor<>(Float.class, StepDefinitionConstants.DatasetSelectRandom.OPTION_RANDOM, "Random fraction (0-1)", "The fraction of records to randomly select (between 0 and 1, default 0.001)", OptionDescriptor.Mode.User),
-                    new OptionDescriptor<>(Integer.class, StepDefinitionConstants.DatasetSelectRandom.OPTION_COUNT, "Max records", "The max number of records to include, default 1000", OptionDescriptor.Mode.User)
+                    new OptionDescriptor<>(Float.class, StepDefinitionConstants.DatasetSelectRandom.OPTION_RANDOM, "Random fraction (0-1)", "The fraction of records to randomly select (between 0 and 1). If not specified up to the max number of records are selected", OptionDescriptor.Mode.User),
+                    new OptionDescriptor<>(Integer.class, StepDefinitionConstants.DatasetSelectRandom.OPTION_COUNT, "Max records", "The max number of records to include, default 1000", OptionDescriptor.Mode.User),
+                    new OptionDescriptor<>(Long.class, StepDefinitionConstants.DatasetSelectRandom.OPTION_SEED, "Random seed", "Seed for the random selection so that the same records are selected each time", OptionDescriptor.Mode.User)
+                            .withMinMaxValues(0, 1),
+                    new OptionDescriptor<>(new DatasetFieldTypeDescriptor(StepDefinitionConstants.VARIABLE_INPUT_DATASET, new Class[]{Integer.class, Float.class, Double.class}),
+                            StepDefinitionConstants.DatasetSelectRandom.OPTION_WEIGHT_FIELD, "Weight field",
+                            "Field whose value is the relative probability of selecting the record. Records without a positive value are not selected", OptionDescriptor.Mode.User)
+                            .withMinMaxValues(0, 1),
+                    new OptionDescriptor<>(new DatasetFieldTypeDescriptor(StepDefinitionConstants.VARIABLE_INPUT_DATASET, new Class[]{String.class, Integer.class}),
+                            StepDefinitionConstants.DatasetSelectRandom.OPTION_STRATIFY_FIELD, "Stratify field",
+                            "Field whose values define the groups of records to sample from", OptionDescriptor.Mode.User)
+                            .withMinMaxValues(0, 1),
+                    new OptionDescriptor<>(String.class, StepDefinitionConstants.DatasetSelectRandom.OPTION_ALLOCATION, "Stratum allocation: proportional or equal",
+                            "Select records from each group in proportion to the group size, or select up to the max number (or fraction) from each group", OptionDescriptor.Mode.User)
+                            .withValues(new String[]{"proportional", "equal"})
+                            .withDefaultValue("proportional")
+                            .withMinMaxValues(0, 1)
             },
             null, null, null,
             DatasetSelectRandomStep.class.getName()
     );
 
-    /** Create a random subset of the dataset up to a maximum (count option, default 1000) number of values selecting items from the start
-     * on random based on a random probability (random option, default 0.001) of selection.
+    /** Create a uniform random sample of the dataset of up to a maximum (count option, default 1000) number of records,
+     * limited to a fraction of the records if the random option is specified. The records can be weighted by the value
+     * of a field and stratified by the value of another. The sample is taken in a single pass holding only the selected
+     * records in memory, and the same seed gives the same sample.
      *
      * @param input
      * @return
@@ -74,19 +97,39 @@ public class DatasetSelectRandomStep<P extends BasicObject> extends AbstractData
         TypeConverter converter = findTypeConverter();
         Float randomOpt = getOption(OPTION_RANDOM, Float.class, converter);
         Integer countOpt = getOption(OPTION_COUNT, Integer.class, converter);
-        float random = randomOpt == null ? 0.001f : randomOpt;
+        Long seed = getOption(OPTION_SEED, Long.class, converter);
+        String weightField = getOption(OPTION_WEIGHT_FIELD, String.class, converter);
+        String stratifyField = getOption(OPTION_STRATIFY_FIELD, String.class, converter);
+        String allocation = getOption(OPTION_ALLOCATION, String.class, converter);
         int count = countOpt == null ? 1000 : countOpt;
 
-        statusMessage = "Setting filter ...";
-        Random g = new Random();
-        Stream<P> stream = input.getStream().sequential();
-        stream = stream.filter(o -> random < g.nextFloat()).limit(count);
-        stream = addStreamCounter(stream, "%s records selected");
+        ReservoirSampler<P> sampler = new ReservoirSampler<>(count, seed);
+        sampler.setFraction(randomOpt);
+        if (weightField != null) {
+            sampler.setWeightFunction(p -> {
+                Object value = p.getValue(weightField);
+                return value instanceof Number ? ((Number) value).doubleValue() : 0d;
+            });
+        }
+        if (stratifyField != null) {
+            sampler.setStratumFunction(p -> p.getValue(stratifyField));
+            if (allocation != null) {
+                sampler.setAllocation(ReservoirSampler.Allocation.valueOf(allocation.toUpperCase()));
+            }
+        }
+
+        statusMessage = "Sampling ...";
+        List<P> results;
+        try (Stream<P> stream = input.getStream()) {
+            results = sampler.sample(stream, true);
+        }
+        statusMessage = String.format("%s records selected", results.size());
+        LOG.fine(statusMessage);
 
         DatasetMetadata<P> meta = input.getMetadata();
-        meta.setSize(0); // will be recalculated
+        meta.setSize(results.size());
 
-        return new Dataset<>(stream, meta);
+        return new Dataset<>(results, meta);
     }
 
 }
\ No newline at end of file
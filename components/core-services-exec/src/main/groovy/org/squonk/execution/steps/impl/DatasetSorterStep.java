@@ -76,7 +76,7 @@ public class DatasetSorterStep<P extends BasicObject> extends AbstractSorterStep
         DatasetMetadata<P> meta = input.getMetadata();
         List<SortDirective> directives = parse(directivesStr, meta);
 
-        Stream<P> sorted = doSort(input.getStream(), directives);
+        Stream<P> sorted = doSort(input.getStream(), directives, meta);
 
         meta.appendDatasetHistory("Sorted according to " + directives.stream()
                 .map((sd) -> sd.field + (sd.ascending ? " ASC" : " DESC"))
@@ -20,7 +20,6 @@ import org.apache.camel.TypeConverter;
 import org.squonk.core.DefaultServiceDescriptor;
 import org.squonk.core.ServiceConfig;
 import org.squonk.dataset.Dataset;
-import org.squonk.dataset.DatasetMetadata;
 import org.squonk.execution.steps.StepDefinitionConstants;
 import org.squonk.execution.steps.AbstractStep;
 import org.squonk.io.IODescriptor;
@@ -31,11 +30,8 @@ import org.squonk.util.CommonMimeTypes;
 import org.squonk.options.DatasetFieldTypeDescriptor;
 
 import java.util.Date;
-import java.util.LinkedHashMap;
-import java.util.List;
 import java.util.Map;
 import java.util.logging.Logger;
-import java.util.stream.Collectors;
 
 /**
  * Created by timbo on 29/12/15.
@@ -78,31 +74,23 @@ public class DatasetSplitOnNullStep<P extends BasicObject> extends AbstractDatas
         LOG.info("Splitting on nulls for field: " + fieldName);
 
         statusMessage = "Splitting ...";
-        Map<Boolean, List<P>> groups = input.getStream()
-                .collect(Collectors.partitioningBy(mo -> {
+        Map<String, Object> results = split(input,
+                new String[]{StepDefinitionConstants.VARIABLE_OUTPUT_PASS, StepDefinitionConstants.VARIABLE_OUTPUT_FAIL},
+                mo -> {
                     Object value = mo.getValue(fieldName);
                     if (value == null) {
-                        return false;
+                        return 1;
                     }
                     if (value instanceof String) {
                         String s = (String)value;
-                        return !s.isEmpty();
+                        return s.isEmpty() ? 1 : 0;
                     } else {
-                        return true;
+                        return 0;
                     }
-                }));
+                });
 
-        statusMessage = groups.get(true).size() + " present and " + groups.get(false).size() + " absent";
-
-        LOG.info("Number present=" + groups.get(true).size());
-        LOG.info("Number absent =" + groups.get(false).size());
-
-        DatasetMetadata presentMeta = input.getMetadata().clone();
-        DatasetMetadata absentMeta = input.getMetadata().clone();
-
-        Map<String, Object> results = new LinkedHashMap(2);
-        results.put(StepDefinitionConstants.VARIABLE_OUTPUT_PASS, new Dataset(groups.get(true), presentMeta));
-        results.put(StepDefinitionConstants.VARIABLE_OUTPUT_FAIL, new Dataset(groups.get(false), absentMeta));
+        statusMessage = getSize(results, StepDefinitionConstants.VARIABLE_OUTPUT_PASS) + " present and " +
+                getSize(results, StepDefinitionConstants.VARIABLE_OUTPUT_FAIL) + " absent";
 
         return results;
     }
@@ -30,8 +30,8 @@ import org.squonk.options.OptionDescriptor;
 import org.squonk.types.BasicObject;
 
 import java.util.*;
+import java.util.function.ToIntFunction;
 import java.util.logging.Logger;
-import java.util.stream.Collectors;
 
 /**
  * Split a dataset based on a fraction of rows or a number of rows.
@@ -40,7 +40,8 @@ import java.util.stream.Collectors;
  * the number of records to put it the pass group. In both cases the remaining records are put in the 'fail' group.
  * The OPTION_RANDOMISE option specifies whether to pick the records randomly (true) or sequentially (false).
  *
- * The entire dataset is held in memory during execution so do not use for very large datasets.
+ * The dataset is split in a single pass and large outputs are written to temporary files rather than held in memory.
+ * If the size of the dataset is not known from its metadata the dataset is read into memory first.
  * <p>
  * Created by timbo on 22/06/2020.
  */
@@ -91,61 +92,42 @@ public class DatasetSplitStep<P extends BasicObject> extends AbstractDatasetSpli
         LOG.info("Splitting count/frac using: " + frac + " randomise: " + rand);
 
         statusMessage = "Splitting ...";
-        List<P> items = input.getStream().collect(Collectors.toList());
-
-        List<P> pass = null;
-        List<P> fail = null;
-        if (frac < 1) {
-            if (rand) {
-                Random g = new Random();
-                pass = new ArrayList<>();
-                int count = Math.round((float)items.size() * frac);
-                for (int i=0; i < count; i++) {
-                    int idx = g.nextInt(items.size());
-                    pass.add(items.remove(idx));
+        Class sourceType = input.getSourceType();
+        if (input.getSize() < 0 || (sourceType != null && List.class.isAssignableFrom(sourceType))) {
+            // the size is needed to know which records to pick, so read them if it is unknown or if they are already a list
+            // (in which case reading them is free)
+            List<P> items = input.getItems();
+            DatasetMetadata<P> meta = input.getMetadata() == null ? new DatasetMetadata<>(input.getType()) : input.getMetadata().clone();
+            meta.setSize(items.size());
+            input = new Dataset<>(items, meta);
+        }
+        final int size = input.getSize();
+        final int count = frac < 1 ? Math.round((float) size * frac) : Math.min(Math.round(frac), size);
+
+        final int[] seen = {0};
+        final int[] picked = {0};
+        ToIntFunction<P> router;
+        if (rand) {
+            // selection sampling so that exactly count records are picked at random in a single pass
+            Random g = new Random();
+            router = bo -> {
+                int remaining = size - seen[0]++;
+                if (picked[0] < count && remaining > 0 && g.nextInt(remaining) < count - picked[0]) {
+                    picked[0]++;
+                    return 0;
                 }
-                fail = items;
-            } else {
-                float sizef = (float)items.size();
-                int cuttoff = Math.round(sizef * frac);
-                pass = items.subList(0, cuttoff);
-                fail = items.subList(cuttoff, items.size());
-            }
+                return 1;
+            };
         } else {
-            int cuttoff = Math.round(frac);
-            if (rand) {
-                Random g = new Random();
-                int count = Math.round(frac);
-                pass = new ArrayList<>();
-                for (int i=0; i < count; i++) {
-                    int idx = g.nextInt(items.size());
-                    pass.add(items.remove(idx));
-                }
-                fail = items;
-            } else {
-                if (cuttoff > items.size()) {
-                    pass = items;
-                    fail = Collections.emptyList();
-                } else {
-                    pass = items.subList(0, cuttoff);
-                    fail = items.subList(cuttoff, items.size());
-                }
-            }
+            router = bo -> seen[0]++ < count ? 0 : 1;
         }
 
-        statusMessage = "Split into " + pass.size() + " and " + fail.size() + " records";
-
-        LOG.info("Number pass=" + pass.size());
-        LOG.info("Number fail=" + fail.size());
-
-        DatasetMetadata passMeta = input.getMetadata().clone();
-        DatasetMetadata failMeta = input.getMetadata().clone();
-        passMeta.setSize(pass.size());
-        failMeta.setSize(fail.size());
+        Map<String, Object> results = split(input,
+                new String[]{StepDefinitionConstants.VARIABLE_OUTPUT_PASS, StepDefinitionConstants.VARIABLE_OUTPUT_FAIL},
+                router);
 
-        Map<String, Object> results = new LinkedHashMap(2);
-        results.put(StepDefinitionConstants.VARIABLE_OUTPUT_PASS, new Dataset(pass, passMeta));
-        results.put(StepDefinitionConstants.VARIABLE_OUTPUT_FAIL, new Dataset(fail, failMeta));
+        statusMessage = "Split into " + getSize(results, StepDefinitionConstants.VARIABLE_OUTPUT_PASS) + " and " +
+                getSize(results, StepDefinitionConstants.VARIABLE_OUTPUT_FAIL) + " records";
 
         return results;
     }
@@ -20,7 +20,6 @@ import org.apache.camel.TypeConverter;
 import org.squonk.core.DefaultServiceDescriptor;
 import org.squonk.core.ServiceConfig;
 import org.squonk.dataset.Dataset;
-import org.squonk.dataset.DatasetMetadata;
 import org.squonk.execution.steps.StepDefinitionConstants;
 import org.squonk.io.IODescriptor;
 import org.squonk.io.IODescriptors;
@@ -36,7 +35,6 @@ import java.util.function.Predicate;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import java.util.stream.Collectors;
 
 /**
  * Split a dataset based on evaluating a user specified expression which is evaluated against a field's contents.
@@ -45,7 +43,7 @@ import java.util.stream.Collectors;
  * Records who's values pass the expression get put in the 'pass' group, those that fail in the 'fail' group.
  * Null values are put in the fail group.
  * <p>
- * The entire dataset is held in memory during execution so do not use for very large datasets.
+ * The dataset is split in a single pass and large outputs are written to temporary files rather than held in memory.
  * <p>
  * Created by timbo on 22/06/2020.
  */
@@ -105,20 +103,12 @@ public class DatasetSplitUsingExpressionStep<P extends BasicObject> extends Abst
 
         statusMessage = "Splitting ...";
         final Predicate<Comparable> pred = createPredicate(expr, type);
-        Map<Boolean, List<P>> groups = input.getStream()
-                .collect(Collectors.partitioningBy(mo -> pred.test((Comparable)mo.getValue(field))));
+        Map<String, Object> results = split(input,
+                new String[]{StepDefinitionConstants.VARIABLE_OUTPUT_PASS, StepDefinitionConstants.VARIABLE_OUTPUT_FAIL},
+                mo -> pred.test((Comparable) mo.getValue(field)) ? 0 : 1);
 
-        statusMessage = groups.get(true).size() + " pass and " + groups.get(false).size() + " fail";
-
-        LOG.info("Number pass = " + groups.get(true).size());
-        LOG.info("Number fail = " + groups.get(false).size());
-
-        DatasetMetadata passMeta = input.getMetadata().clone();
-        DatasetMetadata failMeta = input.getMetadata().clone();
-
-        Map<String, Object> results = new LinkedHashMap(2);
-        results.put(StepDefinitionConstants.VARIABLE_OUTPUT_PASS, new Dataset(groups.get(true), passMeta));
-        results.put(StepDefinitionConstants.VARIABLE_OUTPUT_FAIL, new Dataset(groups.get(false), failMeta));
+        statusMessage = getSize(results, StepDefinitionConstants.VARIABLE_OUTPUT_PASS) + " pass and " +
+                getSize(results, StepDefinitionConstants.VARIABLE_OUTPUT_FAIL) + " fail";
 
         return results;
     }
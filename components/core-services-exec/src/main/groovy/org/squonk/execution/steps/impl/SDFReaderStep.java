@@ -22,16 +22,19 @@ import org.squonk.dataset.Dataset;
 import org.squonk.execution.steps.AbstractStep;
 import org.squonk.execution.steps.StepDefinitionConstants;
 import org.squonk.io.IODescriptor;
+import org.squonk.io.FileDataSource;
 import org.squonk.io.IODescriptors;
 import org.squonk.io.InputStreamDataSource;
 import org.squonk.io.SquonkDataSource;
 import org.squonk.options.FileTypeDescriptor;
 import org.squonk.options.OptionDescriptor;
+import org.squonk.reader.ParallelSDFReader;
 import org.squonk.reader.SDFReader;
 import org.squonk.types.MoleculeObject;
 import org.squonk.types.SDFile;
 import org.squonk.util.CommonMimeTypes;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Collections;
@@ -104,6 +107,17 @@ public class SDFReaderStep extends AbstractStep {
         return reader;
     }
 
+    private ParallelSDFReader createParallelReader(File file) throws IOException {
+        ParallelSDFReader reader = new ParallelSDFReader(file);
+        String nameFieldName = getOption(OPTION_NAME_FIELD_NAME, String.class);
+        if (nameFieldName != null && nameFieldName.length() > 0) {
+            reader.setNameFieldName(nameFieldName);
+        } else {
+            reader.setNameFieldName(null);
+        }
+        return reader;
+    }
+
     @Override
     public Map<String, Object> doExecute(Map<String, Object> inputs) throws Exception {
         statusMessage = "Reading SDF ...";
@@ -121,6 +135,20 @@ public class SDFReaderStep extends AbstractStep {
         } else {
             throw new IllegalArgumentException("Unsupported input type: " + input.getClass().getName());
         }
+        if (dataSource instanceof FileDataSource && ParallelSDFReader.canRead(((FileDataSource) dataSource).getFile())) {
+            // a plain file can be parsed in parallel
+            ParallelSDFReader reader = createParallelReader(((FileDataSource) dataSource).getFile());
+            Stream<MoleculeObject> mols = reader.asStream().onClose(() -> {
+                try {
+                    reader.close();
+                } catch (IOException ioe) {
+                    LOG.warning("Failed to close file");
+                }
+            });
+            mols = addStreamCounter(mols, "%s molecules read");
+            Dataset results = new Dataset(mols, reader.getDatasetMetadata());
+            return Collections.singletonMap("output", results);
+        }
         dataSource.setGzipContent(false);
         SDFReader reader = createReader(dataSource);
         Stream<MoleculeObject> mols = reader.asStream().onClose(() -> {
@@ -79,7 +79,7 @@ public class SimpleSorterStep<P extends BasicObject> extends AbstractSorterStep<
 
         DatasetMetadata<P> meta = input.getMetadata();
         SortDirective sortDirective = new SortDirective(sortField, ascending);
-        Stream<P> sorted = doSort(input.getStream(), Collections.singletonList(sortDirective));
+        Stream<P> sorted = doSort(input.getStream(), Collections.singletonList(sortDirective), meta);
         meta.appendDatasetHistory("Sorted according to " + sortField + (ascending ? " ASC" : " DESC"));
         Dataset<P> result = new Dataset(sorted, meta);
         return result;
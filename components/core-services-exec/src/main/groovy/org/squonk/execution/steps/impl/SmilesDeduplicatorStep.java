@@ -20,7 +20,7 @@ import org.squonk.dataset.Dataset;
 import org.squonk.dataset.MoleculeObjectDataset;
 import org.squonk.execution.steps.StepDefinitionConstants;
 import org.squonk.types.MoleculeObject;
-import org.squonk.util.MoleculeObjectUtils;
+import org.squonk.util.MoleculeDeduplicator;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -65,7 +65,8 @@ public class SmilesDeduplicatorStep extends AbstractDatasetStep {
         List<String> appendFields = readFieldList(OPTION_APPEND_FIELDS);
 
 
-        Stream<MoleculeObject> results = MoleculeObjectUtils.deduplicate(input.getStream(), canonicalSmilesField, keepFirstFields, keepLastFields, appendFields);
+        MoleculeDeduplicator deduplicator = new MoleculeDeduplicator(canonicalSmilesField, keepFirstFields, keepLastFields, appendFields);
+        Stream<MoleculeObject> results = deduplicator.deduplicate(input.getStream());
         results = addStreamCounter(results, "%s unique smiles from " + input.getSize());
         return new MoleculeObjectDataset(results).getDataset();
     }
@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 2019 Informatics Matters Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.squonk.execution.variable;
+
+import org.squonk.util.IOUtils;
+
+import java.io.*;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
+import java.util.logging.Logger;
+
+/**
+ * Thread safe store for temporary values that keeps small values in memory and streams larger ones to temporary files
+ * so that large intermediate values are never held in the heap. A value is written to memory until it exceeds
+ * maxInMemory bytes at which point what has been read so far and the remainder of the value are written to a file.
+ * Values that are in files are streamed from the file when they are read.
+ * <p>
+ * Files are deleted when their value is replaced or removed and when the store is closed, so make sure it is closed.
+ * The default size can be set using SQUONK_TMP_VARIABLE_MAX_IN_MEMORY (default 1MB).
+ *
+ * @author timbo
+ */
+public class TmpVariableStore implements Closeable {
+
+    private static final Logger LOG = Logger.getLogger(TmpVariableStore.class.getName());
+
+    public static final int DEFAULT_MAX_IN_MEMORY = Integer.parseInt(IOUtils.getConfiguration("SQUONK_TMP_VARIABLE_MAX_IN_MEMORY", "1048576"));
+
+    private final int maxInMemory;
+    private final File tmpDir;
+    private final Map<String, Value> values = new ConcurrentHashMap<>();
+
+    public TmpVariableStore() {
+        this(DEFAULT_MAX_IN_MEMORY, null);
+    }
+
+    /**
+     * @param maxInMemory The size in bytes above which a value is written to a file
+     * @param tmpDir      Where to create the files. If null the default temporary directory is used.
+     */
+    public TmpVariableStore(int maxInMemory, File tmpDir) {
+        this.maxInMemory = maxInMemory;
+        this.tmpDir = tmpDir;
+    }
+
+    /**
+     * Write the value, replacing any current value. The InputStream is closed.
+     *
+     * @param key   The key
+     * @param value The value
+     * @throws IOException
+     */
+    public void write(String key, InputStream value) throws IOException {
+        ByteArrayOutputStream memory = new ByteArrayOutputStream();
+        File file = null;
+        OutputStream out = null;
+        long size = 0;
+        try {
+            byte[] buffer = new byte[8192];
+            int len;
+            while ((len = value.read(buffer)) >= 0) {
+                if (out == null && size + len > maxInMemory) {
+                    file = File.createTempFile("squonk-var-", ".tmp", tmpDir);
+                    out = new BufferedOutputStream(new FileOutputStream(file), 65536);
+                    memory.writeTo(out);
+                    memory = null;
+                    LOG.fine("Writing value " + key + " to " + file.getPath());
+                }
+                if (out == null) {
+                    memory.write(buffer, 0, len);
+                } else {
+                    out.write(buffer, 0, len);
+                }
+                size += len;
+            }
+            if (out != null) {
+                out.close();
+                out = null;
+            }
+        } catch (IOException | RuntimeException e) {
+            IOUtils.closeIfCloseable(out);
+            if (file != null) {
+                file.delete();
+            }
+            throw e;
+        } finally {
+            value.close();
+        }
+        replace(key, file == null ? new Value(memory.toByteArray()) : new Value(file, size));
+    }
+
+    /**
+     * Read the value.
+     *
+     * @param key The key
+     * @return The value, or null if there is no value for the key. Make sure this is closed.
+     * @throws IOException
+     */
+    public InputStream read(String key) throws IOException {
+        Value value = values.get(key);
+        if (value == null) {
+            return null;
+        } else if (value.bytes != null) {
+            return new ByteArrayInputStream(value.bytes);
+        } else {
+            return new BufferedInputStream(new FileInputStream(value.file), 65536);
+        }
+    }
+
+    public void remove(String key) {
+        replace(key, null);
+    }
+
+    public void removeIf(Predicate<String> filter) {
+        values.keySet().stream().filter(filter).forEach(this::remove);
+    }
+
+    /**
+     * Visit the size of each value
+     *
+     * @param consumer Receives the key and the size in bytes
+     */
+    public void forEachSize(BiConsumer<String, Long> consumer) {
+        values.forEach((k, v) -> consumer.accept(k, v.size));
+    }
+
+    private void replace(String key, Value value) {
+        Value old = value == null ? values.remove(key) : values.put(key, value);
+        if (old != null) {
+            old.delete();
+        }
+    }
+
+    /**
+     * Remove all values and delete their files
+     */
+    @Override
+    public void close() {
+        values.keySet().forEach(this::remove);
+    }
+
+    private static class Value {
+
+        final byte[] bytes;
+        final File file;
+        final long size;
+
+        Value(byte[] bytes) {
+            this.bytes = bytes;
+            this.file = null;
+            this.size = bytes.length;
+        }
+
+        Value(File file, long size) {
+            this.bytes = null;
+            this.file = file;
+            this.size = size;
+        }
+
+        void delete() {
+            if (file != null) {
+                file.delete();
+            }
+        }
+    }
+}
@@ -28,10 +28,9 @@ import org.squonk.types.TypeResolver;
 import org.squonk.util.IOUtils;
 
 import java.io.ByteArrayInputStream;
+import java.io.Closeable;
 import java.io.InputStream;
 import java.lang.reflect.Constructor;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Logger;
 
 /**
@@ -40,14 +39,17 @@ import java.util.logging.Logger;
  *
  * If the VariableClient is null then all variables are stored as temp variables (this can be useful for testing)
  *
+ * Temp variables are held by a {@link TmpVariableStore} so that large values are written to temporary files rather than
+ * being held in memory. Call {@link #close()} once the cell has been executed to delete those files.
+ *
  * @author timbo
  */
-public class VariableManager {
+public class VariableManager implements Closeable {
 
     public static Logger LOG = Logger.getLogger(VariableManager.class.getName());
 
     private static final TypeResolver typeResolver = TypeResolver.getInstance();
-    private final Map<String, byte[]> tmpValues = new ConcurrentHashMap<>();
+    private final TmpVariableStore tmpValues = new TmpVariableStore();
 
     private final VariableClient client;
     private final Long notebookId;
@@ -67,10 +69,17 @@ public class VariableManager {
 
     public String getTmpVariableInfo() {
         StringBuilder b = new StringBuilder("Temp variables:\n");
-        tmpValues.forEach((k,v) -> b.append("  ").append(k).append(" size ").append(v.length).append("\n"));
+        tmpValues.forEachSize((k,v) -> b.append("  ").append(k).append(" size ").append(v).append("\n"));
         return b.toString();
     }
 
+    /** Delete the temp variables
+     */
+    @Override
+    public void close() {
+        tmpValues.close();
+    }
+
     public <V> void putValue(VariableKey key, Class<V> type, V value) throws Exception {
         putValue(key, type, null, value);
     }
@@ -237,19 +246,18 @@ public class VariableManager {
         public String readTextValue(String mediaType, String extension, String key) throws Exception {
             String storeKey = generateTextKey(key);
             LOG.fine("Reading tmp value " + storeKey);
-            byte[] bytes = tmpValues.get(storeKey);
-            return bytes == null ? null : new String(bytes);
+            InputStream is = tmpValues.read(storeKey);
+            return is == null ? null : IOUtils.convertStreamToString(is);
         }
 
         @Override
         public SquonkDataSource readStreamValue(String mediaType, String role, String key) throws Exception {
             String storeKey = generateStreamKey(key);
             LOG.fine("Reading tmp value " + storeKey);
-            byte[] bytes = tmpValues.get(storeKey);
-            if (bytes == null) {
+            InputStream is = tmpValues.read(storeKey);
+            if (is == null) {
                 return null;
             }
-            InputStream is = new ByteArrayInputStream(bytes);
             return new InputStreamDataSource(role, variableName, mediaType, is, null);
         }
 
@@ -260,7 +268,7 @@ public class VariableManager {
             if (value == null) {
                 tmpValues.remove(storeKey);
             } else {
-                tmpValues.put(storeKey, value.getBytes());
+                tmpValues.write(storeKey, new ByteArrayInputStream(value.getBytes()));
             }
         }
 
@@ -271,14 +279,14 @@ public class VariableManager {
             if (value == null) {
                 tmpValues.remove(storeKey);
             } else {
-                tmpValues.put(storeKey, IOUtils.convertStreamToBytes(gzip ? IOUtils.getGzippedInputStream(value) : value));
+                tmpValues.write(storeKey, gzip ? IOUtils.getGzippedInputStream(value) : value);
             }
         }
 
         @Override
         public void deleteVariable() throws Exception {
-            tmpValues.entrySet().removeIf(e -> e.getKey().startsWith("T#" + notebookId + "#" + VariableManager.this.cellId + "#" + cellId + "#" + variableName + "#")
-            || e.getKey().startsWith("S#" + notebookId + "#" + VariableManager.this.cellId + "#" + cellId + "#" + variableName + "#"));
+            tmpValues.removeIf(k -> k.startsWith("T#" + notebookId + "#" + VariableManager.this.cellId + "#" + cellId + "#" + variableName + "#")
+            || k.startsWith("S#" + notebookId + "#" + VariableManager.this.cellId + "#" + cellId + "#" + variableName + "#"));
         }
     }
 
@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2019 Informatics Matters Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.squonk.execution
+
+import spock.lang.Specification
+
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.TimeUnit
+
+/**
+ * Created by timbo on 17/10/2019.
+ */
+class JobSchedulerSpec extends Specification {
+
+    void "test priority and fair ordering"() {
+
+        def scheduler = new JobScheduler(1, 100, 100)
+        def blocker = new CountDownLatch(1)
+        def order = Collections.synchronizedList([])
+        def done = new CountDownLatch(6)
+
+        when:
+        // occupy the only thread so that the rest are queued
+        scheduler.submit('block', 'u0', 0, { blocker.await() } as Runnable)
+        scheduler.submit('a1', 'a', 0, { order << 'a1'; done.countDown() } as Runnable)
+        scheduler.submit('a2', 'a', 0, { order << 'a2'; done.countDown() } as Runnable)
+        scheduler.submit('a3', 'a', 0, { order << 'a3'; done.countDown() } as Runnable)
+        scheduler.submit('b1', 'b', 0, { order << 'b1'; done.countDown() } as Runnable)
+        scheduler.submit('c1', 'c', 5, { order << 'c1'; done.countDown() } as Runnable)
+        scheduler.submit('c2', 'c', 0, { order << 'c2'; done.countDown() } as Runnable)
+        int queued = scheduler.getQueuedCount()
+        blocker.countDown()
+        done.await(10, TimeUnit.SECONDS)
+
+        then:
+        queued == 6
+        order == ['c1', 'a1', 'b1', 'c2', 'a2', 'a3']
+
+        cleanup:
+        scheduler.shutdown()
+    }
+
+    void "test back pressure and cancel"() {
+
+        def scheduler = new JobScheduler(1, 3, 2)
+        def blocker = new CountDownLatch(1)
+        def ran = Collections.synchronizedList([])
+        def done = new CountDownLatch(3)
+
+        when:
+        scheduler.submit('block', 'a', 0, { blocker.await() } as Runnable)
+        scheduler.submit('a1', 'a', 0, { ran << 'a1'; done.countDown() } as Runnable)
+        scheduler.submit('a2', 'a', 0, { ran << 'a2'; done.countDown() } as Runnable)
+        scheduler.submit('a3', 'a', 0, { ran << 'a3'; done.countDown() } as Runnable)
+
+        then:
+        thrown(RejectedExecutionException)
+
+        when:
+        scheduler.submit('b1', 'b', 0, { ran << 'b1'; done.countDown() } as Runnable)
+        scheduler.submit('b2', 'b', 0, { ran << 'b2'; done.countDown() } as Runnable)
+
+        then:
+        thrown(RejectedExecutionException)
+
+        when:
+        boolean cancelled = scheduler.cancel('a2')
+        scheduler.submit('b2', 'b', 0, { ran << 'b2'; done.countDown() } as Runnable)
+        blocker.countDown()
+        done.await(10, TimeUnit.SECONDS)
+        scheduler.shutdown()
+        scheduler.awaitTermination(10, TimeUnit.SECONDS)
+
+        then:
+        cancelled
+        !scheduler.cancel('a2')
+        scheduler.getRunningCount() == 0
+        ran as Set == ['a1', 'b1', 'b2'] as Set
+    }
+}
@@ -231,6 +231,62 @@ class StepExecutorSpec extends Specification {
         context?.shutdown()
     }
 
+    void "pipelined 2 dataset steps"() {
+
+        Dataset dataset = Molecules.datasetFromSDF(Molecules.KINASE_INHIBS_SDF)
+
+        def varman = new VariableManager(null, notebook, cellId);
+        def inputVariableKey = new VariableKey(producer, "output")
+        varman.putValue(inputVariableKey, Dataset.class, dataset)
+        def inputs = [new IODescriptor("input", CommonMimeTypes.MIME_TYPE_DATASET_MOLECULE_JSON, Dataset.class, MoleculeObject.class)] as IODescriptor[]
+        def outputs = [new IODescriptor("output", CommonMimeTypes.MIME_TYPE_DATASET_MOLECULE_JSON, Dataset.class, MoleculeObject.class)] as IODescriptor[]
+
+        def stepDefs = [
+                new StepDefinition(
+                        DatasetSelectSliceStep.class.getName(),
+                        [skip:10, count:20], // options
+                        inputs,
+                        outputs,
+                        ["input": inputVariableKey], // inputVariableMappings
+                        ["output":"middle"] //outputVariableMappings
+                ),
+                new StepDefinition(
+                        DatasetSelectSliceStep.class.getName(),
+                        [skip:5, count:10], // options
+                        inputs,
+                        outputs,
+                        ["input": new VariableKey(cellId, "middle")], // inputVariableMappings
+                        [:] //outputVariableMappings
+                )
+        ] as StepDefinition[]
+        def jobdef = new ExecuteCellUsingStepsJobDefinition(
+                notebook,
+                editableId,
+                cellId,
+                inputs,
+                outputs,
+                stepDefs)
+
+        def executor = new StepExecutor(cellId, "pipelineddatasetsteps", jobdef, varman)
+        executor.pipelineQueueSize = 2
+
+        def context = new DefaultCamelContext()
+        context.start()
+
+        when:
+        executor.execute(context, null)
+        def result = varman.getValue(new VariableKey(cellId, "output"), Dataset.class)
+        def expected = Molecules.datasetFromSDF(Molecules.KINASE_INHIBS_SDF).items.subList(15, 25)
+
+        then:
+        result.metadata.size == 10
+        result.items.collect { it.source } == expected.collect { it.source }
+        executor.executionsStats.size() == 2
+
+        cleanup:
+        context?.shutdown()
+    }
+
     /** Job defines SDF as input and output but the step needs a Dataset so conversion both ways is needed
      *
      */
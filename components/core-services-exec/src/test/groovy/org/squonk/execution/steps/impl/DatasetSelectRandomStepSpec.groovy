@@ -39,9 +39,9 @@ class DatasetSelectRandomStepSpec extends Specification {
         return ds
     }
 
-    def createStep(random, count, jobId) {
+    def createStep(random, count, jobId, extraOpts = [:]) {
         DatasetSelectRandomStep step = new DatasetSelectRandomStep()
-        def opts = [:]
+        def opts = [:] + extraOpts
         if (random != null) opts[DatasetSelectRandomStep.OPTION_RANDOM] = random
         if (count != null) opts[DatasetSelectRandomStep.OPTION_COUNT] = count
         step.configure(jobId, opts, DatasetSelectRandomStep.SERVICE_DESCRIPTOR, context, null)
@@ -64,4 +64,21 @@ class DatasetSelectRandomStepSpec extends Specification {
         results.size() <= 10
     }
 
-}
\ No newline at end of file
+    void "test seed and stratify"() {
+
+        def opts = [(DatasetSelectRandomStep.OPTION_SEED): 123L, (DatasetSelectRandomStep.OPTION_STRATIFY_FIELD): 'group']
+        DatasetSelectRandomStep step1 = createStep(null, 10, "test seed 1", opts)
+        DatasetSelectRandomStep step2 = createStep(null, 10, "test seed 2", opts)
+        def mols = (1..100).collect { new MoleculeObject("C", "smiles", [idx: it, group: it <= 80 ? 'a' : 'b']) }
+
+        when:
+        List results1 = step1.doExecute(Collections.singletonMap("input", new Dataset(MoleculeObject.class, mols)))["output"].items
+        List results2 = step2.doExecute(Collections.singletonMap("input", new Dataset(MoleculeObject.class, mols)))["output"].items
+
+        then:
+        results1.size() == 10
+        results1.count { it.getValue('group') == 'b' } == 2
+        results1.collect { it.getValue('idx') } == results2.collect { it.getValue('idx') }
+    }
+
+}
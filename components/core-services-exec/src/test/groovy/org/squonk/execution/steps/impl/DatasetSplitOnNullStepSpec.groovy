@@ -95,4 +95,25 @@ class DatasetSplitOnNullStepSpec extends Specification {
         pass.items.size() == 2
         fail.items.size() == 2
     }
+
+    void "split large outputs to file"() {
+
+        when:
+        DefaultCamelContext context = new DefaultCamelContext()
+        DatasetSplitOnNullStep step = createStep("d", "splitonnull spill", context)
+        step.maxInMemory = 10
+        def mols = (0..<100).collect { new BasicObject(it % 4 == 0 ? [idx: it] : [idx: it, d: 'value ' + it]) }
+        Dataset input = new Dataset(BasicObject.class, mols)
+
+        def resultsMap = step.doExecute(Collections.singletonMap("input", input))
+        Dataset pass = resultsMap["pass"]
+        Dataset fail = resultsMap["fail"]
+
+        then:
+        pass.size == 75
+        fail.size == 25
+        pass.metadata.valueClassMappings == [idx: Integer.class, d: String.class]
+        pass.items.collect { it.getValue('idx') } == (0..<100).findAll { it % 4 != 0 }
+        fail.items.every { it.getValue('d') == null }
+    }
 }
\ No newline at end of file
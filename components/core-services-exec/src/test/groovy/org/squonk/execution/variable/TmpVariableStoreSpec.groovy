@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2019 Informatics Matters Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.squonk.execution.variable
+
+import spock.lang.Specification
+
+import java.nio.file.Files
+
+/**
+ * Created by timbo on 17/10/2019.
+ */
+class TmpVariableStoreSpec extends Specification {
+
+    File dir
+
+    void setup() {
+        dir = Files.createTempDirectory("squonk-var-store").toFile()
+    }
+
+    void cleanup() {
+        dir.deleteDir()
+    }
+
+    void "small and large values"() {
+
+        def store = new TmpVariableStore(100, dir)
+        String small = 'hello world'
+        String large = 'a much larger value ' * 1000
+
+        when:
+        store.write('small', new ByteArrayInputStream(small.bytes))
+        store.write('large', new ByteArrayInputStream(large.bytes))
+        int files = dir.listFiles().length
+        def sizes = [:]
+        store.forEachSize { k, v -> sizes[k] = v }
+
+        then:
+        store.read('small').text == small
+        store.read('large').text == large
+        store.read('missing') == null
+        files == 1
+        sizes == [small: (long) small.length(), large: (long) large.length()]
+    }
+
+    void "replace remove and close"() {
+
+        def store = new TmpVariableStore(100, dir)
+        String large = 'a much larger value ' * 1000
+
+        when:
+        store.write('a', new ByteArrayInputStream(large.bytes))
+        store.write('a', new ByteArrayInputStream('small'.bytes))
+        int files1 = dir.listFiles().length
+        store.write('b', new ByteArrayInputStream(large.bytes))
+        store.write('c', new ByteArrayInputStream(large.bytes))
+        store.removeIf { it == 'b' }
+        int files2 = dir.listFiles().length
+        store.close()
+        int files3 = dir.listFiles().length
+
+        then:
+        files1 == 0
+        files2 == 1
+        files3 == 0
+        store.read('a') == null
+        store.read('c') == null
+    }
+}
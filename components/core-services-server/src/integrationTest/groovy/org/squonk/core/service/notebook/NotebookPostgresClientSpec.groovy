@@ -423,6 +423,37 @@ class NotebookPostgresClientSpec extends Specification {
         s == LONG_VARIABLE_2
     }
 
+    void "read stream variable in chunks"() {
+
+        when:
+        NotebookEditableDTO ed = client.listEditables(notebooks[0].id, username)[0]
+        client.blobChunkSize = 7
+        InputStream var1 = client.readStreamValue(ed.notebookId, ed.id, 1, 'stream1')
+        String s = var1.text
+        var1.close()
+
+        then:
+        s == LONG_VARIABLE_2
+
+        cleanup:
+        client.blobChunkSize = 1048576
+    }
+
+    void "read text variable from savepoint is cached"() {
+
+        when:
+        NotebookSavepointDTO sp = client.listSavepoints(notebooks[0].id)[0]
+        client.variableCache.clear()
+        String var1 = client.readTextValue(sp.notebookId, sp.id, 1, 'var1')
+        int size = client.variableCache.size()
+        String var2 = client.readTextValue(sp.notebookId, sp.id, 1, 'var1')
+
+        then:
+        var1 == 'val3'
+        var2 == 'val3'
+        size == 1
+    }
+
 //    void "read text variable for label"() {
 //
 //        when:
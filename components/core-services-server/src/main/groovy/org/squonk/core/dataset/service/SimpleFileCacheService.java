@@ -16,15 +16,41 @@
 
 package org.squonk.core.dataset.service;
 
+import org.squonk.util.IOUtils;
+
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
+ * Caches content in files, one file per ID.
+ * <p>
+ * The total size of the files is limited to maxBytes and files that have not been accessed for maxAge milliseconds
+ * are expired. When the limit is exceeded the least recently accessed files are deleted. The limits can be set using
+ * SQUONK_FILE_CACHE_MAX_BYTES (default 1GB) and SQUONK_FILE_CACHE_MAX_AGE_MINUTES (default 1440). A value of zero
+ * means no limit.
+ * <p>
+ * An in memory index of the files is kept. Use {@link #init()} to start with an empty cache or {@link #load()} to
+ * rebuild the index from the files that are already present, which needs only the directory listing.
+ * <p>
+ * Use {@link #getOrLoadFile(Long, Callable)} to populate the cache on demand. Only one loader runs for an ID at a time
+ * and other callers wait for its result. Loading does not block access to other IDs. Files are written under a
+ * temporary name and then moved into place so readers never see a partial file.
  *
  * @author timbo
  */
@@ -32,10 +58,39 @@ public class SimpleFileCacheService {
 
     private static final Logger LOG = Logger.getLogger(SimpleFileCacheService.class.getName());
 
+    public static final long DEFAULT_MAX_BYTES = Long.parseLong(IOUtils.getConfiguration("SQUONK_FILE_CACHE_MAX_BYTES", "1073741824"));
+    public static final long DEFAULT_MAX_AGE = 60000L * Long.parseLong(IOUtils.getConfiguration("SQUONK_FILE_CACHE_MAX_AGE_MINUTES", "1440"));
+
+    private static final String TMP_SUFFIX = ".tmp";
+
     private final File cacheDir;
+    private final long maxBytes;
+    private final long maxAge;
+
+    private final Map<Long, Entry> index = new ConcurrentHashMap<>();
+    private final Map<Long, CompletableFuture<File>> loading = new ConcurrentHashMap<>();
+    private final AtomicLong totalBytes = new AtomicLong();
+    /** Orders the entries by when they were last accessed */
+    private final AtomicLong sequence = new AtomicLong();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong loads = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
 
     public SimpleFileCacheService(String cacheDir) {
+        this(cacheDir, DEFAULT_MAX_BYTES, DEFAULT_MAX_AGE);
+    }
+
+    /**
+     * @param cacheDir The directory for the files
+     * @param maxBytes The maximum total size of the files. Zero means no limit.
+     * @param maxAge   The time in milliseconds after the last access that a file expires. Zero means no limit.
+     */
+    public SimpleFileCacheService(String cacheDir, long maxBytes, long maxAge) {
         this.cacheDir = new File(cacheDir);
+        this.maxBytes = maxBytes;
+        this.maxAge = maxAge;
         LOG.log(Level.INFO, "FileCache using dir of {0}", cacheDir);
     }
 
@@ -47,6 +102,38 @@ public class SimpleFileCacheService {
             deleteRecursive(cacheDir);
         }
         Files.createDirectories(cacheDir.toPath());
+        index.clear();
+        totalBytes.set(0);
+    }
+
+    /**
+     * Creates the cache dir if needed and rebuilds the index from the files that are present. The last modified time of
+     * each file is used as its last access time. Partially written files are deleted.
+     */
+    public void load() throws IOException {
+        Files.createDirectories(cacheDir.toPath());
+        index.clear();
+        totalBytes.set(0);
+        File[] files = cacheDir.listFiles();
+        if (files != null) {
+            Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+            for (File f : files) {
+                String name = f.getName();
+                if (name.endsWith(TMP_SUFFIX)) {
+                    f.delete();
+                    continue;
+                }
+                try {
+                    Long id = Long.valueOf(name);
+                    index.put(id, new Entry(f, f.length(), f.lastModified(), sequence.incrementAndGet()));
+                    totalBytes.addAndGet(f.length());
+                } catch (NumberFormatException e) {
+                    LOG.warning("Ignoring unexpected file in cache: " + f.getPath());
+                }
+            }
+        }
+        LOG.info("Loaded " + index.size() + " files of total size " + totalBytes.get() + " into cache");
+        evict();
     }
 
     boolean deleteRecursive(File path) throws FileNotFoundException {
@@ -70,20 +157,87 @@ public class SimpleFileCacheService {
 
     public void clearCache() throws FileNotFoundException {
         deleteContentsRecursive(cacheDir);
+        index.clear();
+        totalBytes.set(0);
     }
 
     public File getFileFromCache(Long id) {
-        LOG.log(Level.INFO, "Getting file {0} from cache", id);
-        File f = new File(cacheDir, "" + id);
-        if (f.exists()) {
-            return f;
+        LOG.log(Level.FINE, "Getting file {0} from cache", id);
+        Entry entry = index.get(id);
+        long now = System.currentTimeMillis();
+        if (entry != null && maxAge > 0 && now - entry.lastAccess > maxAge) {
+            remove(id, entry);
+            evictions.incrementAndGet();
+            entry = null;
+        }
+        if (entry != null && entry.file.exists()) {
+            entry.lastAccess = now;
+            entry.lastUsed = sequence.incrementAndGet();
+            hits.incrementAndGet();
+            return entry.file;
         } else {
+            misses.incrementAndGet();
             return null;
         }
     }
 
+    /**
+     * Get the file from the cache, using the loader to create it if it is not present.
+     * If the file is already being loaded by another thread this waits for that load to complete.
+     *
+     * @param id     The ID of the file
+     * @param loader Provides the content if the file is not present
+     * @return The file
+     * @throws IOException If the content cannot be loaded
+     */
+    public File getOrLoadFile(Long id, Callable<InputStream> loader) throws IOException {
+        File f = getFileFromCache(id);
+        if (f != null) {
+            return f;
+        }
+        CompletableFuture<File> future = new CompletableFuture<>();
+        CompletableFuture<File> existing = loading.putIfAbsent(id, future);
+        if (existing != null) {
+            return await(id, existing);
+        }
+        try {
+            // another thread could have completed loading before we registered
+            Entry entry = index.get(id);
+            if (entry != null && entry.file.exists()) {
+                f = entry.file;
+            } else {
+                loads.incrementAndGet();
+                try (InputStream is = loader.call()) {
+                    f = addFileToCache(id, is);
+                }
+            }
+            future.complete(f);
+            return f;
+        } catch (Exception e) {
+            future.completeExceptionally(e);
+            throw e instanceof IOException ? (IOException) e : new IOException("Failed to load file " + id, e);
+        } finally {
+            loading.remove(id, future);
+        }
+    }
+
+    private File await(Long id, CompletableFuture<File> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for file " + id, e);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException("Failed to load file " + id, e.getCause());
+        }
+    }
+
     public boolean deleteFileFromCache(Long id) {
         LOG.log(Level.INFO, "Deleting file {0} from cache", id);
+        Entry entry = index.get(id);
+        if (entry != null) {
+            return remove(id, entry);
+        }
         File f = new File(cacheDir, "" + id);
         if (f.exists()) {
             return f.delete();
@@ -95,11 +249,89 @@ public class SimpleFileCacheService {
     public File addFileToCache(Long id, InputStream is) throws IOException {
         LOG.log(Level.INFO, "Adding file {0} to cache", id);
         File f = new File(cacheDir, "" + id);
-        if (f.exists()) {
-            f.delete();
+        File tmp = File.createTempFile("cache-" + id + "-", TMP_SUFFIX, cacheDir);
+        try {
+            Files.copy(is, tmp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            tmp.delete();
+            throw e;
+        }
+        Entry entry = new Entry(f, f.length(), System.currentTimeMillis(), sequence.incrementAndGet());
+        Entry old = index.put(id, entry);
+        totalBytes.addAndGet(entry.size - (old == null ? 0 : old.size));
+        if (maxBytes > 0 && totalBytes.get() > maxBytes) {
+            evict();
         }
-        Files.copy(is, f.toPath());
         return f;
     }
 
+    private boolean remove(Long id, Entry entry) {
+        if (index.remove(id, entry)) {
+            totalBytes.addAndGet(-entry.size);
+            return entry.file.delete();
+        }
+        return false;
+    }
+
+    /**
+     * Delete expired files and then the least recently accessed files until the total size is within the limit.
+     * Only one thread evicts at a time but other threads can continue to use the cache while this happens.
+     */
+    public synchronized void evict() {
+        long now = System.currentTimeMillis();
+        List<Map.Entry<Long, Entry>> entries = new ArrayList<>(index.entrySet());
+        entries.sort(Comparator.comparingLong(e -> e.getValue().lastUsed));
+        int count = 0;
+        for (Map.Entry<Long, Entry> e : entries) {
+            boolean expired = maxAge > 0 && now - e.getValue().lastAccess > maxAge;
+            boolean tooBig = maxBytes > 0 && totalBytes.get() > maxBytes;
+            if ((expired || tooBig) && remove(e.getKey(), e.getValue())) {
+                count++;
+            }
+        }
+        if (count > 0) {
+            evictions.addAndGet(count);
+            LOG.info("Evicted " + count + " files from cache. Total size is now " + totalBytes.get());
+        }
+    }
+
+    public long getSize() {
+        return totalBytes.get();
+    }
+
+    public int getFileCount() {
+        return index.size();
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long getLoadCount() {
+        return loads.get();
+    }
+
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    private static class Entry {
+
+        final File file;
+        final long size;
+        volatile long lastAccess;
+        volatile long lastUsed;
+
+        Entry(File file, long size, long lastAccess, long lastUsed) {
+            this.file = file;
+            this.size = size;
+            this.lastAccess = lastAccess;
+            this.lastUsed = lastUsed;
+        }
+    }
 }
@@ -26,11 +26,20 @@ import org.squonk.notebook.api.NotebookEditableDTO
 import org.squonk.notebook.api.NotebookSavepointDTO
 import org.squonk.types.io.JsonHandler
 
+import org.squonk.util.IOUtils
+
 import javax.sql.DataSource
 import java.sql.PreparedStatement
 import java.sql.ResultSet
-
-/** Notebook and Variable Client that persists data in a PostgreSQL database
+import java.sql.SQLException
+import java.sql.Timestamp
+
+/** Notebook and Variable Client that persists data in a PostgreSQL database.
+ * Variables are looked up through the version history in a single query. Text values (and the location of stream
+ * values) that are found for a savepoint are cached as savepoints can't be changed. The size of the cache can be set
+ * using SQUONK_NOTEBOOK_VARIABLE_CACHE_SIZE (default 1000 values). Stream values are read in chunks whose size can be
+ * set using SQUONK_NOTEBOOK_BLOB_CHUNK_SIZE (default 1MB).
+ *
  * Created by timbo on 29/02/16.
  */
 @Log
@@ -40,6 +49,18 @@ class NotebookPostgresClient implements NotebookVariableClient {
 
     protected final DataSource dataSource = SquonkServerConfig.getSquonkDataSource();
 
+    static final int VARIABLE_CACHE_SIZE = Integer.parseInt(IOUtils.getConfiguration("SQUONK_NOTEBOOK_VARIABLE_CACHE_SIZE", "1000"))
+    static final int MAX_CACHED_TEXT_LENGTH = 65536
+
+    protected int blobChunkSize = Integer.parseInt(IOUtils.getConfiguration("SQUONK_NOTEBOOK_BLOB_CHUNK_SIZE", "1048576"))
+
+    private final Map<String, Object> variableCache = Collections.synchronizedMap(new LinkedHashMap<String, Object>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Object> eldest) {
+            return size() > VARIABLE_CACHE_SIZE
+        }
+    })
+
     public NotebookPostgresClient() {
         dataSource = SquonkServerConfig.getSquonkDataSource()
     }
@@ -95,6 +116,7 @@ class NotebookPostgresClient implements NotebookVariableClient {
             db.withTransaction {
                 int rows = db.executeUpdate("DELETE FROM users.nb_descriptor WHERE id=$notebookId")
                 if (rows == 1) {
+                    evictCachedVariables(notebookId)
                     b = true;
                 } else {
                     log.warning("Failed to delete notebook $notebookId")
@@ -755,50 +777,169 @@ class NotebookPostgresClient implements NotebookVariableClient {
         return new NotebookSavepointDTO(data.id, data.notebook_id, data.parent_id, data.username, data.created, data.updated, data.description, data.label, canvasDTO)
     }
 
-    private Object doFetchVar(Sql db, Long notebookId, Long sourceId, Long cellId, String variableName, String key, boolean isText) {
+    /** Finds the variable in the source or the nearest of its ancestors that defines it using a single query.
+     * Versions are walked from the source up through its parents and the value from the nearest version is returned.
+     */
+    private static String SQL_VAR_CHAIN = """\
+                |WITH RECURSIVE chain (id, parent_id, depth, root_type) AS (
+                |    SELECT id, parent_id, 0, type FROM users.nb_version WHERE id=:source AND notebook_id=:notebook
+                |  UNION ALL
+                |    SELECT p.id, p.parent_id, c.depth + 1, c.root_type FROM users.nb_version p
+                |      JOIN chain c ON p.id=c.parent_id
+                |      WHERE p.notebook_id=:notebook
+                |)""".stripMargin()
+
+    private static String SQL_VAR_FETCH_TEXT = SQL_VAR_CHAIN + """
+                |SELECT v.id, c.root_type, v.updated, v.val_text FROM chain c
+                |  JOIN users.nb_variable v ON v.source_id=c.id
+                |  WHERE v.cell_id=:cell AND v.var_name=:varname AND v.var_key=:key
+                |  ORDER BY c.depth LIMIT 1""".stripMargin()
+
+    private static String SQL_VAR_FETCH_STREAM = SQL_VAR_CHAIN + """
+                |SELECT v.id, c.root_type, v.updated, octet_length(v.val_blob),
+                |    CASE WHEN octet_length(v.val_blob) <= :inline THEN v.val_blob END
+                |  FROM chain c
+                |  JOIN users.nb_variable v ON v.source_id=c.id
+                |  WHERE v.cell_id=:cell AND v.var_name=:varname AND v.var_key=:key
+                |  ORDER BY c.depth LIMIT 1""".stripMargin()
 
-        // TODO - this can probably be optimised significantly
+    private Object doFetchVar(Sql db, Long notebookId, Long sourceId, Long cellId, String variableName, String key, boolean isText) {
 
         log.fine("Looking for ${isText ? 'text' : 'stream'} variable $variableName:$key in source $sourceId, cell $cellId")
 
+        String cacheKey = "$notebookId:$sourceId:$cellId:$variableName:${key ?: DEFAULT_KEY}:${isText ? 'T' : 'S'}"
+        Object cached = variableCache.get(cacheKey)
+        if (cached != null) {
+            log.finer("Found variable $variableName:$key for source $sourceId:$cellId in cache")
+            return isText ? cached : new BlobInputStream((BlobLocation) cached)
+        }
+
         def result = null
         boolean found = false
+        Map params = [notebook: notebookId, source: sourceId, cell: cellId, varname: variableName, key: key ?: DEFAULT_KEY]
+        if (!isText) {
+            params.inline = blobChunkSize
+        }
 
-        String sql = """\
-                |SELECT ${isText ? 'val_text' : 'val_blob'} FROM users.nb_variable v
-                |  JOIN users.nb_version s ON s.id=v.source_id
-                |  WHERE v.source_id=:source AND v.cell_id=:cell AND v.var_name=:varname AND v.var_key=:key AND s.notebook_id=:notebook""".stripMargin()
-        log.fine("SQL: $sql")
-
-        db.query(sql, [notebook:notebookId, source: sourceId, cell: cellId, varname: variableName, key: key ?: DEFAULT_KEY]) { ResultSet rs ->
+        db.query(isText ? SQL_VAR_FETCH_TEXT : SQL_VAR_FETCH_STREAM, params) { ResultSet rs ->
 
             if (rs.next()) {
                 found = true
+                // savepoints can't be changed and are only descended from savepoints so the value can be cached
+                boolean immutable = rs.getString(2) == 'S'
                 if (isText) {
-                    result = rs.getString(1)
+                    result = rs.getString(4)
+                    if (immutable && result != null && result.length() <= MAX_CACHED_TEXT_LENGTH) {
+                        variableCache.put(cacheKey, result)
+                    }
                 } else {
-                    result = rs.getBinaryStream(1)
+                    long length = rs.getLong(4)
+                    if (!rs.wasNull()) {
+                        BlobLocation location = new BlobLocation(rs.getLong(1), rs.getTimestamp(3), length)
+                        if (immutable) {
+                            variableCache.put(cacheKey, location)
+                        }
+                        byte[] bytes = rs.getBytes(5)
+                        result = (bytes == null ? new BlobInputStream(location) : new ByteArrayInputStream(bytes))
+                    }
                 }
             }
         }
 
-        if (found) {
-            return result
-        } else {
-            log.fine("Variable $variableName:$key not found in source $sourceId:$cellId")
-            def row = db.firstRow("SELECT parent_id FROM users.nb_version WHERE id=? AND notebook_id=?", [sourceId, notebookId])
-            if (row != null) {
-                Long parent = row[0]
-                if (parent == null) {
-                    log.fine("No parent defined for source $sourceId, cell $cellId, so variable $variableName:$key does not exist")
-                    return null
-                } else {
-                    log.fine("Looking for variable $variableName:$key in parent $parent")
-                    return doFetchVar(db, notebookId, parent, cellId, variableName, key, isText)
+        if (!found) {
+            log.fine("Variable $variableName:$key not found in source $sourceId:$cellId or its parents")
+        }
+        return result
+    }
+
+    /** Remove the cached values for the notebook
+     */
+    private void evictCachedVariables(Long notebookId) {
+        String prefix = "$notebookId:"
+        synchronized (variableCache) {
+            variableCache.keySet().removeIf { it.startsWith(prefix) }
+        }
+    }
+
+    /** The location of a blob value
+     */
+    private static class BlobLocation {
+        final long id
+        final Timestamp updated
+        final long length
+
+        BlobLocation(long id, Timestamp updated, long length) {
+            this.id = id
+            this.updated = updated
+            this.length = length
+        }
+    }
+
+    /** Streams a blob value by reading it in chunks of blobChunkSize bytes so that large values are never held in
+     * memory. Each chunk is read using its own connection so the stream can be read after the transaction that found
+     * the variable has completed. An IOException is thrown if the value is changed while it is being read.
+     */
+    private class BlobInputStream extends InputStream {
+
+        private final BlobLocation location
+        private byte[] chunk = new byte[0]
+        private int pos = 0
+        private long offset = 0
+
+        BlobInputStream(BlobLocation location) {
+            this.location = location
+        }
+
+        @Override
+        int read() throws IOException {
+            if (!fill()) {
+                return -1
+            }
+            return chunk[pos++] & 0xff
+        }
+
+        @Override
+        int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0
+            }
+            if (!fill()) {
+                return -1
+            }
+            int n = Math.min(len, chunk.length - pos)
+            System.arraycopy(chunk, pos, b, off, n)
+            pos += n
+            return n
+        }
+
+        @Override
+        int available() {
+            return chunk.length - pos
+        }
+
+        private boolean fill() throws IOException {
+            if (pos < chunk.length) {
+                return true
+            }
+            if (offset >= location.length) {
+                return false
+            }
+            Sql db = createSql()
+            try {
+                // substring is 1-based
+                def row = db.firstRow("SELECT substring(val_blob FROM ? FOR ?) FROM users.nb_variable WHERE id=? AND updated=?",
+                        [offset + 1, blobChunkSize, location.id, location.updated])
+                if (row == null || row[0] == null) {
+                    throw new IOException("Variable ${location.id} was changed or deleted while being read")
                 }
-            } else {
-                log.info("No row found for $sourceId - probably invalid source or notebook ID?")
-                return null;
+                chunk = (byte[]) row[0]
+                pos = 0
+                offset += chunk.length
+                return chunk.length > 0
+            } catch (SQLException e) {
+                throw new IOException("Failed to read variable ${location.id}", e)
+            } finally {
+                db.close()
             }
         }
     }
@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2019 Informatics Matters Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.squonk.core.dataset.service
+
+import spock.lang.Specification
+
+import java.nio.file.Files
+import java.util.concurrent.Callable
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Created by timbo on 17/10/2019.
+ */
+class SimpleFileCacheServiceSpec extends Specification {
+
+    File dir
+
+    void setup() {
+        dir = Files.createTempDirectory("squonk-file-cache").toFile()
+    }
+
+    void cleanup() {
+        dir.deleteDir()
+    }
+
+    private static InputStream bytes(int size) {
+        return new ByteArrayInputStream(new byte[size])
+    }
+
+    void "evicts least recently used"() {
+
+        def cache = new SimpleFileCacheService(dir.path, 250, 0)
+        cache.init()
+
+        when:
+        cache.addFileToCache(1, bytes(100))
+        cache.addFileToCache(2, bytes(100))
+        cache.getFileFromCache(1)
+        cache.addFileToCache(3, bytes(100))
+
+        then:
+        cache.getFileFromCache(1) != null
+        cache.getFileFromCache(2) == null
+        cache.getFileFromCache(3) != null
+        cache.getSize() == 200
+        cache.getEvictionCount() == 1
+        cache.getHitCount() == 3
+        cache.getMissCount() == 1
+    }
+
+    void "expires old files"() {
+
+        def cache = new SimpleFileCacheService(dir.path, 0, 50)
+        cache.init()
+
+        when:
+        cache.addFileToCache(1, bytes(10))
+        File f1 = cache.getFileFromCache(1)
+        sleep(100)
+        File f2 = cache.getFileFromCache(1)
+
+        then:
+        f1 != null
+        f2 == null
+        !f1.exists()
+        cache.getSize() == 0
+    }
+
+    void "single flight loading"() {
+
+        def cache = new SimpleFileCacheService(dir.path, 0, 0)
+        cache.init()
+        def calls = new AtomicInteger()
+        def loader = {
+            calls.incrementAndGet()
+            sleep(200)
+            return bytes(10)
+        } as Callable<InputStream>
+
+        when:
+        def files = (1..8).collect { Thread.start { cache.getOrLoadFile(5, loader) } }
+                .collect { it.join(); cache.getFileFromCache(5) }
+
+        then:
+        calls.get() == 1
+        cache.getLoadCount() == 1
+        files.every { it != null && it.length() == 10 }
+    }
+
+    void "rebuild index"() {
+
+        def cache1 = new SimpleFileCacheService(dir.path, 0, 0)
+        cache1.init()
+        cache1.addFileToCache(1, bytes(10))
+        cache1.addFileToCache(2, bytes(20))
+        new File(dir, "cache-3-123.tmp").text = "partial"
+        def cache2 = new SimpleFileCacheService(dir.path, 0, 0)
+
+        when:
+        cache2.load()
+
+        then:
+        cache2.getFileCount() == 2
+        cache2.getSize() == 30
+        cache2.getFileFromCache(2).length() == 20
+        !new File(dir, "cache-3-123.tmp").exists()
+    }
+}
@@ -27,19 +27,23 @@ import org.squonk.types.MoleculeObject;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Stream;
 
 /**
  * Created by timbo on 21/10/2016.
+ * <p>
+ * Predictors are loaded through the shared {@link PredictorCache} so that the model files are only read once.
  */
-public class AbstractCCPRunner {
+public abstract class AbstractCCPRunner {
 
     private static final Logger LOG = Logger.getLogger(AbstractCCPRunner.class.getName());
 
@@ -65,6 +69,52 @@ public class AbstractCCPRunner {
         this.signatureEndHeight = signatureEndHeight;
     }
 
+    /**
+     * Load the models from the directory.
+     *
+     * @param numModels The number of models
+     * @param dir       The directory containing the model and signature files
+     * @return
+     * @throws Exception
+     */
+    protected abstract Predictor loadPredictor(int numModels, File dir) throws Exception;
+
+    /**
+     * Get the Predictor for these models, using the cached one if the models have already been loaded.
+     * The Predictor can be used by multiple threads at the same time.
+     *
+     * @param numModels The number of models
+     * @param path      The directory with the models, relative to the data dir
+     * @return
+     * @throws Exception
+     */
+    public Predictor createPredictor(int numModels, String path) throws Exception {
+        File dir = new File(dataDir, path);
+        if (!dir.exists()) {
+            throw new FileNotFoundException("Directory with models does not exist");
+        }
+        PredictorCache.Key key = PredictorCache.Key.create(getClass().getName(), library,
+                signatureStartHeight, signatureEndHeight, numModels, dir);
+        return PredictorCache.getInstance().get(key, () -> loadPredictor(numModels, dir));
+    }
+
+    /**
+     * Load the models into the cache so that the first predictions do not have to wait for them.
+     * Failures are logged and ignored.
+     *
+     * @param numModels The number of models
+     * @param paths     The directories with the models, relative to the data dir
+     */
+    public void warmUp(int numModels, String... paths) {
+        for (String path : paths) {
+            try {
+                createPredictor(numModels, path);
+            } catch (Exception e) {
+                LOG.log(Level.WARNING, "Failed to load models from " + path, e);
+            }
+        }
+    }
+
     protected Iterator<Pair<IAtomContainer, Double>> createMolsIterator(
             List<MoleculeObject> mols, String fieldName,
             Object trueValue, Object falseValue) {
@@ -139,7 +189,7 @@ public class AbstractCCPRunner {
     }
 
 
-    protected interface Predictor {
+    public interface Predictor {
 
         Stream<MoleculeObject> predict(Stream<MoleculeObject> mols, String label, double confidence) throws Exception;
 
@@ -63,16 +63,16 @@ public class CCPClassifierRunner extends AbstractCCPRunner {
         return factory.createSignCCPClassification(ccpImpl, signatureStartHeight, signatureEndHeight);
     }
 
-    public Predictor createPredictor(int numModels, String path) throws Exception {
+    @Override
+    protected Predictor loadPredictor(int numModels, File dir) throws Exception {
         ISignCCPClassification signCCP = createCCPClassifier();
-        File dir = new File(dataDir, path);
-        if (!dir.exists()) {
-            throw new FileNotFoundException("Directory with models does not exist");
-        }
 
         // Load models previously trained
         signCCP.loadModelFiles(new File(dir, modelFilebase), numModels);
-        signCCP.loadSignatures(new FileInputStream(new File(dir, signaturesFilename)));
+        try (InputStream signatures = new FileInputStream(new File(dir, signaturesFilename))) {
+            signCCP.loadSignatures(signatures);
+        }
+        // the loaded models are only read when predicting so the Predictor can be shared
         return new Predictor() {
             @Override
             public Stream<MoleculeObject> predict(Stream<MoleculeObject> mols, String label, double confidence) throws Exception {
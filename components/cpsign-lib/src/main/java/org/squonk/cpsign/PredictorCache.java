@@ -0,0 +1,284 @@
+/*
+ * Copyright (c) 2019 Informatics Matters Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.squonk.cpsign;
+
+import org.squonk.types.CPSignTrainResult;
+import org.squonk.util.IOUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.logging.Logger;
+
+/**
+ * Cache of loaded predictive models so that the model files do not need to be read for every prediction.
+ * <p>
+ * The cache is keyed by the model directory and the parameters of the model, plus a version that is generated from
+ * the modification times of the model files so that a model that is rewritten is reloaded. Each model is only loaded
+ * once, even if it is requested by several threads at the same time, and the loaded model is shared by all the
+ * predictions that use it.
+ * <p>
+ * The cache is bounded by the number of models (CPSIGN_PREDICTOR_CACHE_SIZE, default 10) and by the total size of
+ * the model files (CPSIGN_PREDICTOR_CACHE_MAX_MB, default 1024) which is used as an estimate of the memory that the
+ * loaded models need. The least recently used models are evicted when either limit is exceeded.
+ *
+ * @author timbo
+ */
+public class PredictorCache {
+
+    private static final Logger LOG = Logger.getLogger(PredictorCache.class.getName());
+
+    private static final PredictorCache INSTANCE = new PredictorCache(
+            Integer.parseInt(IOUtils.getConfiguration("CPSIGN_PREDICTOR_CACHE_SIZE", "10")),
+            Long.parseLong(IOUtils.getConfiguration("CPSIGN_PREDICTOR_CACHE_MAX_MB", "1024")) * 1024L * 1024L);
+
+    private final int maxEntries;
+    private final long maxBytes;
+    /**
+     * Entries in access order so that the eldest is the least recently used
+     */
+    private final LinkedHashMap<Key, CompletableFuture<Object>> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    public PredictorCache(int maxEntries, long maxBytes) {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * The cache that is shared by all the runners
+     */
+    public static PredictorCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Get the model, loading it if it is not already present. If the model is being loaded by another thread then
+     * this waits for that load to complete.
+     *
+     * @param key    The key for the model
+     * @param loader Loads the model
+     * @return The model
+     * @throws Exception If the model could not be loaded. Failures are not cached.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T get(Key key, Callable<T> loader) throws Exception {
+        CompletableFuture<Object> future;
+        boolean load = false;
+        synchronized (this) {
+            future = entries.get(key);
+            if (future == null) {
+                future = new CompletableFuture<>();
+                entries.put(key, future);
+                misses++;
+                load = true;
+            } else {
+                hits++;
+            }
+        }
+
+        if (load) {
+            long t0 = System.currentTimeMillis();
+            try {
+                future.complete(loader.call());
+            } catch (Exception e) {
+                synchronized (this) {
+                    entries.remove(key, future);
+                }
+                future.completeExceptionally(e);
+                throw e;
+            }
+            LOG.info("Loaded model " + key + " in " + (System.currentTimeMillis() - t0) + "ms");
+            synchronized (this) {
+                if (entries.get(key) == future) {
+                    bytes += key.size;
+                    evict(key);
+                }
+            }
+        }
+
+        try {
+            return (T) future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof Exception ? (Exception) cause : e;
+        }
+    }
+
+    /**
+     * Remove older versions of the model that was just loaded and then the least recently used entries until the
+     * cache is within its limits. Entries that are still loading and the entry that was just loaded are not evicted.
+     */
+    private void evict(Key justLoaded) {
+        Iterator<Map.Entry<Key, CompletableFuture<Object>>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Key, CompletableFuture<Object>> e = it.next();
+            if (!e.getKey().equals(justLoaded) && e.getKey().isSameModel(justLoaded) && e.getValue().isDone()) {
+                remove(it, e.getKey());
+            }
+        }
+        it = entries.entrySet().iterator();
+        while ((entries.size() > maxEntries || bytes > maxBytes) && it.hasNext()) {
+            Map.Entry<Key, CompletableFuture<Object>> e = it.next();
+            if (e.getKey().equals(justLoaded) || !e.getValue().isDone()) {
+                continue;
+            }
+            remove(it, e.getKey());
+        }
+    }
+
+    private void remove(Iterator<?> it, Key key) {
+        it.remove();
+        bytes -= key.size;
+        evictions++;
+        LOG.info("Evicted model " + key);
+    }
+
+    /**
+     * Remove all the models
+     */
+    public synchronized void clear() {
+        entries.values().removeIf(CompletableFuture::isDone);
+        bytes = 0;
+        for (Key key : entries.keySet()) {
+            bytes += key.size;
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * The total size of the model files of the cached models
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * Identifies a model. Create using {@link #create(String, CPSignTrainResult.Library, int, int, int, File)}.
+     */
+    public static class Key {
+
+        private final String type;
+        private final CPSignTrainResult.Library library;
+        private final int signatureStartHeight;
+        private final int signatureEndHeight;
+        private final int numModels;
+        private final String path;
+        private final long version;
+        private final long size;
+
+        Key(String type, CPSignTrainResult.Library library, int signatureStartHeight, int signatureEndHeight,
+            int numModels, String path, long version, long size) {
+            this.type = type;
+            this.library = library;
+            this.signatureStartHeight = signatureStartHeight;
+            this.signatureEndHeight = signatureEndHeight;
+            this.numModels = numModels;
+            this.path = path;
+            this.version = version;
+            this.size = size;
+        }
+
+        /**
+         * Create the key for the model files in this directory. The version is the latest modification time of the
+         * files and the size is their total size.
+         *
+         * @param type      The type of model e.g. the name of the runner class
+         * @param library
+         * @param signatureStartHeight
+         * @param signatureEndHeight
+         * @param numModels
+         * @param dir       The directory with the model files
+         * @return
+         * @throws IOException
+         */
+        public static Key create(String type, CPSignTrainResult.Library library, int signatureStartHeight, int signatureEndHeight,
+                                 int numModels, File dir) throws IOException {
+            File[] files = dir.listFiles();
+            if (files == null) {
+                throw new IOException("Cannot list model files in " + dir.getPath());
+            }
+            long version = dir.lastModified();
+            long size = 0;
+            for (File f : files) {
+                version = Math.max(version, f.lastModified());
+                size += f.length();
+            }
+            return new Key(type, library, signatureStartHeight, signatureEndHeight, numModels,
+                    dir.getCanonicalPath(), version, size);
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * Is this the same model, ignoring the version
+         */
+        boolean isSameModel(Key key) {
+            return signatureStartHeight == key.signatureStartHeight &&
+                    signatureEndHeight == key.signatureEndHeight &&
+                    numModels == key.numModels &&
+                    Objects.equals(type, key.type) &&
+                    library == key.library &&
+                    Objects.equals(path, key.path);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key key = (Key) o;
+            return version == key.version && isSameModel(key);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(type, library, signatureStartHeight, signatureEndHeight, numModels, path, version);
+        }
+
+        @Override
+        public String toString() {
+            return type + "[" + library + " " + signatureStartHeight + "-" + signatureEndHeight + " " +
+                    numModels + " models " + path + " v" + version + "]";
+        }
+    }
+}
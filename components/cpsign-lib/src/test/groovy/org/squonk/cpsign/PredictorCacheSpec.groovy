@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2019 Informatics Matters Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.squonk.cpsign
+
+import org.squonk.types.CPSignTrainResult
+import spock.lang.Specification
+
+import java.util.concurrent.Callable
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Created by timbo on 17/10/2019.
+ */
+class PredictorCacheSpec extends Specification {
+
+    static PredictorCache.Key key(String path, long version = 1, long size = 100) {
+        new PredictorCache.Key("test", CPSignTrainResult.Library.LibSVM, 1, 3, 5, path, version, size)
+    }
+
+    void "model is only loaded once"() {
+
+        PredictorCache cache = new PredictorCache(10, 10000)
+        AtomicInteger loads = new AtomicInteger(0)
+        CountDownLatch latch = new CountDownLatch(1)
+        def pool = Executors.newFixedThreadPool(8)
+
+        when:
+        def futures = (1..20).collect {
+            pool.submit({
+                cache.get(key("a"), {
+                    loads.incrementAndGet()
+                    latch.await()
+                    return "model"
+                } as Callable)
+            } as Callable)
+        }
+        Thread.sleep(100)
+        latch.countDown()
+        def results = futures.collect { it.get() }
+
+        then:
+        results.every { it == "model" }
+        loads.get() == 1
+        cache.misses == 1
+        cache.hits == 19
+        cache.size() == 1
+
+        cleanup:
+        pool.shutdown()
+    }
+
+    void "least recently used evicted by count"() {
+
+        PredictorCache cache = new PredictorCache(2, 10000)
+
+        when:
+        cache.get(key("a"), { "a" } as Callable)
+        cache.get(key("b"), { "b" } as Callable)
+        cache.get(key("a"), { "a2" } as Callable)
+        cache.get(key("c"), { "c" } as Callable)
+        def a = cache.get(key("a"), { "a3" } as Callable)
+        def b = cache.get(key("b"), { "b2" } as Callable)
+
+        then:
+        a == "a"
+        b == "b2"
+        cache.size() == 2
+        cache.evictions == 2
+    }
+
+    void "evicted by size"() {
+
+        PredictorCache cache = new PredictorCache(10, 250)
+
+        when:
+        cache.get(key("a", 1, 100), { "a" } as Callable)
+        cache.get(key("b", 1, 100), { "b" } as Callable)
+        cache.get(key("c", 1, 100), { "c" } as Callable)
+
+        then:
+        cache.size() == 2
+        cache.bytes == 200
+    }
+
+    void "new version replaces old"() {
+
+        PredictorCache cache = new PredictorCache(10, 10000)
+
+        when:
+        def v1 = cache.get(key("a", 1), { "v1" } as Callable)
+        def v2 = cache.get(key("a", 2), { "v2" } as Callable)
+
+        then:
+        v1 == "v1"
+        v2 == "v2"
+        cache.size() == 1
+    }
+
+    void "failures are not cached"() {
+
+        PredictorCache cache = new PredictorCache(10, 10000)
+
+        when:
+        cache.get(key("a"), { throw new IOException("bad model") } as Callable)
+
+        then:
+        thrown(IOException)
+        cache.size() == 0
+
+        when:
+        def result = cache.get(key("a"), { "ok" } as Callable)
+
+        then:
+        result == "ok"
+    }
+
+    void "key from model dir"() {
+
+        File dir = File.createTempDir()
+        new File(dir, "model").text = "12345"
+        new File(dir, "signatures.signs").text = "123"
+
+        when:
+        def k1 = PredictorCache.Key.create("test", CPSignTrainResult.Library.LibSVM, 1, 3, 5, dir)
+        def k2 = PredictorCache.Key.create("test", CPSignTrainResult.Library.LibSVM, 1, 3, 5, dir)
+        def k3 = PredictorCache.Key.create("test", CPSignTrainResult.Library.LibLinear, 1, 3, 5, dir)
+
+        then:
+        k1.size == 8
+        k1 == k2
+        k1 != k3
+
+        cleanup:
+        dir.deleteDir()
+    }
+}
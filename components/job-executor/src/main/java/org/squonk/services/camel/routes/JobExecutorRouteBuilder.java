@@ -45,6 +45,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.security.Principal;
 import java.util.*;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -453,6 +454,7 @@ public class JobExecutorRouteBuilder extends RouteBuilder {
         LOG.info("Submitting async job for " + service);
         try {
             String username = fetchUsername(message);
+            int priority = fetchPriority(message);
 
             if (service == null || service.isEmpty()) {
                 handle500Error(message, "Service not specified", null);
@@ -495,7 +497,7 @@ public class JobExecutorRouteBuilder extends RouteBuilder {
                 LOG.info("Found DataSource for field " + aFieldName + " of ContentType " + dataSource.getContentType());
             }
 
-            JobStatus jobStatus = jobManager.executeAsync(username, service, options, inputs, auth);
+            JobStatus jobStatus = jobManager.executeAsync(username, service, options, inputs, auth, priority);
 
             LOG.info("Job " + jobStatus.getJobId() + " had been submitted");
             String json = JsonHandler.getInstance().objectToJson(jobStatus);
@@ -503,6 +505,8 @@ public class JobExecutorRouteBuilder extends RouteBuilder {
             message.setHeader(Exchange.HTTP_RESPONSE_CODE, 201); // created
         } catch (AuthenticationException e) {
             handle401Error(message);
+        } catch (RejectedExecutionException e) {
+            handle503Error(message, e.getMessage());
         } catch (Exception e) {
             handle500Error(message, "Failed to submit job", e);
         }
@@ -646,6 +650,41 @@ public class JobExecutorRouteBuilder extends RouteBuilder {
 
     }
 
+    /** Get the priority from the SquonkJobPriority header. Only service accounts (internal callers) can raise the
+     * priority above the default, other users can only lower it. The value is limited to the range allowed by the
+     * JobManager.
+     *
+     * @param message
+     * @return
+     */
+    private int fetchPriority(Message message) {
+        String header = message.getHeader(ServiceConstants.HEADER_JOB_PRIORITY, String.class);
+        if (header == null || header.isEmpty()) {
+            return JobManager.DEFAULT_PRIORITY;
+        }
+        int priority;
+        try {
+            priority = Integer.parseInt(header.trim());
+        } catch (NumberFormatException e) {
+            LOG.warning("Ignoring invalid job priority: " + header);
+            return JobManager.DEFAULT_PRIORITY;
+        }
+        if (priority > JobManager.DEFAULT_PRIORITY && !isServiceAccount(message)) {
+            LOG.warning("Ignoring raised job priority " + priority + " as the caller is not a service account");
+            return JobManager.DEFAULT_PRIORITY;
+        }
+        return JobManager.clampPriority(priority);
+    }
+
+    private boolean isServiceAccount(Message message) {
+        HttpServletRequest request = message.getBody(HttpServletRequest.class);
+        if (request != null) {
+            Principal p = request.getUserPrincipal();
+            return p != null && p.getName().startsWith("service-account-");
+        }
+        return false;
+    }
+
     private String fetchUsername(Message message) throws AuthenticationException {
         String user = null;
         HttpServletRequest request = message.getBody(HttpServletRequest.class);
@@ -690,6 +729,12 @@ public class JobExecutorRouteBuilder extends RouteBuilder {
         message.setHeader(Exchange.HTTP_RESPONSE_CODE, 401);
     }
 
+    private void handle503Error(Message message, String warning) {
+        LOG.warning("Unavailable: " + warning);
+        message.setBody("{\"error\": \"" + warning + "\"}");
+        message.setHeader(Exchange.HTTP_RESPONSE_CODE, 503);
+    }
+
     private void handle500Error(Message message, String warning, Exception e) {
         if (e == null) {
             LOG.severe(warning);
@@ -24,6 +24,7 @@ import org.squonk.dataset.Dataset;
 import org.squonk.dataset.DatasetMetadata;
 import org.squonk.dataset.MoleculeObjectDataset;
 import org.squonk.rdkit.io.RDKitMoleculeIOUtils;
+import org.squonk.rdkit.mol.ParallelMolSupplier;
 
 import java.util.logging.Logger;
 import java.util.stream.Stream;
@@ -56,11 +57,13 @@ public class RDKitCanonicalSmilesGeneratorProcessor implements Processor {
         String modeS = exch.getIn().getHeader("mode", String.class);
         final RDKitMoleculeIOUtils.FragmentMode mode = (modeS == null ? RDKitMoleculeIOUtils.FragmentMode.WHOLE_MOLECULE : RDKitMoleculeIOUtils.FragmentMode.valueOf(modeS.toUpperCase()));
 
-        Stream<MoleculeObject> results = dataset.getStream().peek((mo) -> {
-            String smiles = RDKitMoleculeIOUtils.generateCanonicalSmiles(mo, mode);
+        // the molecules are parsed and canonicalised in parallel
+        Stream<MoleculeObject> results = ParallelMolSupplier.forMoleculeObjects(dataset.getStream()).mapRecords((mo, mol) -> {
+            String smiles = RDKitMoleculeIOUtils.generateCanonicalSmiles(mol, mode);
             if (smiles != null) {
                 mo.putValue(propertyName, smiles);
             }
+            return mo;
         });
 
         DatasetMetadata<MoleculeObject> meta = dataset.getMetadata();
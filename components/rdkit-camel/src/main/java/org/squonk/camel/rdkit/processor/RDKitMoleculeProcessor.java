@@ -24,7 +24,7 @@ import org.squonk.dataset.DatasetMetadata;
 import org.squonk.dataset.MoleculeObjectDataset;
 import org.squonk.rdkit.mol.EvaluatorDefinition;
 import org.squonk.rdkit.mol.MolEvaluator;
-import org.squonk.rdkit.mol.MolReader;
+import org.squonk.rdkit.mol.ParallelMolSupplier;
 import org.squonk.types.MoleculeObject;
 import org.squonk.types.io.JsonHandler;
 import org.squonk.util.ExecutionStats;
@@ -89,8 +89,8 @@ public class RDKitMoleculeProcessor implements Processor {
 
     Stream<MoleculeObject> evaluate(Exchange exchange, Stream<MoleculeObject> mols, List<EvaluatorDefinition> definitions, Map<String, Integer> stats) {
 
-        return mols.peek((mo) -> {
-            ROMol rdkitMol = MolReader.findROMol(mo);
+        // the molecules are parsed and evaluated in parallel and each ROMol is deleted once it has been evaluated
+        return ParallelMolSupplier.forMoleculeObjects(mols).mapRecords((mo, rdkitMol) -> {
             if (rdkitMol != null) {
                 definitions.stream().forEach((definition) -> {
                     evaluateImpl(mo, rdkitMol, definition, stats);
@@ -98,13 +98,16 @@ public class RDKitMoleculeProcessor implements Processor {
             } else {
                 LOG.warning("No molecule found to process");
             }
+            return mo;
         });
     }
 
     private void evaluateImpl(MoleculeObject mo, ROMol rdkitMol, EvaluatorDefinition definition, Map<String, Integer> stats) {
         try {
             MolEvaluator.evaluate(mo, rdkitMol, definition);
-            ExecutionStats.increment(stats, Metrics.generate(Metrics.PROVIDER_RDKIT, definition.function.getMetricsCode()), 1);
+            synchronized (stats) {
+                ExecutionStats.increment(stats, Metrics.generate(Metrics.PROVIDER_RDKIT, definition.function.getMetricsCode()), 1);
+            }
         } catch (Throwable t) {
             LOG.log(Level.WARNING, "Calculation failed", t);
         }
@@ -20,8 +20,10 @@ import groovy.util.logging.Log
 import org.RDKit.ROMol
 import org.squonk.rdkit.db.ChemcentralConfig
 import org.squonk.rdkit.db.RDKitTable
+import org.squonk.rdkit.db.RDKitTableLoader
+import org.squonk.rdkit.db.dsl.SqlQuery
 import org.squonk.rdkit.db.impl.PdbLigandTable
-import org.squonk.rdkit.mol.MolReader
+import org.squonk.rdkit.mol.ParallelMolSupplier
 import org.squonk.types.MoleculeObject
 import org.squonk.util.IOUtils
 
@@ -39,6 +41,7 @@ import java.util.stream.Stream
 class PdbLigandSdfLoader extends AbstractRDKitLoader {
 
     static final String DEFAULT_TABLE_NAME = "all-sdf.sdf.gz";
+    static final String MOLBLOCK_END = "M  END"
 
     PdbLigandSdfLoader(RDKitTable table, ChemcentralConfig config) {
         super(table, config)
@@ -55,29 +58,44 @@ class PdbLigandSdfLoader extends AbstractRDKitLoader {
         int reportingChunk = new Integer(IOUtils.getConfiguration("CHEMCENTRAL_REPORTING_CHUNK", "10000"))
         def propertyToTypeMappings = [pdb_code:String.class, ligand_code:String.class]
         log.info("Using PdbLigandSdfLoader to load $filename")
-        loadSDF(filename, limit, reportingChunk, propertyToTypeMappings, "ligand_code")
-        log.info("Loading finished")
-    }
 
-    protected Stream<MoleculeObject> prepareStream(Stream<MoleculeObject> stream) {
-        return stream.filter() { mo ->
-            try {
-                ROMol mol = MolReader.generateMolFromMolfile(mo.source)
-                long heavyAtomCount = mol.getNumHeavyAtoms()
-                if (heavyAtomCount <= 5) {
-                    println "${mo.getValue("ligand_code")} too small"
-                }
-                return heavyAtomCount > 5
-            } catch (Throwable e) {
-                log.info("failed to parse molecule " + mo.getValue("ligand_code"))
-                return false
+        long t0 = System.currentTimeMillis()
+        // the molecules are parsed in parallel to filter out the small ones, and the ROMols are deleted straight away
+        Stream<MoleculeObject> mols = ParallelMolSupplier.forSDF(new FileInputStream(filename), true, true)
+                .mapRecords { String record, ROMol mol -> createMoleculeObject(record, mol) }
+        try {
+            if (limit > 0) {
+                mols = mols.limit(limit)
             }
-        }.peek() { mo ->
-            String code = mo.getValue("ligand_code")
-            String pdbCode = code.substring(0, 4).toUpperCase()
-            //println "$pdbCode -> $code"
-            mo.putValue("pdb_code", pdbCode)
+            RDKitTableLoader loader = new SqlQuery(table, config).loader()
+            loader.reportingSize = reportingChunk
+            doLoad(loader, mols, propertyToTypeMappings)
+        } finally {
+            mols.close()
+        }
+        long t1 = System.currentTimeMillis()
+        log.info("Loading finished in ${t1 - t0}ms")
+    }
+
+    /**
+     * Create the MoleculeObject for the SD file record, or null if the molecule could not be read or is too small.
+     * The name line of the record is the ligand code.
+     */
+    static MoleculeObject createMoleculeObject(String record, ROMol mol) {
+        int eol = record.indexOf('\n')
+        String code = eol < 0 ? record : record.substring(0, eol)
+        if (mol == null) {
+            log.info("failed to parse molecule " + code)
+            return null
+        }
+        long heavyAtomCount = mol.getNumHeavyAtoms()
+        if (heavyAtomCount <= 5) {
+            println "$code too small"
+            return null
         }
+        String molfile = record.substring(0, record.indexOf(MOLBLOCK_END) + MOLBLOCK_END.length())
+        String pdbCode = code.substring(0, 4).toUpperCase()
+        return new MoleculeObject(molfile, 'mol', [ligand_code: code, pdb_code: pdbCode])
     }
 
 }
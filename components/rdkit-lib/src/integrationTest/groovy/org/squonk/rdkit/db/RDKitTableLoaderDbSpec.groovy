@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2019 Informatics Matters Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.squonk.rdkit.db
+
+import groovy.sql.Sql
+import org.postgresql.ds.PGSimpleDataSource
+import org.squonk.rdkit.db.impl.EMoleculesTable
+import org.squonk.types.MoleculeObject
+import spock.lang.Shared
+import spock.lang.Specification
+
+/**
+ * Runs against the postgres database started by the integrationTest task.
+ *
+ * Created by timbo on 17/10/2019.
+ */
+class RDKitTableLoaderDbSpec extends Specification {
+
+    static String schema = "vendordbs"
+
+    static List<MoleculeObject> mols = [
+            new MoleculeObject('CCO', 'smiles', [version_id: 1, parent_id: 10]),
+            new MoleculeObject('c1ccccc1O', 'smiles', [version_id: 2, parent_id: 20]),
+            new MoleculeObject('CC(=O)Nc1ccc(O)cc1', 'smiles', [version_id: 3, parent_id: 30]),
+            new MoleculeObject('not a smiles', 'smiles', [version_id: 4, parent_id: 40])
+    ]
+
+    @Shared PGSimpleDataSource dataSource
+
+    void setupSpec() {
+        dataSource = new PGSimpleDataSource()
+        dataSource.serverName = 'localhost'
+        dataSource.portNumber = 5432
+        dataSource.databaseName = 'chemcentral'
+        dataSource.user = 'squonk'
+        dataSource.password = 'squonk'
+    }
+
+    void "copy and insert load the same data"() {
+
+        ChemcentralConfig config = new ChemcentralConfig(dataSource, null)
+        RDKitTable table = new EMoleculesTable(schema, "loader_test_" + name, MolSourceType.SMILES)
+        RDKitTableLoader loader = new RDKitTableLoader(table, config)
+        loader.copy = copy
+        Sql db = new Sql(dataSource)
+
+        when:
+        loader.dropAllItems()
+        loader.createTables()
+        loader.loadData(mols.stream(), [version_id: Integer.class, parent_id: Integer.class])
+        loader.createMoleculesAndFingerprints()
+        loader.createIndexes()
+        def base = db.rows("SELECT structure, version_id, parent_id FROM " + table.schemaPlusTable() + " ORDER BY version_id")
+        int molfps = db.firstRow("SELECT count(*) FROM " + table.molFpTable.schemaPlusTable() +
+                " WHERE " + table.fingerprintTypes.collect { it.colName + " IS NOT NULL" }.join(" AND "))[0]
+
+        then:
+        base.size() == 4
+        base[0].structure == 'CCO'
+        base[3].structure == 'not a smiles'
+        base[3].parent_id == 40
+        molfps == 3
+        loader.testSSS() == 0
+
+        cleanup:
+        loader.dropAllItems()
+        db?.close()
+
+        where:
+        name     | copy
+        'copy'   | true
+        'insert' | false
+    }
+}
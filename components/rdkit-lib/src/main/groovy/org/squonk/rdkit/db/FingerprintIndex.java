@@ -0,0 +1,364 @@
+/*
+ * Copyright (c) 2019 Informatics Matters Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.squonk.rdkit.db;
+
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Memory resident index of bit fingerprints for similarity searching without the database.
+ * <p>
+ * The fingerprints are packed into a single long[] and sorted by the number of bits that are set so that a search
+ * only needs to look at the fingerprints whose bit count could give a similarity above the threshold. e.g. for
+ * Tanimoto with a query with A bits set and a threshold of T only fingerprints with between A*T and A/T bits
+ * set need to be compared. The similarities are calculated using the popcount of the ANDed words.
+ * <p>
+ * Use a {@link Builder} to create the index. Once built the index is immutable and can be searched from multiple
+ * threads. Fingerprints can be provided as long[] or as bytes in the format of the RDKit cartridge's
+ * bfp_to_binary_text() function (bit i is bit i%8 of byte i/8).
+ *
+ * @author timbo
+ */
+public class FingerprintIndex {
+
+    private final int numBits;
+    private final int words;
+    private final int[] ids;
+    private final long[] bits;
+    /**
+     * Index of the first fingerprint with a particular cardinality. Fingerprints with cardinality c are at
+     * positions offsets[c] (inclusive) to offsets[c+1] (exclusive).
+     */
+    private final int[] offsets;
+
+    private FingerprintIndex(int numBits, int[] ids, long[] bits, int[] offsets) {
+        this.numBits = numBits;
+        this.words = wordsFor(numBits);
+        this.ids = ids;
+        this.bits = bits;
+        this.offsets = offsets;
+    }
+
+    public int getNumBits() {
+        return numBits;
+    }
+
+    /**
+     * The number of fingerprints in the index
+     */
+    public int size() {
+        return ids.length;
+    }
+
+    /**
+     * The approximate memory in bytes used by the index
+     */
+    public long getMemorySize() {
+        return 4L * ids.length + 8L * bits.length + 4L * offsets.length;
+    }
+
+    /**
+     * Find the fingerprints that are similar to the query.
+     *
+     * @param query     The query fingerprint
+     * @param metric    The similarity metric
+     * @param threshold The minimum similarity
+     * @param limit     The maximum number of hits to return, or 0 for no limit
+     * @return The hits, most similar first
+     */
+    public List<Hit> search(long[] query, Metric metric, double threshold, int limit) {
+        return search(0, query, metric, threshold, limit);
+    }
+
+    /**
+     * Search with a batch of query fingerprints. Each query is handled as {@link #search(long[], Metric, double, int)},
+     * with the searches running in parallel, and the hits are combined so that each fingerprint in the index is only
+     * present once, with the highest similarity to any of the queries.
+     *
+     * @param queries   The query fingerprints. Nulls are ignored.
+     * @param metric    The similarity metric
+     * @param threshold The minimum similarity
+     * @param limit     The maximum number of hits for each query, or 0 for no limit
+     * @return The hits, most similar first. The query index of the hit is the index in the list of queries.
+     */
+    public List<Hit> multiSearch(List<long[]> queries, Metric metric, double threshold, int limit) {
+        Map<Integer, Hit> best = IntStream.range(0, queries.size())
+                .parallel()
+                .filter(i -> queries.get(i) != null)
+                .mapToObj(i -> search(i, queries.get(i), metric, threshold, limit))
+                .flatMap(List::stream)
+                .collect(Collectors.toConcurrentMap(Hit::getId, h -> h,
+                        (a, b) -> a.similarity > b.similarity || (a.similarity == b.similarity && a.query <= b.query) ? a : b));
+        List<Hit> results = new ArrayList<>(best.values());
+        results.sort(Hit.ORDER);
+        return results;
+    }
+
+    private List<Hit> search(int queryIndex, long[] query, Metric metric, double threshold, int limit) {
+        if (query.length != words) {
+            throw new IllegalArgumentException("Query fingerprint has " + query.length + " words. Expected " + words);
+        }
+        int a = cardinality(query);
+        int from = Math.max(0, lowerBound(a, metric, threshold));
+        int to = Math.min(numBits, upperBound(a, metric, threshold));
+
+        PriorityQueue<Hit> hits = new PriorityQueue<>(Hit.ORDER.reversed());
+        for (int c = from; c <= to; c++) {
+            for (int i = offsets[c]; i < offsets[c + 1]; i++) {
+                double sim = similarity(metric, a, c, common(query, i));
+                if (sim >= threshold) {
+                    hits.add(new Hit(ids[i], queryIndex, sim));
+                    if (limit > 0 && hits.size() > limit) {
+                        hits.poll();
+                    }
+                }
+            }
+        }
+        List<Hit> results = new ArrayList<>(hits);
+        results.sort(Hit.ORDER);
+        return results;
+    }
+
+    private int common(long[] query, int index) {
+        int start = index * words;
+        int count = 0;
+        for (int w = 0; w < words; w++) {
+            count += Long.bitCount(query[w] & bits[start + w]);
+        }
+        return count;
+    }
+
+    /**
+     * The smallest cardinality that could give a similarity of at least the threshold.
+     */
+    static int lowerBound(int a, Metric metric, double threshold) {
+        if (threshold <= 0) {
+            return 0;
+        }
+        switch (metric) {
+            case TANIMOTO:
+                return (int) Math.ceil(a * threshold - 1e-9);
+            case DICE:
+                return (int) Math.ceil(a * threshold / (2d - threshold) - 1e-9);
+            default:
+                throw new IllegalArgumentException("Unsupported metric: " + metric);
+        }
+    }
+
+    /**
+     * The largest cardinality that could give a similarity of at least the threshold.
+     */
+    static int upperBound(int a, Metric metric, double threshold) {
+        if (threshold <= 0) {
+            return Integer.MAX_VALUE;
+        }
+        switch (metric) {
+            case TANIMOTO:
+                return (int) Math.floor(a / threshold + 1e-9);
+            case DICE:
+                return (int) Math.floor(a * (2d - threshold) / threshold + 1e-9);
+            default:
+                throw new IllegalArgumentException("Unsupported metric: " + metric);
+        }
+    }
+
+    /**
+     * Calculate the similarity.
+     *
+     * @param metric The metric
+     * @param a      The number of bits set in the first fingerprint
+     * @param b      The number of bits set in the second fingerprint
+     * @param common The number of bits set in both
+     * @return
+     */
+    public static double similarity(Metric metric, int a, int b, int common) {
+        switch (metric) {
+            case TANIMOTO:
+                int union = a + b - common;
+                return union == 0 ? 0d : (double) common / union;
+            case DICE:
+                return a + b == 0 ? 0d : 2d * common / (a + b);
+            default:
+                throw new IllegalArgumentException("Unsupported metric: " + metric);
+        }
+    }
+
+    public static int cardinality(long[] fp) {
+        int count = 0;
+        for (long l : fp) {
+            count += Long.bitCount(l);
+        }
+        return count;
+    }
+
+    private static int wordsFor(int numBits) {
+        return (numBits + 63) / 64;
+    }
+
+    /**
+     * Convert the bytes of a fingerprint in the format generated by the RDKit cartridge's bfp_to_binary_text()
+     * function to the long[] form.
+     *
+     * @param bytes
+     * @return
+     */
+    public static long[] fromBytes(byte[] bytes) {
+        long[] fp = new long[wordsFor(bytes.length * 8)];
+        for (int i = 0; i < bytes.length; i++) {
+            fp[i >> 3] |= (bytes[i] & 0xFFL) << ((i & 7) * 8);
+        }
+        return fp;
+    }
+
+    /**
+     * Create a fingerprint from the indexes of the bits that are set.
+     *
+     * @param numBits The size of the fingerprint
+     * @param onBits  The bits that are set
+     * @return
+     */
+    public static long[] fromOnBits(int numBits, int... onBits) {
+        long[] fp = new long[wordsFor(numBits)];
+        for (int bit : onBits) {
+            if (bit < 0 || bit >= numBits) {
+                throw new IllegalArgumentException("Bit " + bit + " is outside the fingerprint size " + numBits);
+            }
+            fp[bit >> 6] |= 1L << (bit & 63);
+        }
+        return fp;
+    }
+
+    /**
+     * A fingerprint in the index that matched a query
+     */
+    public static class Hit {
+
+        static final Comparator<Hit> ORDER = Comparator.comparingDouble(Hit::getSimilarity).reversed()
+                .thenComparingInt(Hit::getQuery)
+                .thenComparingInt(Hit::getId);
+
+        private final int id;
+        private final int query;
+        private final double similarity;
+
+        Hit(int id, int query, double similarity) {
+            this.id = id;
+            this.query = query;
+            this.similarity = similarity;
+        }
+
+        /**
+         * The ID of the fingerprint in the index
+         */
+        public int getId() {
+            return id;
+        }
+
+        /**
+         * The index of the query that the hit is for
+         */
+        public int getQuery() {
+            return query;
+        }
+
+        public double getSimilarity() {
+            return similarity;
+        }
+
+        @Override
+        public String toString() {
+            return "Hit[id=" + id + " query=" + query + " similarity=" + similarity + "]";
+        }
+    }
+
+    /**
+     * Collects the fingerprints and builds the index.
+     */
+    public static class Builder {
+
+        private final int numBits;
+        private final int words;
+        private int size = 0;
+        private int[] ids = new int[1024];
+        private long[] bits;
+
+        /**
+         * @param numBits The size of the fingerprints. All the fingerprints must be the same size.
+         */
+        public Builder(int numBits) {
+            this.numBits = numBits;
+            this.words = wordsFor(numBits);
+            this.bits = new long[ids.length * words];
+        }
+
+        public int getNumBits() {
+            return numBits;
+        }
+
+        public Builder add(int id, long[] fp) {
+            if (fp.length != words) {
+                throw new IllegalArgumentException("Fingerprint for " + id + " has " + fp.length + " words. Expected " + words);
+            }
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+                bits = Arrays.copyOf(bits, size * 2 * words);
+            }
+            ids[size] = id;
+            System.arraycopy(fp, 0, bits, size * words, words);
+            size++;
+            return this;
+        }
+
+        /**
+         * Add a fingerprint in the format of the RDKit cartridge's bfp_to_binary_text() function
+         */
+        public Builder add(int id, byte[] fp) {
+            return add(id, fromBytes(fp));
+        }
+
+        /**
+         * Build the index by sorting the fingerprints by cardinality. The builder should not be used after this.
+         */
+        public FingerprintIndex build() {
+            int[] cards = new int[size];
+            int[] counts = new int[numBits + 2];
+            long[] fp = new long[words];
+            for (int i = 0; i < size; i++) {
+                System.arraycopy(bits, i * words, fp, 0, words);
+                cards[i] = cardinality(fp);
+                counts[cards[i] + 1]++;
+            }
+            // counting sort by cardinality
+            int[] offsets = new int[numBits + 2];
+            for (int c = 1; c < offsets.length; c++) {
+                offsets[c] = offsets[c - 1] + counts[c];
+            }
+            int[] next = Arrays.copyOf(offsets, offsets.length);
+            int[] sortedIds = new int[size];
+            long[] sortedBits = new long[size * words];
+            for (int i = 0; i < size; i++) {
+                int pos = next[cards[i]]++;
+                sortedIds[pos] = ids[i];
+                System.arraycopy(bits, i * words, sortedBits, pos * words, words);
+            }
+            ids = null;
+            bits = null;
+            return new FingerprintIndex(numBits, sortedIds, sortedBits, offsets);
+        }
+    }
+}
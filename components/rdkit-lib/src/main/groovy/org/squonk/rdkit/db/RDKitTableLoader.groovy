@@ -16,16 +16,29 @@
 
 package org.squonk.rdkit.db
 
+import org.postgresql.PGConnection
+import org.postgresql.copy.PGCopyOutputStream
 import org.squonk.types.MoleculeObject
 import groovy.sql.Sql
 import groovy.util.logging.Log
 import org.squonk.util.IOUtils
 
 import java.lang.reflect.Constructor
+import java.nio.charset.StandardCharsets
+import java.sql.Connection
 import java.sql.SQLException
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
 import java.util.stream.Stream
 
 /**
+ * Loads the data for a RDKitTable.
+ * <p>
+ * By default the data is loaded using the PostgreSQL COPY protocol, with the rows being streamed to the database as
+ * they are read. Set the copy property to false to use batched INSERT statements instead.
+ * The molecules and all the fingerprints are then generated in a single pass through the table using
+ * {@link #createMoleculesAndFingerprints()} and the indexes built afterwards, in parallel, using {@link #createIndexes()}.
  *
  * @author timbo
  */
@@ -35,6 +48,15 @@ class RDKitTableLoader {
 
     int batchSize = 100
     int reportingSize = 10000
+    /**
+     * Use COPY rather than batched INSERTs to load the data
+     */
+    boolean copy = true
+    /**
+     * The number of indexes to build at the same time
+     */
+    int indexThreads = Integer.parseInt(IOUtils.getConfiguration("CHEMCENTRAL_INDEX_THREADS",
+            "" + Math.min(4, Runtime.getRuntime().availableProcessors())))
     private final RDKitTable rdkTable
     private final ChemcentralConfig config
 
@@ -69,12 +91,20 @@ class RDKitTableLoader {
     }
 
     void loadData(Stream<MoleculeObject> mols, Map<String, Class> propertyToTypeMappings) {
-        Sql db = getSql()
-        try {
-            executeBatch(db, mols, propertyToTypeMappings)
-        } finally {
-            db.close()
-            mols.close()
+        if (copy) {
+            try {
+                executeCopy(mols, propertyToTypeMappings)
+            } finally {
+                mols.close()
+            }
+        } else {
+            Sql db = getSql()
+            try {
+                executeBatch(db, mols, propertyToTypeMappings)
+            } finally {
+                db.close()
+                mols.close()
+            }
         }
     }
 
@@ -117,6 +147,83 @@ class RDKitTableLoader {
         }
     }
 
+    /**
+     * Create the molfps table with the molecules and all the fingerprints in a single pass through the base table.
+     * This is much faster than {@link #createMoleculesAndIndex()} followed by {@link #addFpColumns()} as the table
+     * is only written once. No indexes are created. Use {@link #createIndexes()} for this.
+     */
+    void createMoleculesAndFingerprints() {
+        String schemaTableName = molfpsSchemaPlusTable()
+        dropTable(schemaTableName)
+
+        String fps = rdkTable.fingerprintTypes.collect {
+            ', ' + String.format(it.function, 'm') + ' ' + it.colName
+        }.join('')
+        String sql = 'SELECT id, m' + fps + ' INTO ' + schemaTableName +
+                ' FROM (SELECT id,' + String.format(rdkTable.molSourceType.molFunction, 'structure::cstring') + ' m FROM ' +
+                baseSchemaPlusTable() + ') tmp where m IS NOT NULL'
+
+        log.info "SQL: $sql"
+        long t0 = System.currentTimeMillis()
+        executeSql { db ->
+            db.execute(sql)
+        }
+        long t1 = System.currentTimeMillis()
+        log.info "Generated molecules and fingerprints in ${t1 - t0}ms"
+    }
+
+    /**
+     * Create the keys of the molfps table and then the indexes on the molecule and fingerprint columns. The indexes
+     * are built in parallel, each using its own connection.
+     */
+    void createIndexes() {
+        String schemaTableName = molfpsSchemaPlusTable()
+        String tableName = molfpsTable()
+
+        // these lock the table so must be done first
+        String sql1 = 'ALTER TABLE ' + schemaTableName + ' ADD PRIMARY KEY (id)'
+        String sql2 = 'ALTER TABLE ' + schemaTableName + ' ADD CONSTRAINT fk_' + tableName + '_id FOREIGN KEY (id) REFERENCES ' + baseSchemaPlusTable() + ' (id)'
+        log.info "SQL: $sql1"
+        log.info "SQL: $sql2"
+        executeSql { db ->
+            db.execute(sql1)
+            db.execute(sql2)
+        }
+
+        // CREATE INDEX only blocks writes to the table so the indexes can be built at the same time
+        Map<String, String> indexes = new LinkedHashMap<>()
+        indexes['m'] = 'CREATE INDEX idx_' + tableName + '_m ON ' + schemaTableName + ' USING gist(m)'
+        rdkTable.fingerprintTypes.each { FingerprintType type ->
+            indexes[type.colName] = 'CREATE INDEX idx_' + tableName + '_' + type.colName + ' ON ' + schemaTableName + ' USING gist(' + type.colName + ')'
+        }
+
+        long t0 = System.currentTimeMillis()
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(indexThreads, indexes.size())))
+        try {
+            Map<String, Future> futures = new LinkedHashMap<>()
+            indexes.each { String col, String sql ->
+                futures[col] = executor.submit({
+                    log.info "SQL: $sql"
+                    long s0 = System.currentTimeMillis()
+                    executeSql { db ->
+                        db.execute(sql)
+                    }
+                    log.info "Index for $col built in ${System.currentTimeMillis() - s0}ms"
+                } as Runnable)
+            }
+            futures.each { String col, Future f ->
+                try {
+                    f.get()
+                } catch (Exception ex) {
+                    log.warning "ERROR: failed to create index for column $col: ${ex.message}"
+                }
+            }
+        } finally {
+            executor.shutdown()
+        }
+        log.info "Indexes built in ${System.currentTimeMillis() - t0}ms"
+    }
+
     void addFpColumns() {
         rdkTable.fingerprintTypes.each {
             addFpColumn(it)
@@ -250,7 +357,9 @@ class RDKitTableLoader {
         String sql = 'INSERT INTO ' + baseSchemaPlusTable() + ' (' + cols + ') VALUES (' + qmarks + ')'
         log.info "SQL: $sql"
         db.withBatch(batchSize, sql) { ps ->
-            mols.eachWithIndex { m, i ->
+            int i = 0
+            // forEachOrdered rather than each (which uses an iterator) so that a parallel stream is still parsed in parallel
+            mols.forEachOrdered { m ->
                 values.clear()
                 values << m.source
                 propertyToTypeMappings.each { String k, Class cls ->
@@ -262,12 +371,75 @@ class RDKitTableLoader {
                 if (i % reportingSize == 0 && i > 0) {
                     log.info "  loaded $i records"
                 }
+                i++
             }
         }
 
         log.info "Finished loading"
     }
 
+    private void executeCopy(Stream<MoleculeObject> mols, Map<String, Class> propertyToTypeMappings) {
+        String cols = rdkTable.columns[1..(rdkTable.columns.size() -1)].collect { it.name }.join(',')
+        String sql = 'COPY ' + baseSchemaPlusTable() + ' (' + cols + ') FROM STDIN WITH (FORMAT csv)'
+        log.info "SQL: $sql"
+        long t0 = System.currentTimeMillis()
+        Connection con = config.connection
+        try {
+            PGCopyOutputStream out = new PGCopyOutputStream(con.unwrap(PGConnection.class), sql)
+            Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 65536)
+            List values = []
+            int count = 0
+            try {
+                // forEachOrdered rather than each (which uses an iterator) so that a parallel stream is still parsed in parallel
+                mols.forEachOrdered { m ->
+                    values.clear()
+                    values << m.source
+                    propertyToTypeMappings.each { String k, Class cls ->
+                        values << convert(m.getValue(k), cls)
+                    }
+                    writeCopyRow(writer, values)
+                    count++
+                    if (count % reportingSize == 0) {
+                        log.info "  loaded $count records"
+                    }
+                }
+                // completes the COPY
+                writer.close()
+            } catch (Throwable t) {
+                if (out.isActive()) {
+                    out.cancelCopy()
+                }
+                throw t
+            }
+            long t1 = System.currentTimeMillis()
+            log.info "Finished loading $count records in ${t1 - t0}ms"
+        } finally {
+            con.close()
+        }
+    }
+
+    /**
+     * Write the values as a line of CSV in the form needed by COPY. Nulls are written as an empty unquoted value and
+     * all other values as quoted strings so that empty strings and values containing delimiters, quotes or new lines
+     * (e.g. molfiles) are handled.
+     *
+     * @param writer
+     * @param values
+     */
+    static void writeCopyRow(Writer writer, List values) {
+        values.eachWithIndex { v, i ->
+            if (i > 0) {
+                writer.write(',')
+            }
+            if (v != null) {
+                writer.write('"')
+                writer.write(v.toString().replace('"', '""'))
+                writer.write('"')
+            }
+        }
+        writer.write('\n')
+    }
+
     private def convert(Object val, Class cls) {
         if (val == null) {
             return null
@@ -19,16 +19,33 @@ package org.squonk.rdkit.db.dsl
 import org.squonk.types.MoleculeObject
 import org.squonk.rdkit.db.MolSourceType
 import groovy.sql.Sql
+import groovy.sql.SqlWithParams
 import groovy.util.logging.Log
 
+import java.sql.Connection
+import java.sql.PreparedStatement
+import java.sql.ResultSet
+import java.sql.SQLException
+import java.sql.Statement
+import java.util.stream.Collectors
+import java.util.stream.Stream
+import java.util.stream.StreamSupport
+
 /**
  * Created by timbo on 16/12/2015.
  */
 @Log
 class Executor {
 
+    static final int DEFAULT_FETCH_SIZE = 500
+
     final Select select;
 
+    /**
+     * The number of rows fetched from the database at a time by {@link #stream()}
+     */
+    int fetchSize = DEFAULT_FETCH_SIZE
+
     Executor(Select select) {
         this.select = select;
     }
@@ -77,44 +94,85 @@ class Executor {
         return sql;
     }
 
+    /**
+     * Execute the query and collect all the results.
+     * Use {@link #stream()} to avoid holding all the results in memory.
+     *
+     * @return
+     */
     List<MoleculeObject> execute() {
+        Stream<MoleculeObject> stream = stream()
+        try {
+            return stream.collect(Collectors.toList())
+        } finally {
+            stream.close()
+        }
+    }
 
-        Sql db = new Sql(select.query.config.connection)
+    /**
+     * Execute the query and generate a Stream of the results. The rows are fetched from a server side cursor in
+     * batches of the fetch size as the Stream is consumed, so the whole result set is never held in memory.
+     * The query runs in a transaction on a connection obtained from the configuration's DataSource that is held until
+     * the Stream is closed, so you MUST close the Stream (e.g. using try-with-resources).
+     * The pre-execute statements are scoped to this transaction.
+     *
+     * @return
+     */
+    Stream<MoleculeObject> stream() {
+
+        Connection con = select.query.config.connection
+        PreparedStatement stmt = null
+        ResultSet rs = null
         try {
-            List<MoleculeObject> mols = []
-            db.withTransaction {
-                // 1 execute the preExecuteStatements
+            // postgres only uses a cursor when not in auto-commit mode
+            con.autoCommit = false
+            // 1 execute the preExecuteStatements
+            Statement pre = con.createStatement()
+            try {
                 select.preExecuteStatements.each {
-                    println("SQL:" + it.command)
-                    db.execute(it.command)
-                }
-                // 2 build the SQL
-                List bindVars = []
-                String sql = buildSql(bindVars)
-                // 3 execute and build results
-                String format = select.query.rdkTable.molSourceType == MolSourceType.MOL ? 'mol' : 'smiles'
-                println("SQL:" + sql)
-                long t0 = System.currentTimeMillis()
-                db.eachRow(sql, bindVars) {
-                    mols << buildMoleculeObject(it.toRowResult(), format)
+                    log.fine("SQL: " + it.command)
+                    pre.execute(it.command)
                 }
-                //db.commit()
-                long t1 = System.currentTimeMillis()
-                println "Query and retrieval took ${t1 - t0}ms. ${mols.size()} results."
+            } finally {
+                pre.close()
             }
-            return mols
-        } finally {
-            db.close()
+            // 2 build the SQL
+            List bindVars = []
+            String sql = buildSql(bindVars)
+            // our bind variables are of the form ?1 which needs conversion to plain JDBC parameters
+            SqlWithParams converted = new Sql(con).checkForNamedParams(sql, bindVars)
+            stmt = con.prepareStatement(converted.sql)
+            converted.params.eachWithIndex { p, i -> stmt.setObject(i + 1, p) }
+            stmt.fetchSize = fetchSize
+            // 3 execute and build results as they are read
+            long t0 = System.currentTimeMillis()
+            rs = stmt.executeQuery()
+            String format = select.query.rdkTable.molSourceType == MolSourceType.MOL ? 'mol' : 'smiles'
+            ResultSetSpliterator spliterator = new ResultSetSpliterator(rs, format)
+            ResultSet results = rs
+            PreparedStatement statement = stmt
+            return StreamSupport.stream(spliterator, false).onClose({
+                long t1 = System.currentTimeMillis()
+                log.info("Query and retrieval took ${t1 - t0}ms. ${spliterator.count} results.")
+                close(con, statement, results)
+            } as Runnable)
+        } catch (Throwable t) {
+            close(con, stmt, rs)
+            throw t
         }
     }
 
-    private static final String STRUCTURE_COL = "structure";
-
-    private MoleculeObject buildMoleculeObject(Map values, String format) {
-        String structure = values.remove(STRUCTURE_COL)
-        MoleculeObject mo = new MoleculeObject(structure, format)
-        mo.putValues(values)
-        return mo
+    private void close(Connection con, Statement stmt, ResultSet rs) {
+        try {
+            rs?.close()
+            stmt?.close()
+            // the query only reads so there is nothing to commit
+            con.rollback()
+        } catch (SQLException e) {
+            log.warning("Failed to close query: " + e.message)
+        } finally {
+            con.close()
+        }
     }
 
 }
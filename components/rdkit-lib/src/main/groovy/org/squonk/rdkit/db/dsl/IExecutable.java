@@ -19,6 +19,7 @@ package org.squonk.rdkit.db.dsl;
 import org.squonk.types.MoleculeObject;
 
 import java.util.List;
+import java.util.stream.Stream;
 
 /**
  * Created by timbo on 13/12/2015.
@@ -28,5 +29,9 @@ public interface IExecutable {
 
     List<MoleculeObject> execute();
 
+    /**
+     * Execute and stream the results as they are fetched. The Stream MUST be closed.
+     */
+    Stream<MoleculeObject> stream();
 
 }
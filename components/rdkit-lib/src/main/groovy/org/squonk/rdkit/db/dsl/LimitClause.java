@@ -19,6 +19,7 @@ package org.squonk.rdkit.db.dsl;
 import org.squonk.types.MoleculeObject;
 
 import java.util.List;
+import java.util.stream.Stream;
 
 /**
  * Created by timbo on 13/12/2015.
@@ -48,4 +49,9 @@ public class LimitClause implements IExecutable {
         return select.execute();
     }
 
+    @Override
+    public Stream<MoleculeObject> stream() {
+        return select.stream();
+    }
+
 }
@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2019 Informatics Matters Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.squonk.rdkit.db.dsl;
+
+import org.squonk.types.MoleculeObject;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+
+/**
+ * Spliterator that generates a MoleculeObject for each row of a ResultSet as the rows are consumed. The structure
+ * column provides the molecule and the other columns become its values.
+ *
+ * @author timbo
+ */
+class ResultSetSpliterator extends Spliterators.AbstractSpliterator<MoleculeObject> {
+
+    static final String STRUCTURE_COL = "structure";
+
+    private final ResultSet rs;
+    private final String format;
+    private String[] columns;
+    private int count = 0;
+
+    ResultSetSpliterator(ResultSet rs, String format) {
+        super(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL);
+        this.rs = rs;
+        this.format = format;
+    }
+
+    /**
+     * The number of rows read so far
+     */
+    int getCount() {
+        return count;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super MoleculeObject> action) {
+        try {
+            if (!rs.next()) {
+                return false;
+            }
+            if (columns == null) {
+                ResultSetMetaData meta = rs.getMetaData();
+                columns = new String[meta.getColumnCount()];
+                for (int i = 0; i < columns.length; i++) {
+                    columns[i] = meta.getColumnLabel(i + 1);
+                }
+            }
+            String structure = null;
+            Map<String, Object> values = new LinkedHashMap<>();
+            for (int i = 0; i < columns.length; i++) {
+                if (STRUCTURE_COL.equalsIgnoreCase(columns[i])) {
+                    structure = rs.getString(i + 1);
+                } else {
+                    values.put(columns[i], rs.getObject(i + 1));
+                }
+            }
+            count++;
+            action.accept(new MoleculeObject(structure, format, values));
+            return true;
+        } catch (SQLException e) {
+            throw new RuntimeException("Failed to read results", e);
+        }
+    }
+}
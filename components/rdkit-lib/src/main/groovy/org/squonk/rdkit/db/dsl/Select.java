@@ -22,6 +22,7 @@ import org.squonk.rdkit.db.Metric;
 
 import java.util.*;
 import java.util.logging.Logger;
+import java.util.stream.Stream;
 
 /**
  * Created by timbo on 13/12/2015.
@@ -87,14 +88,14 @@ public class Select {
 
 
     public Select setChiral(boolean chiral) {
-        return setOption("SET rdkit.do_chiral_sss=" + (chiral ? "true" : "false"));
+        return setOption("SET LOCAL rdkit.do_chiral_sss=" + (chiral ? "true" : "false"));
     }
 
     public Select setSimilarityThreshold(double threshold, Metric metric) {
         if (threshold < 0 || threshold > 1) {
             throw new IllegalArgumentException("Threshold must be betwen 0 and 1. Value specified was " + threshold);
         }
-        return setOption("SET " + metric.simThresholdProp + "=" + threshold);
+        return setOption("SET LOCAL " + metric.simThresholdProp + "=" + threshold);
     }
 
     Select setOption(String stmt) {
@@ -114,4 +115,14 @@ public class Select {
     public List<MoleculeObject> execute() {
         return getExecutor().execute();
     }
+
+    /**
+     * Execute the query and stream the results as they are fetched from the database.
+     * See {@link Executor#stream()}.
+     *
+     * @return The results. The Stream MUST be closed.
+     */
+    public Stream<MoleculeObject> stream() {
+        return getExecutor().stream();
+    }
 }
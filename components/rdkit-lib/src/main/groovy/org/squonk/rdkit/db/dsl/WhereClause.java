@@ -23,6 +23,7 @@ import org.squonk.rdkit.db.MolSourceType;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.stream.Stream;
 
 /**
  * Created by timbo on 13/12/2015.
@@ -40,6 +41,10 @@ public class WhereClause implements IExecutable, IWherePart {
         return select.execute();
     }
 
+    public Stream<MoleculeObject> stream() {
+        return select.stream();
+    }
+
     public WhereClausePart similarityStructureQuery(String mol, MolSourceType molType, FingerprintType type, Metric metric, String outputColName) {
         return WhereClausePart.similarityStructureQuery(this, mol, molType, type, metric, outputColName);
     }
@@ -22,6 +22,7 @@ import org.squonk.rdkit.db.Metric;
 import org.squonk.rdkit.db.MolSourceType;
 
 import java.util.List;
+import java.util.stream.Stream;
 
 /**
  * Created by timbo on 13/12/2015.
@@ -91,6 +92,10 @@ public abstract class WhereClausePart implements IExecutable, IWherePart {
         return getWhereClause().select.execute();
     }
 
+    public Stream<MoleculeObject> stream() {
+        return getWhereClause().select.stream();
+    }
+
     public LimitClause limit(int limit) {
         return whereClause.select.limit(limit);
     }
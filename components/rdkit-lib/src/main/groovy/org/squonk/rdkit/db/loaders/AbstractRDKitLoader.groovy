@@ -20,6 +20,7 @@ import org.squonk.rdkit.db.ChemcentralConfig
 import org.squonk.rdkit.db.RDKitTable
 import org.squonk.rdkit.db.RDKitTableLoader
 import org.squonk.rdkit.db.dsl.SqlQuery
+import org.squonk.reader.ParallelSDFReader
 import org.squonk.reader.SDFReader
 import org.squonk.types.MoleculeObject
 import org.squonk.util.IOUtils
@@ -60,11 +61,20 @@ abstract class AbstractRDKitLoader {
 
         println "Loading file $file"
         long t0 = System.currentTimeMillis()
-        InputStream is = IOUtils.getGunzippedInputStream(new FileInputStream(file))
+        // plain (non-gzipped) files can be parsed in parallel
+        AutoCloseable is = ParallelSDFReader.canRead(new File(file)) ?
+                new ParallelSDFReader(new File(file)) :
+                IOUtils.getGunzippedInputStream(new FileInputStream(file))
         try {
-            SDFReader sdf = new SDFReader(is)
-            sdf.setNameFieldName(nameFieldName)
-            Stream<MoleculeObject> mols = sdf.asStream()
+            Stream<MoleculeObject> mols
+            if (is instanceof ParallelSDFReader) {
+                is.nameFieldName = nameFieldName
+                mols = is.asStream()
+            } else {
+                SDFReader sdf = new SDFReader(is)
+                sdf.setNameFieldName(nameFieldName)
+                mols = sdf.asStream()
+            }
 
             if (limit > 0) {
                 mols = mols.limit(limit)
@@ -155,8 +165,8 @@ abstract class AbstractRDKitLoader {
     }
 
     protected processTables(RDKitTableLoader worker) {
-        worker.createMoleculesAndIndex()
-        worker.addFpColumns()
+        worker.createMoleculesAndFingerprints()
+        worker.createIndexes()
         worker.putTableInfo()
         worker.aliasTableInfo()
 
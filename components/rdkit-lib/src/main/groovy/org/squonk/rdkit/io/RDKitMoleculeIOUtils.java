@@ -96,7 +96,17 @@ public class RDKitMoleculeIOUtils {
      * @return
      */
     public static String generateCanonicalSmiles(MoleculeObject mo, FragmentMode mode) {
-        ROMol mol = MolReader.findROMol(mo, false);
+        return generateCanonicalSmiles(MolReader.findROMol(mo, false), mode);
+    }
+
+    /** Generate canonical smiles for the RDKit molecule.
+     *
+     * @param mol The molecule to canonicalise, or null
+     * @param mode
+     * @return The smiles, or null if the molecule is null
+     * @see #generateCanonicalSmiles(MoleculeObject, FragmentMode)
+     */
+    public static String generateCanonicalSmiles(ROMol mol, FragmentMode mode) {
         if (mol == null) {
             return null;
         }
@@ -20,6 +20,8 @@ import org.squonk.types.MoleculeObject;
 import org.RDKit.ROMol;
 import org.RDKit.RWMol;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Stream;
@@ -99,8 +101,30 @@ public class MolReader {
         }
     }
 
+    /**
+     * Read a SMILES file, parsing the molecules in parallel. The molecules are in the same order as in the file and the
+     * Stream is parallel. The caller is responsible for deleting the molecules. See {@link ParallelMolSupplier} for
+     * details.
+     */
     public static Stream<ROMol> readSmiles(String file, String delimiter, int smilesCol, int nameCol, boolean hasTitleLine, boolean sanitize) {
-        return MolSupplierSpliterator.forSmilesFile(file, delimiter, smilesCol, nameCol, hasTitleLine, sanitize).asStream(true);
+        try {
+            return ParallelMolSupplier.forSmilesFile(file, delimiter, smilesCol, nameCol, hasTitleLine, sanitize).asStream(true);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Read a SD file, parsing the molecules in parallel. The molecules are in the same order as in the file and the
+     * Stream is parallel. The caller is responsible for deleting the molecules. See {@link ParallelMolSupplier} for
+     * details.
+     */
+    public static Stream<ROMol> readSDF(String file) {
+        try {
+            return ParallelMolSupplier.forSDFile(file).asStream(true);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
     }
 
 }
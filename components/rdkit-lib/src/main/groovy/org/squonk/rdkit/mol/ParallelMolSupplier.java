@@ -0,0 +1,551 @@
+/*
+ * Copyright (c) 2019 Informatics Matters Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.squonk.rdkit.mol;
+
+import org.RDKit.ROMol;
+import org.RDKit.RWMol;
+import org.squonk.types.MoleculeObject;
+import org.squonk.util.IOUtils;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Reads molecules using RDKit, parsing them in parallel. The molecules can be read from SD files or SMILES files, or
+ * from a Stream of MoleculeObjects such as the input of a calculation service.
+ * <p>
+ * The records are read sequentially and grouped into chunks which are parsed concurrently on a shared pool of
+ * SQUONK_RDKIT_PARSE_THREADS threads (default the number of processors). The chunks are delivered in the order they
+ * were read so the molecules are always in the same order as the input. Only a few chunks are read ahead of the
+ * consumer so memory use is bounded.
+ * <p>
+ * Use {@link #map(Function)} or {@link #mapRecords(BiFunction)} to process the molecules on the parsing threads. Each
+ * ROMol is deleted as soon as the function has been applied so that the native memory is released without waiting
+ * for the finalizer. The function must not keep a reference to the ROMol. When using {@link #asStream(boolean)} the
+ * caller owns the molecules and should delete them when they are no longer needed.
+ * <p>
+ * Records that RDKit cannot parse are skipped, except by {@link #mapRecords(BiFunction)}. The Streams split into the
+ * chunks that have been parsed, so a parallel Stream can also process the results concurrently. The Stream that is
+ * returned must be closed so that the input is closed and any molecules that were parsed but not consumed are
+ * released.
+ *
+ * @param <I> The type of record that is parsed
+ * @author timbo
+ */
+public class ParallelMolSupplier<I> implements AutoCloseable {
+
+    private static final Logger LOG = Logger.getLogger(ParallelMolSupplier.class.getName());
+
+    public static final int DEFAULT_THREADS = Integer.parseInt(IOUtils.getConfiguration("SQUONK_RDKIT_PARSE_THREADS",
+            String.valueOf(Runtime.getRuntime().availableProcessors())));
+    public static final int DEFAULT_CHUNK_SIZE = 100;
+
+    private static final String SDF_TERMINATOR = "$$$$";
+    private static final String MOLBLOCK_END = "M  END";
+
+    private static final ExecutorService POOL = Executors.newFixedThreadPool(DEFAULT_THREADS, new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "rdkit-parser-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    static {
+        System.loadLibrary("GraphMolWrap");
+    }
+
+    private final RecordReader<I> reader;
+    private final RecordParser<I> parser;
+    private int chunkSize = DEFAULT_CHUNK_SIZE;
+    private int maxPending = DEFAULT_THREADS * 2;
+    private int failures = 0;
+
+    private ParallelMolSupplier(RecordReader<I> reader, RecordParser<I> parser) {
+        this.reader = reader;
+        this.parser = parser;
+    }
+
+    private static BufferedReader createReader(InputStream input) throws IOException {
+        return new BufferedReader(new InputStreamReader(IOUtils.getGunzippedInputStream(input), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Read SDF. The input can be gzipped. The SD file data fields are set as properties of the molecules. The records
+     * are the text of each molecule without the $$$$ terminator.
+     *
+     * @param input    The SDF
+     * @param sanitize Whether to sanitize the molecules
+     * @param removeHs Whether to remove hydrogens
+     */
+    public static ParallelMolSupplier<String> forSDF(InputStream input, boolean sanitize, boolean removeHs) throws IOException {
+        return new ParallelMolSupplier<>(new TextRecordReader(createReader(input), true),
+                record -> parseSDFRecord(record, sanitize, removeHs));
+    }
+
+    public static ParallelMolSupplier<String> forSDFile(String file) throws IOException {
+        return forSDF(new FileInputStream(file), true, true);
+    }
+
+    /**
+     * Read SMILES, one molecule per line. The input can be gzipped. If there is a title line the values of the other
+     * columns are set as properties of the molecules using the column names from the title line. The records are the
+     * lines.
+     *
+     * @param input        The SMILES
+     * @param delimiter    The characters that separate the columns
+     * @param smilesCol    The index of the column containing the SMILES
+     * @param nameCol      The index of the column containing the name, or -1 if there is none
+     * @param hasTitleLine Whether the first line contains the column names
+     * @param sanitize     Whether to sanitize the molecules
+     */
+    public static ParallelMolSupplier<String> forSmiles(InputStream input, String delimiter, int smilesCol, int nameCol, boolean hasTitleLine, boolean sanitize) throws IOException {
+        SmilesParser parser = new SmilesParser(delimiter, smilesCol, nameCol, sanitize);
+        BufferedReader reader = createReader(input);
+        if (hasTitleLine) {
+            String title = reader.readLine();
+            if (title != null) {
+                parser.columnNames = parser.split(title);
+            }
+        }
+        return new ParallelMolSupplier<>(new TextRecordReader(reader, false), parser);
+    }
+
+    public static ParallelMolSupplier<String> forSmilesFile(String file, String delimiter, int smilesCol, int nameCol, boolean hasTitleLine, boolean sanitize) throws IOException {
+        return forSmiles(new FileInputStream(file), delimiter, smilesCol, nameCol, hasTitleLine, sanitize);
+    }
+
+    /**
+     * Read the molecules of the MoleculeObjects using their source and format. The records are the MoleculeObjects and
+     * the Stream is closed when the supplier is closed.
+     *
+     * @param mols The molecules
+     */
+    public static ParallelMolSupplier<MoleculeObject> forMoleculeObjects(Stream<MoleculeObject> mols) {
+        return new ParallelMolSupplier<>(new IteratorRecordReader<>(mols), mo -> mo.getSource() == null ? null :
+                MolReader.generateMolFromString(mo.getSource(), mo.getFormat()));
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Set the number of records that are parsed as one task. Default is 100.
+     */
+    public void setChunkSize(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    public int getMaxPending() {
+        return maxPending;
+    }
+
+    /**
+     * Set the maximum number of chunks that are read ahead of the consumer. Default is twice the number of threads.
+     */
+    public void setMaxPending(int maxPending) {
+        this.maxPending = maxPending;
+    }
+
+    /**
+     * The number of records that could not be parsed so far.
+     */
+    public synchronized int getFailures() {
+        return failures;
+    }
+
+    /**
+     * Get the molecules as a Stream. The caller is responsible for deleting the molecules.
+     *
+     * @param parallel Whether the Stream is parallel
+     */
+    public Stream<ROMol> asStream(boolean parallel) {
+        return stream((record, mol) -> mol, false, parallel);
+    }
+
+    /**
+     * Apply the function to each molecule on the parsing threads and then delete the molecule.
+     *
+     * @param function Generates the result for a molecule. If null is returned there is no result for that molecule.
+     * @return The results in the same order as the input.
+     */
+    public <R> Stream<R> map(Function<ROMol, R> function) {
+        return stream((record, mol) -> mol == null ? null : function.apply(mol), true, false);
+    }
+
+    /**
+     * Apply the function to each record and its molecule on the parsing threads and then delete the molecule. Unlike
+     * {@link #map(Function)} the function is also called for the records that cannot be parsed, with a null molecule.
+     *
+     * @param function Generates the result for a record. If null is returned there is no result for that record.
+     * @return The results in the same order as the input.
+     */
+    public <R> Stream<R> mapRecords(BiFunction<I, ROMol, R> function) {
+        return stream(function, true, false);
+    }
+
+    private <R> Stream<R> stream(BiFunction<I, ROMol, R> function, boolean delete, boolean parallel) {
+        ChunkSpliterator<R> spliterator = new ChunkSpliterator<>(function, delete);
+        return StreamSupport.stream(spliterator, parallel).onClose(spliterator::close);
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+
+    private <R> List<R> parseChunk(List<I> records, BiFunction<I, ROMol, R> function, boolean delete) {
+        List<R> results = new ArrayList<>(records.size());
+        int failed = 0;
+        for (I record : records) {
+            ROMol mol;
+            try {
+                mol = parser.parse(record);
+            } catch (RuntimeException e) {
+                LOG.log(Level.FINE, "Failed to parse record", e);
+                mol = null;
+            }
+            if (mol == null) {
+                failed++;
+            }
+            try {
+                R result = function.apply(record, mol);
+                if (result != null) {
+                    results.add(result);
+                }
+            } finally {
+                if (delete && mol != null) {
+                    mol.delete();
+                }
+            }
+        }
+        if (failed > 0) {
+            synchronized (this) {
+                failures += failed;
+            }
+        }
+        return results;
+    }
+
+    static ROMol parseSDFRecord(String record, boolean sanitize, boolean removeHs) {
+        int end = record.indexOf(MOLBLOCK_END);
+        if (end < 0) {
+            return null;
+        }
+        end += MOLBLOCK_END.length();
+        ROMol mol = RWMol.MolFromMolBlock(record.substring(0, end), sanitize, removeHs);
+        if (mol == null) {
+            return null;
+        }
+        // data items
+        String name = null;
+        StringBuilder value = new StringBuilder();
+        for (String line : record.substring(end).split("\n")) {
+            if (line.startsWith(">")) {
+                int start = line.indexOf('<');
+                int stop = line.indexOf('>', start + 1);
+                name = start >= 0 && stop > start ? line.substring(start + 1, stop) : null;
+                value.setLength(0);
+            } else if (name != null) {
+                if (line.trim().isEmpty()) {
+                    mol.setProp(name, value.toString());
+                    name = null;
+                } else {
+                    if (value.length() > 0) {
+                        value.append('\n');
+                    }
+                    value.append(line);
+                }
+            }
+        }
+        if (name != null) {
+            mol.setProp(name, value.toString());
+        }
+        return mol;
+    }
+
+    interface RecordParser<I> {
+        ROMol parse(I record);
+    }
+
+    interface RecordReader<I> extends Closeable {
+
+        /**
+         * Read the next chunk of records.
+         *
+         * @return The records, or an empty list at the end of the input
+         */
+        List<I> readChunk(int size) throws IOException;
+    }
+
+    /**
+     * Reads SD file records or SMILES lines
+     */
+    static class TextRecordReader implements RecordReader<String> {
+
+        private final BufferedReader reader;
+        private final boolean sdf;
+
+        TextRecordReader(BufferedReader reader, boolean sdf) {
+            this.reader = reader;
+            this.sdf = sdf;
+        }
+
+        @Override
+        public List<String> readChunk(int size) throws IOException {
+            List<String> records = new ArrayList<>(size);
+            StringBuilder record = new StringBuilder();
+            String line;
+            while (records.size() < size && (line = reader.readLine()) != null) {
+                if (sdf) {
+                    if (line.trim().equals(SDF_TERMINATOR)) {
+                        records.add(record.toString());
+                        record.setLength(0);
+                    } else {
+                        record.append(line).append('\n');
+                    }
+                } else if (!line.trim().isEmpty()) {
+                    records.add(line);
+                }
+            }
+            // an SD file that does not end with a terminator
+            if (record.length() > 0 && !record.toString().trim().isEmpty()) {
+                records.add(record.toString());
+            }
+            return records;
+        }
+
+        @Override
+        public void close() throws IOException {
+            reader.close();
+        }
+    }
+
+    static class IteratorRecordReader<I> implements RecordReader<I> {
+
+        private final Stream<I> stream;
+        private final Iterator<I> iterator;
+
+        IteratorRecordReader(Stream<I> stream) {
+            this.stream = stream;
+            this.iterator = stream.iterator();
+        }
+
+        @Override
+        public List<I> readChunk(int size) {
+            List<I> records = new ArrayList<>(size);
+            while (records.size() < size && iterator.hasNext()) {
+                records.add(iterator.next());
+            }
+            return records;
+        }
+
+        @Override
+        public void close() {
+            stream.close();
+        }
+    }
+
+    static class SmilesParser implements RecordParser<String> {
+
+        final String delimiter;
+        final int smilesCol;
+        final int nameCol;
+        final boolean sanitize;
+        String[] columnNames;
+
+        SmilesParser(String delimiter, int smilesCol, int nameCol, boolean sanitize) {
+            this.delimiter = delimiter == null || delimiter.isEmpty() ? " \t" : delimiter;
+            this.smilesCol = smilesCol;
+            this.nameCol = nameCol;
+            this.sanitize = sanitize;
+        }
+
+        /**
+         * Split on any of the delimiter characters, ignoring empty tokens
+         */
+        String[] split(String line) {
+            List<String> tokens = new ArrayList<>();
+            StringTokenizer tokenizer = new StringTokenizer(line, delimiter);
+            while (tokenizer.hasMoreTokens()) {
+                tokens.add(tokenizer.nextToken());
+            }
+            return tokens.toArray(new String[tokens.size()]);
+        }
+
+        @Override
+        public ROMol parse(String record) {
+            String[] tokens = split(record);
+            if (smilesCol >= tokens.length) {
+                return null;
+            }
+            ROMol mol = RWMol.MolFromSmiles(tokens[smilesCol], 0, sanitize);
+            if (mol == null) {
+                return null;
+            }
+            for (int i = 0; i < tokens.length; i++) {
+                if (i == nameCol) {
+                    mol.setProp("_Name", tokens[i]);
+                } else if (i != smilesCol && columnNames != null && i < columnNames.length) {
+                    mol.setProp(columnNames[i], tokens[i]);
+                }
+            }
+            return mol;
+        }
+    }
+
+    /**
+     * Delivers the results of the chunks in the order they were read, keeping up to maxPending chunks being parsed.
+     */
+    private class ChunkSpliterator<R> implements Spliterator<R> {
+
+        private final BiFunction<I, ROMol, R> function;
+        private final boolean delete;
+        private final Deque<Future<List<R>>> pending = new ArrayDeque<>();
+        private Iterator<R> current = Collections.emptyIterator();
+        private boolean eof = false;
+
+        ChunkSpliterator(BiFunction<I, ROMol, R> function, boolean delete) {
+            this.function = function;
+            this.delete = delete;
+        }
+
+        private void fill() throws IOException {
+            while (!eof && pending.size() < maxPending) {
+                List<I> records = reader.readChunk(chunkSize);
+                if (records.isEmpty()) {
+                    eof = true;
+                } else {
+                    pending.add(POOL.submit(() -> parseChunk(records, function, delete)));
+                }
+            }
+        }
+
+        /**
+         * Wait for the next chunk that has results.
+         *
+         * @return The results, or null at the end of the input
+         */
+        private List<R> nextChunk() {
+            try {
+                while (true) {
+                    fill();
+                    Future<List<R>> next = pending.poll();
+                    if (next == null) {
+                        return null;
+                    }
+                    List<R> results = next.get();
+                    if (!results.isEmpty()) {
+                        return results;
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted reading molecules", e);
+            } catch (ExecutionException e) {
+                throw new RuntimeException("Failed to parse molecules", e.getCause());
+            }
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super R> action) {
+            if (!current.hasNext()) {
+                List<R> results = nextChunk();
+                if (results == null) {
+                    return false;
+                }
+                current = results.iterator();
+            }
+            action.accept(current.next());
+            return true;
+        }
+
+        /**
+         * Hand out the rest of the current chunk, or the next chunk, so that a parallel Stream processes the chunks
+         * concurrently.
+         */
+        @Override
+        public Spliterator<R> trySplit() {
+            List<R> batch = new ArrayList<>();
+            current.forEachRemaining(batch::add);
+            if (batch.isEmpty()) {
+                batch = nextChunk();
+                if (batch == null) {
+                    return null;
+                }
+            }
+            return Spliterators.spliterator(batch, ORDERED | NONNULL);
+        }
+
+        void close() {
+            eof = true;
+            List<R> unused = new ArrayList<>();
+            current.forEachRemaining(unused::add);
+            for (Future<List<R>> future : pending) {
+                try {
+                    unused.addAll(future.get());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                } catch (ExecutionException e) {
+                    // already reported or not of interest as the stream is being closed
+                }
+            }
+            pending.clear();
+            if (!delete) {
+                // the molecules were never handed to the caller so are still ours to release
+                for (R mol : unused) {
+                    ((ROMol) mol).delete();
+                }
+            }
+            try {
+                ParallelMolSupplier.this.close();
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "Failed to close input", e);
+            }
+            if (getFailures() > 0) {
+                LOG.info(getFailures() + " records could not be parsed");
+            }
+        }
+
+        @Override
+        public long estimateSize() {
+            return Long.MAX_VALUE;
+        }
+
+        @Override
+        public int characteristics() {
+            return ORDERED | NONNULL;
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2019 Informatics Matters Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.squonk.rdkit.db
+
+import spock.lang.Specification
+
+/**
+ * Created by timbo on 17/10/2019.
+ */
+class FingerprintIndexSpec extends Specification {
+
+    static List<long[]> randomFingerprints(Random random, int count, int numBits) {
+        (0..<count).collect {
+            // vary the density so that there is a spread of cardinalities
+            double density = 0.05 + random.nextDouble() * 0.2
+            int[] onBits = (0..<numBits).findAll { random.nextDouble() < density } as int[]
+            FingerprintIndex.fromOnBits(numBits, onBits)
+        }
+    }
+
+    static double bruteForce(Metric metric, long[] a, long[] b) {
+        int common = 0
+        for (int i = 0; i < a.length; i++) {
+            common += Long.bitCount(a[i] & b[i])
+        }
+        FingerprintIndex.similarity(metric, FingerprintIndex.cardinality(a), FingerprintIndex.cardinality(b), common)
+    }
+
+    void "similarity"() {
+
+        expect:
+        FingerprintIndex.similarity(Metric.TANIMOTO, 4, 6, 2) == 0.25d
+        FingerprintIndex.similarity(Metric.DICE, 4, 6, 2) == 0.4d
+        FingerprintIndex.similarity(Metric.TANIMOTO, 0, 0, 0) == 0d
+    }
+
+    void "from bytes"() {
+
+        when:
+        long[] fp = FingerprintIndex.fromBytes([0x01, 0x80, 0, 0, 0, 0, 0, 0, 0x02] as byte[])
+
+        then:
+        fp.length == 2
+        fp[0] == (1L | (1L << 15))
+        fp[1] == 2L
+        fp == FingerprintIndex.fromOnBits(72, 0, 15, 65)
+    }
+
+    void "search finds the same hits as brute force"() {
+
+        Random random = new Random(42)
+        List<long[]> fps = randomFingerprints(random, 500, 256)
+        FingerprintIndex.Builder builder = new FingerprintIndex.Builder(256)
+        fps.eachWithIndex { fp, i -> builder.add(i, fp) }
+        FingerprintIndex index = builder.build()
+        long[] query = fps[7]
+
+        when:
+        def hits = index.search(query, metric, 0.15d, 0)
+        def expected = (0..<fps.size()).findAll { bruteForce(metric, query, fps[it]) >= 0.15d } as Set
+
+        then:
+        index.size() == 500
+        hits.size() > 1
+        hits.collect { it.id } as Set == expected
+        hits[0].id == 7
+        hits[0].similarity == 1d
+        hits.collect { it.similarity } == hits.collect { it.similarity }.sort { -it }
+
+        where:
+        metric << [Metric.TANIMOTO, Metric.DICE]
+    }
+
+    void "search limit keeps the best hits"() {
+
+        Random random = new Random(1)
+        List<long[]> fps = randomFingerprints(random, 200, 128)
+        FingerprintIndex.Builder builder = new FingerprintIndex.Builder(128)
+        fps.eachWithIndex { fp, i -> builder.add(i * 10, fp) }
+        FingerprintIndex index = builder.build()
+
+        when:
+        def all = index.search(fps[0], Metric.TANIMOTO, 0.1d, 0)
+        def limited = index.search(fps[0], Metric.TANIMOTO, 0.1d, 5)
+
+        then:
+        all.size() > 5
+        limited.size() == 5
+        limited.collect { it.id } == all.take(5).collect { it.id }
+    }
+
+    void "multi search combines hits"() {
+
+        Random random = new Random(99)
+        List<long[]> fps = randomFingerprints(random, 300, 128)
+        FingerprintIndex.Builder builder = new FingerprintIndex.Builder(128)
+        fps.eachWithIndex { fp, i -> builder.add(i, fp) }
+        FingerprintIndex index = builder.build()
+        List<long[]> queries = [fps[3], null, fps[3], fps[10]]
+
+        when:
+        def hits = index.multiSearch(queries, Metric.TANIMOTO, 0.35d, 0)
+        def single3 = index.search(fps[3], Metric.TANIMOTO, 0.35d, 0)
+        def single10 = index.search(fps[10], Metric.TANIMOTO, 0.35d, 0)
+        def ids = hits.collect { it.id }
+
+        then:
+        ids.size() == ids.toSet().size()
+        ids.toSet() == (single3.collect { it.id } + single10.collect { it.id }).toSet()
+        hits.find { it.id == 3 }.query == 0
+        hits.find { it.id == 10 }.query == 3
+        hits.every { h -> h.similarity == Math.max(bruteForce(Metric.TANIMOTO, fps[3], fps[h.id]), bruteForce(Metric.TANIMOTO, fps[10], fps[h.id])) }
+    }
+
+    void "wrong size fingerprint"() {
+
+        FingerprintIndex.Builder builder = new FingerprintIndex.Builder(128)
+
+        when:
+        builder.add(1, new long[3])
+
+        then:
+        thrown(IllegalArgumentException)
+    }
+}
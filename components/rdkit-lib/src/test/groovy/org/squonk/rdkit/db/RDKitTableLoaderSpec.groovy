@@ -0,0 +1,49 @@
+/*
+ * Copyright (c) 2019 Informatics Matters Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.squonk.rdkit.db
+
+import spock.lang.Specification
+
+/**
+ * Created by timbo on 17/10/2019.
+ */
+class RDKitTableLoaderSpec extends Specification {
+
+    static String copyRow(List values) {
+        StringWriter writer = new StringWriter()
+        RDKitTableLoader.writeCopyRow(writer, values)
+        return writer.toString()
+    }
+
+    void "copy row simple values"() {
+
+        expect:
+        copyRow(['CCO', 1, 2.5d]) == '"CCO","1","2.5"\n'
+    }
+
+    void "copy row nulls and empty strings"() {
+
+        expect:
+        copyRow([null, '', null]) == ',"",\n'
+    }
+
+    void "copy row quotes and new lines"() {
+
+        expect:
+        copyRow(['a "b"', 'line1\nline2,x']) == '"a ""b""","line1\nline2,x"\n'
+    }
+}
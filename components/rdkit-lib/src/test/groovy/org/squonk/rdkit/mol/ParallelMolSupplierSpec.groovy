@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2019 Informatics Matters Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.squonk.rdkit.mol
+
+import org.RDKit.RWMol
+import org.squonk.reader.SDFReader
+import org.squonk.types.MoleculeObject
+import spock.lang.Specification
+
+import java.util.stream.Collectors
+
+/**
+ * Created by timbo on 17/10/2019.
+ */
+class ParallelMolSupplierSpec extends Specification {
+
+    static final String SDF = '../../data/testfiles/Kinase_inhibs.sdf.gz'
+    static final String SMILES = '../../data/testfiles/nci1000.smiles'
+
+    void "read sdf in order"() {
+
+        def expected = new SDFReader(new FileInputStream(SDF)).collect {
+            MolReader.generateMolFromMolfile(it.source).getNumAtoms()
+        }
+        def supplier = ParallelMolSupplier.forSDF(new FileInputStream(SDF), true, true)
+        supplier.chunkSize = 3
+
+        when:
+        def stream = supplier.map { it.getNumAtoms() }
+        def results = stream.collect(Collectors.toList())
+        stream.close()
+
+        then:
+        results.size() > 0
+        results == expected
+        supplier.failures == 0
+    }
+
+    void "read smiles in order"() {
+
+        // the names of the molecules that RDKit can parse, in the order of the file
+        def expected = new File(SMILES).readLines().findAll { parses(it.split('\t')[0]) }.collect { it.split('\t')[1] }
+        def supplier = ParallelMolSupplier.forSmilesFile(SMILES, '\t', 0, 1, false, true)
+        supplier.chunkSize = 10
+
+        when:
+        def stream = supplier.map { it.getProp('_Name') }
+        def results = stream.collect(Collectors.toList())
+        stream.close()
+
+        then:
+        results.size() == 1000 - supplier.failures
+        results == expected
+    }
+
+    void "parallel stream splits into chunks in order"() {
+
+        def supplier = ParallelMolSupplier.forSmilesFile(SMILES, '\t', 0, 1, false, true)
+        supplier.chunkSize = 10
+        def splitting = ParallelMolSupplier.forSmilesFile(SMILES, '\t', 0, 1, false, true)
+        splitting.chunkSize = 10
+
+        when:
+        def stream = supplier.asStream(true)
+        def results = stream.map {
+            String name = it.getProp('_Name')
+            it.delete()
+            name
+        }.collect(Collectors.toList())
+        stream.close()
+        def splittingStream = splitting.map { it.getProp('_Name') }
+        def chunk = splittingStream.spliterator().trySplit()
+
+        then:
+        stream.isParallel()
+        results == new File(SMILES).readLines().findAll { parses(it.split('\t')[0]) }.collect { it.split('\t')[1] }
+        chunk != null
+        chunk.estimateSize() > 0
+        chunk.estimateSize() <= 10
+
+        cleanup:
+        splittingStream?.close()
+    }
+
+    void "map molecule objects including failures"() {
+
+        def mols = [new MoleculeObject('CC', 'smiles'), new MoleculeObject('not smiles', 'smiles'), new MoleculeObject('CCC', 'smiles')]
+        def supplier = ParallelMolSupplier.forMoleculeObjects(mols.stream())
+        supplier.chunkSize = 1
+
+        when:
+        def stream = supplier.mapRecords { mo, mol -> [mo, mol?.getNumAtoms()] }
+        def results = stream.collect(Collectors.toList())
+        stream.close()
+
+        then:
+        results.collect { it[0] } == mols
+        results.collect { it[1] } == [2, null, 3]
+        supplier.failures == 1
+    }
+
+    static boolean parses(String smiles) {
+        try {
+            def mol = RWMol.MolFromSmiles(smiles, 0, true)
+            mol?.delete()
+            return mol != null
+        } catch (Exception e) {
+            return false
+        }
+    }
+}